@@ -28,7 +28,9 @@
 # 1.24 Always show the core size metrics, even if not a core-periphery project
 # 1.25 Add secondary core groups - cyclic groups in the program that many other components interact with. Note in original papers 2019-09-06
 # 1.26 Fix slashes in test files directory name
-our $version = "1.26";
+# 1.27 Add externalClosure option: export the file dependencies and leave the transitive closure and architecture metrics to the caller.
+#      Add skipDuplicates option to leave duplicate code detection to the caller
+our $version = "1.27";
 
 use strict;
 use Data::Dumper;
@@ -97,6 +99,8 @@ sub generate {
   my $createTestFiles = $report->option->lookup("createTestFiles");
   my $createMetricsFiles = $report->option->lookup("createMetrics");
   my $createArch = $report->option->lookup("createArch");
+  my $externalClosure = $report->option->lookup("externalClosure");
+  my $skipDuplicates = $report->option->lookup("skipDuplicates");
   my $maxFileSize = $report->option->lookup("MaxFileSize");
   my $maxCBOThreshold = $report->option->lookup("MaxCBOThreshold");
   my $maxWMC=$report->option->lookup("MaxWMC");
@@ -157,7 +161,7 @@ sub generate {
       $lexers{$fileEnt->id}=$lexer;
       $usefulComments = usefulCommentCount($fileEnt, $lexer);
       $uselessLines = uselessLineCount($fileEnt, $lexer);
-      makeDuplicateCodeHash($fileEnt, $lexer);
+      makeDuplicateCodeHash($fileEnt, $lexer) unless $skipDuplicates;
     }
     
     
@@ -232,13 +236,42 @@ sub generate {
     printSquareMatrix(\@titlesList ,\@designStructureMatrix,$outputFileName);
   }
 
+  if ($externalClosure){
+    #Export the Design Structure Matrix so the caller can compute the closure and architecture metrics
+    my $depFile = $outputDir.$slash."fileDependencies.csv";
+    open (FILE,'>',$depFile) || die ("Couldn't open $depFile $!\n");
+    print FILE "Files,$fileCount\n";
+    foreach my $title (@titlesList){
+      print FILE "$title\n";
+    }
+    my @edges;
+    my @external;
+    foreach my $fileObj (@fileObjList){
+      my %seen;
+      foreach my $depID (@{$fileObj->{depends}}){
+        my $col = $fileObjsByEntID{$depID}->{id};
+        if (! defined $col){
+          #A library file, which only marks column 0 in the closure, not what file 0 sees
+          push @external, $fileObj->{id} unless $seen{library}++;
+          next;
+        }
+        push @edges, $fileObj->{id}.",$col" unless $seen{$col}++;
+      }
+    }
+    print FILE "Dependencies,".scalar(@edges)."\n";
+    print FILE "$_\n" foreach @edges;
+    print FILE "External,".scalar(@external)."\n";
+    print FILE "$_\n" foreach @external;
+    close FILE;
+  }
+
   # Calculate the  Transitive Closure via depth first traversal, also the Visibility Fan ins and outs
   printprogress($report,.10,"Calculating Transitive Closure");
-  for (my $k = 0; $k < $fileCount; $k++){
+  for (my $k = 0; $k < $fileCount && ! $externalClosure; $k++){
     strongconnect($report,$fileObjList[$k]) unless $fileObjList[$k]->{index};
     
   }
-    for (my $i = 0; $i < $fileCount; $i++){
+    for (my $i = 0; $i < $fileCount && ! $externalClosure; $i++){
       for (my $j = 0; $j < $fileCount; $j++){
         $fileObjList[$j]->vfiInc if $visibilityMatrix[$i][$j];
         $fileObjList[$i]->vfoInc if $visibilityMatrix[$i][$j];
@@ -260,6 +293,7 @@ sub generate {
   #Identify the cyclic groups of the system and identify the largest.
   my %cyclicGroups; #The cyclic group id for each file
   my @sorted = sort {$b->{vfi} <=> $a->{vfi} || $a->{vfo} <=> $b->{vfo} } @fileObjList;
+  @sorted = () if $externalClosure;
   my @m;
   my $prev;
   my $curGroup=1; 
@@ -580,11 +614,11 @@ sub generate {
   my @metricNames;
   push @metrics,$projectName;
   push @metricNames,"Project Name";
-  push @metrics, sprintf("%.3f",((sum @vfoList) *100/($fileCount * $fileCount))) if $fileCount;
-  push @metricNames,"Propagation Cost" if $fileCount;;
-  push @metrics,$projectArchitectType;
-  push @metricNames,"Architecture Type";
-  if ($fileCount){
+  push @metrics, sprintf("%.3f",((sum @vfoList) *100/($fileCount * $fileCount))) if $fileCount && ! $externalClosure;
+  push @metricNames,"Propagation Cost" if $fileCount && ! $externalClosure;
+  push @metrics,$projectArchitectType unless $externalClosure;
+  push @metricNames,"Architecture Type" unless $externalClosure;
+  if ($fileCount && ! $externalClosure){
     if ($coreGroup){
       push @metrics, sprintf("%.1f%",($cyclicGroups{$largestGroupID}{size}*100/$fileCount));
       push @metricNames,"Core Size";
@@ -620,7 +654,7 @@ sub generate {
     push @metrics, (sprintf("%.1f%",$overlyComplexCoreFile*100/$cyclicGroups{$largestGroupID}{size}));
     push @metricNames, "Overly Complex Core Files";
   }
-  if ($mGroupSize{Core}){
+  if ($mGroupSize{Core} && ! $externalClosure){
     push @metrics, (sprintf("%.1f%",$overlyComplexCentralFile*100/$mGroupSize{Core}));
     push @metricNames, "Overly Complex Central Files";
   }
@@ -1960,6 +1994,8 @@ sub init {
   $report->option->checkbox("createTestFiles","Generate validation files for testing",0);
   $report->option->checkbox("createArch",     "Generate Architecture import files",1);
   $report->option->checkbox("createMetrics",  "Generate metrics csv files",1);
+  $report->option->checkbox("externalClosure","Export file dependencies instead of calculating the transitive closure",0);
+  $report->option->checkbox("skipDuplicates", "Do not detect duplicate code",0);
 
   }
 
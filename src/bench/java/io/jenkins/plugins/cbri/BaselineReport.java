@@ -0,0 +1,119 @@
+package io.jenkins.plugins.cbri;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Turn the JSON results of a JMH run into the checked-in baseline: one line per benchmark and parameters
+ * with its score and allocation per operation, rounded so that only real changes show up in a diff.
+ * Lines that moved by more than a tenth against the previous baseline are printed. Benchmarks that did not
+ * run keep their previous line, so a run of a subset updates only its own lines.
+ *
+ * Usage: BaselineReport jmh-result.json baseline.txt
+ */
+public class BaselineReport {
+
+    private static final double THRESHOLD = 0.10;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: BaselineReport <jmh-result.json> <baseline.txt>");
+            System.exit(2);
+        }
+        File baseline = new File(args[1]);
+        Map<String, String> lines = new TreeMap<>();
+        Map<String, double[]> previous = new TreeMap<>();
+        if (baseline.exists())
+            read(baseline, lines, previous);
+        Map<String, double[]> current = new TreeMap<>();
+
+        JsonNode results = CbriClientRegistry.MAPPER.readTree(new File(args[0]));
+        for (JsonNode result : results) {
+            StringBuilder key = new StringBuilder(result.path("benchmark").asText()
+                    .replace(BaselineReport.class.getPackage().getName() + ".", ""));
+            Iterator<Map.Entry<String, JsonNode>> params = result.path("params").fields();
+            while (params.hasNext()) {
+                Map.Entry<String, JsonNode> param = params.next();
+                key.append(' ').append(param.getKey()).append('=').append(param.getValue().asText());
+            }
+            JsonNode primary = result.path("primaryMetric");
+            double score = round(primary.path("score").asDouble());
+            double alloc = -1;
+            Iterator<Map.Entry<String, JsonNode>> secondary = result.path("secondaryMetrics").fields();
+            while (secondary.hasNext()) {
+                Map.Entry<String, JsonNode> metric = secondary.next();
+                // "gc.alloc.rate.norm", prefixed by a middle dot before JMH 1.36
+                if (metric.getKey().endsWith("gc.alloc.rate.norm"))
+                    alloc = round(metric.getValue().path("score").asDouble());
+            }
+            current.put(key.toString(), new double[]{score, alloc});
+            lines.put(key.toString(), String.format(Locale.ROOT, "%s\t%s %s\t%s B/op", key, format(score),
+                    primary.path("scoreUnit").asText(), alloc < 0 ? "-" : format(alloc)));
+        }
+
+        for (Map.Entry<String, double[]> entry : current.entrySet()) {
+            double[] before = previous.get(entry.getKey());
+            if (before == null)
+                continue;
+            report(entry.getKey(), "score", before[0], entry.getValue()[0]);
+            report(entry.getKey(), "allocation", before[1], entry.getValue()[1]);
+        }
+
+        try (Writer out = Files.newBufferedWriter(baseline.toPath(), StandardCharsets.UTF_8)) {
+            out.write("# benchmark params\tscore unit\tallocation\n");
+            for (String line : lines.values())
+                out.write(line + "\n");
+        }
+        System.out.println("Wrote " + lines.size() + " benchmarks to " + baseline + ", " + current.size()
+                + " from this run");
+    }
+
+    /**
+     * Read the lines of a baseline and their scores and allocations, by benchmark and parameters.
+     */
+    private static void read(File baseline, Map<String, String> lines, Map<String, double[]> scores) throws IOException {
+        for (String line : Files.readAllLines(baseline.toPath(), StandardCharsets.UTF_8)) {
+            String[] columns = line.split("\t");
+            if (line.startsWith("#") || columns.length != 3)
+                continue;
+            double score = Double.parseDouble(columns[1].substring(0, columns[1].indexOf(' ')));
+            String alloc = columns[2].replace(" B/op", "");
+            scores.put(columns[0], new double[]{score, alloc.equals("-") ? -1 : Double.parseDouble(alloc)});
+            lines.put(columns[0], line);
+        }
+    }
+
+    private static void report(String key, String what, double before, double after) {
+        if (before <= 0 || after < 0)
+            return;
+        double change = (after - before) / before;
+        if (Math.abs(change) > THRESHOLD)
+            System.out.println(String.format(Locale.ROOT, "%s: %s %s -> %s (%+.0f%%)", key, what, format(before),
+                    format(after), change * 100));
+    }
+
+    /**
+     * Round to three significant digits.
+     */
+    static double round(double value) {
+        if (value == 0 || Double.isNaN(value) || Double.isInfinite(value))
+            return value;
+        double scale = Math.pow(10, 2 - (int) Math.floor(Math.log10(Math.abs(value))));
+        return Math.round(value * scale) / scale;
+    }
+
+    private static String format(double value) {
+        String text = String.format(Locale.ROOT, "%.6f", value);
+        text = text.replaceAll("0+$", "");
+        return text.endsWith(".") ? text.substring(0, text.length() - 1) : text;
+    }
+}
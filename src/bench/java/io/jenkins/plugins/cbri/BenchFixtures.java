@@ -0,0 +1,193 @@
+package io.jenkins.plugins.cbri;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Core metrics output for benchmarks, written the way the core metrics script writes it:
+ * projectMetrics.csv and a treemap.html listing the given number of files, source trees to
+ * detect duplicate code in and file dependency graphs. The same number of files always gives the same output.
+ */
+final class BenchFixtures {
+
+    private static final String[] COMPONENTS = {"Core", "Shared", "Peripheral", "Control", "Isolate"};
+
+    private BenchFixtures() {
+    }
+
+    /**
+     * @return a new temporary directory holding the output for the number of files
+     */
+    static File coreMetricsDir(int files) throws IOException {
+        File dir = Files.createTempDirectory("cbri-bench-" + files).toFile();
+        writeProjectMetrics(dir, files);
+        writeTreeMap(dir, files);
+        return dir;
+    }
+
+    static void writeProjectMetrics(File dir, int files) throws IOException {
+        long uloc = files * 87L;
+        try (Writer out = Files.newBufferedWriter(new File(dir, "projectMetrics.csv").toPath(), StandardCharsets.UTF_8)) {
+            out.write("Metric Name, Value\n");
+            out.write("\"Project Name\",\"Bench\"\n");
+            out.write("\"Propagation Cost\",\"21.4\"\n");
+            out.write("\"Architecture Type\",\"Core-Periphery\"\n");
+            out.write("\"Core Size\",\"12.5%\"\n");
+            out.write("\"Central Size\",\"18.2%\"\n");
+            out.write("\"Software Lines of Code (SLOC)\",\"" + String.format("%,d", files * 120L) + "\"\n");
+            out.write("\"Useful Lines of Code (ULOC)\",\"" + String.format("%,d", uloc) + "\"\n");
+            out.write("\"Duplicate Useful Lines of Code\",\"" + String.format("%,d", uloc / 12) + "\"\n");
+            out.write("\"Useful Comment Density\",\"26%\"\n");
+            out.write("\"Classes\",\"" + String.format("%,d", files + files / 3) + "\"\n");
+            out.write("\"Files\",\"" + String.format("%,d", files) + "\"\n");
+            out.write("\"Overly Complex Files\",\"7%\"\n");
+            out.write("\"Overly Complex Core Files\",\"14%\"\n");
+            out.write("\"Overly Complex Central Files\",\"14%\"\n");
+        }
+    }
+
+    static void writeTreeMap(File dir, int files) throws IOException {
+        Random random = new Random(files);
+        try (BufferedWriter out = Files.newBufferedWriter(new File(dir, "treemap.html").toPath(), StandardCharsets.UTF_8)) {
+            out.write("<html>\n"
+                    + "  <head>\n"
+                    + "    <script type=\"text/javascript\" src=\"https://www.gstatic.com/charts/loader.js\"></script>\n"
+                    + "    <script type=\"text/javascript\">\n"
+                    + "      google.charts.load('current', {'packages':['treemap']});\n"
+                    + "      google.charts.setOnLoadCallback(drawChart);\n"
+                    + "      function drawChart() {\n"
+                    + "        var data = google.visualization.arrayToDataTable([\n"
+                    + "          ['Node', 'Parent', 'Useful Lines', 'Threshold Violations', 'Full Name'],\n"
+                    + "          ['Project',null,0,0,'Project'],\n");
+            for (String component : COMPONENTS)
+                out.write("          ['" + component + "','Project',0,0,'" + component + "'],\n");
+            for (int i = 0; i < files; i++) {
+                String component = COMPONENTS[random.nextInt(COMPONENTS.length)];
+                String path = "src/main/java/module" + (i % 97) + "/pkg" + (i % 1013) + "/File" + i + ".java";
+                out.write("          ['File" + i + ".java','" + component + "'," + random.nextInt(2000) + ","
+                        + random.nextInt(6) + ",'" + path + "'],\n");
+            }
+            out.write("        ]);\n"
+                    + "\n"
+                    + "        tree = new google.visualization.TreeMap(document.getElementById('chart_div'));\n"
+                    + "      }\n"
+                    + "    </script>\n"
+                    + "  </head>\n"
+                    + "</html>\n");
+        }
+    }
+
+    /**
+     * Write Java sources of about 150 lines each, a fifth of them holding a method copied from an earlier
+     * file with its indentation changed, for duplicate code detection. Each is written to the directory of
+     * its package, as in a workspace.
+     *
+     * @return the files, in the order written
+     */
+    static List<Path> writeSources(File dir, int files) throws IOException {
+        Random random = new Random(files);
+        List<Path> paths = new ArrayList<>(files);
+        List<String> methods = new ArrayList<>();
+        for (int i = 0; i < files; i++) {
+            StringBuilder source = new StringBuilder(8192);
+            source.append("package module").append(i % 97).append(";\n\n")
+                    .append("import java.util.ArrayList;\nimport java.util.List;\n\n")
+                    .append("/**\n * Generated source ").append(i).append(".\n */\n")
+                    .append("public class File").append(i).append(" {\n\n");
+            for (int m = 0; m < 8; m++) {
+                if (m == 0 && !methods.isEmpty() && random.nextInt(5) == 0) {
+                    source.append(methods.get(random.nextInt(methods.size())).replace("        ", "\t\t"));
+                    continue;
+                }
+                String method = method(random, i, m);
+                if (methods.size() < 1000)
+                    methods.add(method);
+                source.append(method);
+            }
+            source.append("}\n");
+            File packageDir = new File(dir, "module" + i % 97);
+            if (!packageDir.isDirectory() && !packageDir.mkdirs())
+                throw new IOException("Couldn't create " + packageDir);
+            Path path = new File(packageDir, "File" + i + ".java").toPath();
+            Files.write(path, source.toString().getBytes(StandardCharsets.UTF_8));
+            paths.add(path);
+        }
+        return paths;
+    }
+
+    private static String method(Random random, int file, int index) {
+        StringBuilder method = new StringBuilder(1024);
+        method.append("    // Method ").append(index).append(" of file ").append(file).append("\n")
+                .append("    public List<Integer> method").append(index).append("(int limit) {\n")
+                .append("        List<Integer> values = new ArrayList<>();\n");
+        int statements = 8 + random.nextInt(12);
+        for (int s = 0; s < statements; s++) {
+            int value = random.nextInt(1000);
+            switch (random.nextInt(4)) {
+                case 0:
+                    method.append("        values.add(").append(value).append(" * limit);\n");
+                    break;
+                case 1:
+                    method.append("        if (values.size() > ").append(value).append(") {\n")
+                            .append("            values.remove(0);\n        }\n");
+                    break;
+                case 2:
+                    method.append("        for (int i = 0; i < ").append(value % 10).append("; i++)\n")
+                            .append("            values.add(i + ").append(value).append(");\n");
+                    break;
+                default:
+                    method.append("        String s").append(s).append(" = \"value ").append(value).append("\";\n")
+                            .append("        values.add(s").append(s).append(".length());\n");
+                    break;
+            }
+        }
+        return method.append("        return values;\n    }\n\n").toString();
+    }
+
+    /**
+     * A dependency graph shaped like a layered code base: a cyclic core of a twentieth of the files, which
+     * a fifth of all dependencies point into, and otherwise dependencies on recent earlier files only.
+     * Each file has 2 to 9 dependencies.
+     */
+    static DependencyGraph dependencyGraph(int files) {
+        Random random = new Random(files);
+        int core = Math.max(1, files / 20);
+        String[] names = new String[files];
+        int[] sources = new int[files * 9];
+        int[] destinations = new int[files * 9];
+        int edges = 0;
+        for (int i = 0; i < files; i++) {
+            names[i] = "src/module" + (i / 50) + "/File" + i + ".java";
+            int fanOut = 2 + random.nextInt(8);
+            for (int d = 0; d < fanOut; d++) {
+                int target;
+                if (i < core || random.nextInt(5) == 0)
+                    target = random.nextInt(core);
+                else
+                    target = i - 1 - random.nextInt(Math.min(i, 200));
+                if (target == i)
+                    continue;
+                sources[edges] = i;
+                destinations[edges++] = target;
+            }
+        }
+        return DependencyGraph.fromEdges(names, sources, destinations, edges);
+    }
+
+    static void delete(File dir) {
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children)
+                delete(child);
+        }
+        dir.delete();
+    }
+}
@@ -0,0 +1,59 @@
+package io.jenkins.plugins.cbri;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Duplicate code detection over a generated corpus, the work the core metrics script skips with
+ * -skipDuplicates. The parity of the counts with the script is checked by DuplicateCodeDetectorTest.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class DuplicateDetectionBenchmark {
+
+    @Param({"1000", "10000"})
+    int files;
+
+    File dir;
+    List<Path> sources;
+    DuplicateCodeDetector detector;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("cbri-bench-sources").toFile();
+        sources = BenchFixtures.writeSources(dir, files);
+        detector = new DuplicateCodeDetector(UnderstandWrapper.DUPLICATE_MIN_LINES, CbriMetrics.DUPLICATE_MIN_CHARS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchFixtures.delete(dir);
+    }
+
+    @Benchmark
+    public int[] detect() throws IOException {
+        return detector.detect(sources);
+    }
+}
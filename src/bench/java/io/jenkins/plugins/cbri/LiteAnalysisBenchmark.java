@@ -0,0 +1,57 @@
+package io.jenkins.plugins.cbri;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The lite analysis of a generated workspace, one package directory per 97th of the files. The files stay
+ * in the page cache between iterations, so this measures the walk and the lexer rather than the disk. The
+ * agreement of the counts with the core metrics script is checked by LiteAnalyzerTest.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class LiteAnalysisBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    int files;
+
+    File dir;
+    LiteAnalyzer analyzer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("cbri-bench-workspace").toFile();
+        BenchFixtures.writeSources(dir, files);
+        analyzer = new LiteAnalyzer("Java");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchFixtures.delete(dir);
+    }
+
+    @Benchmark
+    public LiteAnalyzer.Counts analyze() throws IOException {
+        return analyzer.analyze(dir);
+    }
+}
@@ -0,0 +1,193 @@
+package io.jenkins.plugins.cbri;
+
+import hudson.model.TaskListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drive concurrent {@link CbriWrapper#postAction(CbriAction, TaskListener)} calls against a
+ * {@link StubCbriServer}, or a real CBRI server, and report throughput, latency percentiles and the
+ * bytes allocated per upload. Each thread has its own wrapper, as each build does, and all of them
+ * share the endpoint's token the way concurrent builds do.
+ *
+ * The payload is the action of the core metrics fixture of {@link BenchFixtures} with its tree map,
+ * so components_str holds one row per file.
+ *
+ * Usage: LoadGenerator [--threads 8] [--requests 2000] [--warmup 200] [--files 10000] [--compress]
+ * [--latency 20] [--jitter 10] [--error-rate 0.01] [--token-lifetime 300] [--url URL --user U --password P --repo ID]
+ *
+ * Without --url a stub server is started with the given latency in milliseconds, error rate and token
+ * lifetime in seconds. Failed uploads are counted, not retried.
+ */
+public class LoadGenerator {
+
+    int threads = 8;
+    int requests = 2000;
+    int warmup = 200;
+    int files = 10000;
+    boolean compress;
+    long latencyMillis;
+    long jitterMillis;
+    double errorRate;
+    long tokenLifetimeSeconds = 3600;
+    String url;
+    String username = "load";
+    String password = "load";
+    String repoId = "1";
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        for (int i = 0; i < args.length; i++) {
+            String value = i + 1 < args.length ? args[i + 1] : null;
+            switch (args[i]) {
+                case "--threads": generator.threads = Integer.parseInt(value); i++; break;
+                case "--requests": generator.requests = Integer.parseInt(value); i++; break;
+                case "--warmup": generator.warmup = Integer.parseInt(value); i++; break;
+                case "--files": generator.files = Integer.parseInt(value); i++; break;
+                case "--compress": generator.compress = true; break;
+                case "--latency": generator.latencyMillis = Long.parseLong(value); i++; break;
+                case "--jitter": generator.jitterMillis = Long.parseLong(value); i++; break;
+                case "--error-rate": generator.errorRate = Double.parseDouble(value); i++; break;
+                case "--token-lifetime": generator.tokenLifetimeSeconds = Long.parseLong(value); i++; break;
+                case "--url": generator.url = value; i++; break;
+                case "--user": generator.username = value; i++; break;
+                case "--password": generator.password = value; i++; break;
+                case "--repo": generator.repoId = value; i++; break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+            }
+        }
+        generator.run();
+    }
+
+    void run() throws Exception {
+        File dir = BenchFixtures.coreMetricsDir(files);
+        CbriAction action;
+        try {
+            action = new CbriMetrics().loadMetrics(dir.getPath(), TaskListener.NULL);
+        } finally {
+            BenchFixtures.delete(dir);
+        }
+        action.revisionId = "load-test";
+
+        StubCbriServer stub = null;
+        String baseUrl = url;
+        if (baseUrl == null) {
+            stub = new StubCbriServer(Math.max(4, threads))
+                    .setLatency(latencyMillis, jitterMillis)
+                    .setErrorRate(errorRate)
+                    .setTokenLifetime(TimeUnit.SECONDS.toMillis(tokenLifetimeSeconds));
+            baseUrl = stub.getBaseUrl();
+        }
+        try {
+            CbriWrapper sizing = newWrapper(baseUrl);
+            long size = sizing.measurementSize(sizing.createMap(action), action.getTreeMap());
+            System.out.println("Posting " + files + " files, " + size + " bytes per measurement"
+                    + (compress ? " before compression" : "") + ", from " + threads + " threads to " + baseUrl);
+
+            drive(baseUrl, action, warmup);
+            Result result = drive(baseUrl, action, requests);
+            System.out.println(result);
+            if (stub != null)
+                System.out.println("Server: " + stub.logins + " logins, " + stub.tokenChecks + " token checks, "
+                        + stub.measurements + " measurements, " + stub.unauthorized + " unauthorized, "
+                        + stub.errors + " errors, " + stub.bytesReceived + " bytes received");
+        } finally {
+            if (stub != null)
+                stub.close();
+        }
+    }
+
+    private CbriWrapper newWrapper(String baseUrl) {
+        CbriWrapper wrapper = new CbriWrapper(baseUrl, username, password, repoId, true);
+        wrapper.setCompress(compress);
+        return wrapper;
+    }
+
+    /**
+     * Post the action the given number of times, spread over the threads.
+     */
+    Result drive(String baseUrl, CbriAction action, int count) throws Exception {
+        if (count <= 0)
+            return new Result(0, 0, new QuantileSketch(), 0, 0);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        AtomicLong remaining = new AtomicLong(count);
+        AtomicLong failures = new AtomicLong();
+        AtomicLong allocated = new AtomicLong();
+        List<QuantileSketch> latencies = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                QuantileSketch latency = new QuantileSketch();
+                latencies.add(latency);
+                workers.add(executor.submit(() -> {
+                    CbriWrapper wrapper = newWrapper(baseUrl);
+                    long thread = Thread.currentThread().getId();
+                    long before = threadBean.getThreadAllocatedBytes(thread);
+                    while (remaining.getAndDecrement() > 0) {
+                        long posted = System.nanoTime();
+                        try {
+                            wrapper.postAction(action, TaskListener.NULL);
+                        } catch (IOException | RuntimeException e) {
+                            failures.incrementAndGet();
+                        }
+                        latency.update((int) Math.min(Integer.MAX_VALUE, (System.nanoTime() - posted) / 1000L));
+                    }
+                    allocated.addAndGet(threadBean.getThreadAllocatedBytes(thread) - before);
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers)
+                worker.get();
+        } finally {
+            executor.shutdownNow();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        QuantileSketch all = new QuantileSketch();
+        for (QuantileSketch latency : latencies)
+            all.merge(latency);
+        return new Result(count, failures.get(), all, elapsed, allocated.get());
+    }
+
+    static class Result {
+        final int requests;
+        final long failures;
+        final QuantileSketch latencyMicros;
+        final long elapsedNanos;
+        final long allocatedBytes;
+
+        Result(int requests, long failures, QuantileSketch latencyMicros, long elapsedNanos, long allocatedBytes) {
+            this.requests = requests;
+            this.failures = failures;
+            this.latencyMicros = latencyMicros;
+            this.elapsedNanos = elapsedNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = elapsedNanos / 1e9;
+            return String.format(Locale.ROOT, "%d requests, %d failed, in %.2f s: %.1f requests/s%n"
+                            + "latency ms: p50 %.2f, p90 %.2f, p99 %.2f, max %.2f%n"
+                            + "allocated on the posting threads: %d bytes per request",
+                    requests, failures, seconds, requests / seconds,
+                    latencyMicros.quantile(0.5) / 1000.0, latencyMicros.quantile(0.9) / 1000.0,
+                    latencyMicros.quantile(0.99) / 1000.0, latencyMicros.getMax() / 1000.0,
+                    requests > 0 ? allocatedBytes / requests : 0);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package io.jenkins.plugins.cbri;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.StreamTaskListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Forwarding the output of Understand and the core metrics script to the build log, line by line,
+ * the way runCommand does: on its own, and end to end from a fake und writing to both of its streams.
+ * A line is about 76 bytes, so 100000 lines per operation is 7.6 MB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class OutputForwardingBenchmark {
+
+    /**
+     * Lines written per invocation.
+     */
+    @Param({"1000", "100000"})
+    int lines;
+
+    byte[] output;
+    PrintStream logger;
+    File dir;
+    File und;
+
+    @Setup
+    public void setUp() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++)
+            text.append("Analyzing file src/main/java/module").append(i % 97).append("/File").append(i).append(".java\n");
+        output = text.toString().getBytes(StandardCharsets.UTF_8);
+        logger = new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }, false);
+        dir = Files.createTempDirectory("cbri-bench").toFile();
+        und = new File(dir, "und");
+        Files.write(und.toPath(), UnderstandWrapperTest.FAKE_UND.getBytes(StandardCharsets.UTF_8));
+        und.setExecutable(true);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        new FilePath(dir).deleteRecursive();
+    }
+
+    /**
+     * Output arrives in the pipe's chunks rather than in lines.
+     */
+    @Benchmark
+    public void forward() throws IOException {
+        try (UnderstandWrapper.OutputMonitor out = new UnderstandWrapper.OutputMonitor(logger)) {
+            for (int offset = 0; offset < output.length; offset += 4096)
+                out.write(output, offset, Math.min(4096, output.length - offset));
+        }
+    }
+
+    /**
+     * Half the lines on stdout and half on stderr of a real process, through the launcher.
+     */
+    @Benchmark
+    public int runCommand() throws IOException, InterruptedException {
+        StreamTaskListener listener = new StreamTaskListener(logger, StandardCharsets.UTF_8);
+        ArgumentListBuilder command = new ArgumentListBuilder(und.getPath(), String.valueOf(lines / 2));
+        return new UnderstandWrapper("und", "uperl", "").runCommand(command, new FilePath(dir),
+                new Launcher.LocalLauncher(listener), listener);
+    }
+}
@@ -0,0 +1,65 @@
+package io.jenkins.plugins.cbri;
+
+import hudson.model.TaskListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the core metrics script's output: projectMetrics.csv and the tree map.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ParsingBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    int files;
+
+    File dir;
+    CbriMetrics metrics;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = BenchFixtures.coreMetricsDir(files);
+        metrics = new CbriMetrics();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchFixtures.delete(dir);
+    }
+
+    @Benchmark
+    public HashMap<String, String> readMetrics() throws IOException {
+        return metrics.readMetrics(dir.getPath(), TaskListener.NULL);
+    }
+
+    @Benchmark
+    public FileTreeMap readTreeMap() throws IOException {
+        return metrics.readTreeMap(dir.getPath(), null);
+    }
+
+    @Benchmark
+    public CbriAction loadMetrics() throws IOException {
+        return metrics.loadMetrics(dir.getPath(), TaskListener.NULL);
+    }
+}
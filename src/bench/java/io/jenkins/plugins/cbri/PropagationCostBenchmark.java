@@ -0,0 +1,55 @@
+package io.jenkins.plugins.cbri;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Propagation cost and core-periphery classification from a file dependency graph, the work the core
+ * metrics script does in strongconnect and its visibility matrix when run without -externalClosure.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PropagationCostBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    int files;
+
+    DependencyGraph graph;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        graph = BenchFixtures.dependencyGraph(files);
+    }
+
+    /**
+     * Strongly connected components, the bitset closure and the classification.
+     */
+    @Benchmark
+    public PropagationCostEngine.Result analyze() {
+        return PropagationCostEngine.analyze(graph);
+    }
+
+    /**
+     * The condensation alone.
+     */
+    @Benchmark
+    public Object condense() {
+        return PropagationCostEngine.condense(graph);
+    }
+}
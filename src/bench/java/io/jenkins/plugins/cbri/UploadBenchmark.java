@@ -0,0 +1,82 @@
+package io.jenkins.plugins.cbri;
+
+import hudson.model.TaskListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning an action into a measurement and sending it: the field map, the streamed JSON and a post
+ * to a {@link StubCbriServer} on the loopback interface.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class UploadBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    int files;
+
+    @Param({"false", "true"})
+    boolean compress;
+
+    StubCbriServer server;
+    CbriWrapper wrapper;
+    CbriAction action;
+    Map<String, String> map;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        File dir = BenchFixtures.coreMetricsDir(files);
+        try {
+            action = new CbriMetrics().loadMetrics(dir.getPath(), TaskListener.NULL);
+        } finally {
+            BenchFixtures.delete(dir);
+        }
+        action.revisionId = "bench";
+        server = new StubCbriServer(2);
+        wrapper = new CbriWrapper(server.getBaseUrl(), "bench", "bench", "1", true);
+        wrapper.setCompress(compress);
+        map = wrapper.createMap(action);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public Map<String, String> createMap() {
+        return wrapper.createMap(action);
+    }
+
+    @Benchmark
+    public long writeMeasurement() throws IOException {
+        return wrapper.measurementSize(map, action.getTreeMap());
+    }
+
+    @Benchmark
+    public void postMeasurement() throws IOException {
+        wrapper.postMeasurement(wrapper.createMap(action), action.getTreeMap(), UUID.randomUUID().toString(),
+                TaskListener.NULL);
+    }
+}
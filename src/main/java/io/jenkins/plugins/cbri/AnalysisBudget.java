@@ -0,0 +1,143 @@
+package io.jenkins.plugins.cbri;
+
+import hudson.AbortException;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Wall-clock budgets for the phases of an analysis, and limits on the memory and CPU time of the
+ * processes it starts. A phase that runs past its budget is stopped, its processes killed, and the
+ * build fails with {@link Exceeded} naming the phase; every such timeout is counted in {@link CbriStatistics}.
+ *
+ * A budget or limit of 0 means none.
+ */
+public class AnalysisBudget {
+
+    private final Map<String, Long> millis = new LinkedHashMap<>();
+    private long memoryLimitKb;
+    private long cpuLimitSeconds;
+
+    /**
+     * @param phase one of the {@link PhaseTimings} phases
+     */
+    public AnalysisBudget setMinutes(String phase, int minutes) {
+        if (minutes > 0)
+            millis.put(phase, TimeUnit.MINUTES.toMillis(minutes));
+        else
+            millis.remove(phase);
+        return this;
+    }
+
+    /**
+     * @return the budget of the phase in milliseconds, 0 if it has none
+     */
+    public long getMillis(String phase) {
+        Long budget = millis.get(phase);
+        return budget != null ? budget : 0;
+    }
+
+    /**
+     * @param memoryMb the most virtual memory each process may map
+     * @param cpuMinutes the most CPU time each process may use
+     */
+    public AnalysisBudget setProcessLimits(int memoryMb, int cpuMinutes) {
+        memoryLimitKb = Math.max(0, memoryMb) * 1024L;
+        cpuLimitSeconds = Math.max(0, cpuMinutes) * 60L;
+        return this;
+    }
+
+    public boolean hasProcessLimits() {
+        return memoryLimitKb > 0 || cpuLimitSeconds > 0;
+    }
+
+    /**
+     * @return the ulimit commands that apply the process limits in a Bourne shell, empty if there are none
+     */
+    String ulimitCommands() {
+        StringBuilder commands = new StringBuilder();
+        if (memoryLimitKb > 0)
+            commands.append("ulimit -v ").append(memoryLimitKb).append('\n');
+        if (cpuLimitSeconds > 0)
+            commands.append("ulimit -t ").append(cpuLimitSeconds).append('\n');
+        return commands.toString();
+    }
+
+    /**
+     * Run the command under the process limits, through sh on Unix nodes. Windows has no ulimit, so the
+     * command is returned as it is there and the limits are left out.
+     */
+    ArgumentListBuilder limit(ArgumentListBuilder command, boolean unix) {
+        if (!unix || !hasProcessLimits())
+            return command;
+        ArgumentListBuilder limited = new ArgumentListBuilder("sh", "-c",
+                ulimitCommands().replace('\n', ';') + "exec \"$@\"", "cbri-limits");
+        for (String arg : command.toList())
+            limited.add(arg);
+        return limited;
+    }
+
+    /**
+     * Wait for work running on a node, cancelling it if the phase runs past its budget.
+     */
+    <T> T await(Future<T> future, String phase, TaskListener listener) throws IOException, InterruptedException {
+        long budget = getMillis(phase);
+        try {
+            return budget > 0 ? future.get(budget, TimeUnit.MILLISECONDS) : future.get();
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw exceeded(phase, listener);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof InterruptedException)
+                throw (InterruptedException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Count and log a phase that ran past its budget.
+     *
+     * @return the exception to fail the build with
+     */
+    Exceeded exceeded(String phase, TaskListener listener) {
+        CbriStatistics.recordTimeout(phase);
+        Exceeded e = new Exceeded(phase, getMillis(phase));
+        listener.getLogger().println(e.getMessage());
+        return e;
+    }
+
+    /**
+     * A phase of the analysis ran past its budget and was stopped.
+     */
+    public static class Exceeded extends AbortException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String phase;
+
+        Exceeded(String phase, long budgetMillis) {
+            super("CBRI " + phase + " phase stopped after its budget of " + TimeUnit.MILLISECONDS.toMinutes(budgetMillis)
+                    + " minutes");
+            this.phase = phase;
+        }
+
+        public String getPhase() {
+            return phase;
+        }
+    }
+}
@@ -1,24 +1,69 @@
 package io.jenkins.plugins.cbri;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import hudson.Util;
+import hudson.model.Item;
 import hudson.model.Run;
 import jenkins.model.RunAction2;
-
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.ref.SoftReference;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Date;
+import java.util.regex.Pattern;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Hold the various metrics generated by CBRI
  */
-public class CbriAction implements RunAction2 {
+public class CbriAction implements RunAction2, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOGGER = Logger.getLogger(CbriAction.class.getName());
+
+    protected static final int DEFAULT_TREE_MAP_PAGE = 100;
+    protected static final int MAX_TREE_MAP_PAGE = 1000;
 
     private transient Run run;
 
     Date today;
     String revisionId = "";
 
+    /**
+     * The module root this action covers in a sharded analysis, null for the whole workspace.
+     */
+    String module;
+
+    /**
+     * Set by a lite analysis, whose metrics are estimated without Understand, see {@link LiteAnalyzer}.
+     */
+    boolean approximate;
+
+    /**
+     * The language the sources were analyzed as, null for builds recorded before it was kept.
+     */
+    String language;
+
     String architectureType = "Multi-Core";
     double propagationCost = 1;
     boolean core = false;
     double coreSize = 1;
+    /**
+     * The central size, which is also the core size when the architecture is not core-periphery.
+     */
+    double centralSize = 1;
 
     double percentFilesOverlyComplex = 1;
     int duplicateUloc = 1;
@@ -33,8 +78,44 @@ public class CbriAction implements RunAction2 {
     int numFilesInCore = 1;
     int numFilesOverlyComplex = 1;
 
+    /**
+     * Where the time of the analysis went, null for builds recorded before it was measured.
+     */
+    PhaseTimings timings;
+    long bytesRead;
+
+    /**
+     * The tree map as text, only set on builds recorded before the side file was introduced.
+     */
     String fileTreeMap = "";
 
+    /**
+     * The tree map of a new action, held until it is written to the build directory.
+     */
+    private transient FileTreeMap pendingTreeMap;
+
+    /**
+     * The tree map read back from {@link FileTreeMap#FILE_NAME}, dropped under memory pressure.
+     */
+    private transient volatile SoftReference<FileTreeMap> treeMap;
+    private transient volatile SoftReference<TreeMapHierarchy> hierarchy;
+
+    /**
+     * Per-file metrics, kept in {@link FileMetricsTable#FILE_NAME} the same way as the tree map.
+     */
+    private transient FileMetricsTable pendingFileMetrics;
+    private transient volatile SoftReference<FileMetricsTable> fileMetrics;
+
+    /**
+     * How the metrics of the classes are distributed, null if the script did not write classMetrics.csv.
+     */
+    ClassMetricDistributions classMetrics;
+
+    /**
+     * The files that got worse since the previous analyzed build, null if there was none to compare with.
+     */
+    FileMetricsDiff fileMetricsDiff;
+
     public CbriAction() {
 
         today = new Date();
@@ -43,6 +124,26 @@ public class CbriAction implements RunAction2 {
     @Override
     public void onAttached(Run<?, ?> run) {
         this.run = run;
+        FileTreeMap map = pendingTreeMap;
+        if (map != null) {
+            try {
+                saveTreeMap(map, new File(run.getRootDir(), getTreeMapFileName()));
+                treeMap = new SoftReference<>(map);
+                pendingTreeMap = null;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not save the CBRI tree map of " + run, e);
+            }
+        }
+        FileMetricsTable table = pendingFileMetrics;
+        if (table != null) {
+            try {
+                saveFileMetrics(table, new File(run.getRootDir(), sideFileName(FileMetricsTable.FILE_NAME)));
+                fileMetrics = new SoftReference<>(table);
+                pendingFileMetrics = null;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not save the CBRI file metrics of " + run, e);
+            }
+        }
     }
 
     @Override
@@ -50,6 +151,14 @@ public class CbriAction implements RunAction2 {
         this.run = run;
     }
 
+    public boolean isApproximate() {
+        return approximate;
+    }
+
+    public String getLanguage() {
+        return language;
+    }
+
     public Run getRun() {
         return run;
     }
@@ -61,14 +170,48 @@ public class CbriAction implements RunAction2 {
 
     @Override
     public String getDisplayName() {
+        if (module != null)
+            return "CBRI Analysis (" + module + ")";
         return "CBRI Analysis";
     }
 
     @Override
     public String getUrlName() {
+        if (module != null)
+            return "cbri-" + safeName(module);
         return "cbri";
     }
 
+    public String getModule() {
+        return module;
+    }
+
+    /**
+     * @return the module root reduced to characters that are safe in URLs and file names. A name that had
+     * to be changed ends in a digest of the original, so that e.g. "a/b" and "a_b" stay apart.
+     */
+    static String safeName(String module) {
+        String safe = module.replaceAll("[^A-Za-z0-9._-]", "_");
+        if (safe.equals(module) && !DIGEST_SUFFIX.matcher(safe).find())
+            return safe;
+        return safe + "-" + Util.getDigestOf(module).substring(0, 8);
+    }
+
+    private static final Pattern DIGEST_SUFFIX = Pattern.compile("-[0-9a-f]{8}$");
+
+    private String getTreeMapFileName() {
+        return sideFileName(FileTreeMap.FILE_NAME);
+    }
+
+    /**
+     * @return the name of a side file of this action, made distinct per module root
+     */
+    private String sideFileName(String fileName) {
+        if (module != null)
+            return fileName.replace(".bin", "-" + safeName(module) + ".bin");
+        return fileName;
+    }
+
     public Date getToday() {
         return new Date(today.getTime());
     }
@@ -131,7 +274,182 @@ public class CbriAction implements RunAction2 {
 
     public String getRevisionId() { return revisionId; }
 
+    public PhaseTimings getTimings() {
+        return timings;
+    }
+
+    /**
+     * @return bytes of core metrics output parsed
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    void setTreeMap(FileTreeMap map) {
+        pendingTreeMap = map;
+        treeMap = null;
+        hierarchy = null;
+    }
+
+    /**
+     * Load the tree map from the build directory on first use.
+     *
+     * @return the tree map rows, or null for builds that only recorded the text form
+     */
+    public FileTreeMap getTreeMap() {
+        if (pendingTreeMap != null)
+            return pendingTreeMap;
+        SoftReference<FileTreeMap> ref = treeMap;
+        FileTreeMap map = ref != null ? ref.get() : null;
+        if (map != null || run == null)
+            return map;
+
+        File file = new File(run.getRootDir(), getTreeMapFileName());
+        if (!file.isFile())
+            return null;
+        try (InputStream in = new FileInputStream(file)) {
+            map = FileTreeMap.read(in);
+            treeMap = new SoftReference<>(map);
+            return map;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not read the CBRI tree map of " + run, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the tree map grouped by component and directory, built once from the tree map and kept while memory allows
+     */
+    public TreeMapHierarchy getTreeMapHierarchy() {
+        SoftReference<TreeMapHierarchy> ref = hierarchy;
+        TreeMapHierarchy groups = ref != null ? ref.get() : null;
+        if (groups != null)
+            return groups;
+        FileTreeMap map = getTreeMap();
+        if (map == null)
+            return null;
+        groups = TreeMapHierarchy.of(map);
+        hierarchy = new SoftReference<>(groups);
+        return groups;
+    }
+
+    /**
+     * The tree map one level at a time as JSON: .../treeMap lists the components, ?component=Core the
+     * directories of one and &amp;directory=src/main the files of one of those. Optional parameters: sort
+     * (uloc or violations), offset and limit to page through the children, and top to return only the largest
+     * children with the rest added up. A build's tree map never changes, so responses can be cached.
+     */
+    public void doTreeMap(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        if (run != null)
+            run.getParent().checkPermission(Item.READ);
+
+        // Named by the build and module alone, so that a cached copy is confirmed without loading the tree map
+        String etag = run != null ? "\"" + Util.getDigestOf(run.getExternalizableId() + "/" + getUrlName()) + "\"" : null;
+        if (etag != null && matches(req.getHeader("If-None-Match"), etag)) {
+            rsp.setHeader("ETag", etag);
+            rsp.setHeader("Cache-Control", "private, max-age=86400");
+            rsp.setStatus(StaplerResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        TreeMapHierarchy groups = getTreeMapHierarchy();
+        TreeMapHierarchy.Group group = groups != null ? groups.find(req.getParameter("component"), req.getParameter("directory")) : null;
+        if (group == null) {
+            rsp.sendError(StaplerResponse.SC_NOT_FOUND, "No such tree map component or directory");
+            return;
+        }
+
+        if (etag != null) {
+            rsp.setHeader("ETag", etag);
+            rsp.setHeader("Cache-Control", "private, max-age=86400");
+        }
+        int limit = Math.min(CbriJobAction.parameter(req, "limit", DEFAULT_TREE_MAP_PAGE), MAX_TREE_MAP_PAGE);
+        int top = Math.min(CbriJobAction.parameter(req, "top", 0), MAX_TREE_MAP_PAGE);
+        rsp.setContentType("application/json;charset=UTF-8");
+        try (JsonGenerator json = CbriClientRegistry.MAPPER.getFactory().createGenerator(rsp.getOutputStream(), JsonEncoding.UTF8)) {
+            groups.write(json, group, req.getParameter("sort"), CbriJobAction.parameter(req, "offset", 0), limit, top);
+        }
+    }
+
+    /**
+     * @return whether an If-None-Match header names the entity tag
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null)
+            return false;
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag))
+                return true;
+        }
+        return false;
+    }
+
     public String getFileTreeMap() {
+        FileTreeMap map = getTreeMap();
+        if (map != null)
+            return map.toText();
         return fileTreeMap;
     }
+
+    void setFileMetrics(FileMetricsTable table) {
+        pendingFileMetrics = table;
+        fileMetrics = null;
+    }
+
+    /**
+     * Load the per-file metrics from the build directory on first use.
+     *
+     * @return the table, or null for builds recorded without it
+     */
+    public FileMetricsTable getFileMetrics() {
+        if (pendingFileMetrics != null)
+            return pendingFileMetrics;
+        SoftReference<FileMetricsTable> ref = fileMetrics;
+        FileMetricsTable table = ref != null ? ref.get() : null;
+        if (table != null || run == null)
+            return table;
+
+        File file = new File(run.getRootDir(), sideFileName(FileMetricsTable.FILE_NAME));
+        if (!file.isFile())
+            return null;
+        try (InputStream in = new FileInputStream(file)) {
+            table = FileMetricsTable.read(in);
+            fileMetrics = new SoftReference<>(table);
+            return table;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not read the CBRI file metrics of " + run, e);
+            return null;
+        }
+    }
+
+    public FileMetricsDiff getFileMetricsDiff() {
+        return fileMetricsDiff;
+    }
+
+    public ClassMetricDistributions getClassMetrics() {
+        return classMetrics;
+    }
+
+    /**
+     * Write the table next to the file, then move it into place.
+     */
+    static void saveFileMetrics(FileMetricsTable table, File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            table.write(out);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Write the tree map next to the file, then move it into place.
+     */
+    static void saveTreeMap(FileTreeMap map, File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            map.write(out);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
 }
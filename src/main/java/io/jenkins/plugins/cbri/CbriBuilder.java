@@ -12,10 +12,17 @@ import hudson.tasks.Builder;
 import hudson.tasks.BuildStepDescriptor;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 import javax.servlet.ServletException;
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import jenkins.model.Jenkins;
 import jenkins.tasks.SimpleBuildStep;
 import org.kohsuke.stapler.StaplerRequest;
 
@@ -24,12 +31,24 @@ import org.kohsuke.stapler.StaplerRequest;
  */
 public class CbriBuilder extends Builder implements SimpleBuildStep {
 
+    /**
+     * How far back to look for a build to compare file metrics with.
+     */
+    protected static final int MAX_PREVIOUS_BUILDS = 10;
+
     private final String repoId;
     private final String lang;
     private final String baseUrl;
     private final String username;
     private final String password;
     private final boolean includeTreeMap;
+    private boolean incrementalAnalysis = false;
+    private boolean externalClosure = false;
+    private boolean javaDuplicates = false;
+    private String moduleRoots = "";
+    private int maxParallelShards = DescriptorImpl.DEFAULT_PARALLEL_SHARDS;
+    private int licensePriority = 0;
+    private boolean liteAnalysis = false;
 
     @DataBoundConstructor
     public CbriBuilder(String repoId, String lang, String baseUrl, String username, String password, boolean includeTreeMap) {
@@ -66,24 +85,181 @@ public class CbriBuilder extends Builder implements SimpleBuildStep {
     	return includeTreeMap;
     }
 
+    public boolean getIncrementalAnalysis() {
+        return incrementalAnalysis;
+    }
+
+    @DataBoundSetter
+    public void setIncrementalAnalysis(boolean incrementalAnalysis) {
+        this.incrementalAnalysis = incrementalAnalysis;
+    }
+
+    public boolean getExternalClosure() {
+        return externalClosure;
+    }
+
+    @DataBoundSetter
+    public void setExternalClosure(boolean externalClosure) {
+        this.externalClosure = externalClosure;
+    }
+
+    public boolean getJavaDuplicates() {
+        return javaDuplicates;
+    }
+
+    @DataBoundSetter
+    public void setJavaDuplicates(boolean javaDuplicates) {
+        this.javaDuplicates = javaDuplicates;
+    }
+
+    public String getModuleRoots() {
+        return moduleRoots;
+    }
+
+    @DataBoundSetter
+    public void setModuleRoots(String moduleRoots) {
+        this.moduleRoots = moduleRoots;
+    }
+
+    public int getMaxParallelShards() {
+        return maxParallelShards;
+    }
+
+    @DataBoundSetter
+    public void setMaxParallelShards(int maxParallelShards) {
+        this.maxParallelShards = maxParallelShards;
+    }
+
+    public int getLicensePriority() {
+        return licensePriority;
+    }
+
+    @DataBoundSetter
+    public void setLicensePriority(int licensePriority) {
+        this.licensePriority = licensePriority;
+    }
+
+    public boolean getLiteAnalysis() {
+        return liteAnalysis;
+    }
+
+    @DataBoundSetter
+    public void setLiteAnalysis(boolean liteAnalysis) {
+        this.liteAnalysis = liteAnalysis;
+    }
+
+    /**
+     * @return the module roots, one per line, without blank lines
+     */
+    protected List<String> parseModuleRoots() {
+        List<String> roots = new ArrayList<>();
+        if (moduleRoots != null) {
+            for (String line : moduleRoots.split("\\r?\\n")) {
+                String root = line.trim();
+                if (!root.isEmpty())
+                    roots.add(root);
+            }
+        }
+        return roots;
+    }
+
+    /**
+     * @return the changes since the closest earlier build with file metrics, or null if there is none
+     */
+    protected FileMetricsDiff compareWithPrevious(Run<?, ?> run, FileMetricsTable table, TaskListener listener) {
+        if (table == null)
+            return null;
+        Run<?, ?> previous = run.getPreviousBuild();
+        for (int i = 0; previous != null && i < MAX_PREVIOUS_BUILDS; i++, previous = previous.getPreviousBuild()) {
+            CbriAction earlier = CbriJobAction.workspaceAction(previous);
+            FileMetricsTable before = earlier != null ? earlier.getFileMetrics() : null;
+            if (before == null)
+                continue;
+            long start = System.nanoTime();
+            FileMetricsDiff diff = FileMetricsDiff.compare(before, table, previous.getNumber());
+            listener.getLogger().println("Compared file metrics with build #" + previous.getNumber() + " in "
+                    + (System.nanoTime() - start) / 1000000L + " ms");
+            return diff;
+        }
+        return null;
+    }
+
     @Override
     public void perform(Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener) throws InterruptedException, IOException {
 
         DescriptorImpl desc = (DescriptorImpl) this.getDescriptor();
 
+        if (liteAnalysis) {
+            performLite(run, workspace, listener);
+            return;
+        }
+
         //Perform the Understand measurements
         UnderstandWrapper undWrapper = new UnderstandWrapper(desc.getUndPath(), desc.getUndPerl(), desc.getPluginPath());
-        CbriAction action = undWrapper.runUnderstand(lang, workspace, launcher, listener);
+        undWrapper.setIncremental(incrementalAnalysis);
+        undWrapper.setCache(desc.getResultCache());
+        undWrapper.setExternalClosure(externalClosure);
+        undWrapper.setJavaDuplicates(javaDuplicates);
+        undWrapper.setBudget(desc.getBudget());
+        if (desc.getLicenseCount() > 0)
+            undWrapper.setLicenses(LicenseScheduler.get(), run.getFullDisplayName(), licensePriority);
+        long start = System.nanoTime();
+        List<String> roots = parseModuleRoots();
+        List<CbriAction> shards = Collections.emptyList();
+        CbriAction action;
+        if (roots.isEmpty()) {
+            action = undWrapper.runUnderstand(lang, workspace, launcher, listener);
+        } else {
+            List<CbriAction> actions = undWrapper.runSharded(lang, workspace, roots, maxParallelShards, launcher, listener);
+            action = actions.get(0);
+            shards = actions.subList(1, actions.size());
+        }
         action.revisionId = "Jenkins-Build-" + run.getNumber();
+        action.fileMetricsDiff = compareWithPrevious(run, action.getFileMetrics(), listener);
+        if (action.timings == null)
+            action.timings = new PhaseTimings();
+        long phase = action.timings.end(PhaseTimings.ANALYSIS, start);
 
-        //Post the actions
+        //Queue the measurement, it is posted in the background
         CbriWrapper cbriWrapper = new CbriWrapper(baseUrl, username, password, repoId, includeTreeMap);
-        cbriWrapper.postAction(action, listener);
+        cbriWrapper.setIncludeClassMetrics(desc.isUploadClassMetrics());
+        Map<String, String> measurement = cbriWrapper.createMap(action);
+        FileTreeMap treeMap = includeTreeMap ? action.getTreeMap() : null;
+        MeasurementOutbox.get().enqueue(baseUrl, username, password, repoId, run.getExternalizableId(), measurement,
+                treeMap, desc.isCompressUploads(), desc.isDeltaUploads(), listener);
+        action.timings.end(PhaseTimings.ENQUEUE, phase);
+        action.timings.end(PhaseTimings.TOTAL, start);
+        listener.getLogger().println("CBRI phases (ms): " + action.timings.getMillis() + ", peak process RSS: "
+                + action.timings.getPeakRssKb() + " kB, read " + action.bytesRead + " bytes");
 
         run.addAction(action);
+        for (CbriAction shard : shards) {
+            shard.revisionId = action.revisionId;
+            run.addAction(shard);
+        }
 
     }
 
+    /**
+     * Estimate the size and clarity metrics without Understand. The result is only shown on the build,
+     * it is not posted to CBRI nor compared with other builds.
+     */
+    protected void performLite(Run<?, ?> run, FilePath workspace, TaskListener listener) throws InterruptedException, IOException {
+        long start = System.nanoTime();
+        LiteAnalyzer.Counts counts = workspace.act(new LiteAnalyzer.Analyze(lang));
+        CbriAction action = LiteAnalyzer.toAction(counts);
+        action.revisionId = "Jenkins-Build-" + run.getNumber();
+        action.language = lang;
+        action.timings = new PhaseTimings();
+        action.timings.end(PhaseTimings.LITE_SCAN, start);
+        action.timings.end(PhaseTimings.TOTAL, start);
+        listener.getLogger().println("CBRI lite analysis of " + counts.getFiles() + " files: " + counts.getUloc()
+                + " useful lines of code, " + counts.getUsefulComments() + " useful comment lines, "
+                + counts.getClasses() + " classes in " + action.timings.getMillis().get(PhaseTimings.TOTAL)
+                + " ms; the metrics are approximate and were not posted to CBRI");
+        run.addAction(action);
+    }
+
     /**
      * The descriptor stores meta-data used by all instances.
      */
@@ -91,10 +267,24 @@ public class CbriBuilder extends Builder implements SimpleBuildStep {
     public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
 
         protected final static String SUPPORTED_LANGUAGES = "C, C#, C++, Java";
-
-        private String undPath;
-        private String undPerl;
-        private String pluginPath;
+        protected final static int DEFAULT_PARALLEL_SHARDS = 4;
+
+        // Read by concurrent builds and Pipeline branches while the global configuration may be saved
+        private volatile String undPath;
+        private volatile String undPerl;
+        private volatile String pluginPath;
+        private volatile int resultCacheSize = 0;
+        private volatile int licenseCount = 0;
+        private volatile boolean compressUploads = false;
+        private volatile boolean deltaUploads = false;
+        private volatile boolean uploadClassMetrics = false;
+        private volatile int undAnalyzeTimeout = 0;
+        private volatile int coreMetricsTimeout = 0;
+        private volatile int parseTimeout = 0;
+        private volatile int uploadTimeout = 0;
+        private volatile int processMemoryLimit = 0;
+        private volatile int processCpuLimit = 0;
+        private transient ResultCache resultCache;
 
         public String getUndPath() {
             return undPath;
@@ -103,22 +293,155 @@ public class CbriBuilder extends Builder implements SimpleBuildStep {
             return undPerl;
         }
         public String getPluginPath() { return pluginPath; }
+        public int getResultCacheSize() { return resultCacheSize; }
+        public int getLicenseCount() { return licenseCount; }
+        public boolean isCompressUploads() { return compressUploads; }
+        public boolean isDeltaUploads() { return deltaUploads; }
+        public boolean isUploadClassMetrics() { return uploadClassMetrics; }
+        public int getUndAnalyzeTimeout() { return undAnalyzeTimeout; }
+        public int getCoreMetricsTimeout() { return coreMetricsTimeout; }
+        public int getParseTimeout() { return parseTimeout; }
+        public int getUploadTimeout() { return uploadTimeout; }
+        public int getProcessMemoryLimit() { return processMemoryLimit; }
+        public int getProcessCpuLimit() { return processCpuLimit; }
+
+        /**
+         * @return the phase budgets and process limits of the global configuration
+         */
+        public AnalysisBudget getBudget() {
+            return new AnalysisBudget()
+                    .setMinutes(PhaseTimings.UND_ANALYZE, undAnalyzeTimeout)
+                    .setMinutes(PhaseTimings.CORE_METRICS, coreMetricsTimeout)
+                    .setMinutes(PhaseTimings.PARSE, parseTimeout)
+                    .setMinutes(PhaseTimings.UPLOAD, uploadTimeout)
+                    .setProcessLimits(processMemoryLimit, processCpuLimit);
+        }
+
+        /**
+         * @return the controller-wide result cache, or null if it is disabled. Builds share one instance, created
+         * on first use and kept when the configuration is saved, so that concurrent builds evict entries under one
+         * lock.
+         */
+        public synchronized ResultCache getResultCache() {
+            if (resultCacheSize <= 0)
+                return null;
+            if (resultCache == null)
+                resultCache = new ResultCache(new File(Jenkins.get().getRootDir(), "cbri-cache"), resultCacheSize * 1024L * 1024L);
+            return resultCache;
+        }
 
         public DescriptorImpl() {
             super(CbriBuilder.class);
             load();
+            LicenseScheduler.get().setLimit(licenseCount);
+            MeasurementOutbox.get().setUploadBudgetMillis(getBudget().getMillis(PhaseTimings.UPLOAD));
         }
 
         @Override
-        public boolean configure(StaplerRequest req, JSONObject json) throws Descriptor.FormException {
+        public synchronized boolean configure(StaplerRequest req, JSONObject json) throws Descriptor.FormException {
             json = json.getJSONObject("cbri");
             undPath = json.getString("undPath");
             undPerl = json.getString("undPerl");
             pluginPath = json.getString("pluginPath");
+            resultCacheSize = json.optInt("resultCacheSize", 0);
+            licenseCount = json.optInt("licenseCount", 0);
+            compressUploads = json.optBoolean("compressUploads", false);
+            deltaUploads = json.optBoolean("deltaUploads", false);
+            uploadClassMetrics = json.optBoolean("uploadClassMetrics", false);
+            undAnalyzeTimeout = json.optInt("undAnalyzeTimeout", 0);
+            coreMetricsTimeout = json.optInt("coreMetricsTimeout", 0);
+            parseTimeout = json.optInt("parseTimeout", 0);
+            uploadTimeout = json.optInt("uploadTimeout", 0);
+            processMemoryLimit = json.optInt("processMemoryLimit", 0);
+            processCpuLimit = json.optInt("processCpuLimit", 0);
+            if (resultCache != null)
+                resultCache.setMaxBytes(resultCacheSize * 1024L * 1024L);
+            LicenseScheduler.get().setLimit(licenseCount);
+            MeasurementOutbox.get().setUploadBudgetMillis(getBudget().getMillis(PhaseTimings.UPLOAD));
             save();
             return true;
         }
 
+        public FormValidation doCheckResultCacheSize(@QueryParameter String value)
+                throws IOException, ServletException {
+            if (value.length() == 0)
+                return FormValidation.ok();
+            try {
+                if (Integer.parseInt(value) < 0)
+                    return FormValidation.error("Cache size cannot be negative");
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Cache size must be a whole number of megabytes");
+            }
+
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckLicenseCount(@QueryParameter String value)
+                throws IOException, ServletException {
+            if (value.length() == 0)
+                return FormValidation.ok();
+            try {
+                if (Integer.parseInt(value) < 0)
+                    return FormValidation.error("License count cannot be negative");
+            } catch (NumberFormatException e) {
+                return FormValidation.error("License count must be a whole number");
+            }
+
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckUndAnalyzeTimeout(@QueryParameter String value) {
+            return checkLimit(value, "minutes");
+        }
+
+        public FormValidation doCheckCoreMetricsTimeout(@QueryParameter String value) {
+            return checkLimit(value, "minutes");
+        }
+
+        public FormValidation doCheckParseTimeout(@QueryParameter String value) {
+            return checkLimit(value, "minutes");
+        }
+
+        public FormValidation doCheckUploadTimeout(@QueryParameter String value) {
+            return checkLimit(value, "minutes");
+        }
+
+        public FormValidation doCheckProcessMemoryLimit(@QueryParameter String value) {
+            return checkLimit(value, "megabytes");
+        }
+
+        public FormValidation doCheckProcessCpuLimit(@QueryParameter String value) {
+            return checkLimit(value, "minutes");
+        }
+
+        /**
+         * A budget or limit is empty or 0 for none, or a positive whole number of units.
+         */
+        private static FormValidation checkLimit(String value, String unit) {
+            if (value.length() == 0)
+                return FormValidation.ok();
+            try {
+                if (Integer.parseInt(value) < 0)
+                    return FormValidation.error("Cannot be negative, use 0 for no limit");
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Must be a whole number of " + unit);
+            }
+
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckMaxParallelShards(@QueryParameter String value)
+                throws IOException, ServletException {
+            try {
+                if (Integer.parseInt(value) < 1)
+                    return FormValidation.error("At least one module root must be analyzed at a time");
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Must be a whole number");
+            }
+
+            return FormValidation.ok();
+        }
+
         public FormValidation doCheckRepoId(@QueryParameter String value)
                 throws IOException, ServletException {
             if (value.length() == 0)
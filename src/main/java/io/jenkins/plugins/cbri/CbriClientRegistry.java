@@ -0,0 +1,142 @@
+package io.jenkins.plugins.cbri;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import hudson.Util;
+import org.glassfish.jersey.client.ClientProperties;
+import org.glassfish.jersey.client.RequestEntityProcessing;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.WebTarget;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The HTTP client and login tokens shared by every {@link CbriWrapper} in the process.
+ *
+ * One JAX-RS client serves all CBRI servers, so connections are kept alive and reused between builds
+ * instead of being opened (and TLS negotiated) per upload. Request bodies are sent chunked, as they are
+ * written. Each base URL and set of credentials has an {@link Endpoint} holding its token. The expiry
+ * claim of the JWT is read locally, so a token that is still valid is used without asking the server first.
+ */
+class CbriClientRegistry {
+
+    static final ObjectMapper MAPPER = new ObjectMapper();
+
+    protected static final long CONNECT_TIMEOUT_SECONDS = 30;
+    protected static final long READ_TIMEOUT_SECONDS = 300;
+
+    /**
+     * Tokens this close to expiry are renewed rather than used.
+     */
+    protected static final long EXPIRY_MARGIN_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    private static final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private static volatile Client client;
+
+    private CbriClientRegistry() {
+    }
+
+    static Client client() {
+        Client c = client;
+        if (c == null) {
+            synchronized (CbriClientRegistry.class) {
+                c = client;
+                if (c == null) {
+                    c = ClientBuilder.newBuilder()
+                            .connectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                            .readTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                            .property(ClientProperties.REQUEST_ENTITY_PROCESSING, RequestEntityProcessing.CHUNKED)
+                            .build();
+                    client = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    /**
+     * @return the endpoint for the server and credentials, created on first use
+     */
+    static Endpoint endpoint(String baseUrl, String username, String password) {
+        String key = baseUrl + '\n' + username + '\n' + digest(password);
+        return endpoints.computeIfAbsent(key, k -> new Endpoint(client().target(baseUrl)));
+    }
+
+    private static String digest(String password) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Util.toHexString(digest.digest(String.valueOf(password).getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the "exp" claim of the JWT in milliseconds, or -1 if the token has none or is not a JWT
+     */
+    static long expiryOf(String token) {
+        String[] parts = token.split("\\.");
+        if (parts.length != 3)
+            return -1;
+        try {
+            JsonNode claims = MAPPER.readTree(Base64.getUrlDecoder().decode(parts[1]));
+            JsonNode exp = claims.get("exp");
+            return exp != null && exp.canConvertToLong() ? TimeUnit.SECONDS.toMillis(exp.asLong()) : -1;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * One CBRI server as seen with one set of credentials.
+     * Callers log in while holding the endpoint's lock, so concurrent builds share a single login.
+     */
+    static class Endpoint {
+
+        final WebTarget baseTarget;
+        private String token;
+        private long expiresAt = -1;
+
+        Endpoint(WebTarget baseTarget) {
+            this.baseTarget = baseTarget;
+        }
+
+        /**
+         * @return the token if it is known to be valid for a while yet, otherwise null
+         */
+        synchronized String validToken() {
+            if (token != null && expiresAt > 0 && System.currentTimeMillis() < expiresAt - EXPIRY_MARGIN_MILLIS)
+                return token;
+            return null;
+        }
+
+        /**
+         * @return the last token, which may have expired or have no known expiry
+         */
+        synchronized String lastToken() {
+            return token;
+        }
+
+        synchronized void store(String newToken) {
+            token = newToken;
+            expiresAt = expiryOf(newToken);
+        }
+
+        /**
+         * Forget the token after the server refused it, unless it was already replaced.
+         */
+        synchronized void invalidate(String refused) {
+            if (refused != null && refused.equals(token)) {
+                token = null;
+                expiresAt = -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package io.jenkins.plugins.cbri;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import jenkins.model.TransientActionFactory;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The CBRI trend of a job, served from its {@link CbriTrendIndex} rather than from the builds.
+ * JENKINS_URL/job/NAME/cbri-trend shows the trend, and .../cbri-trend/data returns it as JSON.
+ */
+public class CbriJobAction implements Action {
+
+    private static final Logger LOGGER = Logger.getLogger(CbriJobAction.class.getName());
+
+    protected static final int DEFAULT_POINTS = 100;
+    protected static final int MAX_POINTS = 5000;
+
+    private final Job<?, ?> job;
+
+    public CbriJobAction(Job<?, ?> job) {
+        this.job = job;
+    }
+
+    public Job<?, ?> getJob() {
+        return job;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "graph.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "CBRI Trend";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "cbri-trend";
+    }
+
+    public CbriTrendIndex getIndex() {
+        return CbriTrendIndex.forJob(job);
+    }
+
+    /**
+     * @return the trend of all builds, newest first, in at most {@link #DEFAULT_POINTS} points
+     */
+    public List<CbriTrendIndex.Point> getTrend() {
+        List<CbriTrendIndex.Point> points = new ArrayList<>(getIndex().downsample(0, Integer.MAX_VALUE, DEFAULT_POINTS));
+        Collections.reverse(points);
+        return points;
+    }
+
+    /**
+     * The trend as JSON. Optional parameters: points (the most to return), from and to (build numbers).
+     */
+    public void doData(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        job.checkPermission(Item.READ);
+        int points = Math.min(parameter(req, "points", DEFAULT_POINTS), MAX_POINTS);
+        int from = parameter(req, "from", 0);
+        int to = parameter(req, "to", Integer.MAX_VALUE);
+
+        List<Map<String, Object>> series = new ArrayList<>();
+        for (CbriTrendIndex.Point point : getIndex().downsample(from, to, points)) {
+            Map<String, Object> p = new LinkedHashMap<>();
+            p.put("build", point.getBuild());
+            p.put("builds", point.getBuilds());
+            p.put("time", point.getTime().getTime());
+            p.put("architectureType", point.getArchitectureType());
+            for (int m = 0; m < CbriTrendIndex.METRICS.length; m++)
+                p.put(CbriTrendIndex.METRICS[m], point.getValue(m));
+            series.add(p);
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("job", job.getFullName());
+        result.put("indexedBuilds", getIndex().size());
+        result.put("points", series);
+
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().write(CbriClientRegistry.MAPPER.writeValueAsString(result));
+    }
+
+    static int parameter(StaplerRequest req, String name, int defaultValue) {
+        String value = req.getParameter(name);
+        if (value == null || value.isEmpty())
+            return defaultValue;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Recreate the index from every build of the job.
+     */
+    @RequirePOST
+    public HttpResponse doRebuild() throws IOException {
+        job.checkPermission(Item.CONFIGURE);
+        getIndex().rebuild(job);
+        return HttpResponses.redirectToDot();
+    }
+
+    /**
+     * @return the action for the whole workspace, rather than one of the module roots
+     */
+    static CbriAction workspaceAction(Run<?, ?> run) {
+        for (CbriAction action : run.getActions(CbriAction.class)) {
+            if (action.module == null && !action.approximate)
+                return action;
+        }
+        return null;
+    }
+
+    /**
+     * Adds the trend to jobs that have been analyzed.
+     */
+    @Extension
+    public static class Factory extends TransientActionFactory<Job> {
+
+        @Override
+        public Class<Job> type() {
+            return Job.class;
+        }
+
+        @Override
+        public Collection<? extends Action> createFor(Job job) {
+            if (CbriTrendIndex.forJob(job).exists())
+                return Collections.singletonList(new CbriJobAction(job));
+            Run<?, ?> last = job.getLastBuild();
+            if (last != null && workspaceAction(last) != null)
+                return Collections.singletonList(new CbriJobAction(job));
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Adds each analyzed build to the index of its job as it completes, and drops it when it is deleted.
+     */
+    @Extension
+    public static class Indexer extends RunListener<Run<?, ?>> {
+
+        @Override
+        public void onCompleted(Run<?, ?> run, TaskListener listener) {
+            CbriAction action = workspaceAction(run);
+            if (action == null)
+                return;
+            try {
+                CbriTrendIndex.forJob(run.getParent()).append(run.getNumber(), run.getStartTimeInMillis(), action);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not add " + run + " to the CBRI trend index", e);
+            }
+        }
+
+        @Override
+        public void onDeleted(Run<?, ?> run) {
+            CbriTrendIndex index = CbriTrendIndex.forJob(run.getParent());
+            if (!index.exists())
+                return;
+            try {
+                index.remove(run.getNumber());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not remove " + run + " from the CBRI trend index", e);
+            }
+        }
+    }
+}
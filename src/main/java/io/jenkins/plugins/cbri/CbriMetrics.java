@@ -1,11 +1,20 @@
 package io.jenkins.plugins.cbri;
 
 import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.lang.StringBuilder;
 
 /**
@@ -13,15 +22,146 @@ import java.lang.StringBuilder;
  */
 public class CbriMetrics {
 
+    /**
+     * Minimum number of characters in a duplicated block, the core metrics script's default.
+     */
+    protected static final int DUPLICATE_MIN_CHARS = 20;
+
+    protected static final String FILE_METRICS = "fileMetrics.csv";
+    protected static final String CLASS_METRICS = "classMetrics.csv";
+
+    /**
+     * The closure snapshot of the previous analysis, null to always compute the closure in full.
+     */
+    private File closureSnapshot;
+
+    /**
+     * The root the file metrics are keyed from, null to key them by the names the script wrote.
+     */
+    private File sourceRoot;
+
+    /**
+     * The source root and language to count duplicate code in, null to use the script's count.
+     */
+    private File duplicateSourceRoot;
+    private String duplicateLanguage;
+
+    /**
+     * Bytes of core metrics output parsed, counted as they are read.
+     */
+    private long bytesRead;
+
     public CbriMetrics() {
 
     }
 
+    /**
+     * Update the propagation cost from the snapshot in the file when only some dependencies changed,
+     * and keep the snapshot of this analysis there for the next one.
+     */
+    public void setClosureSnapshot(File closureSnapshot) {
+        this.closureSnapshot = closureSnapshot;
+    }
+
+    /**
+     * Key the file metrics by their path relative to the root, so that the keys match between builds in
+     * different workspaces and on different nodes.
+     */
+    public void setSourceRoot(File sourceRoot) {
+        this.sourceRoot = sourceRoot;
+    }
+
+    /**
+     * Count duplicate code with {@link DuplicateCodeDetector} instead of using the script's count, for output
+     * written with -skipDuplicates. The files counted are those of fileMetrics.csv, which Understand analyzed,
+     * and each gets its own count; the sources of the language below the root are only listed when the script
+     * wrote no file metrics.
+     */
+    public void setDuplicateDetection(File sourceRoot, String language) {
+        this.duplicateSourceRoot = sourceRoot;
+        this.duplicateLanguage = language;
+    }
+
+    /**
+     * Parse the core metrics output directory on the node that holds it, so only the
+     * resulting action travels back over the remoting channel.
+     */
+    static class LoadMetrics extends MasterToSlaveFileCallable<CbriAction> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TaskListener listener;
+        private String sourceRoot;
+        private String language;
+        private String closureSnapshot;
+
+        LoadMetrics(TaskListener listener) {
+            this.listener = listener;
+        }
+
+        /**
+         * Key the file metrics from the root, see {@link CbriMetrics#setSourceRoot(File)}.
+         */
+        LoadMetrics withSourceRoot(String sourceRoot) {
+            this.sourceRoot = sourceRoot;
+            return this;
+        }
+
+        /**
+         * Count duplicate code below the source root instead of using the script's count,
+         * see {@link CbriMetrics#setDuplicateDetection(File, String)}.
+         */
+        LoadMetrics withDuplicates(String language) {
+            this.language = language;
+            return this;
+        }
+
+        /**
+         * Keep the closure snapshot in the file, see {@link CbriMetrics#setClosureSnapshot(File)}.
+         */
+        LoadMetrics withClosureSnapshot(String closureSnapshot) {
+            this.closureSnapshot = closureSnapshot;
+            return this;
+        }
+
+        @Override
+        public CbriAction invoke(File coreMetricsDir, VirtualChannel channel) throws IOException, InterruptedException {
+            CbriMetrics metrics = new CbriMetrics();
+            if (closureSnapshot != null)
+                metrics.setClosureSnapshot(new File(closureSnapshot));
+            if (sourceRoot != null)
+                metrics.setSourceRoot(new File(sourceRoot));
+            if (sourceRoot != null && language != null)
+                metrics.setDuplicateDetection(new File(sourceRoot), language);
+            CbriAction action = metrics.loadMetrics(coreMetricsDir.getPath(), listener);
+
+            // The tree map and file metrics are not serialized with the action; they follow as files
+            CbriAction.saveTreeMap(action.getTreeMap(), new File(coreMetricsDir, FileTreeMap.FILE_NAME));
+            if (action.getFileMetrics() != null)
+                CbriAction.saveFileMetrics(action.getFileMetrics(), new File(coreMetricsDir, FileMetricsTable.FILE_NAME));
+            return action;
+        }
+    }
+
     public CbriAction loadMetrics(String coreMetricsDir, TaskListener listener) throws IOException {
 
         HashMap<String, String> map = readMetrics(coreMetricsDir, listener);
         CbriAction action = new CbriAction();
 
+        //Architecture metrics computed here when the script exported its dependencies instead
+        PropagationCostEngine.Result architecture = null;
+        DependencyGraph graph = null;
+        File dependencies = new File(coreMetricsDir, DependencyGraph.DEPENDENCIES_FILE);
+        if (dependencies.isFile())
+            graph = DependencyGraph.read(open(dependencies));
+        if (graph != null) {
+            long start = System.nanoTime();
+            architecture = analyzeArchitecture(graph, listener);
+            putArchitecture(architecture, map);
+            listener.getLogger().println("Calculated propagation cost for " + graph.size() + " files and "
+                    + graph.edgeCount() + " dependencies in " + (System.nanoTime() - start) / 1000000L + " ms");
+        }
+
         action.today = new Date();
 
         //Architecture
@@ -32,12 +172,13 @@ public class CbriMetrics {
             action.coreSize = getDouble("Core Size", map);
         else
             action.coreSize = getDouble("Central Size", map);
+        action.centralSize = getDouble("Central Size", map);
 
         //Complexity
         action.percentFilesOverlyComplex = getDouble("Overly Complex Files", map);
         action.duplicateUloc = getInt("Duplicate Useful Lines of Code", map);
         action.uloc = getInt("Useful Lines of Code (ULOC)", map);
-        action.percentDuplicateUloc = 100.0 * ((double) action.duplicateUloc) / ((double) action.uloc);
+        action.percentDuplicateUloc = percentOf(action.duplicateUloc, action.uloc);
 
         //Clarity
         action.usefulCommentDensity = getDouble("Useful Comment Density", map);
@@ -50,35 +191,516 @@ public class CbriMetrics {
         action.numFilesOverlyComplex = (int) Math.round(action.numFiles * (action.percentFilesOverlyComplex / 100.0));
 
         //File Tree Map
-        action.fileTreeMap = readTreeMap(coreMetricsDir);
+        action.setTreeMap(readTreeMap(coreMetricsDir, architecture));
+
+        //Per-file metrics and the distribution of the class metrics
+        ClassMetricDistributions classes = new ClassMetricDistributions();
+        FileMetricsTable fileMetrics = readFileMetrics(coreMetricsDir, architecture, classes, listener);
+        action.setFileMetrics(fileMetrics);
+        if (classes.getCount() > 0)
+            action.classMetrics = classes.compact();
 
+        //Duplicate code counted here when the script skipped it
+        if (duplicateSourceRoot != null) {
+            if (fileMetrics != null) {
+                action.duplicateUloc = 0;
+                for (int row = 0; row < fileMetrics.size(); row++)
+                    action.duplicateUloc += fileMetrics.getValue(row, FileMetricsTable.DUPLICATE_ULOC);
+            } else {
+                List<Path> files = SourceManifest.listSources(duplicateSourceRoot, duplicateLanguage);
+                action.duplicateUloc = DuplicateCodeDetector.total(detectDuplicates(files, listener));
+            }
+            action.percentDuplicateUloc = percentOf(action.duplicateUloc, action.uloc);
+        }
+
+        action.bytesRead = bytesRead;
         return action;
     }
 
-    protected String readTreeMap(String coreMetricsDir) throws IOException {
+    /**
+     * @return bytes of core metrics output read so far
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Open a file of the core metrics output, counting the bytes read from it.
+     */
+    private InputStream open(File file) throws IOException {
+        return new FilterInputStream(new FileInputStream(file)) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0)
+                    bytesRead++;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0)
+                    bytesRead += n;
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Combine the actions of independently analyzed module roots into one for the whole workspace.
+     *
+     * Sizes and counts are summed, and percentages recalculated from the sums. The shards share no
+     * dependencies, so the propagation cost is the shards' weighted by their number of files squared,
+     * and the comment density is weighted by ULOC. The architecture type is classified as the script
+     * does, from the largest core of any shard against all files; the central size is approximated by
+     * the shards' central sizes weighted by their number of files.
+     */
+    public CbriAction merge(List<CbriAction> shards) {
+        CbriAction merged = new CbriAction();
+        merged.timings = new PhaseTimings();
+        int numFiles = 0;
+        int uloc = 0;
+        int duplicateUloc = 0;
+        int usefulLinesComments = 0;
+        int numClasses = 0;
+        int numFilesOverlyComplex = 0;
+        double visiblePairs = 0;
+        double commentDensity = 0;
+        double central = 0;
+        int largestCore = 0;
+        int secondCore = 0;
+
+        for (CbriAction shard : shards) {
+            merged.language = shard.language;
+            merged.timings.addConcurrent(shard.timings);
+            merged.bytesRead += shard.bytesRead;
+            numFiles += shard.numFiles;
+            uloc += shard.uloc;
+            duplicateUloc += shard.duplicateUloc;
+            usefulLinesComments += shard.usefulLinesComments;
+            numClasses += shard.numClasses;
+            numFilesOverlyComplex += shard.numFilesOverlyComplex;
+            visiblePairs += shard.propagationCost * shard.numFiles * (double) shard.numFiles;
+            commentDensity += shard.usefulCommentDensity * shard.uloc;
+            central += shard.centralSize * shard.numFiles;
+            if (shard.core) {
+                if (shard.numFilesInCore > largestCore) {
+                    secondCore = largestCore;
+                    largestCore = shard.numFilesInCore;
+                } else if (shard.numFilesInCore > secondCore) {
+                    secondCore = shard.numFilesInCore;
+                }
+            }
+        }
+
+        //Architecture
+        merged.architectureType = "Hierarchical";
+        if (largestCore > 0 && largestCore >= numFiles * .04) {
+            merged.architectureType = "Multi-Core";
+            if (secondCore == 0 || largestCore >= secondCore * 1.5)
+                merged.architectureType = "Borderline Core-Periphery";
+        }
+        if (largestCore > 0 && largestCore >= numFiles * .06)
+            merged.architectureType = "Core-Periphery";
+        merged.core = isCore(merged.architectureType);
+        merged.propagationCost = numFiles > 0 ? PropagationCostEngine.round(visiblePairs / ((double) numFiles * numFiles), 3) : 0;
+        merged.centralSize = numFiles > 0 ? PropagationCostEngine.round(central / numFiles, 1) : 0;
+        if (merged.core)
+            merged.coreSize = PropagationCostEngine.round(largestCore * 100.0 / numFiles, 1);
+        else
+            merged.coreSize = merged.centralSize;
+
+        //Complexity
+        merged.numFiles = numFiles;
+        merged.numFilesOverlyComplex = numFilesOverlyComplex;
+        merged.percentFilesOverlyComplex = numFiles > 0 ? 100.0 * numFilesOverlyComplex / numFiles : 0;
+        merged.duplicateUloc = duplicateUloc;
+        merged.uloc = uloc;
+        merged.percentDuplicateUloc = percentOf(duplicateUloc, uloc);
+
+        //Clarity
+        merged.usefulLinesComments = usefulLinesComments;
+        merged.usefulCommentDensity = uloc > 0 ? commentDensity / uloc : 0;
+
+        //Counts
+        merged.numClasses = numClasses;
+        merged.numFilesInCore = merged.core ? largestCore : (int) Math.round(numFiles * (merged.coreSize / 100.0));
+
+        merged.setTreeMap(mergeTreeMaps(shards));
+        merged.setFileMetrics(mergeFileMetrics(shards));
+        merged.classMetrics = mergeClassMetrics(shards);
+        return merged;
+    }
+
+    /**
+     * One project and set of component nodes, with their sizes summed, followed by the files of every
+     * shard named from the workspace root.
+     */
+    private FileTreeMap mergeTreeMaps(List<CbriAction> shards) {
+        FileTreeMap.Builder builder = new FileTreeMap.Builder();
+        Map<String, int[]> nodes = new LinkedHashMap<>(); // name -> {parent, uloc, violations, fullName}
+        for (CbriAction shard : shards) {
+            FileTreeMap map = shard.getTreeMap();
+            for (int row = 0; map != null && row < map.size(); row++) {
+                if (map.isFile(row))
+                    continue;
+                int[] node = nodes.computeIfAbsent(map.getName(row), k -> new int[4]);
+                node[0] = builder.intern(map.getParent(row));
+                node[1] += map.getUloc(row);
+                node[2] += map.getViolations(row);
+                node[3] = builder.intern(map.getFullName(row));
+            }
+        }
+        for (Map.Entry<String, int[]> node : nodes.entrySet()) {
+            int[] v = node.getValue();
+            builder.add(builder.intern(node.getKey()), v[0], v[1], v[2], v[3]);
+        }
+
+        for (CbriAction shard : shards) {
+            FileTreeMap map = shard.getTreeMap();
+            String prefix = shard.module == null ? "" : shard.module.replaceAll("[/\\\\]+$", "") + "/";
+            for (int row = 0; map != null && row < map.size(); row++) {
+                if (!map.isFile(row))
+                    continue;
+                builder.add(builder.intern(map.getName(row)), builder.intern(map.getParent(row)), map.getUloc(row),
+                        map.getViolations(row), builder.intern(prefix + map.getFullName(row)));
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * The files of every shard named from the workspace root, or null if a shard has no file metrics.
+     */
+    private FileMetricsTable mergeFileMetrics(List<CbriAction> shards) {
+        FileMetricsTable.Builder builder = new FileMetricsTable.Builder();
+        for (CbriAction shard : shards) {
+            FileMetricsTable table = shard.getFileMetrics();
+            if (table == null)
+                return null;
+            String prefix = shard.module == null ? "" : shard.module.replaceAll("[/\\\\]+$", "") + "/";
+            for (int row = 0; row < table.size(); row++) {
+                int merged = builder.add(builder.intern(prefix + table.getPath(row)),
+                        builder.intern(table.getMedianGroup(row)), builder.intern(table.getCpGroup(row)));
+                for (int m = 0; m < FileMetricsTable.METRICS.length; m++)
+                    builder.set(merged, m, table.getValue(row, m));
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the distributions of every shard added up, or null if no shard has any
+     */
+    private ClassMetricDistributions mergeClassMetrics(List<CbriAction> shards) {
+        ClassMetricDistributions merged = null;
+        for (CbriAction shard : shards) {
+            if (shard.classMetrics == null)
+                continue;
+            if (merged == null)
+                merged = new ClassMetricDistributions();
+            merged.merge(shard.classMetrics);
+        }
+        return merged != null ? merged.compact() : null;
+    }
+
+    /**
+     * @return the duplicated useful lines of each file, counted by {@link DuplicateCodeDetector}
+     */
+    protected int[] detectDuplicates(List<Path> files, TaskListener listener) throws IOException {
+        long start = System.nanoTime();
+        int[] duplicates = new DuplicateCodeDetector(UnderstandWrapper.DUPLICATE_MIN_LINES, DUPLICATE_MIN_CHARS).detect(files);
+        listener.getLogger().println("Duplicate Useful Lines of Code " + DuplicateCodeDetector.total(duplicates) + " ("
+                + files.size() + " files in " + (System.nanoTime() - start) / 1000000L + " ms)");
+        return duplicates;
+    }
+
+    /**
+     * Update the closure of the previous analysis if there is a snapshot of it, otherwise compute it in full.
+     * A snapshot that cannot be read is ignored and replaced.
+     */
+    protected PropagationCostEngine.Result analyzeArchitecture(DependencyGraph graph, TaskListener listener) throws IOException {
+        if (closureSnapshot == null)
+            return PropagationCostEngine.analyze(graph);
+
+        PropagationCostEngine.Result architecture = null;
+        if (closureSnapshot.isFile()) {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(closureSnapshot))) {
+                architecture = PropagationCostEngine.update(ClosureSnapshot.read(in), graph);
+                listener.getLogger().println(architecture != null ? "Updated the transitive closure of the previous analysis"
+                        : "Too many dependencies changed to update the transitive closure, recomputing it");
+            } catch (IOException e) {
+                listener.getLogger().println("Ignoring unreadable closure snapshot " + closureSnapshot + ": " + e.getMessage());
+            }
+        }
+        if (architecture == null)
+            architecture = PropagationCostEngine.analyze(graph);
+
+        File parent = closureSnapshot.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs())
+            throw new IOException("Could not create " + parent);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(closureSnapshot))) {
+            new ClosureSnapshot(graph, architecture).write(out);
+        }
+        return architecture;
+    }
+
+    /**
+     * Fill in the project metrics the script leaves out when run with -externalClosure.
+     */
+    protected void putArchitecture(PropagationCostEngine.Result architecture, HashMap<String, String> map) {
+        if (architecture.getFileCount() > 0)
+            map.put("Propagation Cost", String.valueOf(architecture.getPropagationCost()));
+        map.put("Architecture Type", architecture.getArchitectureType());
+        map.put("Core Size", String.valueOf(architecture.getCoreSize()));
+        map.put("Central Size", String.valueOf(architecture.getCentralSize()));
+    }
+
+    /**
+     * Read the rows of the tree map data in 'treemap.html' in one pass, without regular expressions.
+     * Quotes and spaces are dropped, as CBRI expects them in components_str. The quoted file name and full
+     * name may hold commas, the parent and the counts between them don't.
+     *
+     * e.g.
+     *           ['Project',null,0,0,'Project'],
+     *           ['Core','Project',0,0,'Core'],
+     *           ['Parser.java','Core',1204,4,'src/main/java/Parser.java'],
+     *
+     * @param architecture if not null, supplies the component of each file in place of the script's
+     */
+    protected FileTreeMap readTreeMap(String coreMetricsDir, PropagationCostEngine.Result architecture) throws IOException {
         String filename = coreMetricsDir + File.separator + "treemap.html";
-        InputStream in = new FileInputStream(filename);
-        Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
-        BufferedReader br = new BufferedReader(reader);
-
-        String line = br.readLine(); // Reading header, Ignoring
-        int node = 0; //ignore first two lines with "[]"
-        StringBuilder toReturn = new StringBuilder();
-        while ((line = br.readLine()) != null && !line.isEmpty()) {
-            line = line.replaceAll("\'","").replaceAll(" ", "");
-            int index1 = line.indexOf('[');
-            int index2 = line.indexOf(']');
-            if (index1 > -1 && index2 > -1 && node++ > 1) {
-                toReturn.append(line.substring(index1 + 1, index2));
-                toReturn.append("\n");
+        FileTreeMap.Builder builder = new FileTreeMap.Builder();
+        StringBuilder[] fields = new StringBuilder[5];
+        for (int f = 0; f < fields.length; f++)
+            fields[f] = new StringBuilder(64);
+
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(open(new File(filename)), StandardCharsets.UTF_8))) {
+            String line = br.readLine(); // Reading header, Ignoring
+            int node = 0; //ignore first two lines with "[]"
+            int file = 0;
+            while ((line = br.readLine()) != null && !line.isEmpty()) {
+                int index1 = line.indexOf('[');
+                int index2 = line.lastIndexOf(']');
+                if (index1 < 0 || index2 < index1 || node++ <= 1)
+                    continue;
+
+                // 'name',parent,uloc,violations,fullName; the full name keeps any further commas
+                int start = index1 + 1;
+                int nameEnd = line.startsWith("'", start) ? line.indexOf("',", start + 1) + 1 : line.indexOf(',', start);
+                if (nameEnd <= 0 || nameEnd > index2)
+                    throw new IOException("Incorrectly formatted treemap.html, line: " + line);
+                for (StringBuilder f : fields)
+                    f.setLength(0);
+                for (int i = start; i < nameEnd; i++) {
+                    char c = line.charAt(i);
+                    if (c != '\'' && c != ' ')
+                        fields[0].append(c);
+                }
+                int field = 1;
+                for (int i = nameEnd + 1; i < index2; i++) {
+                    char c = line.charAt(i);
+                    if (c == '\'' || c == ' ')
+                        continue;
+                    if (c == ',' && field < 4)
+                        field++;
+                    else
+                        fields[field].append(c);
+                }
+                if (field < 4)
+                    throw new IOException("Incorrectly formatted treemap.html, line: " + line);
+
+                int parent = builder.intern(fields[1]);
+                if (architecture != null && !"Project".contentEquals(fields[1]) && !"null".contentEquals(fields[1]))
+                    parent = builder.intern(architecture.getComponent(file++));
+                // Names and full names are nearly all distinct, looking them up would only fill the index
+                builder.add(builder.append(fields[0]), parent, parseInt(fields[2], line), parseInt(fields[3], line),
+                        builder.append(fields[4]));
+            }
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Read 'fileMetrics.csv' and count the classes of each file in 'classMetrics.csv', one line at a time.
+     * Files are keyed by their path relative to the source root, if one is set, so that the keys match
+     * between builds in different workspaces.
+     *
+     * e.g.
+     * Filename, LOC, UsefulLOC, DuplicateUsefulLOC, CommentToCodeRatio, UsefulCommentToCodeRatio, MaxCBO, MaxWMC, MaxWMC-McCabe, MaxRFC, Median Group, CP Group,Threshold Violations
+     * "/ws/src/main/java/Parser.java",1530,1204,12,0.21,0.18,14,61,230,98,Core,Core,4
+     *
+     * Class, Kind, Filename, CBO, WMC, WMC-McCabe, RFC, LOC, Median Group, CP Group
+     * "Parser","Public Class","/ws/src/main/java/Parser.java",14,61,230,98,1402,Core,Core
+     *
+     * @param architecture if not null, supplies the groups of each file in place of the script's
+     * @param classes if not null, receives the metrics of every class
+     * @return the table, or null if the script did not write the file metrics
+     */
+    protected FileMetricsTable readFileMetrics(String coreMetricsDir, PropagationCostEngine.Result architecture,
+                                               ClassMetricDistributions classes, TaskListener listener) throws IOException {
+        File fileMetrics = new File(coreMetricsDir, FILE_METRICS);
+        if (!fileMetrics.isFile()) {
+            readClassMetrics(coreMetricsDir, null, null, classes);
+            return null;
+        }
+
+        FileMetricsTable.Builder builder = new FileMetricsTable.Builder();
+        Map<String, Integer> rowByName = new HashMap<>();
+        List<Path> files = new ArrayList<>();
+        StringBuilder[] fields = new StringBuilder[12];
+        for (int f = 0; f < fields.length; f++)
+            fields[f] = new StringBuilder(32);
+        int empty = builder.intern("");
+        Path root = sourceRoot != null ? sourceRoot.toPath().toAbsolutePath().normalize() : null;
+
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(open(fileMetrics), StandardCharsets.UTF_8))) {
+            String line = br.readLine(); // Reading header, Ignoring
+            while ((line = br.readLine()) != null && !line.isEmpty()) {
+                // The quoted file name may hold commas, the other fields don't
+                int end = line.startsWith("\"") ? line.indexOf("\",", 1) : line.indexOf(',');
+                if (end < 0)
+                    throw new IOException("Incorrectly formatted " + FILE_METRICS + ", line: " + line);
+                String name = line.substring(line.startsWith("\"") ? 1 : 0, end);
+                int field = 0;
+                for (StringBuilder f : fields)
+                    f.setLength(0);
+                for (int i = line.indexOf(',', end) + 1; i < line.length(); i++) {
+                    char c = line.charAt(i);
+                    if (c == ',' && field < fields.length - 1)
+                        field++;
+                    else if (c != ' ')
+                        fields[field].append(c);
+                }
+                if (field < fields.length - 1)
+                    throw new IOException("Incorrectly formatted " + FILE_METRICS + ", line: " + line);
+
+                int file = builder.size();
+                int median = builder.intern(fields[9]);
+                int cp = fields[10].length() > 0 ? builder.intern(fields[10]) : empty;
+                if (architecture != null && file < architecture.getFileCount()) {
+                    median = builder.intern(architecture.componentM[file]);
+                    cp = architecture.componentCP != null ? builder.intern(architecture.componentCP[file]) : empty;
+                }
+                int row = builder.add(builder.intern(relativePath(root, name)), median, cp);
+                rowByName.put(name, row);
+                files.add(Paths.get(name));
+                builder.set(row, FileMetricsTable.LOC, parseCount(fields[0], FILE_METRICS, line));
+                builder.set(row, FileMetricsTable.ULOC, parseCount(fields[1], FILE_METRICS, line));
+                builder.set(row, FileMetricsTable.DUPLICATE_ULOC, parseCount(fields[2], FILE_METRICS, line));
+                builder.set(row, FileMetricsTable.MAX_CBO, parseCount(fields[5], FILE_METRICS, line));
+                builder.set(row, FileMetricsTable.MAX_WMC, parseCount(fields[6], FILE_METRICS, line));
+                builder.set(row, FileMetricsTable.MAX_WMC_MCCABE, parseCount(fields[7], FILE_METRICS, line));
+                builder.set(row, FileMetricsTable.MAX_RFC, parseCount(fields[8], FILE_METRICS, line));
+                builder.set(row, FileMetricsTable.VIOLATIONS, parseCount(fields[11], FILE_METRICS, line));
+            }
+        }
+
+        readClassMetrics(coreMetricsDir, rowByName, builder, classes);
+
+        // Rows are in the order of Understand's file list, which the detector follows
+        if (duplicateSourceRoot != null) {
+            int[] duplicates = detectDuplicates(files, listener);
+            for (int row = 0; row < duplicates.length; row++)
+                builder.set(row, FileMetricsTable.DUPLICATE_ULOC, duplicates[row]);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return the name relative to the root with '/' separators, or just with '/' separators if it is
+     * not below the root
+     */
+    static String relativePath(Path root, String name) {
+        String path = name.replace('\\', '/');
+        if (root == null)
+            return path;
+        try {
+            Path file = Paths.get(name);
+            if (file.isAbsolute() && file.normalize().startsWith(root))
+                return root.relativize(file.normalize()).toString().replace('\\', '/');
+        } catch (InvalidPathException e) {
+            // Not a path on this node, e.g. written on another OS
+        }
+        return path;
+    }
+
+    /**
+     * Read 'classMetrics.csv' one line at a time, counting the classes of each file in the builder and
+     * adding each class's CBO, WMC, WMC-McCabe and RFC to the distributions, either of which may be null.
+     */
+    protected void readClassMetrics(String coreMetricsDir, Map<String, Integer> rowByName,
+                                    FileMetricsTable.Builder builder, ClassMetricDistributions classes) throws IOException {
+        File classMetrics = new File(coreMetricsDir, CLASS_METRICS);
+        if (!classMetrics.isFile() || (builder == null && classes == null))
+            return;
+        StringBuilder value = new StringBuilder(16);
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(open(classMetrics), StandardCharsets.UTF_8))) {
+            String line = br.readLine(); // Reading header, Ignoring
+            while ((line = br.readLine()) != null && !line.isEmpty()) {
+                // "class","kind","file",CBO,WMC,WMC-McCabe,RFC,...
+                int kind = line.indexOf("\",\"");
+                int file = kind < 0 ? -1 : line.indexOf("\",\"", kind + 3);
+                int end = file < 0 ? -1 : line.indexOf('"', file + 3);
+                if (end < 0)
+                    throw new IOException("Incorrectly formatted " + CLASS_METRICS + ", line: " + line);
+                if (builder != null) {
+                    Integer row = rowByName.get(line.substring(file + 3, end));
+                    if (row != null)
+                        builder.increment(row, FileMetricsTable.CLASSES);
+                }
+                if (classes == null)
+                    continue;
+
+                int i = end + 2;
+                for (int metric = 0; metric < ClassMetricDistributions.METRICS.length; metric++) {
+                    value.setLength(0);
+                    for (; i < line.length() && line.charAt(i) != ','; i++) {
+                        if (line.charAt(i) != ' ')
+                            value.append(line.charAt(i));
+                    }
+                    if (i >= line.length() && metric < ClassMetricDistributions.METRICS.length - 1)
+                        throw new IOException("Incorrectly formatted " + CLASS_METRICS + ", line: " + line);
+                    classes.add(metric, parseCount(value, CLASS_METRICS, line));
+                    i++;
+                }
             }
         }
+    }
 
-        br.close();
-        reader.close();
-        in.close();
+    /**
+     * @return the whole number, 0 if empty
+     */
+    private static int parseCount(CharSequence value, String file, String line) throws IOException {
+        int length = value.length();
+        if (length == 0)
+            return 0;
+        boolean negative = value.charAt(0) == '-';
+        int result = 0;
+        for (int i = negative ? 1 : 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9' || (negative && length == 1))
+                throw new IOException("Incorrectly formatted " + file + ", line: " + line);
+            result = result * 10 + (c - '0');
+        }
+        return negative ? -result : result;
+    }
 
-        return toReturn.toString();
+    private static int parseInt(CharSequence value, String line) throws IOException {
+        int length = value.length();
+        boolean negative = length > 0 && value.charAt(0) == '-';
+        if (length == 0 || (negative && length == 1))
+            throw new IOException("Incorrectly formatted treemap.html, line: " + line);
+        int result = 0;
+        for (int i = negative ? 1 : 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9')
+                throw new IOException("Incorrectly formatted treemap.html, line: " + line);
+            result = result * 10 + (c - '0');
+        }
+        return negative ? -result : result;
     }
 
     /**
@@ -116,6 +738,13 @@ public class CbriMetrics {
         return dValue;
     }
 
+    /**
+     * @return part as a percentage of whole, 0 if there is no whole, e.g. no ULOC.
+     */
+    static double percentOf(int part, int whole) {
+        return whole > 0 ? 100.0 * part / whole : 0;
+    }
+
     /**
      * Read in values from the file 'projectMetrics.csv' if it exists.
      *
@@ -141,25 +770,29 @@ public class CbriMetrics {
         HashMap<String, String> map = new HashMap<>();
 
         String filename = coreMetricsDir + File.separator + "projectMetrics.csv";
-        InputStream in = new FileInputStream(filename);
-        Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8);
-        BufferedReader br = new BufferedReader(reader);
+        StringBuilder value = new StringBuilder(32);
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(open(new File(filename)), StandardCharsets.UTF_8))) {
+            String line = br.readLine(); // Reading header, Ignoring
+            while ((line = br.readLine()) != null && !line.isEmpty()) {
+                int separator = line.indexOf("\",\""); //Look for ","
+                if (separator < 0 || line.indexOf("\",\"", separator + 3) > -1 || !line.endsWith("\""))
+                    throw new IOException("Incorrectly formatted projectMetrics.csv, line: " + line);
 
-        String line = br.readLine(); // Reading header, Ignoring
-        while ((line = br.readLine()) != null && !line.isEmpty()) {
-            String[] fields = line.split("\",\""); //Look for ","
-            if(fields.length != 2 ) throw new IOException("Incorrectly formatted projectMetrics.csv, line: " + line);
-            String name = fields[0].replaceFirst("\"", ""); // Remove leading "
-            String value = fields[1].substring(0, fields[1].length()-1); // Remove training "
-            value = value.replaceAll(",", "");
-            value = value.replaceAll("%", "");
-            value = value.trim();
+                String name = line.substring(line.charAt(0) == '"' ? 1 : 0, separator); // Remove leading "
 
-            map.put(name, value);
-            listener.getLogger().println(name + " " + value);
+                // Remove trailing ", thousands separators and percent signs
+                value.setLength(0);
+                for (int i = separator + 3; i < line.length() - 1; i++) {
+                    char c = line.charAt(i);
+                    if (c != ',' && c != '%')
+                        value.append(c);
+                }
+                String trimmed = value.toString().trim();
 
+                map.put(name, trimmed);
+                listener.getLogger().println(name + " " + trimmed);
+            }
         }
-        br.close();
         return map;
     }
 }
@@ -0,0 +1,295 @@
+package io.jenkins.plugins.cbri;
+
+import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.ToLongFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Phase durations and resource use of every CBRI build step in this Jenkins, as histograms and counters.
+ * They are published over JMX as {@link CbriStatisticsMXBean} and in the Prometheus text format at
+ * JENKINS_URL/cbri-metrics, together with the counters of the result cache, the upload outbox and
+ * the license scheduler.
+ */
+public class CbriStatistics implements CbriStatisticsMXBean {
+
+    private static final Logger LOGGER = Logger.getLogger(CbriStatistics.class.getName());
+
+    /**
+     * Upper bounds of the duration histogram buckets, in seconds.
+     */
+    static final double[] BUCKETS = {0.1, 0.5, 1, 5, 10, 30, 60, 300, 900, 1800, 3600};
+
+    private static final Map<String, Histogram> phases = new ConcurrentSkipListMap<>();
+    private static final Map<String, AtomicLong> timeouts = new ConcurrentSkipListMap<>();
+    private static final AtomicLong bytesRead = new AtomicLong();
+    private static final AtomicLong bytesUploaded = new AtomicLong();
+    private static final AtomicLong maxPeakRssKb = new AtomicLong(-1);
+
+    static void recordPhase(String phase, long millis) {
+        phases.computeIfAbsent(phase, k -> new Histogram()).record(millis);
+    }
+
+    /**
+     * Count a phase stopped for running past its budget, see {@link AnalysisBudget}.
+     */
+    static void recordTimeout(String phase) {
+        timeouts.computeIfAbsent(phase, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    static void recordBytesRead(long bytes) {
+        bytesRead.addAndGet(bytes);
+    }
+
+    static void recordBytesUploaded(long bytes) {
+        bytesUploaded.addAndGet(bytes);
+    }
+
+    static void recordPeakRss(long kb) {
+        maxPeakRssKb.accumulateAndGet(kb, Math::max);
+    }
+
+    @Initializer(after = InitMilestone.PLUGINS_STARTED)
+    public static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new CbriStatistics(),
+                    new ObjectName("io.jenkins.plugins.cbri:type=CbriStatistics"));
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Could not register the CBRI statistics MBean", e);
+        }
+    }
+
+    @Override
+    public Map<String, Long> getPhaseCounts() {
+        return perPhase(h -> h.count.get());
+    }
+
+    @Override
+    public Map<String, Long> getPhaseTotalMillis() {
+        return perPhase(h -> h.totalMillis.get());
+    }
+
+    @Override
+    public Map<String, Long> getPhaseMaxMillis() {
+        return perPhase(h -> h.maxMillis.get());
+    }
+
+    @Override
+    public Map<String, Long> getPhaseTimeouts() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<String, AtomicLong> phase : timeouts.entrySet())
+            result.put(phase.getKey(), phase.getValue().get());
+        return result;
+    }
+
+    private static Map<String, Long> perPhase(ToLongFunction<Histogram> value) {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Histogram> phase : phases.entrySet())
+            result.put(phase.getKey(), value.applyAsLong(phase.getValue()));
+        return result;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    @Override
+    public long getBytesUploaded() {
+        return bytesUploaded.get();
+    }
+
+    @Override
+    public long getMaxPeakRssKb() {
+        return maxPeakRssKb.get();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return ResultCache.getHits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return ResultCache.getMisses();
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        return ResultCache.getEvictions();
+    }
+
+    @Override
+    public long getOutboxEnqueued() {
+        return MeasurementOutbox.getEnqueued();
+    }
+
+    @Override
+    public long getOutboxUploaded() {
+        return MeasurementOutbox.getUploaded();
+    }
+
+    @Override
+    public long getOutboxFailedAttempts() {
+        return MeasurementOutbox.getFailedAttempts();
+    }
+
+    @Override
+    public long getOutboxDropped() {
+        return MeasurementOutbox.getDropped();
+    }
+
+    @Override
+    public int getOutboxQueueDepth() {
+        return MeasurementOutbox.get().getQueueDepth();
+    }
+
+    @Override
+    public int getLicensesInUse() {
+        return LicenseScheduler.get().getInUse();
+    }
+
+    @Override
+    public int getLicenseQueueLength() {
+        return LicenseScheduler.get().getQueueLength();
+    }
+
+    @Override
+    public long getLicenseWaits() {
+        return LicenseScheduler.getWaits();
+    }
+
+    @Override
+    public long getLicenseWaitMillis() {
+        return LicenseScheduler.getTotalWaitMillis();
+    }
+
+    /**
+     * Write every statistic in the Prometheus text exposition format.
+     */
+    void writePrometheus(PrintWriter out) {
+        out.println("# HELP cbri_phase_duration_seconds Duration of the phases of the CBRI build step.");
+        out.println("# TYPE cbri_phase_duration_seconds histogram");
+        for (Map.Entry<String, Histogram> phase : phases.entrySet()) {
+            Histogram h = phase.getValue();
+            String label = "phase=\"" + phase.getKey() + "\"";
+            long cumulative = 0;
+            for (int b = 0; b < BUCKETS.length; b++) {
+                cumulative += h.buckets.get(b);
+                out.println("cbri_phase_duration_seconds_bucket{" + label + ",le=\"" + BUCKETS[b] + "\"} " + cumulative);
+            }
+            out.println("cbri_phase_duration_seconds_bucket{" + label + ",le=\"+Inf\"} " + h.count.get());
+            out.println("cbri_phase_duration_seconds_sum{" + label + "} " + h.totalMillis.get() / 1000.0);
+            out.println("cbri_phase_duration_seconds_count{" + label + "} " + h.count.get());
+        }
+
+        out.println("# HELP cbri_phase_timeouts_total Phases stopped for running past their budget.");
+        out.println("# TYPE cbri_phase_timeouts_total counter");
+        for (Map.Entry<String, Long> phase : getPhaseTimeouts().entrySet())
+            out.println("cbri_phase_timeouts_total{phase=\"" + phase.getKey() + "\"} " + phase.getValue());
+
+        counter(out, "cbri_read_bytes_total", "Bytes of core metrics output parsed.", getBytesRead());
+        counter(out, "cbri_uploaded_bytes_total", "Bytes of measurements sent to CBRI, as written to the connection.", getBytesUploaded());
+        gauge(out, "cbri_process_peak_rss_kilobytes", "Highest peak resident memory of the analysis processes of one step.", getMaxPeakRssKb());
+        counter(out, "cbri_cache_hits_total", "Result cache hits.", getCacheHits());
+        counter(out, "cbri_cache_misses_total", "Result cache misses.", getCacheMisses());
+        counter(out, "cbri_cache_evictions_total", "Result cache evictions.", getCacheEvictions());
+        counter(out, "cbri_outbox_enqueued_total", "Measurements queued for upload.", getOutboxEnqueued());
+        counter(out, "cbri_outbox_uploaded_total", "Measurements uploaded.", getOutboxUploaded());
+        counter(out, "cbri_outbox_failed_attempts_total", "Failed upload attempts.", getOutboxFailedAttempts());
+        counter(out, "cbri_outbox_dropped_total", "Measurements given up on.", getOutboxDropped());
+        gauge(out, "cbri_outbox_queue_depth", "Measurements waiting to be uploaded.", getOutboxQueueDepth());
+        gauge(out, "cbri_licenses_in_use", "Understand licenses held by analyses.", getLicensesInUse());
+        gauge(out, "cbri_license_queue_length", "Analyses waiting for an Understand license.", getLicenseQueueLength());
+        counter(out, "cbri_license_acquisitions_total", "Understand licenses acquired.", getLicenseWaits());
+        counter(out, "cbri_license_wait_seconds_total", "Time spent waiting for Understand licenses.", getLicenseWaitMillis() / 1000.0);
+    }
+
+    private static void counter(PrintWriter out, String name, String help, long value) {
+        out.println("# HELP " + name + " " + help);
+        out.println("# TYPE " + name + " counter");
+        out.println(name + " " + value);
+    }
+
+    private static void counter(PrintWriter out, String name, String help, double value) {
+        out.println("# HELP " + name + " " + help);
+        out.println("# TYPE " + name + " counter");
+        out.println(name + " " + value);
+    }
+
+    private static void gauge(PrintWriter out, String name, String help, long value) {
+        out.println("# HELP " + name + " " + help);
+        out.println("# TYPE " + name + " gauge");
+        out.println(name + " " + value);
+    }
+
+    /**
+     * Durations of one phase, counted per bucket rather than cumulatively.
+     */
+    static class Histogram {
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length);
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalMillis = new AtomicLong();
+        final AtomicLong maxMillis = new AtomicLong();
+
+        void record(long millis) {
+            double seconds = millis / 1000.0;
+            for (int b = 0; b < BUCKETS.length; b++) {
+                if (seconds <= BUCKETS[b]) {
+                    buckets.incrementAndGet(b);
+                    break;
+                }
+            }
+            count.incrementAndGet();
+            totalMillis.addAndGet(millis);
+            maxMillis.accumulateAndGet(millis, Math::max);
+        }
+    }
+
+    /**
+     * Serves the statistics to Prometheus at JENKINS_URL/cbri-metrics, for users with read access.
+     */
+    @Extension
+    public static class Endpoint implements RootAction {
+
+        @Override
+        public String getIconFileName() {
+            return null;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "CBRI Metrics";
+        }
+
+        @Override
+        public String getUrlName() {
+            return "cbri-metrics";
+        }
+
+        public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+            Jenkins.get().checkPermission(Jenkins.READ);
+            rsp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+            PrintWriter out = rsp.getWriter();
+            new CbriStatistics().writePrometheus(out);
+            out.flush();
+        }
+    }
+}
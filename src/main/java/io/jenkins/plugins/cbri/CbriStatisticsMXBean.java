@@ -0,0 +1,47 @@
+package io.jenkins.plugins.cbri;
+
+import java.util.Map;
+
+/**
+ * The plugin-wide CBRI statistics as published over JMX, under io.jenkins.plugins.cbri:type=CbriStatistics.
+ */
+public interface CbriStatisticsMXBean {
+
+    Map<String, Long> getPhaseCounts();
+
+    Map<String, Long> getPhaseTotalMillis();
+
+    Map<String, Long> getPhaseMaxMillis();
+
+    Map<String, Long> getPhaseTimeouts();
+
+    long getBytesRead();
+
+    long getBytesUploaded();
+
+    long getMaxPeakRssKb();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    long getCacheEvictions();
+
+    long getOutboxEnqueued();
+
+    long getOutboxUploaded();
+
+    long getOutboxFailedAttempts();
+
+    long getOutboxDropped();
+
+    int getOutboxQueueDepth();
+
+    int getLicensesInUse();
+
+    int getLicenseQueueLength();
+
+    long getLicenseWaits();
+
+    long getLicenseWaitMillis();
+}
@@ -0,0 +1,522 @@
+package io.jenkins.plugins.cbri;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Item;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.queue.Tasks;
+import hudson.security.ACL;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.ListBoxModel;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.jenkinsci.plugins.durabletask.BourneShellScript;
+import org.jenkinsci.plugins.durabletask.Controller;
+import org.jenkinsci.plugins.durabletask.DurableTask;
+import org.jenkinsci.plugins.durabletask.WindowsBatchScript;
+import org.jenkinsci.plugins.workflow.steps.AbstractStepExecutionImpl;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.AncestorInPath;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The CBRI analysis as a Pipeline step, e.g. {@code def metrics = cbriAnalyze lang: 'Java', module: 'core'}.
+ *
+ * Understand and the core metrics script run on the agent as a durable task, the way the sh step runs its
+ * script, so they keep running while the controller restarts. The step polls the task from a timer thread,
+ * holding neither the CPS thread nor an agent thread while it waits, and then loads the metrics on a thread of
+ * its own. The metrics are added to the build as a {@link CbriAction} and returned as a map. Parallel branches
+ * analyzing different modules on one agent each have their own output directory and action.
+ *
+ * The CBRI login is a username and password credential, looked up by its ID when the measurement is queued
+ * for upload, so the password is neither saved with the Pipeline nor shown in the step's arguments.
+ */
+public class CbriStep extends Step implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Directory in the workspace holding the Understand database and core metrics output of each module.
+     */
+    protected static final String OUTPUT_DIR = "cbri-step";
+
+    private final String lang;
+    private String module = "";
+    private String repoId = "";
+    private String baseUrl = "";
+    private String credentialsId = "";
+    private boolean includeTreeMap = false;
+    private boolean externalClosure = false;
+    private boolean javaDuplicates = false;
+
+    @DataBoundConstructor
+    public CbriStep(String lang) {
+        this.lang = lang;
+    }
+
+    public String getLang() {
+        return lang;
+    }
+
+    public String getModule() {
+        return module;
+    }
+
+    /**
+     * @param module directory of the workspace to analyze, the whole workspace if empty
+     */
+    @DataBoundSetter
+    public void setModule(String module) {
+        this.module = module != null ? module.trim() : "";
+    }
+
+    public String getRepoId() {
+        return repoId;
+    }
+
+    @DataBoundSetter
+    public void setRepoId(String repoId) {
+        this.repoId = repoId;
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    @DataBoundSetter
+    public void setBaseUrl(String baseUrl) {
+        this.baseUrl = baseUrl;
+    }
+
+    public String getCredentialsId() {
+        return credentialsId;
+    }
+
+    /**
+     * @param credentialsId the ID of the username and password credential to log in to CBRI with
+     */
+    @DataBoundSetter
+    public void setCredentialsId(String credentialsId) {
+        this.credentialsId = credentialsId;
+    }
+
+    public boolean getIncludeTreeMap() {
+        return includeTreeMap;
+    }
+
+    @DataBoundSetter
+    public void setIncludeTreeMap(boolean includeTreeMap) {
+        this.includeTreeMap = includeTreeMap;
+    }
+
+    public boolean getExternalClosure() {
+        return externalClosure;
+    }
+
+    @DataBoundSetter
+    public void setExternalClosure(boolean externalClosure) {
+        this.externalClosure = externalClosure;
+    }
+
+    public boolean getJavaDuplicates() {
+        return javaDuplicates;
+    }
+
+    @DataBoundSetter
+    public void setJavaDuplicates(boolean javaDuplicates) {
+        this.javaDuplicates = javaDuplicates;
+    }
+
+    @Override
+    public StepExecution start(StepContext context) {
+        return new Execution(this, context);
+    }
+
+    /**
+     * @return true if the measurement is to be posted to CBRI
+     */
+    boolean isUploading() {
+        return baseUrl != null && !baseUrl.isEmpty() && repoId != null && !repoId.isEmpty();
+    }
+
+    UnderstandWrapper createWrapper() {
+        CbriBuilder.DescriptorImpl desc = Jenkins.get().getDescriptorByType(CbriBuilder.DescriptorImpl.class);
+        UnderstandWrapper wrapper = new UnderstandWrapper(desc.getUndPath(), desc.getUndPerl(), desc.getPluginPath());
+        wrapper.setExternalClosure(externalClosure);
+        wrapper.setJavaDuplicates(javaDuplicates);
+        wrapper.setBudget(desc.getBudget());
+        return wrapper;
+    }
+
+    /**
+     * @return the metrics of the action, as the step returns them
+     */
+    static Map<String, Object> toMap(CbriAction action) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("module", action.module);
+        map.put("revisionId", action.revisionId);
+        map.put("architectureType", action.architectureType);
+        map.put("propagationCost", action.propagationCost);
+        map.put("core", action.core);
+        map.put("coreSize", action.coreSize);
+        map.put("percentFilesOverlyComplex", action.percentFilesOverlyComplex);
+        map.put("duplicateUloc", action.duplicateUloc);
+        map.put("uloc", action.uloc);
+        map.put("percentDuplicateUloc", action.percentDuplicateUloc);
+        map.put("usefulLinesComments", action.usefulLinesComments);
+        map.put("usefulCommentDensity", action.usefulCommentDensity);
+        map.put("numClasses", action.numClasses);
+        map.put("numFiles", action.numFiles);
+        map.put("numFilesInCore", action.numFilesInCore);
+        map.put("numFilesOverlyComplex", action.numFilesOverlyComplex);
+        if (action.classMetrics != null) {
+            Map<String, Object> classMetrics = new LinkedHashMap<>();
+            for (ClassMetricDistributions.Summary summary : action.classMetrics.getSummaries()) {
+                Map<String, Object> quantiles = new LinkedHashMap<>();
+                quantiles.put("p50", summary.getP50());
+                quantiles.put("p90", summary.getP90());
+                quantiles.put("p99", summary.getP99());
+                quantiles.put("max", summary.getMax());
+                classMetrics.put(summary.getName(), quantiles);
+            }
+            map.put("classMetrics", classMetrics);
+        }
+        return map;
+    }
+
+    /**
+     * @return the commands as one script for the agent's shell, stopping at the first that fails,
+     * under the process limits of the budget on Unix
+     */
+    static String toScript(List<ArgumentListBuilder> commands, boolean unix, AnalysisBudget budget) {
+        StringBuilder script = new StringBuilder();
+        if (unix)
+            script.append("set -e\n").append(budget.ulimitCommands());
+        for (ArgumentListBuilder command : commands) {
+            for (String arg : command.toList()) {
+                if (unix)
+                    script.append('\'').append(arg.replace("'", "'\\''")).append("' ");
+                else
+                    script.append('"').append(arg.replace("\"", "\"\"")).append("\" ");
+            }
+            script.append(unix ? "\n" : "\r\nif errorlevel 1 exit /b 1\r\n");
+        }
+        return script.toString();
+    }
+
+    /**
+     * Launches the durable task and polls it until it exits. Only the task's controller and a few flags are
+     * saved with the Pipeline, so after a restart {@link #onResume()} picks up polling where it stopped.
+     */
+    static class Execution extends AbstractStepExecutionImpl {
+
+        private static final long serialVersionUID = 1L;
+
+        protected static final long MIN_POLL_MILLIS = 250;
+        protected static final long MAX_POLL_MILLIS = 15000;
+        protected static final int FINISH_THREADS = 4;
+
+        /**
+         * Loading the metrics and queuing the upload wait on the agent and the disk, so they run here rather
+         * than on the shared {@link Timer}, a few analyses at a time.
+         */
+        private static final ExecutorService FINISHER = finisher();
+
+        private final CbriStep step;
+        private Controller controller;
+        private boolean licenseMessage;
+        private long startMillis;
+
+        /**
+         * The exit code of the task once it has exited and been cleaned up, null before.
+         */
+        private Integer exitCode;
+
+        /**
+         * The budgets of und and the core metrics script added up, as they run as one task; 0 if neither has one.
+         */
+        private long budgetMillis;
+
+        private transient volatile ScheduledFuture<?> task;
+        private transient volatile boolean stopped;
+        private transient long pollMillis = MIN_POLL_MILLIS;
+
+        /**
+         * Forwards the task's output to the build log, kept open between polls so that a line the task has
+         * only partly written is not split.
+         */
+        private transient UnderstandWrapper.OutputMonitor log;
+
+        Execution(CbriStep step, StepContext context) {
+            super(context);
+            this.step = step;
+        }
+
+        @Override
+        public boolean start() {
+            startMillis = System.currentTimeMillis();
+            schedule(0);
+            return false;
+        }
+
+        @Override
+        public void onResume() {
+            pollMillis = MIN_POLL_MILLIS;
+            schedule(pollMillis);
+        }
+
+        @Override
+        public void stop(Throwable cause) throws Exception {
+            stopped = true;
+            ScheduledFuture<?> scheduled = task;
+            if (scheduled != null)
+                scheduled.cancel(false);
+            synchronized (this) {
+                FilePath workspace = getContext().get(FilePath.class);
+                if (controller != null && exitCode == null && workspace != null)
+                    controller.stop(sourceDir(workspace), getContext().get(Launcher.class));
+                closeLog();
+            }
+            getContext().onFailure(cause);
+        }
+
+        @Override
+        public String getStatus() {
+            if (controller == null)
+                return "launching the CBRI analysis";
+            if (exitCode != null)
+                return "loading the CBRI metrics";
+            return "waiting for Understand and the core metrics script, "
+                    + (System.currentTimeMillis() - startMillis) / 1000L + " s so far";
+        }
+
+        private static ExecutorService finisher() {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(FINISH_THREADS, FINISH_THREADS, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), new NamingThreadFactory(new DaemonThreadFactory(), "CbriStep.finish"));
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+
+        private void schedule(long delayMillis) {
+            if (!stopped)
+                task = Timer.get().schedule(this::poll, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private FilePath sourceDir(FilePath workspace) {
+            return step.module.isEmpty() ? workspace : workspace.child(step.module);
+        }
+
+        private FilePath outputDir(FilePath workspace) {
+            return workspace.child(OUTPUT_DIR).child(step.module.isEmpty() ? "workspace" : CbriAction.safeName(step.module));
+        }
+
+        private synchronized void poll() {
+            if (stopped)
+                return;
+            FilePath workspace;
+            Launcher launcher;
+            TaskListener listener;
+            try {
+                workspace = getContext().get(FilePath.class);
+                launcher = getContext().get(Launcher.class);
+                listener = getContext().get(TaskListener.class);
+            } catch (IOException | InterruptedException e) {
+                getContext().onFailure(e);
+                return;
+            }
+
+            try {
+                if (controller == null) {
+                    launch(workspace, launcher, listener);
+                    schedule(pollMillis);
+                    return;
+                }
+                if (exitCode != null) {
+                    // Resumed after the task exited
+                    FINISHER.submit(() -> complete(workspace, listener));
+                    return;
+                }
+
+                FilePath sourceDir = sourceDir(workspace);
+                if (log == null)
+                    log = new UnderstandWrapper.OutputMonitor(listener.getLogger());
+                controller.writeLog(sourceDir, log);
+                licenseMessage |= log.sawLicenseMessage();
+                Integer status = controller.exitStatus(sourceDir, launcher, listener);
+                if (status == null && budgetMillis > 0 && System.currentTimeMillis() - startMillis > budgetMillis) {
+                    controller.stop(sourceDir, launcher);
+                    controller.cleanup(sourceDir);
+                    closeLog();
+                    stopped = true;
+                    CbriStatistics.recordTimeout(PhaseTimings.ANALYSIS);
+                    AnalysisBudget.Exceeded e = new AnalysisBudget.Exceeded(PhaseTimings.ANALYSIS, budgetMillis);
+                    listener.getLogger().println(e.getMessage());
+                    getContext().onFailure(e);
+                    return;
+                }
+                if (status == null) {
+                    pollMillis = Math.min(pollMillis * 2, MAX_POLL_MILLIS);
+                    schedule(pollMillis);
+                    return;
+                }
+                // Whatever the task wrote last, up to its last line
+                controller.writeLog(sourceDir, log);
+                closeLog();
+                controller.cleanup(sourceDir);
+                exitCode = status;
+                FINISHER.submit(() -> complete(workspace, listener));
+            } catch (IOException e) {
+                if (controller == null) {
+                    getContext().onFailure(e);
+                    return;
+                }
+                // The agent may still be reconnecting after a restart; the task keeps running meanwhile
+                listener.getLogger().println("Could not check the CBRI analysis, retrying: " + e.getMessage());
+                schedule(MAX_POLL_MILLIS);
+            } catch (Exception e) {
+                getContext().onFailure(e);
+            }
+        }
+
+        private void closeLog() throws IOException {
+            if (log == null)
+                return;
+            log.close();
+            licenseMessage |= log.sawLicenseMessage();
+            log = null;
+        }
+
+        private void complete(FilePath workspace, TaskListener listener) {
+            try {
+                getContext().onSuccess(finish(exitCode, workspace, listener));
+            } catch (Exception e) {
+                getContext().onFailure(e);
+            }
+        }
+
+        private void launch(FilePath workspace, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+            FilePath sourceDir = sourceDir(workspace);
+            if (!sourceDir.isDirectory())
+                throw new AbortException("Module " + step.module + " is not a directory in the workspace");
+            FilePath outputDir = outputDir(workspace);
+            FilePath undDb = outputDir.child("understand.udb");
+            undDb.deleteRecursive();
+            outputDir.child("understand").deleteRecursive();
+            outputDir.mkdirs();
+
+            UnderstandWrapper wrapper = step.createWrapper();
+            List<ArgumentListBuilder> commands = Arrays.asList(wrapper.createCommand(step.lang, sourceDir, undDb),
+                    wrapper.createMetricsCommand(undDb, outputDir.child("understand")));
+            for (ArgumentListBuilder command : commands)
+                listener.getLogger().println(command);
+            AnalysisBudget budget = wrapper.getBudget();
+            // Unset budgets are 0, so this is the sum of those that are set
+            budgetMillis = budget.getMillis(PhaseTimings.UND_ANALYZE) + budget.getMillis(PhaseTimings.CORE_METRICS);
+            String script = toScript(commands, launcher.isUnix(), budget);
+            DurableTask durable = launcher.isUnix() ? new BourneShellScript(script) : new WindowsBatchScript(script);
+            controller = durable.launch(getContext().get(EnvVars.class), sourceDir, launcher, listener);
+        }
+
+        private Map<String, Object> finish(int exitCode, FilePath workspace, TaskListener listener) throws IOException, InterruptedException {
+            if (licenseMessage)
+                throw new AbortException("Understand reported a license problem");
+            if (exitCode != 0)
+                throw new AbortException("CBRI analysis failed with exit code " + exitCode);
+
+            long start = System.nanoTime();
+            CbriAction action = step.createWrapper().loadMetrics(step.lang, sourceDir(workspace),
+                    outputDir(workspace).child("understand"), null, listener);
+            Run<?, ?> run = getContext().get(Run.class);
+            action.module = step.module.isEmpty() ? null : step.module;
+            action.revisionId = "Jenkins-Build-" + run.getNumber();
+            action.timings = new PhaseTimings();
+            action.timings.end(PhaseTimings.PARSE, start);
+
+            if (step.isUploading()) {
+                StandardUsernamePasswordCredentials credentials = CredentialsProvider.findCredentialById(step.credentialsId,
+                        StandardUsernamePasswordCredentials.class, run, URIRequirementBuilder.fromUri(step.baseUrl).build());
+                if (credentials == null)
+                    throw new AbortException("No username and password credentials with ID '" + step.credentialsId + "'");
+                String username = credentials.getUsername();
+                String password = credentials.getPassword().getPlainText();
+
+                CbriBuilder.DescriptorImpl desc = Jenkins.get().getDescriptorByType(CbriBuilder.DescriptorImpl.class);
+                CbriWrapper cbriWrapper = new CbriWrapper(step.baseUrl, username, password, step.repoId, step.includeTreeMap);
+                cbriWrapper.setIncludeClassMetrics(desc.isUploadClassMetrics());
+                Map<String, String> measurement = cbriWrapper.createMap(action);
+                FileTreeMap treeMap = step.includeTreeMap ? action.getTreeMap() : null;
+                String origin = run.getExternalizableId() + (step.module.isEmpty() ? "" : "#" + step.module);
+                MeasurementOutbox.get().enqueue(step.baseUrl, username, password, step.repoId, origin, measurement,
+                        treeMap, desc.isCompressUploads(), desc.isDeltaUploads(), listener);
+            }
+            listener.getLogger().println("CBRI analysis" + (action.module != null ? " of " + action.module : "")
+                    + " finished in " + (System.currentTimeMillis() - startMillis) / 1000L + " s");
+            run.addAction(action);
+            return toMap(action);
+        }
+    }
+
+    @Extension(optional = true)
+    public static class DescriptorImpl extends StepDescriptor {
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+                    Run.class, FilePath.class, Launcher.class, TaskListener.class, EnvVars.class)));
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "cbriAnalyze";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Calculate CBRI Core Metrics";
+        }
+
+        public ListBoxModel doFillCredentialsIdItems(@AncestorInPath Item item, @QueryParameter String baseUrl,
+                                                     @QueryParameter String credentialsId) {
+            StandardListBoxModel result = new StandardListBoxModel();
+            if (item == null ? !Jenkins.get().hasPermission(Jenkins.ADMINISTER)
+                    : !item.hasPermission(Item.EXTENDED_READ) && !item.hasPermission(CredentialsProvider.USE_ITEM))
+                return result.includeCurrentValue(credentialsId);
+            return result
+                    .includeEmptyValue()
+                    .includeAs(item instanceof Queue.Task ? Tasks.getAuthenticationOf((Queue.Task) item) : ACL.SYSTEM,
+                            item, StandardUsernamePasswordCredentials.class, URIRequirementBuilder.fromUri(baseUrl).build())
+                    .includeCurrentValue(credentialsId);
+        }
+    }
+}
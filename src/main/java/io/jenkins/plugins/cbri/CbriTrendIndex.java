@@ -0,0 +1,376 @@
+package io.jenkins.plugins.cbri;
+
+import hudson.model.Job;
+import hudson.model.Run;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The scalar metrics of every analyzed build of a job, so that trends can be charted without loading
+ * each build and its {@link CbriAction}.
+ *
+ * On disk the index is an append-only file of fixed size records in the job directory. A build that is
+ * recorded again overrides its earlier record, and a torn record at the end is cut off when the index is
+ * loaded, so that the next record starts on a record boundary. Deleting a build rewrites the file without it.
+ * In memory the index is held as one array per metric, sorted by build number.
+ */
+public class CbriTrendIndex {
+
+    private static final Logger LOGGER = Logger.getLogger(CbriTrendIndex.class.getName());
+
+    static final String FILE_NAME = "cbri-trend.bin";
+
+    private static final int MAGIC = 0x43425449; // "CBTI"
+    private static final int VERSION = 1;
+    private static final int HEADER = 4 + 1;
+
+    /**
+     * The metrics in record order. The first {@link #DOUBLE_METRICS} are stored as doubles, the rest as ints.
+     */
+    public static final String[] METRICS = {"propagationCost", "coreSize", "percentFilesOverlyComplex",
+            "percentDuplicateUloc", "usefulCommentDensity", "uloc", "duplicateUloc", "numFiles", "numClasses",
+            "numFilesInCore", "numFilesOverlyComplex"};
+    static final int DOUBLE_METRICS = 5;
+    private static final int RECORD = 4 + 8 + DOUBLE_METRICS * 8 + (METRICS.length - DOUBLE_METRICS) * 4 + 1;
+    static final String[] ARCHITECTURE_TYPES = {"Hierarchical", "Multi-Core", "Borderline Core-Periphery", "Core-Periphery"};
+
+    private static final ConcurrentMap<String, CbriTrendIndex> indexes = new ConcurrentHashMap<>();
+
+    private final File file;
+    private boolean loaded;
+    private int size;
+    private int[] builds = new int[16];
+    private long[] times = new long[16];
+    private byte[] architecture = new byte[16];
+    private double[][] columns = new double[METRICS.length][16];
+
+    CbriTrendIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the index of the job, shared by all callers
+     */
+    public static CbriTrendIndex forJob(Job<?, ?> job) {
+        File file = new File(job.getRootDir(), FILE_NAME);
+        return indexes.computeIfAbsent(file.getPath(), k -> new CbriTrendIndex(file));
+    }
+
+    public boolean exists() {
+        return file.isFile();
+    }
+
+    public synchronized int size() {
+        ensureLoaded();
+        return size;
+    }
+
+    /**
+     * Record the metrics of a build, replacing any earlier record of it.
+     */
+    public synchronized void append(int build, long time, CbriAction action) throws IOException {
+        ensureLoaded();
+        boolean fresh = !file.isFile();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)))) {
+            if (fresh)
+                writeHeader(out);
+            writeRecord(out, build, time, action);
+        }
+        put(build, time, architectureOf(action.architectureType), valuesOf(action));
+    }
+
+    /**
+     * Drop the record of a deleted build.
+     */
+    public synchronized void remove(int build) throws IOException {
+        ensureLoaded();
+        int i = lowerBound(build);
+        if (i == size || builds[i] != build)
+            return;
+        System.arraycopy(builds, i + 1, builds, i, size - i - 1);
+        System.arraycopy(times, i + 1, times, i, size - i - 1);
+        System.arraycopy(architecture, i + 1, architecture, i, size - i - 1);
+        for (double[] column : columns)
+            System.arraycopy(column, i + 1, column, i, size - i - 1);
+        size--;
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            writeHeader(out);
+            for (int r = 0; r < size; r++) {
+                double[] values = new double[METRICS.length];
+                for (int m = 0; m < METRICS.length; m++)
+                    values[m] = columns[m][r];
+                writeRecord(out, builds[r], times[r], architecture[r], values);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Recreate the index from the builds of the job, loading each of them. Records of deleted builds are dropped.
+     */
+    public synchronized void rebuild(Job<?, ?> job) throws IOException {
+        List<Run<?, ?>> runs = new ArrayList<>(job.getBuilds());
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            writeHeader(out);
+            for (int i = runs.size() - 1; i >= 0; i--) {
+                Run<?, ?> run = runs.get(i);
+                CbriAction action = CbriJobAction.workspaceAction(run);
+                if (action != null)
+                    writeRecord(out, run.getNumber(), run.getStartTimeInMillis(), action);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        loaded = false;
+        size = 0;
+        ensureLoaded();
+    }
+
+    /**
+     * Reduce the builds from first to last (inclusive) to at most maxPoints points. Each point averages the
+     * metrics of consecutive builds and is labelled with the last of them.
+     */
+    public synchronized List<Point> downsample(int first, int last, int maxPoints) {
+        ensureLoaded();
+        int from = lowerBound(first);
+        int to = lowerBound(last == Integer.MAX_VALUE ? last : last + 1);
+        int count = to - from;
+        List<Point> points = new ArrayList<>();
+        if (count <= 0 || maxPoints <= 0)
+            return points;
+
+        int buckets = Math.min(count, maxPoints);
+        for (int b = 0; b < buckets; b++) {
+            int start = from + (int) ((long) b * count / buckets);
+            int end = from + (int) ((long) (b + 1) * count / buckets);
+            double[] values = new double[METRICS.length];
+            for (int m = 0; m < METRICS.length; m++) {
+                double sum = 0;
+                for (int i = start; i < end; i++)
+                    sum += columns[m][i];
+                values[m] = sum / (end - start);
+            }
+            int a = architecture[end - 1];
+            points.add(new Point(builds[end - 1], end - start, times[end - 1],
+                    a >= 0 ? ARCHITECTURE_TYPES[a] : null, values));
+        }
+        return points;
+    }
+
+    private void ensureLoaded() {
+        if (loaded)
+            return;
+        loaded = true;
+        if (!file.isFile())
+            return;
+
+        long records = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+                LOGGER.log(Level.WARNING, "Ignoring unrecognized CBRI trend index " + file);
+                return;
+            }
+            while (true) {
+                int build;
+                long time;
+                byte arch;
+                double[] values = new double[METRICS.length];
+                try {
+                    build = in.readInt();
+                    time = in.readLong();
+                    for (int m = 0; m < METRICS.length; m++)
+                        values[m] = m < DOUBLE_METRICS ? in.readDouble() : in.readInt();
+                    arch = in.readByte();
+                } catch (EOFException e) {
+                    break; // end of file, or a record torn by a crash
+                }
+                put(build, time, arch, values);
+                records++;
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not read CBRI trend index " + file, e);
+            return;
+        }
+
+        long whole = HEADER + records * RECORD;
+        if (file.length() > whole) {
+            LOGGER.log(Level.WARNING, "Cutting a torn record off the end of CBRI trend index " + file);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(whole);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not truncate CBRI trend index " + file, e);
+            }
+        }
+    }
+
+    private void put(int build, long time, byte arch, double[] values) {
+        int i = lowerBound(build);
+        if (i == size || builds[i] != build) {
+            if (size == builds.length)
+                grow();
+            // Builds usually complete in order, so this rarely moves anything
+            System.arraycopy(builds, i, builds, i + 1, size - i);
+            System.arraycopy(times, i, times, i + 1, size - i);
+            System.arraycopy(architecture, i, architecture, i + 1, size - i);
+            for (double[] column : columns)
+                System.arraycopy(column, i, column, i + 1, size - i);
+            size++;
+        }
+        builds[i] = build;
+        times[i] = time;
+        architecture[i] = arch;
+        for (int m = 0; m < METRICS.length; m++)
+            columns[m][i] = values[m];
+    }
+
+    /**
+     * @return the position of the first build at or after the number
+     */
+    private int lowerBound(int build) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (builds[mid] < build)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private void grow() {
+        int capacity = builds.length * 2;
+        builds = Arrays.copyOf(builds, capacity);
+        times = Arrays.copyOf(times, capacity);
+        architecture = Arrays.copyOf(architecture, capacity);
+        for (int m = 0; m < METRICS.length; m++)
+            columns[m] = Arrays.copyOf(columns[m], capacity);
+    }
+
+    private static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+    }
+
+    private static void writeRecord(DataOutputStream out, int build, long time, CbriAction action) throws IOException {
+        writeRecord(out, build, time, architectureOf(action.architectureType), valuesOf(action));
+    }
+
+    private static void writeRecord(DataOutputStream out, int build, long time, byte arch, double[] values) throws IOException {
+        out.writeInt(build);
+        out.writeLong(time);
+        for (int m = 0; m < METRICS.length; m++) {
+            if (m < DOUBLE_METRICS)
+                out.writeDouble(values[m]);
+            else
+                out.writeInt((int) values[m]);
+        }
+        out.writeByte(arch);
+    }
+
+    private static double[] valuesOf(CbriAction action) {
+        return new double[]{action.propagationCost, action.coreSize, action.percentFilesOverlyComplex,
+                action.percentDuplicateUloc, action.usefulCommentDensity, action.uloc, action.duplicateUloc,
+                action.numFiles, action.numClasses, action.numFilesInCore, action.numFilesOverlyComplex};
+    }
+
+    private static byte architectureOf(String type) {
+        for (int i = 0; i < ARCHITECTURE_TYPES.length; i++) {
+            if (ARCHITECTURE_TYPES[i].equals(type))
+                return (byte) i;
+        }
+        return -1;
+    }
+
+    /**
+     * The metrics of one build, or the average of several consecutive builds.
+     */
+    public static class Point {
+        private final int build;
+        private final int builds;
+        private final long time;
+        private final String architectureType;
+        private final double[] values;
+
+        Point(int build, int builds, long time, String architectureType, double[] values) {
+            this.build = build;
+            this.builds = builds;
+            this.time = time;
+            this.architectureType = architectureType;
+            this.values = values;
+        }
+
+        /**
+         * @return the number of the last build the point covers
+         */
+        public int getBuild() {
+            return build;
+        }
+
+        /**
+         * @return how many builds the point averages
+         */
+        public int getBuilds() {
+            return builds;
+        }
+
+        public Date getTime() {
+            return new Date(time);
+        }
+
+        public String getArchitectureType() {
+            return architectureType;
+        }
+
+        public double getValue(int metric) {
+            return values[metric];
+        }
+
+        public double getPropagationCost() {
+            return values[0];
+        }
+
+        public double getCoreSize() {
+            return values[1];
+        }
+
+        public double getPercentFilesOverlyComplex() {
+            return values[2];
+        }
+
+        public double getPercentDuplicateUloc() {
+            return values[3];
+        }
+
+        public double getUloc() {
+            return values[5];
+        }
+
+        public double getNumFiles() {
+            return values[7];
+        }
+    }
+}
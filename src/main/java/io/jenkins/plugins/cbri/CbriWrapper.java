@@ -3,19 +3,27 @@ package io.jenkins.plugins.cbri;
 import hudson.model.TaskListener;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
 import java.text.SimpleDateFormat;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.zip.GZIPOutputStream;
 
 import javax.ws.rs.BadRequestException;
+import javax.ws.rs.NotAuthorizedException;
 import javax.ws.rs.NotFoundException;
-import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.Invocation.Builder;
 import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.core.type.TypeReference;
 
@@ -33,12 +41,26 @@ public class CbriWrapper {
     protected static final String USERNAME_FIELD = "username";
     protected static final String PASSWORD_FIELD = "password";
     protected static final String AUTH_FIELD = "Authorization";
+    protected static final String IDEMPOTENCY_FIELD = "Idempotency-Key";
+    protected static final String ENCODING_FIELD = "Content-Encoding";
+    protected static final String COMPONENTS_FIELD = "components_str";
+    protected static final String BASE_FIELD = "components_base";
+    protected static final String DELTA_FIELD = "components_delta";
+    protected static final String CLASS_METRICS_FIELD = "class_metrics";
+
+    protected static final String LOGIN_PHASE = "login";
+    protected static final String UPLOAD_PHASE = "upload";
 
     /**
      * We get this token after login
      */
     protected String authToken;
 
+    /**
+     * The shared client and token cache for this server and these credentials.
+     */
+    protected CbriClientRegistry.Endpoint endpoint;
+
     /**
      * Base URL for CBRI.
      */
@@ -46,14 +68,26 @@ public class CbriWrapper {
 
 
     protected ObjectMapper mapper;
+    String baseUrl;
     String username;
     String password;
     String repoId;
     boolean includeTreeMap;
+    boolean compress = false;
+    boolean includeClassMetrics = false;
+    TreeMapSnapshots snapshots;
+
+    /**
+     * Bytes of measurements this wrapper has written to the server, counted as sent: gzip compressed if
+     * uploads are compressed, and including bodies the server refused.
+     */
+    long bytesSent;
 
     public CbriWrapper(String baseUrl, String username, String password, String repoId, boolean includeTreeMap) {
-        baseTarget = ClientBuilder.newClient().target(baseUrl);
-        mapper = new ObjectMapper();
+        endpoint = CbriClientRegistry.endpoint(baseUrl, username, password);
+        baseTarget = endpoint.baseTarget;
+        mapper = CbriClientRegistry.MAPPER;
+        this.baseUrl = baseUrl;
         this.username = username;
         this.password = password;
         this.repoId = repoId;
@@ -64,19 +98,108 @@ public class CbriWrapper {
      * Post the CbriAction to the project via the CBRI REST API
      */
     public void postAction(CbriAction action, TaskListener listener) throws IOException {
+        postMeasurement(createMap(action), includeTreeMap ? action.getTreeMap() : null, null, listener);
+    }
+
+    /**
+     * Post a measurement created by {@link #createMap(CbriAction)}, with the tree map as its components.
+     * With {@link #setSnapshots(TreeMapSnapshots) snapshots}, only the changes since the last tree map posted
+     * to the repository are sent, together with the {@link TreeMapDelta#digest digest} of that tree map. If the
+     * server does not have the same tree map it refuses the delta with 412 and the full tree map is sent instead.
+     * A 409 is not a refused delta: it means the server already has the measurement, and is passed on.
+     *
+     * @param treeMap if null, the components are empty
+     * @param idempotencyKey if not null, sent so that the server can ignore a repeated upload
+     */
+    public void postMeasurement(Map<String, String> actionInfo, FileTreeMap treeMap, String idempotencyKey,
+                                TaskListener listener) throws IOException {
+        FileTreeMap base = snapshots != null && treeMap != null ? snapshots.load(baseUrl, repoId) : null;
+        if (base != null) {
+            TreeMapDelta delta = TreeMapDelta.diff(base, treeMap);
+            if (delta.isSmallerThan(treeMap)) {
+                Map<String, String> deltaInfo = new LinkedHashMap<>(actionInfo);
+                deltaInfo.put(BASE_FIELD, TreeMapDelta.digest(base));
+                deltaInfo.put(DELTA_FIELD, delta.text);
+                try {
+                    postAuthenticated(deltaInfo, null, idempotencyKey, listener);
+                    listener.getLogger().println("Posted tree map changes to CBRI: " + delta.added + " added, "
+                            + delta.removed + " removed, " + delta.changed + " changed");
+                    snapshots.save(baseUrl, repoId, treeMap);
+                    return;
+                } catch (IOException e) {
+                    int status = statusOf(e);
+                    if (status != 412)
+                        throw e;
+                    listener.getLogger().println("CBRI does not have the previous tree map, posting all of it");
+                }
+            }
+        }
+        postAuthenticated(actionInfo, treeMap, idempotencyKey, listener);
+        if (snapshots != null && treeMap != null)
+            snapshots.save(baseUrl, repoId, treeMap);
+    }
+
+    /**
+     * @return the HTTP status behind the failure, or -1 if there was no response
+     */
+    static int statusOf(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof WebApplicationException && ((WebApplicationException) t).getResponse() != null)
+                return ((WebApplicationException) t).getResponse().getStatus();
+        }
+        return -1;
+    }
 
+    private void postAuthenticated(Map<String, String> actionInfo, FileTreeMap treeMap, String idempotencyKey,
+                                   TaskListener listener) throws IOException {
+        try {
+            post(actionInfo, treeMap, idempotencyKey, listener);
+        } catch (IOException e) {
+            // A cached token may have been revoked before its expiry; log in again once
+            if (!(e.getCause() instanceof NotAuthorizedException))
+                throw e;
+            listener.getLogger().println("CBRI refused the token, logging in again");
+            endpoint.invalidate(authToken);
+            post(actionInfo, treeMap, idempotencyKey, listener);
+        }
+    }
+
+    private void post(Map<String, String> actionInfo, FileTreeMap treeMap, String idempotencyKey,
+                      TaskListener listener) throws IOException {
+
+        long start = System.nanoTime();
         boolean loggedIn = logIn(listener);
+        CbriStatistics.recordPhase(LOGIN_PHASE, (System.nanoTime() - start) / 1000000L);
         if(!loggedIn) {
             throw new IOException("Failed to log into CBRI");
         }
-        
+
         WebTarget checkTarget = baseTarget.path(MEAUSREMENT_PREFIX + repoId + MEASUREMENT_SUFFIX);
         Builder builder = checkTarget.request(MediaType.APPLICATION_JSON).header(AUTH_FIELD, "JWT " + authToken);
-        Map<String, String> actionInfo = createMap(action);
+        if (idempotencyKey != null)
+            builder = builder.header(IDEMPOTENCY_FIELD, idempotencyKey);
+        if (compress)
+            builder = builder.header(ENCODING_FIELD, "gzip");
+
+        // Written straight to the connection, so the body is never held in memory
+        CountingOutputStream sent = new CountingOutputStream(null);
+        StreamingOutput body = out -> {
+            sent.delegate = out;
+            if (compress) {
+                // Closing the gzip stream ends it and frees its deflater, but leaves the connection open
+                try (GZIPOutputStream gzip = new GZIPOutputStream(sent, 8192)) {
+                    writeMeasurement(gzip, actionInfo, treeMap);
+                }
+            } else {
+                writeMeasurement(sent, actionInfo, treeMap);
+            }
+        };
 
         try {
             listener.getLogger().println("Attempting to post to CBRI: " + checkTarget.toString() );
-            builder.post(Entity.json(mapper.writeValueAsString(actionInfo)), String.class);
+            start = System.nanoTime();
+            builder.post(Entity.entity(body, MediaType.APPLICATION_JSON), String.class);
+            CbriStatistics.recordPhase(UPLOAD_PHASE, (System.nanoTime() - start) / 1000000L);
             //listener.getLogger().println(responseStr);
         }
         catch(BadRequestException e) {
@@ -87,10 +210,102 @@ public class CbriWrapper {
         catch(Exception e) {
             throw new IOException(e);
         }
+        finally {
+            // A refused body was sent all the same
+            bytesSent += sent.count;
+        }
+    }
+
+    /**
+     * Write the measurement as JSON: the fields of the map, then components_str with one line per
+     * tree map row, streamed from the rows rather than built as one string. A delta has no components_str.
+     */
+    protected void writeMeasurement(OutputStream out, Map<String, String> actionInfo, FileTreeMap treeMap) throws IOException {
+        JsonGenerator json = mapper.getFactory().createGenerator(out, JsonEncoding.UTF8);
+        json.writeStartObject();
+        for (Map.Entry<String, String> field : actionInfo.entrySet())
+            json.writeStringField(field.getKey(), field.getValue());
+        if (!actionInfo.containsKey(COMPONENTS_FIELD) && !actionInfo.containsKey(DELTA_FIELD)) {
+            json.writeFieldName(COMPONENTS_FIELD);
+            if (treeMap != null) {
+                try (Reader rows = treeMap.toReader()) {
+                    json.writeString(rows, -1);
+                }
+            } else {
+                json.writeString("");
+            }
+        }
+        json.writeEndObject();
+        json.flush();
     }
 
     /**
-     * Copy data from the action to the map
+     * @return the size of the uncompressed measurement, counted without keeping it
+     */
+    public long measurementSize(Map<String, String> actionInfo, FileTreeMap treeMap) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream(null);
+        writeMeasurement(counter, actionInfo, treeMap);
+        return counter.count;
+    }
+
+    /**
+     * When set, measurements are sent gzip compressed, with Content-Encoding: gzip.
+     */
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * When set, measurements carry the distributions of the class metrics as class_metrics, see
+     * {@link ClassMetricDistributions#write(JsonGenerator)}.
+     */
+    public void setIncludeClassMetrics(boolean includeClassMetrics) {
+        this.includeClassMetrics = includeClassMetrics;
+    }
+
+    /**
+     * When set, tree maps are sent as changes against the last one posted, see
+     * {@link #postMeasurement(Map, FileTreeMap, String, TaskListener)}.
+     */
+    public void setSnapshots(TreeMapSnapshots snapshots) {
+        this.snapshots = snapshots;
+    }
+
+    /**
+     * Counts the bytes written, passing them on if there is a delegate.
+     */
+    static class CountingOutputStream extends OutputStream {
+        OutputStream delegate;
+        long count;
+
+        CountingOutputStream(OutputStream delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            count++;
+            if (delegate != null)
+                delegate.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            count += len;
+            if (delegate != null)
+                delegate.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (delegate != null)
+                delegate.flush();
+        }
+    }
+
+    /**
+     * Copy data from the action to the map. The tree map is written separately,
+     * see {@link #writeMeasurement(OutputStream, Map, FileTreeMap)}.
      */
     protected Map<String, String> createMap(CbriAction action) {
 
@@ -119,12 +334,8 @@ public class CbriWrapper {
         actionInfo.put("useful_comment_density", "" + action.usefulCommentDensity);
         actionInfo.put("duplicate_uloc", "" + action.duplicateUloc);
         actionInfo.put("percent_duplicate_uloc", "" + action.percentDuplicateUloc);
-
-        if (includeTreeMap) {
-            actionInfo.put("components_str", action.fileTreeMap);
-        } else {
-            actionInfo.put("components_str", "");
-        }
+        if (includeClassMetrics && action.classMetrics != null)
+            actionInfo.put(CLASS_METRICS_FIELD, action.classMetrics.toJson());
 
         return actionInfo;
     }
@@ -134,6 +345,24 @@ public class CbriWrapper {
      * If that fails, return false and give up for now.
      */
     protected boolean logIn(TaskListener listener) throws IOException {
+        authToken = endpoint.validToken();
+        if (authToken != null)
+            return true;
+
+        // One login at a time per endpoint; whoever waited picks up the new token
+        synchronized (endpoint) {
+            authToken = endpoint.validToken();
+            if (authToken != null)
+                return true;
+            authToken = endpoint.lastToken();
+            return logInChecked(listener);
+        }
+    }
+
+    /**
+     * Ask the server about a token without a known expiry, and log in if it is not valid.
+     */
+    private boolean logInChecked(TaskListener listener) throws IOException {
         boolean loggedIn = checkLoggedIn(listener);
 
         if(!loggedIn) {
@@ -162,6 +391,7 @@ public class CbriWrapper {
                 if(token != null) {
                     listener.getLogger().println("Logged into CBRI");
                     authToken = token;
+                    endpoint.store(token);
                     loggedIn = true;
                 }
             }
@@ -0,0 +1,187 @@
+package io.jenkins.plugins.cbri;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * How the class metrics of classMetrics.csv are distributed: a {@link QuantileSketch} and a count per
+ * fixed bucket for each metric, filled one class at a time so the rows are never kept. Both merge by
+ * adding, across shards or builds.
+ */
+public class ClassMetricDistributions implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The metrics in the column order of classMetrics.csv.
+     */
+    public static final String[] METRICS = {"CBO", "WMC", "WMC-McCabe", "RFC"};
+    static final int CBO = 0;
+    static final int WMC = 1;
+    static final int WMC_MCCABE = 2;
+    static final int RFC = 3;
+
+    /**
+     * Upper bounds of the histogram buckets, the last bucket counts everything above.
+     */
+    static final int[] BUCKETS = {0, 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000};
+
+    /**
+     * The quantiles shown and uploaded.
+     */
+    static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    final QuantileSketch[] sketches = new QuantileSketch[METRICS.length];
+    final long[][] histograms = new long[METRICS.length][BUCKETS.length + 1];
+
+    public ClassMetricDistributions() {
+        for (int m = 0; m < METRICS.length; m++)
+            sketches[m] = new QuantileSketch();
+    }
+
+    void add(int metric, int value) {
+        sketches[metric].update(value);
+        int b = 0;
+        while (b < BUCKETS.length && value > BUCKETS[b])
+            b++;
+        histograms[metric][b]++;
+    }
+
+    public void merge(ClassMetricDistributions other) {
+        for (int m = 0; m < METRICS.length; m++) {
+            sketches[m].merge(other.sketches[m]);
+            for (int b = 0; b < histograms[m].length; b++)
+                histograms[m][b] += other.histograms[m][b];
+        }
+    }
+
+    /**
+     * @return the number of classes
+     */
+    public long getCount() {
+        return sketches[CBO].getCount();
+    }
+
+    /**
+     * Encode the sketches, done once reading is over.
+     */
+    ClassMetricDistributions compact() {
+        for (QuantileSketch sketch : sketches)
+            sketch.compact();
+        return this;
+    }
+
+    /**
+     * @return one summary per metric, for the build page
+     */
+    public List<Summary> getSummaries() {
+        List<Summary> summaries = new ArrayList<>();
+        for (int m = 0; m < METRICS.length; m++)
+            summaries.add(new Summary(m));
+        return Collections.unmodifiableList(summaries);
+    }
+
+    /**
+     * Write each metric's count, minimum, maximum, quantiles and histogram, and the sketch itself so the
+     * server can merge them, e.g.
+     * {"buckets":[0,1,...],"CBO":{"count":1200,"min":0,"max":88,"p50":6,"p90":21,"p99":47,
+     * "histogram":[40,...],"k":200,"sketch":"..."},...}
+     */
+    public void write(JsonGenerator json) throws IOException {
+        json.writeStartObject();
+        json.writeArrayFieldStart("buckets");
+        for (int bound : BUCKETS)
+            json.writeNumber(bound);
+        json.writeEndArray();
+        for (int m = 0; m < METRICS.length; m++) {
+            QuantileSketch sketch = sketches[m];
+            json.writeObjectFieldStart(METRICS[m]);
+            json.writeNumberField("count", sketch.getCount());
+            json.writeNumberField("min", sketch.getCount() > 0 ? sketch.getMin() : 0);
+            json.writeNumberField("max", sketch.getCount() > 0 ? sketch.getMax() : 0);
+            for (double q : QUANTILES)
+                json.writeNumberField("p" + Math.round(q * 100), sketch.quantile(q));
+            json.writeArrayFieldStart("histogram");
+            for (long bucket : histograms[m])
+                json.writeNumber(bucket);
+            json.writeEndArray();
+            json.writeNumberField("k", sketch.k);
+            sketch.compact();
+            json.writeBinaryField("sketch", sketch.getEncoded());
+            json.writeEndObject();
+        }
+        json.writeEndObject();
+    }
+
+    /**
+     * @return {@link #write(JsonGenerator)} as a string, for a field of the measurement
+     */
+    public String toJson() {
+        StringWriter out = new StringWriter();
+        try (JsonGenerator json = CbriClientRegistry.MAPPER.getFactory().createGenerator(out)) {
+            write(json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // not thrown by a string writer
+        }
+        return out.toString();
+    }
+
+    /**
+     * The quantiles and histogram of one metric.
+     */
+    public class Summary {
+
+        private final int metric;
+
+        Summary(int metric) {
+            this.metric = metric;
+        }
+
+        public String getName() {
+            return METRICS[metric];
+        }
+
+        public long getCount() {
+            return sketches[metric].getCount();
+        }
+
+        public int getP50() {
+            return sketches[metric].quantile(0.5);
+        }
+
+        public int getP90() {
+            return sketches[metric].quantile(0.9);
+        }
+
+        public int getP99() {
+            return sketches[metric].quantile(0.99);
+        }
+
+        public int getMax() {
+            return getCount() > 0 ? sketches[metric].getMax() : 0;
+        }
+
+        /**
+         * @return the buckets as "0: 12", "up to 5: 120", ending with "over 1000: 3", leaving out empty ones
+         */
+        public List<String> getHistogram() {
+            List<String> buckets = new ArrayList<>();
+            long[] counts = histograms[metric];
+            for (int b = 0; b < counts.length; b++) {
+                if (counts[b] == 0)
+                    continue;
+                String label = b == BUCKETS.length ? "over " + BUCKETS[b - 1]
+                        : b == 0 ? "" + BUCKETS[0] : "up to " + BUCKETS[b];
+                buckets.add(label + ": " + counts[b]);
+            }
+            return buckets;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package io.jenkins.plugins.cbri;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The dependency graph of the last analyzed build with the visibility fan-in and fan-out of each file,
+ * so that {@link PropagationCostEngine#update(ClosureSnapshot, DependencyGraph)} can recompute only the
+ * files whose dependencies changed. Kept in the incremental state directory beside the workspace, in the
+ * same encoding as {@link FileTreeMap}.
+ */
+public class ClosureSnapshot {
+
+    /**
+     * Name of the snapshot file in the incremental state directory.
+     */
+    public static final String FILE_NAME = "cbri-closure.bin";
+
+    private static final int MAGIC = 0x4342434C; // "CBCL"
+    private static final int VERSION = 2;
+
+    final DependencyGraph graph;
+    final int[] vfi;
+    final int[] vfo;
+
+    ClosureSnapshot(DependencyGraph graph, int[] vfi, int[] vfo) {
+        this.graph = graph;
+        this.vfi = vfi;
+        this.vfo = vfo;
+    }
+
+    ClosureSnapshot(DependencyGraph graph, PropagationCostEngine.Result result) {
+        this(graph, result.vfi, result.vfo);
+    }
+
+    /**
+     * Write a magic number and version, then a deflated body of the file names, the out-degree and targets
+     * of each file, the files with a library dependency and the fan-in and fan-out columns, followed by the
+     * CRC32 of the body.
+     */
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeByte(VERSION);
+        header.flush();
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, 8192);
+            BufferedOutputStream buffered = new BufferedOutputStream(deflated, 8192);
+            CheckedOutputStream checked = new CheckedOutputStream(buffered, new CRC32());
+            DataOutputStream body = new DataOutputStream(checked);
+
+            int n = graph.size();
+            FileTreeMap.writeStrings(body, graph.files);
+            FileTreeMap.writeVarint(body, graph.edgeCount());
+            for (int v = 0; v < n; v++)
+                FileTreeMap.writeVarint(body, graph.offsets[v + 1] - graph.offsets[v]);
+            FileTreeMap.writeColumn(body, graph.targets);
+            FileTreeMap.writeVarint(body, graph.external.length);
+            FileTreeMap.writeColumn(body, graph.external);
+            FileTreeMap.writeColumn(body, vfi);
+            FileTreeMap.writeColumn(body, vfo);
+            body.flush();
+
+            DataOutputStream trailer = new DataOutputStream(buffered);
+            trailer.writeInt((int) checked.getChecksum().getValue());
+            trailer.flush();
+            deflated.finish();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Read a snapshot written by {@link #write(OutputStream)}.
+     *
+     * @throws IOException if the data is not a closure snapshot or fails its checksum
+     */
+    public static ClosureSnapshot read(InputStream in) throws IOException {
+        DataInputStream header = new DataInputStream(in);
+        if (header.readInt() != MAGIC)
+            throw new IOException("Not a CBRI closure snapshot");
+        int version = header.readUnsignedByte();
+        if (version != VERSION)
+            throw new IOException("Unsupported CBRI closure snapshot version " + version);
+
+        Inflater inflater = new Inflater();
+        try {
+            BufferedInputStream buffered = new BufferedInputStream(new InflaterInputStream(in, inflater, 8192), 8192);
+            CheckedInputStream checked = new CheckedInputStream(buffered, new CRC32());
+            DataInputStream body = new DataInputStream(checked);
+
+            String[] files = FileTreeMap.readStrings(body);
+            int n = files.length;
+            int edges = FileTreeMap.readCount(body);
+            int[] offsets = new int[n + 1];
+            for (int v = 0; v < n; v++) {
+                offsets[v + 1] = offsets[v] + FileTreeMap.readCount(body);
+                if (offsets[v + 1] > edges)
+                    throw new IOException("Corrupt CBRI data, more dependencies than the " + edges + " expected");
+            }
+            if (offsets[n] != edges)
+                throw new IOException("Corrupt CBRI data, " + offsets[n] + " dependencies, expected " + edges);
+            int[] targets = FileTreeMap.readIds(body, edges, n);
+            int[] external = FileTreeMap.readIds(body, FileTreeMap.readCount(body), n);
+            int[] vfi = FileTreeMap.readColumn(body, n);
+            int[] vfo = FileTreeMap.readColumn(body, n);
+
+            int expected = (int) checked.getChecksum().getValue();
+            if (new DataInputStream(buffered).readInt() != expected)
+                throw new IOException("CBRI closure snapshot failed its checksum");
+            return new ClosureSnapshot(new DependencyGraph(files, offsets, targets, external), vfi, vfo);
+        } catch (EOFException e) {
+            throw new IOException("Truncated CBRI closure snapshot", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package io.jenkins.plugins.cbri;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * File level dependencies, as exported by the core metrics script with -externalClosure.
+ * Stored in compressed sparse row form: the targets of file i are
+ * targets[offsets[i]] to targets[offsets[i + 1] - 1], sorted and without duplicates.
+ * The External section lists the files that depend on a library file, which is not one of the files.
+ *
+ * e.g.
+ * Files,3
+ * src/a.c
+ * src/b.c
+ * src/c.c
+ * Dependencies,2
+ * 0,1
+ * 1,2
+ * External,1
+ * 2
+ */
+public class DependencyGraph {
+
+    protected static final String DEPENDENCIES_FILE = "fileDependencies.csv";
+
+    final String[] files;
+    final int[] offsets;
+    final int[] targets;
+    final int[] external; // files with a library dependency, sorted
+
+    DependencyGraph(String[] files, int[] offsets, int[] targets, int[] external) {
+        this.files = files;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.external = external;
+    }
+
+    public int size() {
+        return files.length;
+    }
+
+    public int edgeCount() {
+        return targets.length;
+    }
+
+    /**
+     * Build a graph from parallel source and target arrays.
+     */
+    public static DependencyGraph fromEdges(String[] files, int[] sources, int[] destinations, int edgeCount) {
+        return fromEdges(files, sources, destinations, edgeCount, new int[0]);
+    }
+
+    /**
+     * Build a graph from parallel source and target arrays and the files that depend on a library file.
+     */
+    public static DependencyGraph fromEdges(String[] files, int[] sources, int[] destinations, int edgeCount,
+                                            int[] external) {
+        int n = files.length;
+        long[] packed = new long[edgeCount];
+        for (int e = 0; e < edgeCount; e++) {
+            if (sources[e] < 0 || sources[e] >= n || destinations[e] < 0 || destinations[e] >= n)
+                throw new IllegalArgumentException("Dependency " + sources[e] + "," + destinations[e] + " is out of range");
+            packed[e] = ((long) sources[e] << 32) | destinations[e];
+        }
+        Arrays.sort(packed);
+
+        int[] offsets = new int[n + 1];
+        int[] targets = new int[edgeCount];
+        int count = 0;
+        for (int e = 0; e < edgeCount; e++) {
+            if (e > 0 && packed[e] == packed[e - 1])
+                continue;
+            int source = (int) (packed[e] >>> 32);
+            targets[count++] = (int) packed[e];
+            offsets[source + 1]++;
+        }
+        for (int i = 0; i < n; i++)
+            offsets[i + 1] += offsets[i];
+
+        int[] sorted = external.clone();
+        Arrays.sort(sorted);
+        int libraries = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (sorted[i] < 0 || sorted[i] >= n)
+                throw new IllegalArgumentException("External dependency of " + sorted[i] + " is out of range");
+            if (i == 0 || sorted[i] != sorted[i - 1])
+                sorted[libraries++] = sorted[i];
+        }
+
+        return new DependencyGraph(files, offsets, Arrays.copyOf(targets, count), Arrays.copyOf(sorted, libraries));
+    }
+
+    /**
+     * Read the graph the script exported to {@link #DEPENDENCIES_FILE}, closing the stream.
+     */
+    public static DependencyGraph read(InputStream in) throws IOException {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            int n = readCount(br.readLine(), "Files");
+            String[] files = new String[n];
+            for (int i = 0; i < n; i++) {
+                files[i] = br.readLine();
+                if (files[i] == null)
+                    throw new IOException("Incorrectly formatted " + DEPENDENCIES_FILE + ", expected " + n + " files");
+            }
+
+            int m = readCount(br.readLine(), "Dependencies");
+            int[] sources = new int[m];
+            int[] destinations = new int[m];
+            for (int e = 0; e < m; e++) {
+                String line = br.readLine();
+                int comma = line == null ? -1 : line.indexOf(',');
+                if (comma < 0)
+                    throw new IOException("Incorrectly formatted " + DEPENDENCIES_FILE + ", line: " + line);
+                sources[e] = parseIndex(line, 0, comma);
+                destinations[e] = parseIndex(line, comma + 1, line.length());
+            }
+
+            // Absent from graphs exported before library dependencies were told apart
+            int[] external = new int[0];
+            String line = br.readLine();
+            if (line != null) {
+                external = new int[readCount(line, "External")];
+                for (int i = 0; i < external.length; i++) {
+                    line = br.readLine();
+                    if (line == null)
+                        throw new IOException("Incorrectly formatted " + DEPENDENCIES_FILE + ", expected "
+                                + external.length + " external dependencies");
+                    external[i] = parseIndex(line, 0, line.length());
+                }
+            }
+            return fromEdges(files, sources, destinations, m, external);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Incorrectly formatted " + DEPENDENCIES_FILE, e);
+        }
+    }
+
+    private static int readCount(String line, String section) throws IOException {
+        if (line == null || !line.startsWith(section + ","))
+            throw new IOException("Incorrectly formatted " + DEPENDENCIES_FILE + ", expected section " + section);
+        return parseIndex(line, section.length() + 1, line.length());
+    }
+
+    private static int parseIndex(String line, int start, int end) {
+        if (start >= end)
+            throw new NumberFormatException("Empty index in: " + line);
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9')
+                throw new NumberFormatException("Invalid index in: " + line);
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
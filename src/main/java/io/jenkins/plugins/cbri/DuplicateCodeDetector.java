@@ -0,0 +1,627 @@
+package io.jenkins.plugins.cbri;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Counts duplicated useful lines of code the way the core metrics script's makeDuplicateCodeHash,
+ * removeDuplicates and fillMatchValues do, for output written with -skipDuplicates.
+ *
+ * Files are split into lexemes by a C-family lexer standing in for Understand's: runs of identifier
+ * characters, string and character literals, and single character operators, with comments and
+ * whitespace dropped. Files are read as ISO-8859-1, so lengths are in bytes, as the script sees them.
+ * Then, as in the script:
+ * - a line is the text of the lexemes that begin on it, trimmed at both ends;
+ * - each line that is not empty, punctuation only or an include/import starts a window of DuplicateMinLines
+ *   lines, kept if its text is at least DuplicateMinChars long; windows with the same text form a match;
+ * - longest matches first, a location is dropped if it starts on a line an earlier match covers;
+ * - each match is extended lexeme by lexeme while all its locations continue with the same text, and then
+ *   counts the useful lines (not empty or punctuation only without whitespace) of its first location;
+ * - matches with at least DuplicateMinLines useful lines have their locations dropped again, and each
+ *   remaining location adds the match's useful lines to its file.
+ *
+ * The script visits matches in the order of its hash, which Perl randomizes; they are visited here in the
+ * order of their first location. Window texts are compared by a 64-bit hash instead of being kept, and
+ * lexemes are only kept for the files with a match. Files are lexed in parallel with fork/join.
+ */
+public class DuplicateCodeDetector {
+
+    /**
+     * Changes whenever the counts may change, so that cached results of an earlier version are not reused.
+     */
+    public static final int VERSION = 2;
+
+    private static final long BASE = 0x100000001B3L;
+    private static final int FILES_PER_TASK = 16;
+
+    private final int minLines;
+    private final int minChars;
+
+    public DuplicateCodeDetector(int minLines, int minChars) {
+        this.minLines = minLines;
+        this.minChars = minChars;
+    }
+
+    /**
+     * @param files the files Understand analyzed, in the order of its file list
+     * @return the duplicated useful lines of each file, in the order given
+     */
+    public int[] detect(List<Path> files) throws IOException {
+        int count = files.size();
+        Windows[] windows = new Windows[count];
+        forEachFile(count, i -> windows[i] = windows(lex(files.get(i))));
+
+        // How often each window text occurs across all files
+        int total = 0;
+        for (Windows file : windows)
+            total += file.count;
+        LongIntHashMap counts = new LongIntHashMap(total);
+        for (Windows file : windows) {
+            for (int w = 0; w < file.count; w++)
+                counts.add(file.hash[w], 1);
+        }
+
+        // Repeated windows, in the order of their first location, each with its locations in file and line order
+        Map<Long, Match> byText = new LinkedHashMap<>();
+        for (int f = 0; f < count; f++) {
+            Windows file = windows[f];
+            for (int w = 0; w < file.count; w++) {
+                if (counts.get(file.hash[w]) > 1)
+                    byText.computeIfAbsent(file.hash[w], h -> new Match(minLines)).addLocation(f, file.line[w]);
+            }
+            windows[f] = null;
+        }
+        List<Match> matches = removeDuplicates(new ArrayList<>(byText.values()), count);
+
+        // Lex the files with a match again, keeping their lexemes this time
+        boolean[] matched = new boolean[count];
+        for (Match match : matches) {
+            for (int i = 0; i < match.size; i++)
+                matched[match.files[i]] = true;
+        }
+        Lexemes[] lexemes = new Lexemes[count];
+        forEachFile(count, i -> {
+            if (matched[i])
+                lexemes[i] = lex(files.get(i));
+        });
+
+        List<Match> filled = new ArrayList<>();
+        for (Match match : matches) {
+            if (fill(match, lexemes) && match.numLines >= minLines)
+                filled.add(match);
+        }
+        matches = removeDuplicates(filled, count);
+
+        int[] duplicates = new int[count];
+        for (Match match : matches) {
+            for (int i = 0; i < match.locCount; i++)
+                duplicates[match.files[i]] += match.numLines;
+        }
+        return duplicates;
+    }
+
+    public static int total(int[] duplicates) {
+        int total = 0;
+        for (int d : duplicates)
+            total += d;
+        return total;
+    }
+
+    /**
+     * Longest matches first, drop each location that starts on a line an earlier match covers, and keep the
+     * matches left with more than one location.
+     */
+    private static List<Match> removeDuplicates(List<Match> matches, int fileCount) {
+        List<Match> sorted = new ArrayList<>(matches);
+        sorted.sort((a, b) -> Integer.compare(b.numLines, a.numLines));
+
+        BitSet[] covered = new BitSet[fileCount];
+        List<Match> kept = new ArrayList<>();
+        for (Match match : sorted) {
+            int i = 0;
+            while (i < match.locCount) {
+                if (match.removeCovered(covered, i))
+                    continue;
+                int file = match.files[i];
+                if (covered[file] == null)
+                    covered[file] = new BitSet();
+                covered[file].set(match.lines[i], match.lines[i] + match.numLines);
+                i++;
+            }
+            if (match.locCount > 1)
+                kept.add(match);
+        }
+        return kept;
+    }
+
+    /**
+     * Step through the code lexemes of all locations while they have the same text, then count the useful
+     * lines the first location spans.
+     *
+     * @return false if a location has no code to start from
+     */
+    private static boolean fill(Match match, Lexemes[] lexemes) {
+        int n = match.locCount;
+        if (n < 2)
+            return false;
+
+        // Locations may be dropped from the match as they run out of lexemes; keep stepping the original ones
+        Lexemes[] files = new Lexemes[n];
+        int[] current = new int[n];
+        int[] end = new int[n];
+        for (int i = 0; i < n; i++) {
+            files[i] = lexemes[match.files[i]];
+            current[i] = files[i].firstFrom(match.lines[i]);
+            if (current[i] < 0)
+                return false;
+        }
+
+        boolean same = true;
+        while (same) {
+            for (int i = 0; i < n; i++) {
+                end[i] = current[i];
+                if (++current[i] == files[i].count) {
+                    current[i] = -1;
+                    match.removeLocation(i);
+                }
+            }
+            same = current[0] >= 0;
+            for (int i = 1; same && i < n; i++)
+                same = current[i] >= 0 && files[i].hash[current[i]] == files[0].hash[current[0]];
+        }
+
+        Lexemes first = files[0];
+        int useful = first.usefulLines(first.coveringBegin(match.lines[0]), first.end[end[0]]);
+        if (useful > 0)
+            match.numLines = useful;
+        return true;
+    }
+
+    /**
+     * @return the windows of the file whose text is long enough
+     */
+    private Windows windows(Lexemes file) {
+        Windows windows = new Windows(Math.max(0, file.lastLine - minLines));
+        // The script's bound, which leaves the last lines without a window of their own
+        for (int i = 0; i < file.lastLine - minLines; i++) {
+            if (!file.startsWindow(i))
+                continue;
+            long hash = 0;
+            long chars = 0;
+            for (int j = i; j < i + minLines; j++) {
+                hash = hash * file.linePower(j) + file.lineHash(j);
+                chars += file.lineLength(j);
+            }
+            if (chars >= minChars)
+                windows.add(mix(hash), i);
+        }
+        return windows;
+    }
+
+    /**
+     * Split a file into code lexemes and the lines they make up.
+     */
+    Lexemes lex(Path path) throws IOException {
+        byte[] content = Files.readAllBytes(path);
+        int length = content.length;
+        char[] text = new char[length];
+        for (int i = 0; i < length; i++)
+            text[i] = (char) (content[i] & 0xFF);
+
+        Lexemes file = new Lexemes(length / 4 + 16);
+        int line = 1;
+        int i = 0;
+        while (i < length) {
+            char c = text[i];
+            char next = i + 1 < length ? text[i + 1] : 0;
+            int start = i;
+            int startLine = line;
+
+            if (c == '\n') {
+                line++;
+                i++;
+                continue;
+            } else if (isSpace(c)) {
+                while (i < length && isSpace(text[i]))
+                    i++;
+                continue;
+            } else if (c == '/' && next == '/') {
+                while (i < length && text[i] != '\n')
+                    i++;
+                continue;
+            } else if (c == '/' && next == '*') {
+                i += 2;
+                while (i < length && !(text[i] == '*' && i + 1 < length && text[i + 1] == '/')) {
+                    if (text[i] == '\n')
+                        line++;
+                    i++;
+                }
+                i = Math.min(length, i + 2);
+                file.cover(startLine, line);
+                continue;
+            } else if (c == '@' && next == '"') {
+                // C# verbatim string, "" is a quote and it may span lines
+                i += 2;
+                while (i < length) {
+                    if (text[i] == '"' && i + 1 < length && text[i + 1] == '"') {
+                        i += 2;
+                    } else if (text[i] == '"') {
+                        i++;
+                        break;
+                    } else {
+                        if (text[i] == '\n')
+                            line++;
+                        i++;
+                    }
+                }
+            } else if (c == '"' || c == '\'') {
+                // An unterminated literal ends with its line
+                i++;
+                while (i < length && text[i] != '\n') {
+                    if (text[i] == '\\' && i + 1 < length && text[i + 1] != '\n') {
+                        i += 2;
+                    } else if (text[i++] == c) {
+                        break;
+                    }
+                }
+            } else if (isWord(c)) {
+                while (i < length && isWord(text[i]))
+                    i++;
+            } else {
+                i++;
+            }
+            file.add(text, start, i, startLine, line);
+            file.cover(startLine, line);
+        }
+        file.finish();
+        return file;
+    }
+
+    private void forEachFile(int count, FileTask task) throws IOException {
+        try {
+            ForkJoinPool.commonPool().invoke(new ForEachFile(task, 0, count));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Perl's \s, less the newline.
+     */
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\f' || c == 0x0B;
+    }
+
+    private static boolean isWord(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '_' || c == '$' || c >= 0x80;
+    }
+
+    /**
+     * The script skips lines that Perl considers false: empty, or "0".
+     */
+    private static boolean isFalse(CharSequence line, int from, int to) {
+        return to == from || (to == from + 1 && line.charAt(from) == '0');
+    }
+
+    private static boolean isPunctuationOnly(CharSequence line, int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = line.charAt(i);
+            if (c != '{' && c != '}' && c != ';' && c != '(' && c != ')')
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * /^\s*#include|^\s*import/i
+     */
+    private static boolean isIncludeOrImport(CharSequence line, int from, int to) {
+        String start = line.subSequence(from, Math.min(to, from + 8)).toString().toLowerCase();
+        return start.startsWith("#include") || start.startsWith("import");
+    }
+
+    /**
+     * The code lexemes of one file, and a hash of the trimmed text of each line.
+     */
+    static class Lexemes {
+        private static final byte START = 1;
+        private static final byte USEFUL = 2;
+
+        int count;
+        long[] hash;
+        int[] begin;
+        int[] end;
+
+        /** The last line a code lexeme begins on, -1 if there is none */
+        int lastLine = -1;
+        private long[] lineHash = new long[64];
+        private long[] linePower = new long[64];
+        private int[] lineLength = new int[64];
+        private byte[] lineFlags = new byte[64];
+        /** The line a lexeme covering the start of the line begins on, 0 if none begins on an earlier line */
+        private int[] covering = new int[64];
+        private int[] usefulBefore;
+
+        private final StringBuilder line = new StringBuilder(128);
+
+        Lexemes(int capacity) {
+            hash = new long[capacity];
+            begin = new int[capacity];
+            end = new int[capacity];
+        }
+
+        void add(char[] text, int from, int to, int beginLine, int endLine) {
+            if (count == hash.length) {
+                int capacity = count * 2;
+                hash = Arrays.copyOf(hash, capacity);
+                begin = Arrays.copyOf(begin, capacity);
+                end = Arrays.copyOf(end, capacity);
+            }
+            long h = 0xcbf29ce484222325L;
+            for (int i = from; i < to; i++) {
+                h ^= text[i];
+                h *= 0x100000001b3L;
+            }
+            hash[count] = h;
+            begin[count] = beginLine;
+            end[count] = endLine;
+            count++;
+
+            if (beginLine != lastLine) {
+                endLine();
+                lastLine = beginLine;
+            }
+            line.append(text, from, to - from);
+        }
+
+        void cover(int beginLine, int endLine) {
+            if (endLine == beginLine)
+                return;
+            ensureLine(endLine);
+            for (int l = beginLine + 1; l <= endLine; l++)
+                covering[l] = beginLine;
+        }
+
+        void finish() {
+            endLine();
+            usefulBefore = new int[lastLine + 2];
+            for (int l = 0; l <= lastLine; l++)
+                usefulBefore[l + 1] = usefulBefore[l] + ((lineFlags[l] & USEFUL) != 0 ? 1 : 0);
+        }
+
+        private void endLine() {
+            if (lastLine < 0)
+                return;
+            ensureLine(lastLine);
+            int from = 0;
+            int to = line.length();
+            while (from < to && (isSpace(line.charAt(from)) || line.charAt(from) == '\n'))
+                from++;
+            while (to > from && (isSpace(line.charAt(to - 1)) || line.charAt(to - 1) == '\n'))
+                to--;
+
+            long h = 0;
+            long power = 1;
+            for (int i = from; i < to; i++) {
+                h = h * BASE + line.charAt(i);
+                power *= BASE;
+            }
+            lineHash[lastLine] = h;
+            linePower[lastLine] = power;
+            lineLength[lastLine] = to - from;
+            byte flags = 0;
+            if (!isFalse(line, from, to) && !isPunctuationOnly(line, from, to) && !isIncludeOrImport(line, from, to))
+                flags |= START;
+
+            // fillMatchValues removes all whitespace before it looks at a line
+            int kept = 0;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (!isSpace(c) && c != '\n')
+                    line.setCharAt(kept++, c);
+            }
+            if (!isFalse(line, 0, kept) && !isPunctuationOnly(line, 0, kept))
+                flags |= USEFUL;
+            lineFlags[lastLine] = flags;
+            line.setLength(0);
+        }
+
+        private void ensureLine(int l) {
+            if (l < lineHash.length)
+                return;
+            int capacity = Math.max(l + 1, lineHash.length * 2);
+            lineHash = Arrays.copyOf(lineHash, capacity);
+            linePower = Arrays.copyOf(linePower, capacity);
+            lineLength = Arrays.copyOf(lineLength, capacity);
+            lineFlags = Arrays.copyOf(lineFlags, capacity);
+            covering = Arrays.copyOf(covering, capacity);
+        }
+
+        boolean startsWindow(int l) {
+            return l <= lastLine && (lineFlags[l] & START) != 0;
+        }
+
+        long lineHash(int l) {
+            return l <= lastLine ? lineHash[l] : 0;
+        }
+
+        /** BASE to the power of the line's length, 1 for a line without code */
+        long linePower(int l) {
+            return l <= lastLine && linePower[l] != 0 ? linePower[l] : 1;
+        }
+
+        int lineLength(int l) {
+            return l <= lastLine ? lineLength[l] : 0;
+        }
+
+        /**
+         * @return the line the lexeme at the start of the line begins on, as Understand's lexeme(line, 0)
+         */
+        int coveringBegin(int l) {
+            return l < covering.length && covering[l] != 0 ? covering[l] : l;
+        }
+
+        /**
+         * @return the first code lexeme at or after the start of the line, -1 if there is none
+         */
+        int firstFrom(int l) {
+            int low = 0;
+            int high = count;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (end[middle] < l)
+                    low = middle + 1;
+                else
+                    high = middle;
+            }
+            return low < count ? low : -1;
+        }
+
+        /**
+         * @return the useful lines among those code lexemes begin on, from the first line to the last
+         */
+        int usefulLines(int from, int to) {
+            to = Math.min(to, lastLine);
+            return to < from ? 0 : usefulBefore[to + 1] - usefulBefore[from];
+        }
+    }
+
+    /**
+     * The windows of one file with enough text to be compared.
+     */
+    static class Windows {
+        int count;
+        long[] hash;
+        int[] line;
+
+        Windows(int capacity) {
+            hash = new long[capacity];
+            line = new int[capacity];
+        }
+
+        void add(long h, int l) {
+            hash[count] = h;
+            line[count] = l;
+            count++;
+        }
+    }
+
+    /**
+     * The locations of one window text, with the script's bookkeeping: a location dropped for running out of
+     * lexemes is spliced out by its original index, so locCount may fall below the number of locations held.
+     */
+    static class Match {
+        int[] files = new int[2];
+        int[] lines = new int[2];
+        int size;
+        int locCount;
+        int numLines;
+
+        Match(int numLines) {
+            this.numLines = numLines;
+        }
+
+        void addLocation(int file, int line) {
+            if (size == files.length) {
+                files = Arrays.copyOf(files, size * 2);
+                lines = Arrays.copyOf(lines, size * 2);
+            }
+            files[size] = file;
+            lines[size] = line;
+            size++;
+            locCount++;
+        }
+
+        /**
+         * The script's removeLocation, which never removes the first location.
+         */
+        void removeLocation(int i) {
+            if (i == 0)
+                return;
+            splice(i);
+            locCount--;
+        }
+
+        /**
+         * The script's removeDuplicateLocations: for the first location check all of them, for any other only
+         * that one.
+         *
+         * @return true if a location was removed
+         */
+        boolean removeCovered(BitSet[] covered, int i) {
+            boolean removed = false;
+            for (int j = i == 0 ? locCount - 1 : i; j >= i; j--) {
+                BitSet lines = covered[files[j]];
+                if (lines != null && lines.get(this.lines[j])) {
+                    splice(j);
+                    locCount--;
+                    removed = true;
+                }
+            }
+            return removed;
+        }
+
+        private void splice(int i) {
+            if (i >= size)
+                return;
+            System.arraycopy(files, i + 1, files, i, size - i - 1);
+            System.arraycopy(lines, i + 1, lines, i, size - i - 1);
+            size--;
+        }
+    }
+
+    private interface FileTask {
+        void run(int file) throws IOException;
+    }
+
+    private static class ForEachFile extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final FileTask task;
+        private final int from;
+        private final int to;
+
+        ForEachFile(FileTask task, int from, int to) {
+            this.task = task;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > FILES_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ForEachFile(task, from, middle), new ForEachFile(task, middle, to));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                try {
+                    task.run(i);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package io.jenkins.plugins.cbri;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The files whose metrics got worse since an earlier build: those that became overly complex, joined the
+ * core and gained duplicate code. Computed once when the build is recorded, by merging the two builds'
+ * {@link FileMetricsTable}s, and kept with the action so the build page shows it without loading either table.
+ */
+public class FileMetricsDiff implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Most files listed per change; the rest are only counted.
+     */
+    protected static final int MAX_LISTED = 50;
+
+    int previousBuild;
+    int added;
+    int removed;
+    Change overlyComplex = new Change("Became overly complex");
+    Change joinedCore = new Change("Joined the core");
+    Change gainedDuplicates = new Change("Gained duplicate code");
+
+    /**
+     * Compare the tables of two builds. Files new in the later build count as changed when they are
+     * overly complex, in the core or have duplicate code.
+     */
+    static FileMetricsDiff compare(FileMetricsTable before, FileMetricsTable after, int previousBuild) {
+        FileMetricsDiff diff = new FileMetricsDiff();
+        diff.previousBuild = previousBuild;
+        int i = 0;
+        int j = 0;
+        while (i < before.size() || j < after.size()) {
+            int order = i == before.size() ? 1 : j == after.size() ? -1
+                    : before.getPath(i).compareTo(after.getPath(j));
+            if (order < 0) {
+                diff.removed++;
+                i++;
+                continue;
+            }
+            int old = order == 0 ? i++ : -1;
+            int row = j++;
+            if (old < 0)
+                diff.added++;
+
+            String path = after.getPath(row);
+            if (after.isOverlyComplex(row) && (old < 0 || !before.isOverlyComplex(old)))
+                diff.overlyComplex.add(path);
+            if (after.isCore(row) && (old < 0 || !before.isCore(old)))
+                diff.joinedCore.add(path);
+            int duplicates = after.getValue(row, FileMetricsTable.DUPLICATE_ULOC);
+            if (duplicates > (old < 0 ? 0 : before.getValue(old, FileMetricsTable.DUPLICATE_ULOC)))
+                diff.gainedDuplicates.add(path);
+        }
+        return diff;
+    }
+
+    public int getPreviousBuild() {
+        return previousBuild;
+    }
+
+    public int getAdded() {
+        return added;
+    }
+
+    public int getRemoved() {
+        return removed;
+    }
+
+    public List<Change> getChanges() {
+        List<Change> changes = new ArrayList<>();
+        Collections.addAll(changes, overlyComplex, joinedCore, gainedDuplicates);
+        return changes;
+    }
+
+    /**
+     * One kind of change and the files it happened to.
+     */
+    public static class Change implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final String title;
+        int count;
+        ArrayList<String> files = new ArrayList<>();
+
+        Change(String title) {
+            this.title = title;
+        }
+
+        void add(String path) {
+            if (files.size() < MAX_LISTED)
+                files.add(path);
+            count++;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public List<String> getFiles() {
+            return Collections.unmodifiableList(files);
+        }
+    }
+}
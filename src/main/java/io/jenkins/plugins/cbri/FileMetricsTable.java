@@ -0,0 +1,292 @@
+package io.jenkins.plugins.cbri;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The per-file metrics of fileMetrics.csv, with the number of classes per file from classMetrics.csv,
+ * kept as one int array per metric. Paths and groups are indexes into one table of distinct strings.
+ *
+ * Rows are sorted by path, so two builds are compared by merging their tables, see {@link FileMetricsDiff}.
+ * Builds keep the table in a side file next to the tree map, in the same encoding.
+ */
+public class FileMetricsTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Name of the side file, in the build directory and next to the core metrics output.
+     */
+    public static final String FILE_NAME = "cbri-filemetrics.bin";
+
+    private static final int MAGIC = 0x4342464D; // "CBFM"
+    private static final int VERSION = 1;
+
+    /**
+     * The metrics in column order.
+     */
+    public static final String[] METRICS = {"LOC", "ULOC", "Duplicate ULOC", "Max CBO", "Max WMC",
+            "Max WMC-McCabe", "Max RFC", "Classes", "Threshold Violations"};
+    static final int LOC = 0;
+    static final int ULOC = 1;
+    static final int DUPLICATE_ULOC = 2;
+    static final int MAX_CBO = 3;
+    static final int MAX_WMC = 4;
+    static final int MAX_WMC_MCCABE = 5;
+    static final int MAX_RFC = 6;
+    static final int CLASSES = 7;
+    static final int VIOLATIONS = 8;
+
+    /**
+     * Files with more threshold violations than this are overly complex, as in the core metrics script.
+     */
+    static final int OVERLY_COMPLEX_VIOLATIONS = 3;
+
+    String[] strings;
+    int size;
+    int[] path;
+    int[] medianGroup;
+    int[] cpGroup;
+    int[][] values;
+
+    FileMetricsTable(String[] strings, int size, int[] path, int[] medianGroup, int[] cpGroup, int[][] values) {
+        this.strings = strings;
+        this.size = size;
+        this.path = path;
+        this.medianGroup = medianGroup;
+        this.cpGroup = cpGroup;
+        this.values = values;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getPath(int row) {
+        return strings[path[row]];
+    }
+
+    public String getMedianGroup(int row) {
+        return strings[medianGroup[row]];
+    }
+
+    public String getCpGroup(int row) {
+        return strings[cpGroup[row]];
+    }
+
+    /**
+     * @return the group the tree map shows: core-periphery if the file has one, median otherwise
+     */
+    public String getComponent(int row) {
+        String cp = getCpGroup(row);
+        return cp.isEmpty() ? getMedianGroup(row) : cp;
+    }
+
+    public int getValue(int row, int metric) {
+        return values[metric][row];
+    }
+
+    public boolean isOverlyComplex(int row) {
+        return values[VIOLATIONS][row] > OVERLY_COMPLEX_VIOLATIONS;
+    }
+
+    public boolean isCore(int row) {
+        return PropagationCostEngine.CORE.equals(getComponent(row));
+    }
+
+    /**
+     * @return the row of the path, or -1 if the table has no such file
+     */
+    public int indexOf(String file) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = getPath(mid).compareTo(file);
+            if (c < 0)
+                low = mid + 1;
+            else if (c > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    /**
+     * Write the table in the format of {@link FileTreeMap#write(OutputStream)}: a magic number and version,
+     * then a deflated body of the string table and the columns, followed by the CRC32 of the body.
+     */
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeByte(VERSION);
+        header.flush();
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, 8192);
+            BufferedOutputStream buffered = new BufferedOutputStream(deflated, 8192);
+            CheckedOutputStream checked = new CheckedOutputStream(buffered, new CRC32());
+            DataOutputStream body = new DataOutputStream(checked);
+
+            FileTreeMap.writeStrings(body, strings);
+            FileTreeMap.writeVarint(body, size);
+            FileTreeMap.writeVarint(body, values.length);
+            FileTreeMap.writeColumn(body, path);
+            FileTreeMap.writeColumn(body, medianGroup);
+            FileTreeMap.writeColumn(body, cpGroup);
+            for (int[] column : values)
+                FileTreeMap.writeColumn(body, column);
+            body.flush();
+
+            DataOutputStream trailer = new DataOutputStream(buffered);
+            trailer.writeInt((int) checked.getChecksum().getValue());
+            trailer.flush();
+            deflated.finish();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Read a table written by {@link #write(OutputStream)}.
+     *
+     * @throws IOException if the data is not a file metrics table or fails its checksum
+     */
+    public static FileMetricsTable read(InputStream in) throws IOException {
+        DataInputStream header = new DataInputStream(in);
+        if (header.readInt() != MAGIC)
+            throw new IOException("Not a CBRI file metrics table");
+        int version = header.readUnsignedByte();
+        if (version != VERSION)
+            throw new IOException("Unsupported CBRI file metrics version " + version);
+
+        Inflater inflater = new Inflater();
+        try {
+            BufferedInputStream buffered = new BufferedInputStream(new InflaterInputStream(in, inflater, 8192), 8192);
+            CheckedInputStream checked = new CheckedInputStream(buffered, new CRC32());
+            DataInputStream body = new DataInputStream(checked);
+
+            String[] strings = FileTreeMap.readStrings(body);
+            int size = FileTreeMap.readCount(body);
+            int metrics = FileTreeMap.readCount(body);
+            if (metrics != METRICS.length)
+                throw new IOException("CBRI file metrics table has " + metrics + " metrics, expected " + METRICS.length);
+            int[] path = FileTreeMap.readIds(body, size, strings.length);
+            int[] medianGroup = FileTreeMap.readIds(body, size, strings.length);
+            int[] cpGroup = FileTreeMap.readIds(body, size, strings.length);
+            int[][] values = new int[metrics][];
+            for (int m = 0; m < metrics; m++)
+                values[m] = FileTreeMap.readColumn(body, size);
+
+            int expected = (int) checked.getChecksum().getValue();
+            if (new DataInputStream(buffered).readInt() != expected)
+                throw new IOException("CBRI file metrics table failed its checksum");
+            // Reading to the end checks the deflate trailer too, so a cut off file is not taken as whole
+            if (buffered.read() != -1)
+                throw new IOException("CBRI file metrics table has trailing data");
+            return new FileMetricsTable(strings, size, path, medianGroup, cpGroup, values);
+        } catch (EOFException e) {
+            throw new IOException("Truncated CBRI file metrics table", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Collects rows in any order; {@link #build()} sorts them by path.
+     */
+    static class Builder {
+
+        private final Map<String, Integer> index = new HashMap<>();
+        private String[] strings = new String[64];
+        private int stringCount;
+        private int size;
+        private int[] path = new int[256];
+        private int[] medianGroup = new int[256];
+        private int[] cpGroup = new int[256];
+        private int[][] values = new int[METRICS.length][256];
+
+        int intern(CharSequence value) {
+            String key = value.toString();
+            Integer i = index.get(key);
+            if (i != null)
+                return i;
+            if (stringCount == strings.length)
+                strings = Arrays.copyOf(strings, stringCount * 2);
+            strings[stringCount] = key;
+            index.put(key, stringCount);
+            return stringCount++;
+        }
+
+        /**
+         * @return the row added, whose values start at 0
+         */
+        int add(int pathId, int medianGroupId, int cpGroupId) {
+            if (size == path.length) {
+                int capacity = size * 2;
+                path = Arrays.copyOf(path, capacity);
+                medianGroup = Arrays.copyOf(medianGroup, capacity);
+                cpGroup = Arrays.copyOf(cpGroup, capacity);
+                for (int m = 0; m < values.length; m++)
+                    values[m] = Arrays.copyOf(values[m], capacity);
+            }
+            path[size] = pathId;
+            medianGroup[size] = medianGroupId;
+            cpGroup[size] = cpGroupId;
+            return size++;
+        }
+
+        void set(int row, int metric, int value) {
+            values[metric][row] = value;
+        }
+
+        void increment(int row, int metric) {
+            values[metric][row]++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        FileMetricsTable build() {
+            String[] table = Arrays.copyOf(strings, stringCount);
+            Integer[] order = new Integer[size];
+            for (int row = 0; row < size; row++)
+                order[row] = row;
+            Arrays.sort(order, (a, b) -> table[path[a]].compareTo(table[path[b]]));
+
+            int[] sortedPath = new int[size];
+            int[] sortedMedian = new int[size];
+            int[] sortedCp = new int[size];
+            int[][] sortedValues = new int[values.length][size];
+            for (int i = 0; i < size; i++) {
+                int row = order[i];
+                sortedPath[i] = path[row];
+                sortedMedian[i] = medianGroup[row];
+                sortedCp[i] = cpGroup[row];
+                for (int m = 0; m < values.length; m++)
+                    sortedValues[m][i] = values[m][row];
+            }
+            return new FileMetricsTable(table, size, sortedPath, sortedMedian, sortedCp, sortedValues);
+        }
+    }
+}
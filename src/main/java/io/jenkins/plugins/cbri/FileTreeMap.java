@@ -0,0 +1,453 @@
+package io.jenkins.plugins.cbri;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The rows of the tree map generated by the core metrics script, kept as parallel arrays.
+ * Names, parents and full names are indexes into one table of strings. Parents are interned, so the
+ * component names shared by every file are stored once; names and full names, nearly one per row, are not.
+ *
+ * Each row is the node name, its parent (a component such as "Core", or "Project"),
+ * the useful lines of code, the threshold violations and the full name (relative path for files).
+ *
+ * Builds keep the rows in a side file rather than in build.xml, see {@link #write(OutputStream)}.
+ */
+public class FileTreeMap implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Name of the side file, in the build directory and next to the core metrics output.
+     */
+    public static final String FILE_NAME = "cbri-treemap.bin";
+
+    private static final int MAGIC = 0x4342544D; // "CBTM"
+    private static final int VERSION = 1;
+
+    /**
+     * The most values allocated for a count read from the input before any of them are read.
+     */
+    private static final int CHUNK = 4096;
+
+    String[] strings;
+    int size;
+    int[] name;
+    int[] parent;
+    int[] uloc;
+    int[] violations;
+    int[] fullName;
+
+    FileTreeMap(String[] strings, int size, int[] name, int[] parent, int[] uloc, int[] violations, int[] fullName) {
+        this.strings = strings;
+        this.size = size;
+        this.name = name;
+        this.parent = parent;
+        this.uloc = uloc;
+        this.violations = violations;
+        this.fullName = fullName;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getName(int row) {
+        return strings[name[row]];
+    }
+
+    public String getParent(int row) {
+        return strings[parent[row]];
+    }
+
+    public int getUloc(int row) {
+        return uloc[row];
+    }
+
+    public int getViolations(int row) {
+        return violations[row];
+    }
+
+    public String getFullName(int row) {
+        return strings[fullName[row]];
+    }
+
+    /**
+     * @return true for the rows of source files, rather than the project and component nodes
+     */
+    public boolean isFile(int row) {
+        String p = getParent(row);
+        return !p.equals("Project") && !p.equals("null");
+    }
+
+    /**
+     * Write a row as "name,parent,uloc,violations,fullName".
+     */
+    public void appendRow(int row, StringBuilder out) {
+        out.append(strings[name[row]]).append(',')
+                .append(strings[parent[row]]).append(',')
+                .append(uloc[row]).append(',')
+                .append(violations[row]).append(',')
+                .append(strings[fullName[row]]);
+    }
+
+    /**
+     * @return one line per row, the format CBRI expects in components_str
+     */
+    public String toText() {
+        StringBuilder out = new StringBuilder(size * 64);
+        for (int row = 0; row < size; row++) {
+            appendRow(row, out);
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return the text of {@link #toText()}, produced a row at a time as it is read
+     */
+    public Reader toReader() {
+        return new Reader() {
+            private final StringBuilder line = new StringBuilder(128);
+            private int row;
+            private int pos;
+
+            @Override
+            public int read(char[] buffer, int off, int len) {
+                int n = 0;
+                while (n < len) {
+                    if (pos == line.length()) {
+                        if (row == size)
+                            break;
+                        line.setLength(0);
+                        appendRow(row++, line);
+                        line.append('\n');
+                        pos = 0;
+                    }
+                    int count = Math.min(len - n, line.length() - pos);
+                    line.getChars(pos, pos + count, buffer, off + n);
+                    pos += count;
+                    n += count;
+                }
+                return n == 0 && len > 0 ? -1 : n;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Write the rows in the side file format: a magic number and version, then a deflated body
+     * followed by the CRC32 of the body.
+     *
+     * The body starts with a table of path segments. Every string is stored as the ids of its
+     * '/' separated segments, so the directories shared by many files are written once.
+     * All counts, ids and values are varints.
+     */
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeByte(VERSION);
+        header.flush();
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, 8192);
+            BufferedOutputStream buffered = new BufferedOutputStream(deflated, 8192);
+            CheckedOutputStream checked = new CheckedOutputStream(buffered, new CRC32());
+            DataOutputStream body = new DataOutputStream(checked);
+
+            writeStrings(body, strings);
+
+            // Rows, one column at a time
+            writeVarint(body, size);
+            writeColumn(body, name);
+            writeColumn(body, parent);
+            writeColumn(body, uloc);
+            writeColumn(body, violations);
+            writeColumn(body, fullName);
+            body.flush();
+
+            DataOutputStream trailer = new DataOutputStream(buffered);
+            trailer.writeInt((int) checked.getChecksum().getValue());
+            trailer.flush();
+            deflated.finish();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Write a table of path segments, then every string as the ids of its segments.
+     */
+    static void writeStrings(DataOutputStream body, String[] strings) throws IOException {
+        Map<String, Integer> segmentIds = new HashMap<>();
+        List<String> segments = new ArrayList<>();
+        int[][] encoded = new int[strings.length][];
+        for (int i = 0; i < strings.length; i++) {
+            String[] parts = strings[i].split("/", -1);
+            encoded[i] = new int[parts.length];
+            for (int j = 0; j < parts.length; j++) {
+                Integer id = segmentIds.get(parts[j]);
+                if (id == null) {
+                    id = segments.size();
+                    segmentIds.put(parts[j], id);
+                    segments.add(parts[j]);
+                }
+                encoded[i][j] = id;
+            }
+        }
+        writeVarint(body, segments.size());
+        for (String segment : segments) {
+            byte[] bytes = segment.getBytes(StandardCharsets.UTF_8);
+            writeVarint(body, bytes.length);
+            body.write(bytes);
+        }
+        writeVarint(body, encoded.length);
+        for (int[] ids : encoded) {
+            writeVarint(body, ids.length);
+            for (int id : ids)
+                writeVarint(body, id);
+        }
+    }
+
+    /**
+     * Read rows written by {@link #write(OutputStream)}.
+     *
+     * @throws IOException if the data is not a tree map or fails its checksum
+     */
+    public static FileTreeMap read(InputStream in) throws IOException {
+        DataInputStream header = new DataInputStream(in);
+        if (header.readInt() != MAGIC)
+            throw new IOException("Not a CBRI tree map");
+        int version = header.readUnsignedByte();
+        if (version != VERSION)
+            throw new IOException("Unsupported CBRI tree map version " + version);
+
+        Inflater inflater = new Inflater();
+        try {
+            BufferedInputStream buffered = new BufferedInputStream(new InflaterInputStream(in, inflater, 8192), 8192);
+            CheckedInputStream checked = new CheckedInputStream(buffered, new CRC32());
+            DataInputStream body = new DataInputStream(checked);
+
+            String[] strings = readStrings(body);
+
+            int size = readCount(body);
+            int[] name = readIds(body, size, strings.length);
+            int[] parent = readIds(body, size, strings.length);
+            int[] uloc = readColumn(body, size);
+            int[] violations = readColumn(body, size);
+            int[] fullName = readIds(body, size, strings.length);
+
+            int expected = (int) checked.getChecksum().getValue();
+            if (new DataInputStream(buffered).readInt() != expected)
+                throw new IOException("CBRI tree map failed its checksum");
+            // Reading to the end checks the deflate trailer too, so a cut off file is not taken as whole
+            if (buffered.read() != -1)
+                throw new IOException("CBRI tree map has trailing data");
+            return new FileTreeMap(strings, size, name, parent, uloc, violations, fullName);
+        } catch (EOFException e) {
+            throw new IOException("Truncated CBRI tree map", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Read strings written by {@link #writeStrings(DataOutputStream, String[])}.
+     */
+    static String[] readStrings(DataInputStream body) throws IOException {
+        int count = readCount(body);
+        String[] segments = new String[Math.min(count, CHUNK)];
+        for (int i = 0; i < count; i++) {
+            if (i == segments.length)
+                segments = Arrays.copyOf(segments, grow(i, count));
+            segments[i] = new String(readBytes(body, readCount(body)), StandardCharsets.UTF_8);
+        }
+        count = readCount(body);
+        String[] strings = new String[Math.min(count, CHUNK)];
+        StringBuilder value = new StringBuilder(128);
+        for (int i = 0; i < count; i++) {
+            if (i == strings.length)
+                strings = Arrays.copyOf(strings, grow(i, count));
+            int parts = readCount(body);
+            value.setLength(0);
+            for (int j = 0; j < parts; j++) {
+                if (j > 0)
+                    value.append('/');
+                value.append(segments[readId(body, segments.length)]);
+            }
+            strings[i] = value.toString();
+        }
+        return strings;
+    }
+
+    /**
+     * Read length bytes, allocating no more than have been read so far, doubled. Like the arrays of
+     * {@link #readColumn(DataInputStream, int)}, a corrupt length runs out of input before it runs out of memory.
+     */
+    static byte[] readBytes(DataInputStream in, int length) throws IOException {
+        byte[] bytes = new byte[Math.min(length, CHUNK)];
+        in.readFully(bytes);
+        while (bytes.length < length) {
+            int read = bytes.length;
+            bytes = Arrays.copyOf(bytes, grow(read, length));
+            in.readFully(bytes, read, bytes.length - read);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the next length of an array being filled with count values read from the input
+     */
+    private static int grow(int length, int count) {
+        return (int) Math.min(count, 2L * length);
+    }
+
+    static void writeColumn(DataOutputStream out, int[] column) throws IOException {
+        for (int value : column)
+            writeVarint(out, (value << 1) ^ (value >> 31)); // zigzag, so a stray negative stays short
+    }
+
+    /**
+     * Read size values. The column starts at a chunk and doubles as values arrive, since every value
+     * takes at least a byte of input: a corrupt size ends in an EOFException, not an OutOfMemoryError.
+     */
+    static int[] readColumn(DataInputStream in, int size) throws IOException {
+        int[] column = new int[Math.min(size, CHUNK)];
+        for (int i = 0; i < size; i++) {
+            if (i == column.length)
+                column = Arrays.copyOf(column, grow(i, size));
+            int v = readVarint(in);
+            column[i] = (v >>> 1) ^ -(v & 1);
+        }
+        return column;
+    }
+
+    static int[] readIds(DataInputStream in, int size, int bound) throws IOException {
+        int[] column = readColumn(in, size);
+        for (int id : column) {
+            if (id < 0 || id >= bound)
+                throw new IOException("Corrupt CBRI data, id " + id + " out of range");
+        }
+        return column;
+    }
+
+    static int readId(DataInputStream in, int bound) throws IOException {
+        int id = readVarint(in);
+        if (id < 0 || id >= bound)
+            throw new IOException("Corrupt CBRI data, id " + id + " out of range");
+        return id;
+    }
+
+    static int readCount(DataInputStream in) throws IOException {
+        int count = readVarint(in);
+        if (count < 0)
+            throw new IOException("Corrupt CBRI data, negative count");
+        return count;
+    }
+
+    static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Corrupt CBRI data, varint too long");
+    }
+
+    /**
+     * Collects rows, interning their strings.
+     */
+    static class Builder {
+
+        private final Map<String, Integer> index = new HashMap<>();
+        private String[] strings = new String[64];
+        private int stringCount;
+        private int size;
+        private int[] name = new int[256];
+        private int[] parent = new int[256];
+        private int[] uloc = new int[256];
+        private int[] violations = new int[256];
+        private int[] fullName = new int[256];
+
+        int intern(CharSequence value) {
+            String key = value.toString();
+            Integer i = index.get(key);
+            if (i != null)
+                return i;
+            if (stringCount == strings.length)
+                strings = Arrays.copyOf(strings, stringCount * 2);
+            strings[stringCount] = key;
+            index.put(key, stringCount);
+            return stringCount++;
+        }
+
+        /**
+         * Add a string without looking it up, for those that are rarely repeated such as file names.
+         */
+        int append(CharSequence value) {
+            if (stringCount == strings.length)
+                strings = Arrays.copyOf(strings, stringCount * 2);
+            strings[stringCount] = value.toString();
+            return stringCount++;
+        }
+
+        Builder add(int nameId, int parentId, int ulocValue, int violationsValue, int fullNameId) {
+            if (size == name.length) {
+                int capacity = size * 2;
+                name = Arrays.copyOf(name, capacity);
+                parent = Arrays.copyOf(parent, capacity);
+                uloc = Arrays.copyOf(uloc, capacity);
+                violations = Arrays.copyOf(violations, capacity);
+                fullName = Arrays.copyOf(fullName, capacity);
+            }
+            name[size] = nameId;
+            parent[size] = parentId;
+            uloc[size] = ulocValue;
+            violations[size] = violationsValue;
+            fullName[size] = fullNameId;
+            size++;
+            return this;
+        }
+
+        FileTreeMap build() {
+            return new FileTreeMap(Arrays.copyOf(strings, stringCount), size, Arrays.copyOf(name, size),
+                    Arrays.copyOf(parent, size), Arrays.copyOf(uloc, size), Arrays.copyOf(violations, size),
+                    Arrays.copyOf(fullName, size));
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package io.jenkins.plugins.cbri;
+
+import hudson.util.ProcessTree;
+import jenkins.security.MasterToSlaveCallable;
+
+import java.util.Collections;
+
+/**
+ * Kill the processes started with an environment cookie on the node that runs them, including children
+ * that outlived their parent, through the process tree of Jenkins.
+ */
+class KillProcesses extends MasterToSlaveCallable<Void, InterruptedException> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String variable;
+    private final String cookie;
+
+    KillProcesses(String variable, String cookie) {
+        this.variable = variable;
+        this.cookie = cookie;
+    }
+
+    @Override
+    public Void call() throws InterruptedException {
+        ProcessTree.get().killAll(Collections.singletonMap(variable, cookie));
+        return null;
+    }
+}
@@ -0,0 +1,166 @@
+package io.jenkins.plugins.cbri;
+
+import hudson.model.TaskListener;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits how many Understand analyses run at once across the controller, so that builds wait for one of
+ * the floating licenses instead of failing when the pool is exhausted.
+ *
+ * Waiting analyses are served by descending priority, then in the order they asked. A slot is released
+ * when the analysis closes it, including on abort; an interrupted waiter leaves the queue at once.
+ * A limit of zero or less means no limit.
+ */
+public class LicenseScheduler {
+
+    private static final LicenseScheduler INSTANCE = new LicenseScheduler();
+
+    private static final AtomicLong totalWaitMillis = new AtomicLong();
+    private static final AtomicLong waits = new AtomicLong();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final PriorityQueue<Waiter> queue = new PriorityQueue<>();
+    private long sequence;
+    private int limit;
+    private int inUse;
+
+    /**
+     * @return the scheduler shared by all CBRI build steps
+     */
+    public static LicenseScheduler get() {
+        return INSTANCE;
+    }
+
+    public static long getWaits() {
+        return waits.get();
+    }
+
+    public static long getTotalWaitMillis() {
+        return totalWaitMillis.get();
+    }
+
+    public void setLimit(int limit) {
+        lock.lock();
+        try {
+            this.limit = limit;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInUse() {
+        lock.lock();
+        try {
+            return inUse;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueueLength() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until a license slot is free and this caller is first in line.
+     *
+     * @param owner names the waiter in the build log, such as the job and build
+     * @param priority higher priorities are served first
+     * @return the slot, to be closed when the analysis is done
+     */
+    public Slot acquire(String owner, int priority, TaskListener listener) throws InterruptedException {
+        long start = System.nanoTime();
+        lock.lock();
+        try {
+            Waiter waiter = new Waiter(priority, sequence++);
+            queue.add(waiter);
+            boolean logged = false;
+            try {
+                while (queue.peek() != waiter || (limit > 0 && inUse >= limit)) {
+                    if (!logged) {
+                        listener.getLogger().println("Waiting for an Understand license for " + owner + " ("
+                                + inUse + " of " + limit + " in use, " + (queue.size() - 1) + " waiting)");
+                        logged = true;
+                    }
+                    changed.await();
+                }
+            } finally {
+                queue.remove(waiter);
+                changed.signalAll(); // the next in line may be able to go as well
+            }
+            inUse++;
+        } finally {
+            lock.unlock();
+        }
+
+        long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        waits.incrementAndGet();
+        totalWaitMillis.addAndGet(waited);
+        listener.getLogger().println("Acquired an Understand license for " + owner + " after waiting " + waited + " ms");
+        return new Slot();
+    }
+
+    private void release() {
+        lock.lock();
+        try {
+            inUse--;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A held license slot. Closing it more than once has no further effect.
+     */
+    public class Slot implements AutoCloseable {
+
+        private boolean closed;
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                release();
+            }
+        }
+    }
+
+    private static class Waiter implements Comparable<Waiter> {
+        final int priority;
+        final long sequence;
+
+        Waiter(int priority, long sequence) {
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Waiter o) {
+            if (priority != o.priority)
+                return Integer.compare(o.priority, priority);
+            return Long.compare(sequence, o.sequence);
+        }
+    }
+}
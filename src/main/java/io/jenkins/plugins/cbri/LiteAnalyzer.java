@@ -0,0 +1,617 @@
+package io.jenkins.plugins.cbri;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Approximates the size and clarity metrics of the core metrics script without Understand, for builds
+ * that need feedback in seconds, such as pull requests.
+ *
+ * The workspace is walked in parallel, one fork/join task per directory, and each source file is lexed
+ * once: large files are memory mapped, small ones read into a heap buffer. The lexer tracks code,
+ * comments and literals of the C family languages (C, C++, C#, Java), and applies the script's rules:
+ * a code line with nothing but braces, semicolons and parentheses is not useful, and a comment line is
+ * useful unless it is short, looks like commented-out code or belongs to a copyright or license comment.
+ * Classes are counted from their declarations. Everything that needs Understand's dependency analysis
+ * (propagation cost, core, complexity, duplicates) is left out.
+ */
+public class LiteAnalyzer {
+
+    /**
+     * Files at least this large are memory mapped rather than read.
+     */
+    protected static final long MAP_THRESHOLD = 64 * 1024;
+
+    private static final int CODE = 0;
+    private static final int LINE_COMMENT = 1;
+    private static final int BLOCK_COMMENT = 2;
+    private static final int LITERAL = 3;
+    private static final int VERBATIM_STRING = 4;
+    private static final int TEXT_BLOCK = 5;
+
+    // The keywords the core metrics script looks for in commented-out code
+    private static final Set<String> C_KEYWORDS = new HashSet<>(Arrays.asList("and_eq", "asm", "auto", "bitand",
+            "bitor", "bool", "case", "catch", "char", "class", "compl", "const", "continue", "default", "delete",
+            "double", "dynamic_cast", "enum", "exit", "explicit", "extern", "false", "float", "fprintf", "friend",
+            "goto", "inline", "int", "long", "mutable", "namespace", "new", "not_eq", "operator", "or_eq", "private",
+            "protected", "public", "register", "short", "signed", "sizeof", "static", "static_cast", "struct",
+            "switch", "template", "throw", "true", "try", "typedef", "typeid", "typename", "union", "unsigned",
+            "using", "virtual", "void", "volatile", "wchar_t", "xor", "xor_eq"));
+    private static final Set<String> JAVA_KEYWORDS = new HashSet<>(Arrays.asList("abstract", "assert", "boolean",
+            "break", "byte", "case", "catch", "char", "class", "const", "continue", "default", "do", "double", "else",
+            "enum", "extends", "final", "finally", "float", "goto", "implements", "import", "instanceof", "int",
+            "interface", "long", "native", "new", "package", "private", "protected", "public", "return", "short",
+            "static", "strictfp", "super", "switch", "synchronized", "this", "throw", "throws", "transient", "try",
+            "void", "volatile"));
+    private static final String[] C_PREPROCESSOR = {"#include", "#define", "#endif", "#ifndef", "#ifdef", "#undef"};
+
+    private static final Set<String> C_TYPES = new HashSet<>(Arrays.asList("class", "struct", "union"));
+    private static final Set<String> CSHARP_TYPES = new HashSet<>(Arrays.asList("class", "struct", "interface", "enum", "record"));
+    private static final Set<String> JAVA_TYPES = new HashSet<>(Arrays.asList("class", "interface", "enum"));
+
+    private final boolean java;
+    private final boolean csharp;
+    private final Set<String> extensions;
+    private final Set<String> keywords;
+    private final Set<String> types;
+
+    public LiteAnalyzer(String language) {
+        String lang = language.trim().toUpperCase();
+        java = lang.equals("JAVA");
+        csharp = lang.equals("C#");
+        extensions = SourceManifest.extensionsFor(language);
+        keywords = java ? JAVA_KEYWORDS : C_KEYWORDS;
+        types = java ? JAVA_TYPES : csharp ? CSHARP_TYPES : C_TYPES;
+    }
+
+    /**
+     * Analyze the source files below the root. Hidden directories (e.g. .git) are skipped, as in
+     * {@link SourceManifest#listSources(File, String)}.
+     */
+    public Counts analyze(File root) throws IOException {
+        try {
+            return ForkJoinPool.commonPool().invoke(new Walk(root.toPath()));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @return an action holding the counts, flagged as approximate. Metrics that could not be counted are -1.
+     */
+    static CbriAction toAction(Counts counts) {
+        CbriAction action = new CbriAction();
+        action.approximate = true;
+        action.architectureType = null;
+        action.propagationCost = -1;
+        action.coreSize = -1;
+        action.centralSize = -1;
+        action.percentFilesOverlyComplex = -1;
+        action.duplicateUloc = -1;
+        action.percentDuplicateUloc = -1;
+        action.numFilesInCore = -1;
+        action.numFilesOverlyComplex = -1;
+
+        action.uloc = (int) counts.uloc;
+        action.usefulLinesComments = (int) counts.usefulComments;
+        action.usefulCommentDensity = counts.uloc > 0
+                ? PropagationCostEngine.round(counts.usefulComments * 100.0 / counts.uloc, 1) : 0;
+        action.numFiles = counts.files;
+        action.numClasses = counts.classes;
+        action.bytesRead = counts.bytes;
+        return action;
+    }
+
+    Counts analyzeFile(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer content;
+            if (size >= MAP_THRESHOLD) {
+                content = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                content = ByteBuffer.allocate((int) size);
+                while (content.hasRemaining() && channel.read(content) >= 0) {
+                    // read until full or end of file
+                }
+                content.flip();
+            }
+            Counts counts = new Lexer().lex(content);
+            counts.files = 1;
+            counts.bytes = size;
+            return counts;
+        }
+    }
+
+    private boolean isSource(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > -1 && extensions.contains(name.substring(dot + 1).toLowerCase());
+    }
+
+    /**
+     * @return true if the comment line looks like code, by the core metrics script's (non-strict) rules
+     */
+    boolean isCommentedOutCode(String line) {
+        boolean preprocessor = false;
+        if (!java) {
+            for (String directive : C_PREPROCESSOR)
+                preprocessor |= line.contains(directive);
+        }
+        char last = line.charAt(line.length() - 1);
+        boolean strongEnd = last == ';' || last == '{';
+        boolean weakEnd = last == ')';
+
+        boolean strongCode = false;
+        boolean weakCode = false;
+        int i = 0;
+        while (i < line.length()) {
+            if (!isWordChar(line.charAt(i))) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < line.length() && isWordChar(line.charAt(i)))
+                i++;
+            String word = line.substring(start, i);
+            weakCode |= keywords.contains(word);
+            if (word.equals("for") || word.equals("while") || word.equals("if")) {
+                int j = i;
+                while (j < line.length() && Character.isWhitespace(line.charAt(j)))
+                    j++;
+                strongCode |= j < line.length() && line.charAt(j) == '(';
+            }
+        }
+        return preprocessor || (strongCode && (strongEnd || weakEnd)) || (weakCode && strongEnd);
+    }
+
+    private static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    private static boolean isIdentifierChar(char c) {
+        return isWordChar(c) || c == '$' || c >= 0x80;
+    }
+
+    /**
+     * Totals of the files analyzed.
+     */
+    public static class Counts implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        int files;
+        long bytes;
+        long loc;
+        long uloc;
+        long usefulComments;
+        int classes;
+
+        void add(Counts other) {
+            files += other.files;
+            bytes += other.bytes;
+            loc += other.loc;
+            uloc += other.uloc;
+            usefulComments += other.usefulComments;
+            classes += other.classes;
+        }
+
+        public int getFiles() {
+            return files;
+        }
+
+        public long getLoc() {
+            return loc;
+        }
+
+        public long getUloc() {
+            return uloc;
+        }
+
+        public long getUsefulComments() {
+            return usefulComments;
+        }
+
+        public int getClasses() {
+            return classes;
+        }
+    }
+
+    /**
+     * The state of lexing one file. Bytes are read as ISO-8859-1, which keeps every ASCII delimiter intact
+     * in UTF-8 and the other single byte encodings.
+     *
+     * Comments are grouped as the script groups Understand's comment lexemes: a comment on one line that is
+     * directly followed by a newline is continued by a comment on one line at the start of the next line.
+     * Like the script, a group that ends the file is not counted.
+     */
+    private class Lexer {
+
+        private final Counts counts = new Counts();
+
+        private int state = CODE;
+        private char quote;
+        private char previous;
+
+        // The current line: whether it holds code, and whether the script would see anything but braces,
+        // semicolons and parentheses in it
+        private int line;
+        private int column;
+        private boolean code;
+        private boolean text;
+        private boolean punctuationOnly = true;
+
+        // A literal running over lines is one lexeme, which the script leaves out of every line
+        private boolean literalLines;
+        private boolean textBeforeLiteral;
+        private boolean punctuationOnlyBeforeLiteral;
+        private boolean textBeforeAt;
+        private boolean punctuationOnlyBeforeAt;
+
+        // The current comment, one entry per line, and the group it may join
+        private final StringBuilder commentLine = new StringBuilder(128);
+        private final List<String> comment = new ArrayList<>();
+        private final List<String> commentBlock = new ArrayList<>();
+        private boolean commentContinues;
+        private int continueOnLine = -1;
+        private boolean endsWithComment;
+
+        // Class declarations: 1 after the keyword, 2 after the name, counted at the '{'
+        private final StringBuilder word = new StringBuilder(32);
+        private int declaration;
+        private char beforeWord;
+
+        Counts lex(ByteBuffer content) {
+            int length = content.limit();
+            for (int i = 0; i < length; i++) {
+                char c = (char) (content.get(i) & 0xFF);
+                char next = i + 1 < length ? (char) (content.get(i + 1) & 0xFF) : 0;
+
+                if (c == '\n') {
+                    endLine();
+                    endsWithComment = false;
+                    continue;
+                }
+                endsWithComment = false;
+                column++;
+                if (c == '\r')
+                    continue;
+
+                switch (state) {
+                    case LINE_COMMENT:
+                        commentLine.append(c);
+                        break;
+                    case BLOCK_COMMENT:
+                        if (c == '*' && next == '/') {
+                            boolean oneLine = comment.isEmpty();
+                            comment.add(commentLine.toString());
+                            endComment(oneLine, next(content, i + 1) == '\n');
+                            state = CODE;
+                            i++;
+                        } else {
+                            commentLine.append(c);
+                        }
+                        break;
+                    case LITERAL:
+                        literalChar(c);
+                        if (c == '\\' && next != '\n')
+                            i++;
+                        else if (c == quote)
+                            endLiteral();
+                        break;
+                    case VERBATIM_STRING:
+                        literalChar(c);
+                        if (c == '"' && next == '"')
+                            i++;
+                        else if (c == '"')
+                            endLiteral();
+                        break;
+                    case TEXT_BLOCK:
+                        literalChar(c);
+                        if (c == '\\' && next != '\n')
+                            i++;
+                        else if (c == '"' && next == '"' && next(content, i + 1) == '"') {
+                            endLiteral();
+                            i += 2;
+                        }
+                        break;
+                    default:
+                        i = code(content, i, c, next);
+                }
+            }
+            if (state == LINE_COMMENT || state == BLOCK_COMMENT) {
+                comment.add(commentLine.toString());
+                endComment(state == LINE_COMMENT || comment.size() == 1, false);
+                state = CODE;
+            }
+            // The script only looks for useless lines among those ending in a newline
+            if (code || state != CODE) {
+                counts.loc++;
+                counts.uloc++;
+            }
+            if (endsWithComment)
+                commentBlock.clear();
+            countCommentBlock();
+            return counts;
+        }
+
+        /**
+         * @return the character after the position, or 0 at the end
+         */
+        private char next(ByteBuffer content, int i) {
+            return i + 1 < content.limit() ? (char) (content.get(i + 1) & 0xFF) : 0;
+        }
+
+        /**
+         * @return the position of the last character consumed
+         */
+        private int code(ByteBuffer content, int i, char c, char next) {
+            if (c == ' ' || c == '\t' || c == '\f') {
+                endWord();
+                return i;
+            }
+            if (c == '/' && (next == '/' || next == '*')) {
+                endWord();
+                commentContinues = line == continueOnLine && column == 1;
+                commentLine.setLength(0);
+                state = next == '/' ? LINE_COMMENT : BLOCK_COMMENT;
+                i++;
+                column++;
+                if (java && next == '*' && next(content, i) == '*' && next(content, i + 1) != '/') {
+                    i++; // javadoc
+                    column++;
+                }
+                return i;
+            }
+
+            if (isIdentifierChar(c)) {
+                if (word.length() == 0)
+                    beforeWord = previous;
+                word.append(c);
+                codeChar(c);
+                return i;
+            }
+            if (c == '\'' && word.length() > 0 && Character.isDigit(word.charAt(0))) {
+                word.append(c); // digit separator
+                codeChar(c);
+                return i;
+            }
+            endWord();
+            boolean textBefore = text;
+            boolean punctuationOnlyBefore = punctuationOnly;
+            codeChar(c);
+
+            if (c == '"') {
+                if (csharp && previous == '@') {
+                    startLiteral(VERBATIM_STRING, textBeforeAt, punctuationOnlyBeforeAt);
+                } else if (java && next == '"' && next(content, i + 1) == '"') {
+                    startLiteral(TEXT_BLOCK, textBefore, punctuationOnlyBefore);
+                    return i + 2;
+                } else {
+                    startLiteral(LITERAL, textBefore, punctuationOnlyBefore);
+                }
+                quote = '"';
+            } else if (c == '\'') {
+                startLiteral(LITERAL, textBefore, punctuationOnlyBefore);
+                quote = '\'';
+            } else if (c == '@') {
+                textBeforeAt = textBefore;
+                punctuationOnlyBeforeAt = punctuationOnlyBefore;
+            } else if (c == '{') {
+                if (declaration == 2)
+                    counts.classes++;
+                declaration = 0;
+            } else if (c == ';' || c == '=' || c == '(' || c == ')' || c == ',') {
+                declaration = 0;
+            }
+            previous = c;
+            return i;
+        }
+
+        private void codeChar(char c) {
+            code = true;
+            text = true;
+            if (c != '{' && c != '}' && c != ';' && c != '(' && c != ')')
+                punctuationOnly = false;
+        }
+
+        private void startLiteral(int literal, boolean textBefore, boolean punctuationOnlyBefore) {
+            state = literal;
+            textBeforeLiteral = textBefore;
+            punctuationOnlyBeforeLiteral = punctuationOnlyBefore;
+        }
+
+        private void literalChar(char c) {
+            if (literalLines)
+                code = true;
+            else
+                codeChar(c);
+        }
+
+        private void endLiteral() {
+            state = CODE;
+            literalLines = false;
+        }
+
+        private void endWord() {
+            if (word.length() == 0)
+                return;
+            String w = word.toString();
+            word.setLength(0);
+            previous = 'a';
+            if (types.contains(w)) {
+                // "Foo.class" is a literal; "enum class" and "enum struct" are one declaration
+                if (declaration == 0 && beforeWord != '.')
+                    declaration = 1;
+            } else if (declaration == 1) {
+                declaration = 2;
+            }
+        }
+
+        private void endLine() {
+            endWord();
+            if (state == LINE_COMMENT) {
+                comment.add(commentLine.toString());
+                endComment(true, true);
+                state = CODE;
+            } else if (state == BLOCK_COMMENT) {
+                comment.add(commentLine.toString());
+                commentLine.setLength(0);
+            } else if (state == LITERAL) {
+                state = CODE; // unterminated
+            } else if (state != CODE) {
+                // The script sees the line up to the literal, and none of the lines after it
+                code = true;
+                if (literalLines) {
+                    text = false;
+                } else {
+                    text = textBeforeLiteral;
+                    punctuationOnly = punctuationOnlyBeforeLiteral;
+                    literalLines = true;
+                }
+            }
+
+            if (code) {
+                counts.loc++;
+                if (!(text && punctuationOnly))
+                    counts.uloc++;
+            }
+            code = false;
+            text = false;
+            punctuationOnly = true;
+            line++;
+            column = 0;
+        }
+
+        /**
+         * Add the finished comment to the current group, or start a new group with it.
+         *
+         * @param oneLine whether the comment stays on one line
+         * @param newlineNext whether a newline directly follows the comment
+         */
+        private void endComment(boolean oneLine, boolean newlineNext) {
+            if (!(commentContinues && oneLine))
+                countCommentBlock();
+            commentBlock.addAll(comment);
+            comment.clear();
+            commentLine.setLength(0);
+            continueOnLine = oneLine && newlineNext ? line + 1 : -1;
+            endsWithComment = true;
+        }
+
+        /**
+         * Count the useful lines of the finished group of comments.
+         */
+        private void countCommentBlock() {
+            if (commentBlock.isEmpty())
+                return;
+            boolean notice = false;
+            for (String line : commentBlock) {
+                String lower = line.toLowerCase();
+                if (lower.contains("copyright") || lower.contains("license") || line.indexOf('\u00A9') > -1) {
+                    notice = true;
+                    break;
+                }
+            }
+            if (!notice) {
+                for (String line : commentBlock) {
+                    String trimmed = collapseFirstSpace(line.trim());
+                    if (trimmed.length() > 3 && !isCommentedOutCode(trimmed))
+                        counts.usefulComments++;
+                }
+            }
+            commentBlock.clear();
+        }
+    }
+
+    /**
+     * Collapse the first run of whitespace to a single space, as the script does before measuring a line.
+     */
+    private static String collapseFirstSpace(String line) {
+        for (int i = 0; i < line.length(); i++) {
+            if (Character.isWhitespace(line.charAt(i))) {
+                int end = i;
+                while (end < line.length() && Character.isWhitespace(line.charAt(end)))
+                    end++;
+                return end - i > 1 || line.charAt(i) != ' ' ? line.substring(0, i) + ' ' + line.substring(end) : line;
+            }
+        }
+        return line;
+    }
+
+    /**
+     * Lex one directory's source files, and fork a task for each subdirectory.
+     */
+    private class Walk extends RecursiveTask<Counts> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+
+        Walk(Path dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected Counts compute() {
+            Counts counts = new Counts();
+            List<Walk> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    String name = entry.getFileName().toString();
+                    BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attrs.isDirectory()) {
+                        if (!name.startsWith(".")) {
+                            Walk walk = new Walk(entry);
+                            walk.fork();
+                            subdirectories.add(walk);
+                        }
+                    } else if (attrs.isRegularFile() && isSource(name)) {
+                        counts.add(analyzeFile(entry, attrs.size()));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            for (Walk walk : subdirectories)
+                counts.add(walk.join());
+            return counts;
+        }
+    }
+
+    /**
+     * Run the analysis on the node that holds the workspace.
+     */
+    static class Analyze extends MasterToSlaveFileCallable<Counts> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String language;
+
+        Analyze(String language) {
+            this.language = language;
+        }
+
+        @Override
+        public Counts invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+            return new LiteAnalyzer(language).analyze(workspace);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package io.jenkins.plugins.cbri;
+
+/**
+ * An open addressing map from long keys to int values, without boxing.
+ * Keys are expected to be well mixed hashes already.
+ */
+class LongIntHashMap {
+
+    private static final long EMPTY = 0L;
+
+    private long[] keys;
+    private int[] values;
+    private boolean hasZero;
+    private int zeroValue;
+    private int size;
+    private int mask;
+
+    LongIntHashMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    int size() {
+        return size + (hasZero ? 1 : 0);
+    }
+
+    /**
+     * @return the value for the key, or 0 if it is absent
+     */
+    int get(long key) {
+        if (key == EMPTY)
+            return hasZero ? zeroValue : 0;
+        int slot = slot(key);
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key)
+                return values[slot];
+            slot = (slot + 1) & mask;
+        }
+        return 0;
+    }
+
+    /**
+     * Add to the value of the key, inserting it with 0 first if absent.
+     */
+    void add(long key, int delta) {
+        if (key == EMPTY) {
+            hasZero = true;
+            zeroValue += delta;
+            return;
+        }
+        int slot = slot(key);
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                values[slot] += delta;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = delta;
+        if (++size * 2 > keys.length)
+            grow();
+    }
+
+    private int slot(long key) {
+        return (int) (key ^ (key >>> 32)) & mask;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY)
+                continue;
+            int slot = slot(oldKeys[i]);
+            while (keys[slot] != EMPTY)
+                slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+}
@@ -0,0 +1,461 @@
+package io.jenkins.plugins.cbri;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.util.Secret;
+import jenkins.model.Jenkins;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measurements waiting to be posted to CBRI, kept on disk so that a slow or unavailable server
+ * neither stalls the build nor loses the measurement.
+ *
+ * Each entry is one file in JENKINS_HOME/cbri-outbox, named after its idempotency key: the server, repository,
+ * build and revision_id of the measurement. Queueing the same measurement again, as a resumed build may,
+ * replaces the waiting entry, and the key is sent with the upload so that the server can ignore a repeat.
+ * Every write of an entry bumps its generation, so an upload only deletes the entry it read. {@link Worker} drains the outbox:
+ * due entries are grouped by endpoint, each group shares one login, and a bounded number of groups upload
+ * at a time. A failed upload is retried with exponential backoff; rejected measurements and those that
+ * keep failing are moved to the "failed" directory. The tree map of an entry, if any, is kept beside it
+ * in the binary {@link FileTreeMap} format and streamed into the upload.
+ */
+public class MeasurementOutbox {
+
+    private static final Logger LOGGER = Logger.getLogger(MeasurementOutbox.class.getName());
+
+    protected static final int BATCH_SIZE = 32;
+    protected static final int MAX_CONCURRENT_UPLOADS = 4;
+    protected static final int MAX_ATTEMPTS = 12;
+    protected static final long INITIAL_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    protected static final long MAX_BACKOFF_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final AtomicLong enqueued = new AtomicLong();
+    private static final AtomicLong uploaded = new AtomicLong();
+    private static final AtomicLong failedAttempts = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicLong uploadMillis = new AtomicLong();
+    private static final AtomicLong maxUploadMillis = new AtomicLong();
+
+    private static MeasurementOutbox instance;
+
+    private final File root;
+    private final File failed;
+
+    /**
+     * The longest an upload may take before it is abandoned until the next drain, 0 for no limit.
+     */
+    private volatile long uploadBudgetMillis;
+
+    public MeasurementOutbox(File root) {
+        this.root = root;
+        this.failed = new File(root, "failed");
+    }
+
+    /**
+     * @return the outbox in JENKINS_HOME
+     */
+    public static synchronized MeasurementOutbox get() {
+        if (instance == null)
+            instance = new MeasurementOutbox(new File(Jenkins.get().getRootDir(), "cbri-outbox"));
+        return instance;
+    }
+
+    /**
+     * Abandon uploads that take longer than this, per measurement, see {@link AnalysisBudget}.
+     */
+    public void setUploadBudgetMillis(long uploadBudgetMillis) {
+        this.uploadBudgetMillis = uploadBudgetMillis;
+    }
+
+    public static long getEnqueued() {
+        return enqueued.get();
+    }
+
+    public static long getUploaded() {
+        return uploaded.get();
+    }
+
+    public static long getFailedAttempts() {
+        return failedAttempts.get();
+    }
+
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the mean time of a successful POST, in milliseconds
+     */
+    public static long getMeanUploadMillis() {
+        long count = uploaded.get();
+        return count == 0 ? 0 : uploadMillis.get() / count;
+    }
+
+    public static long getMaxUploadMillis() {
+        return maxUploadMillis.get();
+    }
+
+    /**
+     * @return the number of measurements waiting to be uploaded
+     */
+    public int getQueueDepth() {
+        File[] files = root.listFiles((dir, name) -> name.endsWith(".xml"));
+        return files == null ? 0 : files.length;
+    }
+
+    /**
+     * Store the measurement for upload by the worker.
+     *
+     * @param origin what produced the measurement, e.g. the externalizable id of the build, so that jobs and
+     *               parallel branches measuring the same revision do not replace each other's entries
+     * @param treeMap the components of the measurement, or null to send none
+     * @param compress whether to gzip the upload
+     * @param delta whether to send only the changes since the last tree map posted
+     */
+    public void enqueue(String baseUrl, String username, String password, String repoId, String origin,
+                        Map<String, String> measurement, FileTreeMap treeMap, boolean compress, boolean delta,
+                        TaskListener listener) throws IOException {
+        Entry entry = new Entry();
+        entry.baseUrl = baseUrl;
+        entry.username = username;
+        entry.password = Secret.fromString(password);
+        entry.repoId = repoId;
+        entry.idempotencyKey = idempotencyKey(baseUrl, repoId, origin, measurement.get("revision_id"));
+        entry.measurement = new HashMap<>(measurement);
+        entry.enqueuedAt = System.currentTimeMillis();
+        entry.nextAttemptAt = entry.enqueuedAt;
+        entry.compress = compress;
+        entry.delta = delta;
+
+        if (!root.isDirectory() && !root.mkdirs())
+            throw new IOException("Could not create " + root);
+        // The tree map goes first, so the worker never sees an entry without it
+        File treeMapFile = treeMapFileOf(entry.idempotencyKey);
+        synchronized (this) {
+            Entry waiting = read(fileOf(entry.idempotencyKey).getFile());
+            entry.generation = waiting != null ? waiting.generation + 1 : 0;
+            if (treeMap != null)
+                CbriAction.saveTreeMap(treeMap, treeMapFile);
+            else
+                Files.deleteIfExists(treeMapFile.toPath());
+            fileOf(entry.idempotencyKey).write(entry);
+        }
+        enqueued.incrementAndGet();
+        listener.getLogger().println("Queued CBRI measurement " + entry.idempotencyKey + " for upload ("
+                + getQueueDepth() + " waiting)");
+    }
+
+    static String idempotencyKey(String baseUrl, String repoId, String origin, String revisionId) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String material = baseUrl + '\n' + repoId + '\n' + origin + '\n' + revisionId;
+            return Util.toHexString(digest.digest(material.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Upload due entries, a batch at a time, until none are left or a batch makes no progress.
+     */
+    public void drain(TaskListener listener) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(MAX_CONCURRENT_UPLOADS);
+        try {
+            while (true) {
+                List<Loaded> due = loadDue();
+                if (due.isEmpty())
+                    return;
+
+                // One login per endpoint, several endpoints at a time
+                Map<String, List<Loaded>> groups = new LinkedHashMap<>();
+                for (Loaded loaded : due) {
+                    Entry e = loaded.entry;
+                    String endpoint = e.baseUrl + '\n' + e.username + '\n' + e.repoId;
+                    groups.computeIfAbsent(endpoint, k -> new ArrayList<>()).add(loaded);
+                }
+                List<Future<Integer>> results = new ArrayList<>();
+                for (List<Loaded> group : groups.values())
+                    results.add(executor.submit(() -> upload(group, listener)));
+
+                int succeeded = 0;
+                long budget = uploadBudgetMillis;
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budget * due.size());
+                for (Future<Integer> result : results) {
+                    try {
+                        succeeded += budget > 0 ? result.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)
+                                : result.get();
+                    } catch (ExecutionException e) {
+                        LOGGER.log(Level.WARNING, "CBRI upload batch failed", e.getCause());
+                    } catch (TimeoutException e) {
+                        // Whatever the group did not post stays due for the next drain
+                        result.cancel(true);
+                        CbriStatistics.recordTimeout(PhaseTimings.UPLOAD);
+                        LOGGER.log(Level.WARNING, "CBRI upload batch stopped after its budget of {0} ms per measurement", budget);
+                    }
+                }
+                if (succeeded < due.size())
+                    return; // the rest waits for its backoff
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the oldest entries whose next attempt is due, at most one batch
+     */
+    private List<Loaded> loadDue() {
+        List<Loaded> due = new ArrayList<>();
+        File[] files = root.listFiles((dir, name) -> name.endsWith(".xml"));
+        if (files == null)
+            return due;
+
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            try {
+                Entry entry = (Entry) new XmlFile(file).read();
+                if (entry.nextAttemptAt <= now)
+                    due.add(new Loaded(file, entry));
+            } catch (IOException | ClassCastException e) {
+                LOGGER.log(Level.WARNING, "Setting aside unreadable CBRI outbox entry " + file, e);
+                moveToFailed(file);
+            }
+        }
+        due.sort(Comparator.comparingLong(l -> l.entry.enqueuedAt));
+        return due.size() > BATCH_SIZE ? new ArrayList<>(due.subList(0, BATCH_SIZE)) : due;
+    }
+
+    /**
+     * Post the entries of one endpoint in order.
+     *
+     * @return the number uploaded
+     */
+    private int upload(List<Loaded> group, TaskListener listener) {
+        Entry first = group.get(0).entry;
+        CbriWrapper wrapper = new CbriWrapper(first.baseUrl, first.username, Secret.toString(first.password),
+                first.repoId, true);
+
+        int succeeded = 0;
+        for (Loaded loaded : group) {
+            Entry entry = loaded.entry;
+            wrapper.setCompress(entry.compress);
+            wrapper.setSnapshots(entry.delta ? TreeMapSnapshots.get() : null);
+            long start = System.nanoTime();
+            long sent = wrapper.bytesSent;
+            try {
+                wrapper.postMeasurement(entry.measurement, loadTreeMap(entry), entry.idempotencyKey, listener);
+                recordUpload(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                remove(loaded);
+                succeeded++;
+            } catch (IOException | RuntimeException e) {
+                int status = CbriWrapper.statusOf(e);
+                if (status == 409) {
+                    // The server already has this revision
+                    remove(loaded);
+                    succeeded++;
+                } else {
+                    retryLater(loaded, e, status);
+                }
+            }
+            // Counted as written to the connection, whether or not the server took it
+            CbriStatistics.recordBytesUploaded(wrapper.bytesSent - sent);
+        }
+        return succeeded;
+    }
+
+    /**
+     * @return the tree map stored beside the entry, or null if it has none
+     */
+    private FileTreeMap loadTreeMap(Entry entry) throws IOException {
+        File file = treeMapFileOf(entry.idempotencyKey);
+        if (!file.isFile())
+            return null;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            return FileTreeMap.read(in);
+        }
+    }
+
+    private void retryLater(Loaded loaded, Exception e, int status) {
+        failedAttempts.incrementAndGet();
+        Entry entry = loaded.entry;
+        entry.attempts++;
+        entry.lastError = e.toString();
+
+        boolean rejected = status >= 400 && status < 500 && status != 401 && status != 408 && status != 429;
+        if (rejected || entry.attempts >= MAX_ATTEMPTS) {
+            LOGGER.log(Level.WARNING, "Giving up on CBRI measurement " + entry.idempotencyKey + " for " + entry.repoId
+                    + " after " + entry.attempts + " attempts", e);
+            dropped.incrementAndGet();
+            synchronized (this) {
+                if (!isCurrent(loaded))
+                    return; // queued again meanwhile, the new entry gets its own attempts
+                try {
+                    new XmlFile(loaded.file).write(entry);
+                } catch (IOException ignored) {
+                    // the last error is only informational
+                }
+                moveToFailed(loaded.file);
+            }
+            return;
+        }
+
+        long backoff = INITIAL_BACKOFF_MILLIS << Math.min(entry.attempts - 1, 20);
+        backoff = Math.min(backoff, MAX_BACKOFF_MILLIS);
+        backoff += ThreadLocalRandom.current().nextLong(backoff / 5 + 1);
+        entry.nextAttemptAt = System.currentTimeMillis() + backoff;
+        LOGGER.log(Level.INFO, "CBRI upload of " + entry.idempotencyKey + " failed (attempt " + entry.attempts
+                + "), retrying in " + TimeUnit.MILLISECONDS.toSeconds(backoff) + " s: " + e);
+        synchronized (this) {
+            try {
+                if (isCurrent(loaded))
+                    new XmlFile(loaded.file).write(entry);
+            } catch (IOException ioe) {
+                LOGGER.log(Level.WARNING, "Could not update CBRI outbox entry " + loaded.file, ioe);
+            }
+        }
+    }
+
+    /**
+     * Delete an uploaded entry, unless the same revision was queued again meanwhile.
+     */
+    private synchronized void remove(Loaded loaded) {
+        if (!isCurrent(loaded))
+            return;
+        if (!loaded.file.delete())
+            LOGGER.log(Level.WARNING, "Could not delete uploaded CBRI outbox entry " + loaded.file);
+        File treeMapFile = treeMapFileOf(loaded.entry.idempotencyKey);
+        if (treeMapFile.exists() && !treeMapFile.delete())
+            LOGGER.log(Level.WARNING, "Could not delete uploaded CBRI outbox entry " + treeMapFile);
+    }
+
+    /**
+     * @return whether the entry on disk is still the one that was loaded, call while holding the lock
+     */
+    private boolean isCurrent(Loaded loaded) {
+        Entry onDisk = read(loaded.file);
+        return onDisk != null && onDisk.generation == loaded.entry.generation;
+    }
+
+    /**
+     * @return the entry in the file, or null if there is none or it cannot be read
+     */
+    private static Entry read(File file) {
+        if (!file.isFile())
+            return null;
+        try {
+            return (Entry) new XmlFile(file).read();
+        } catch (IOException | ClassCastException e) {
+            return null;
+        }
+    }
+
+    private static void recordUpload(long millis) {
+        uploaded.incrementAndGet();
+        uploadMillis.addAndGet(millis);
+        maxUploadMillis.accumulateAndGet(millis, Math::max);
+    }
+
+    private void moveToFailed(File file) {
+        String key = file.getName().substring(0, file.getName().length() - ".xml".length());
+        try {
+            Files.createDirectories(failed.toPath());
+            Files.move(file.toPath(), new File(failed, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            File treeMapFile = treeMapFileOf(key);
+            if (treeMapFile.exists())
+                Files.move(treeMapFile.toPath(), new File(failed, treeMapFile.getName()).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not move " + file + " to " + failed, e);
+        }
+    }
+
+    private XmlFile fileOf(String key) {
+        return new XmlFile(new File(root, key + ".xml"));
+    }
+
+    private File treeMapFileOf(String key) {
+        return new File(root, key + ".bin");
+    }
+
+    /**
+     * A queued measurement, as stored in the outbox.
+     */
+    public static class Entry {
+        String baseUrl;
+        String username;
+        Secret password;
+        String repoId;
+        String idempotencyKey;
+        /**
+         * Bumped each time the measurement is queued again.
+         */
+        long generation;
+        HashMap<String, String> measurement;
+        long enqueuedAt;
+        long nextAttemptAt;
+        int attempts;
+        String lastError;
+        boolean compress;
+        boolean delta;
+    }
+
+    private static class Loaded {
+        final File file;
+        final Entry entry;
+
+        Loaded(File file, Entry entry) {
+            this.file = file;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * Drains the outbox in the background. Runs never overlap, so an entry is only uploaded by one thread.
+     */
+    @Extension
+    public static class Worker extends AsyncPeriodicWork {
+
+        public Worker() {
+            super("CBRI measurement upload");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.SECONDS.toMillis(15);
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException, InterruptedException {
+            MeasurementOutbox.get().drain(listener);
+        }
+    }
+}
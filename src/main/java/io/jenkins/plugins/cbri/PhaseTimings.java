@@ -0,0 +1,98 @@
+package io.jenkins.plugins.cbri;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * How long each phase of one CBRI analysis took, measured with the monotonic clock,
+ * and the peak memory of the processes it ran. Every phase is also recorded in {@link CbriStatistics}.
+ */
+public class PhaseTimings implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String SOURCE_MANIFEST = "sourceManifest";
+    public static final String CACHE_LOOKUP = "cacheLookup";
+    public static final String LICENSE_WAIT = "licenseWait";
+    public static final String UND_ANALYZE = "undAnalyze";
+    public static final String CORE_METRICS = "coreMetrics";
+    public static final String PARSE = "parse";
+    public static final String ANALYSIS = "analysis";
+    public static final String LITE_SCAN = "liteScan";
+    public static final String ENQUEUE = "enqueue";
+    public static final String UPLOAD = "upload";
+    public static final String TOTAL = "total";
+
+    private static final Map<String, String> LABELS = new HashMap<>();
+
+    static {
+        LABELS.put(SOURCE_MANIFEST, "Source manifest");
+        LABELS.put(CACHE_LOOKUP, "Result cache lookup");
+        LABELS.put(LICENSE_WAIT, "Waiting for a license");
+        LABELS.put(UND_ANALYZE, "Understand analysis");
+        LABELS.put(CORE_METRICS, "Core metrics script");
+        LABELS.put(PARSE, "Reading the metrics");
+        LABELS.put(ANALYSIS, "Analysis");
+        LABELS.put(LITE_SCAN, "Lite analysis");
+        LABELS.put(ENQUEUE, "Queueing the upload");
+        LABELS.put(UPLOAD, "Upload");
+        LABELS.put(TOTAL, "Total");
+    }
+
+    private final LinkedHashMap<String, Long> millis = new LinkedHashMap<>();
+    private long peakRssKb = -1;
+
+    /**
+     * Record the phase that started at startNanos.
+     *
+     * @return the current time, to start the next phase
+     */
+    public synchronized long end(String phase, long startNanos) {
+        long now = System.nanoTime();
+        long elapsed = (now - startNanos) / 1000000L;
+        millis.merge(phase, elapsed, Long::sum);
+        CbriStatistics.recordPhase(phase, elapsed);
+        return now;
+    }
+
+    /**
+     * Note a sample of the resident memory of a child process, in kilobytes.
+     */
+    public synchronized void sampleRss(long kb) {
+        if (kb > peakRssKb)
+            peakRssKb = kb;
+    }
+
+    /**
+     * Add the memory of analyses that ran at the same time, such as shards. Each shard's peak was sampled
+     * on its own, so the highest of them is the peak that is known to have been reached.
+     */
+    public synchronized void addConcurrent(PhaseTimings other) {
+        if (other != null && other.peakRssKb > peakRssKb)
+            peakRssKb = other.peakRssKb;
+    }
+
+    /**
+     * @return the milliseconds spent in each phase, in the order they first ran
+     */
+    public synchronized Map<String, Long> getMillis() {
+        return new LinkedHashMap<>(millis);
+    }
+
+    /**
+     * @return the name of the phase to show on the build page
+     */
+    public static String getLabel(String phase) {
+        String label = LABELS.get(phase);
+        return label != null ? label : phase;
+    }
+
+    /**
+     * @return the highest sampled resident memory of the analysis processes in kilobytes, -1 if unknown
+     */
+    public synchronized long getPeakRssKb() {
+        return peakRssKb;
+    }
+}
@@ -0,0 +1,73 @@
+package io.jenkins.plugins.cbri;
+
+import jenkins.security.MasterToSlaveCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * The resident memory of the processes started with an environment cookie, read from /proc on the node
+ * that runs them. Each process reports its own peak (VmHWM), so the sum is the most the processes
+ * could have held at once.
+ *
+ * Returns -1 where there is no /proc, such as on Windows and macOS agents.
+ */
+class ProcessMemory extends MasterToSlaveCallable<Long, IOException> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String variable;
+    private final String cookie;
+
+    ProcessMemory(String variable, String cookie) {
+        this.variable = variable;
+        this.cookie = cookie;
+    }
+
+    @Override
+    public Long call() throws IOException {
+        File[] processes = new File("/proc").listFiles((dir, name) -> Character.isDigit(name.charAt(0)));
+        if (processes == null)
+            return -1L;
+
+        byte[] marker = (variable + "=" + cookie).getBytes(StandardCharsets.UTF_8);
+        long total = 0;
+        for (File process : processes) {
+            try {
+                if (!hasVariable(Files.readAllBytes(new File(process, "environ").toPath()), marker))
+                    continue;
+                for (String line : Files.readAllLines(new File(process, "status").toPath(), StandardCharsets.UTF_8)) {
+                    if (line.startsWith("VmHWM:")) {
+                        total += Long.parseLong(line.substring(6).replace("kB", "").trim());
+                        break;
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                // exited meanwhile, or owned by another user
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return true if one of the NUL separated entries of the environment is exactly the marker
+     */
+    private static boolean hasVariable(byte[] environ, byte[] marker) {
+        int start = 0;
+        for (int i = 0; i <= environ.length; i++) {
+            if (i == environ.length || environ[i] == 0) {
+                if (i - start == marker.length) {
+                    boolean match = true;
+                    for (int j = 0; j < marker.length && match; j++)
+                        match = environ[start + j] == marker[j];
+                    if (match)
+                        return true;
+                }
+                start = i + 1;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,646 @@
+package io.jenkins.plugins.cbri;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Computes the visibility matrix of a file dependency graph and the architecture metrics derived from it,
+ * replacing the transitive closure and cyclic group analysis of the core metrics script.
+ *
+ * Files are condensed into strongly connected components (Tarjan), which come out in reverse topological
+ * order. Each component's visibility row is a bitset packed into longs: its own members OR the rows of the
+ * components it depends on. Components at the same depth are independent and are computed in parallel, and
+ * a row is dropped as soon as every component that depends on it has been computed.
+ *
+ * Fan-in/fan-out, cyclic groups, the architecture type and the core/central sizes follow the script exactly,
+ * including its rounding and the cells it marks for library files, so the values match what it writes to
+ * projectMetrics.csv.
+ */
+public class PropagationCostEngine {
+
+    public static final String ISOLATE = "Isolate";
+    public static final String SHARED = "Shared";
+    public static final String CORE = "Core";
+    public static final String PERIPHERAL = "Peripheral";
+    public static final String CONTROL = "Control";
+    public static final String SECONDARY = "Secondary";
+
+    private PropagationCostEngine() {
+    }
+
+    public static Result analyze(DependencyGraph graph) {
+        int n = graph.size();
+        int[] vfi = new int[n];
+        int[] vfo = new int[n];
+        if (n > 0) {
+            Condensation c = condense(graph);
+            computeVisibility(graph, c, vfi, vfo);
+            countLibraryCells(graph, c, vfi, vfo, 1);
+        }
+        return classify(vfi, vfo);
+    }
+
+    /**
+     * Recompute the visibility of only the files whose reachability may have changed since the snapshot: files
+     * with changed dependencies (including added and removed files) and every file that depends on them, directly
+     * or not, before or after the change. Every other file sees the same files as before. Affected files have their
+     * fan-out counted again in the new graph, and their share of everyone's fan-in is taken away as it was in the
+     * old graph and added as it is in the new one.
+     *
+     * Each affected component is searched on its own, which is only cheaper than the bitset closure while few
+     * components are affected. The searches stop once they have cost as much as the closure would, measured in
+     * components and edges visited against words of bitset rows, and the result is left to
+     * {@link #analyze(DependencyGraph)}.
+     *
+     * @return the same result as {@link #analyze(DependencyGraph)}, or null if a full analysis is cheaper
+     */
+    static Result update(ClosureSnapshot previous, DependencyGraph graph) {
+        DependencyGraph old = previous.graph;
+        int n = graph.size();
+        int oldN = old.size();
+        Map<String, Integer> index = new HashMap<>(n * 2);
+        for (int v = 0; v < n; v++)
+            index.put(graph.files[v], v);
+        if (index.size() != n || previous.vfi.length != oldN || previous.vfo.length != oldN)
+            return null;
+
+        // Nodes of the union of both graphs: the new files, then the files that were removed
+        int[] toNew = new int[oldN];
+        int[] toUnion = new int[oldN];
+        boolean[] existed = new boolean[n];
+        int total = n;
+        for (int u = 0; u < oldN; u++) {
+            Integer v = index.get(old.files[u]);
+            toNew[u] = v == null || existed[v] ? -1 : v;
+            if (toNew[u] >= 0)
+                existed[v] = true;
+            toUnion[u] = toNew[u] >= 0 ? toNew[u] : total++;
+        }
+
+        // Files whose dependencies differ, by name
+        boolean[] affected = new boolean[total];
+        int[] queue = new int[total];
+        int queued = 0;
+        for (int v = 0; v < n; v++) {
+            if (!existed[v]) {
+                affected[v] = true;
+                queue[queued++] = v;
+            }
+        }
+        int[] mapped = new int[16];
+        for (int u = 0; u < oldN; u++) {
+            int v = toNew[u];
+            boolean changed = v < 0;
+            if (!changed) {
+                int degree = old.offsets[u + 1] - old.offsets[u];
+                changed = degree != graph.offsets[v + 1] - graph.offsets[v];
+                if (!changed) {
+                    if (mapped.length < degree)
+                        mapped = new int[degree * 2];
+                    for (int e = 0; e < degree; e++)
+                        mapped[e] = toUnion[old.targets[old.offsets[u] + e]];
+                    Arrays.sort(mapped, 0, degree);
+                    for (int e = 0; e < degree && !changed; e++)
+                        changed = mapped[e] != graph.targets[graph.offsets[v] + e];
+                }
+            }
+            if (changed) {
+                affected[toUnion[u]] = true;
+                queue[queued++] = toUnion[u];
+            }
+        }
+
+        // Everything that depends on them in either graph
+        int[] predOffsets = new int[total + 1];
+        for (int t : graph.targets)
+            predOffsets[t + 1]++;
+        for (int t : old.targets)
+            predOffsets[toUnion[t] + 1]++;
+        for (int i = 0; i < total; i++)
+            predOffsets[i + 1] += predOffsets[i];
+        int[] predecessors = new int[predOffsets[total]];
+        int[] fill = Arrays.copyOf(predOffsets, total);
+        for (int v = 0; v < n; v++) {
+            for (int e = graph.offsets[v]; e < graph.offsets[v + 1]; e++)
+                predecessors[fill[graph.targets[e]]++] = v;
+        }
+        for (int u = 0; u < oldN; u++) {
+            for (int e = old.offsets[u]; e < old.offsets[u + 1]; e++)
+                predecessors[fill[toUnion[old.targets[e]]]++] = toUnion[u];
+        }
+        for (int head = 0; head < queued; head++) {
+            int w = queue[head];
+            for (int e = predOffsets[w]; e < predOffsets[w + 1]; e++) {
+                int p = predecessors[e];
+                if (!affected[p]) {
+                    affected[p] = true;
+                    queue[queued++] = p;
+                }
+            }
+        }
+
+        Condensation oldC = condense(old);
+        Condensation newC = condense(graph);
+        int[] oldAffected = new int[oldC.count];
+        for (int u = 0; u < oldN; u++) {
+            if (affected[toUnion[u]])
+                oldAffected[oldC.component[u]]++;
+        }
+        int[] newAffected = new int[newC.count];
+        for (int v = 0; v < n; v++) {
+            if (affected[v])
+                newAffected[newC.component[v]]++;
+        }
+
+        long[] budget = {(long) (newC.count + newC.successors.length) * ((n + 63) >>> 6)};
+        long[] removedShare = reachFrom(oldC, oldAffected, null, budget);
+        int[] seen = new int[newC.count];
+        long[] addedShare = removedShare != null ? reachFrom(newC, newAffected, seen, budget) : null;
+        if (addedShare == null)
+            return null;
+
+        // Library cells are counted again for the whole graph, the closure only for affected files
+        int[] oldVfi = previous.vfi.clone();
+        int[] oldVfo = previous.vfo.clone();
+        if (oldN > 0)
+            countLibraryCells(old, oldC, oldVfi, oldVfo, -1);
+        int[] vfi = new int[n];
+        int[] vfo = new int[n];
+        for (int u = 0; u < oldN; u++) {
+            if (toNew[u] >= 0) {
+                vfi[toNew[u]] = oldVfi[u];
+                vfo[toNew[u]] = oldVfo[u];
+            }
+        }
+
+        for (int u = 0; u < oldN; u++) {
+            if (toNew[u] >= 0)
+                vfi[toNew[u]] -= (int) removedShare[oldC.component[u]];
+        }
+        for (int v = 0; v < n; v++) {
+            int k = newC.component[v];
+            vfi[v] += (int) addedShare[k];
+            if (newAffected[k] > 0)
+                vfo[v] = seen[k];
+        }
+        if (n > 0)
+            countLibraryCells(graph, newC, vfi, vfo, 1);
+        return classify(vfi, vfo);
+    }
+
+    /**
+     * Search the condensation from each component with affected files.
+     *
+     * @param seen if not null, receives the number of files each searched component sees
+     * @param budget the components and edges left to visit, shared by calls
+     * @return for each component, the number of affected files that see its members, or null if over budget
+     */
+    private static long[] reachFrom(Condensation c, int[] affected, int[] seen, long[] budget) {
+        long[] share = new long[c.count];
+        int[] visited = new int[c.count];
+        int[] stack = new int[c.count];
+        for (int k = 0; k < c.count; k++) {
+            if (affected[k] == 0)
+                continue;
+            int stamp = k + 1;
+            int sp = 0;
+            int files = 0;
+            stack[sp++] = k;
+            visited[k] = stamp;
+            while (sp > 0) {
+                int r = stack[--sp];
+                budget[0] -= 1 + c.succOffsets[r + 1] - c.succOffsets[r];
+                if (budget[0] < 0)
+                    return null;
+                share[r] += affected[k];
+                files += c.memberOffsets[r + 1] - c.memberOffsets[r];
+                for (int e = c.succOffsets[r]; e < c.succOffsets[r + 1]; e++) {
+                    int s = c.successors[e];
+                    if (visited[s] != stamp) {
+                        visited[s] = stamp;
+                        stack[sp++] = s;
+                    }
+                }
+            }
+            if (seen != null)
+                seen[k] = files;
+        }
+        return share;
+    }
+
+    /**
+     * The strongly connected components of a graph. Component ids are in reverse topological order:
+     * every component only depends on components with a lower id.
+     */
+    static class Condensation {
+        int count;
+        int[] component;     // component of each file
+        int[] memberOffsets; // members of component c: members[memberOffsets[c] .. memberOffsets[c + 1])
+        int[] members;
+        int[] succOffsets;   // successors of component c, excluding itself
+        int[] successors;
+    }
+
+    /**
+     * Iterative Tarjan, so deep dependency chains don't overflow the stack.
+     */
+    static Condensation condense(DependencyGraph graph) {
+        int n = graph.size();
+        int[] offsets = graph.offsets;
+        int[] targets = graph.targets;
+
+        int[] index = new int[n];
+        int[] low = new int[n];
+        int[] component = new int[n];
+        boolean[] onStack = new boolean[n];
+        int[] stack = new int[n];
+        int[] callNode = new int[n];
+        int[] callEdge = new int[n];
+        Arrays.fill(index, -1);
+
+        int nextIndex = 0;
+        int sp = 0;
+        int count = 0;
+        for (int root = 0; root < n; root++) {
+            if (index[root] != -1)
+                continue;
+
+            int top = 0;
+            callNode[0] = root;
+            callEdge[0] = offsets[root];
+            index[root] = low[root] = nextIndex++;
+            stack[sp++] = root;
+            onStack[root] = true;
+
+            while (top >= 0) {
+                int v = callNode[top];
+                if (callEdge[top] < offsets[v + 1]) {
+                    int w = targets[callEdge[top]++];
+                    if (index[w] == -1) {
+                        index[w] = low[w] = nextIndex++;
+                        stack[sp++] = w;
+                        onStack[w] = true;
+                        top++;
+                        callNode[top] = w;
+                        callEdge[top] = offsets[w];
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], index[w]);
+                    }
+                } else {
+                    if (low[v] == index[v]) {
+                        int w;
+                        do {
+                            w = stack[--sp];
+                            onStack[w] = false;
+                            component[w] = count;
+                        } while (w != v);
+                        count++;
+                    }
+                    top--;
+                    if (top >= 0)
+                        low[callNode[top]] = Math.min(low[callNode[top]], low[v]);
+                }
+            }
+        }
+
+        Condensation c = new Condensation();
+        c.count = count;
+        c.component = component;
+
+        c.memberOffsets = new int[count + 1];
+        for (int v = 0; v < n; v++)
+            c.memberOffsets[component[v] + 1]++;
+        for (int k = 0; k < count; k++)
+            c.memberOffsets[k + 1] += c.memberOffsets[k];
+        c.members = new int[n];
+        int[] fill = Arrays.copyOf(c.memberOffsets, count);
+        for (int v = 0; v < n; v++)
+            c.members[fill[component[v]]++] = v;
+
+        // Distinct successor components, using a marker per component to skip duplicates
+        int[] marker = new int[count];
+        Arrays.fill(marker, -1);
+        c.succOffsets = new int[count + 1];
+        int[] successors = new int[Math.max(16, targets.length)];
+        int edges = 0;
+        for (int k = 0; k < count; k++) {
+            for (int m = c.memberOffsets[k]; m < c.memberOffsets[k + 1]; m++) {
+                int v = c.members[m];
+                for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                    int s = component[targets[e]];
+                    if (s != k && marker[s] != k) {
+                        marker[s] = k;
+                        successors[edges++] = s;
+                    }
+                }
+            }
+            c.succOffsets[k + 1] = edges;
+        }
+        c.successors = Arrays.copyOf(successors, edges);
+        return c;
+    }
+
+    /**
+     * Fill in visibility fan-in and fan-out. A file always sees itself.
+     */
+    static void computeVisibility(DependencyGraph graph, Condensation c, int[] vfi, int[] vfo) {
+        int n = graph.size();
+        int words = (n + 63) >>> 6;
+        int count = c.count;
+
+        // Depth of each component above the sinks; components of equal depth don't depend on each other
+        int[] level = new int[count];
+        int[] predecessors = new int[count];
+        int maxLevel = 0;
+        for (int k = 0; k < count; k++) {
+            for (int e = c.succOffsets[k]; e < c.succOffsets[k + 1]; e++) {
+                int s = c.successors[e];
+                level[k] = Math.max(level[k], level[s] + 1);
+                predecessors[s]++;
+            }
+            maxLevel = Math.max(maxLevel, level[k]);
+        }
+        List<int[]> levels = groupByLevel(level, maxLevel);
+
+        long[][] rows = new long[count][];
+        for (int[] batch : levels) {
+            IntStream.range(0, batch.length).parallel().forEach(b -> {
+                int k = batch[b];
+                long[] row = new long[words];
+                for (int m = c.memberOffsets[k]; m < c.memberOffsets[k + 1]; m++) {
+                    int v = c.members[m];
+                    row[v >>> 6] |= 1L << v;
+                }
+                for (int e = c.succOffsets[k]; e < c.succOffsets[k + 1]; e++) {
+                    long[] successor = rows[c.successors[e]];
+                    for (int w = 0; w < words; w++)
+                        row[w] |= successor[w];
+                }
+
+                int seen = 0;
+                for (int w = 0; w < words; w++)
+                    seen += Long.bitCount(row[w]);
+                for (int m = c.memberOffsets[k]; m < c.memberOffsets[k + 1]; m++)
+                    vfo[c.members[m]] = seen;
+                rows[k] = row;
+            });
+
+            // Every file in a component sees the same files. Split by word so each fan-in slot has one writer.
+            IntStream.range(0, words).parallel().forEach(w -> {
+                for (int k : batch) {
+                    int size = c.memberOffsets[k + 1] - c.memberOffsets[k];
+                    long bits = rows[k][w];
+                    while (bits != 0) {
+                        vfi[(w << 6) + Long.numberOfTrailingZeros(bits)] += size;
+                        bits &= bits - 1;
+                    }
+                }
+            });
+
+            for (int k : batch) {
+                if (predecessors[k] == 0)
+                    rows[k] = null;
+                for (int e = c.succOffsets[k]; e < c.succOffsets[k + 1]; e++) {
+                    int s = c.successors[e];
+                    if (--predecessors[s] == 0)
+                        rows[s] = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Count the cells the script marks for dependencies on library files. It leaves library files out of the
+     * files but not out of their dependents' dependencies, so its closure carries them along like files, and a
+     * library file, having no row or column, marks column 0. Every file that sees a file with a library
+     * dependency therefore sees file 0, but not what file 0 sees.
+     *
+     * The script fails outright when its search comes to a library file a second time, as it does when two files
+     * depend on the same one, since the library file has no dependencies to carry. Here every file that sees one
+     * gets the cell.
+     *
+     * @param sign 1 to add the cells to the fan-in and fan-out, -1 to take them away
+     */
+    static void countLibraryCells(DependencyGraph graph, Condensation c, int[] vfi, int[] vfo, int sign) {
+        if (graph.external.length == 0)
+            return;
+        boolean[] library = new boolean[c.count];
+        for (int v : graph.external)
+            library[c.component[v]] = true;
+        boolean[] seesFirst = new boolean[c.count];
+        seesFirst[c.component[0]] = true;
+        for (int k = 0; k < c.count; k++) {
+            for (int e = c.succOffsets[k]; e < c.succOffsets[k + 1]; e++) {
+                library[k] |= library[c.successors[e]];
+                seesFirst[k] |= seesFirst[c.successors[e]];
+            }
+        }
+        for (int v = 0; v < vfo.length; v++) {
+            int k = c.component[v];
+            if (library[k] && !seesFirst[k]) {
+                vfo[v] += sign;
+                vfi[0] += sign;
+            }
+        }
+    }
+
+    private static List<int[]> groupByLevel(int[] level, int maxLevel) {
+        int[] sizes = new int[maxLevel + 1];
+        for (int l : level)
+            sizes[l]++;
+        List<int[]> levels = new ArrayList<>(maxLevel + 1);
+        for (int l = 0; l <= maxLevel; l++)
+            levels.add(new int[sizes[l]]);
+        int[] fill = new int[maxLevel + 1];
+        for (int k = 0; k < level.length; k++)
+            levels.get(level[k])[fill[level[k]]++] = k;
+        return levels;
+    }
+
+    /**
+     * Derive cyclic groups, architecture type, core/central size and components from the visibility fan-in and
+     * fan-out, in the same way the core metrics script does. Files are expected in the script's order.
+     */
+    static Result classify(int[] vfi, int[] vfo) {
+        int n = vfi.length;
+        Result result = new Result();
+        result.fileCount = n;
+        result.vfi = vfi;
+        result.vfo = vfo;
+        result.componentM = new String[n];
+        if (n == 0) {
+            result.architectureType = "Hierarchical";
+            return result;
+        }
+
+        long sumVfo = 0;
+        for (int v : vfo)
+            sumVfo += v;
+        result.propagationCost = round(sumVfo * 100.0 / ((double) n * n), 3);
+
+        // Cyclic groups: runs of files with identical fan-in and fan-out (both > 1) once sorted by
+        // descending fan-in, then ascending fan-out. As in the script, a run is only closed by the next file.
+        Integer[] sorted = new Integer[n];
+        for (int i = 0; i < n; i++)
+            sorted[i] = i;
+        Arrays.sort(sorted, (a, b) -> vfi[a] != vfi[b] ? Integer.compare(vfi[b], vfi[a]) : Integer.compare(vfo[a], vfo[b]));
+
+        int[] group = new int[n];
+        List<int[]> groups = new ArrayList<>(); // {size, vfi, vfo}
+        int[] m = new int[n];
+        for (int counter = 0; counter < n; counter++) {
+            int file = sorted[counter];
+            int prev = counter > 0 ? sorted[counter - 1] : -1;
+            if (prev < 0 || vfi[file] == 1 || vfo[file] == 1 || vfi[file] != vfi[prev] || vfo[file] != vfo[prev])
+                m[counter] = 1;
+            else
+                m[counter] = m[counter - 1] + 1;
+
+            if (counter > 0 && m[counter] < m[counter - 1]) {
+                int length = m[counter - 1];
+                groups.add(new int[]{Math.min(length, Math.min(vfi[prev], vfo[prev])), vfi[prev], vfo[prev]});
+                for (int i = length; i >= 1; i--)
+                    group[sorted[counter - i]] = groups.size();
+            }
+        }
+
+        // Architecture type from the largest and second largest groups (ties go to the earlier group)
+        result.architectureType = "Hierarchical";
+        int coreGroup = 0;
+        if (!groups.isEmpty()) {
+            int largest = 0;
+            int second = -1;
+            for (int g = 1; g < groups.size(); g++) {
+                if (groups.get(g)[0] > groups.get(largest)[0]) {
+                    second = largest;
+                    largest = g;
+                } else if (second < 0 || groups.get(g)[0] > groups.get(second)[0]) {
+                    second = g;
+                }
+            }
+
+            int largestSize = groups.get(largest)[0];
+            if (largestSize >= n * .04) {
+                result.architectureType = "Multi-Core";
+                if (second < 0 || largestSize >= groups.get(second)[0] * 1.5)
+                    result.architectureType = "Borderline Core-Periphery";
+            }
+            if (largestSize >= n * .06)
+                result.architectureType = "Core-Periphery";
+
+            coreGroup = largest + 1;
+            result.coreSize = round(largestSize * 100.0 / n, 1);
+        }
+
+        // Median partition
+        double vfiMedian = median(vfi);
+        double vfoMedian = median(vfo);
+        int central = 0;
+        for (int i = 0; i < n; i++) {
+            result.componentM[i] = partition(vfi[i], vfo[i], vfiMedian, vfoMedian);
+            if (CORE.equals(result.componentM[i]))
+                central++;
+        }
+        result.centralSize = round(central * 100.0 / n, 1);
+
+        // Core-periphery partition around the largest group
+        if (coreGroup > 0) {
+            int vfiCore = groups.get(coreGroup - 1)[1];
+            int vfoCore = groups.get(coreGroup - 1)[2];
+            result.componentCP = new String[n];
+            for (int i = 0; i < n; i++) {
+                if (vfi[i] == 1 && vfo[i] == 1)
+                    result.componentCP[i] = ISOLATE;
+                else if (group[i] == coreGroup)
+                    result.componentCP[i] = CORE;
+                else if (vfi[i] >= vfiCore && vfo[i] < vfoCore)
+                    result.componentCP[i] = SHARED;
+                else if (vfi[i] < vfiCore && vfo[i] < vfoCore)
+                    result.componentCP[i] = PERIPHERAL;
+                else if (vfi[i] < vfiCore && vfo[i] >= vfoCore)
+                    result.componentCP[i] = CONTROL;
+                else
+                    result.componentCP[i] = SECONDARY;
+            }
+        }
+
+        return result;
+    }
+
+    private static String partition(int vfi, int vfo, double vfiMedian, double vfoMedian) {
+        if (vfi == 1 && vfo == 1)
+            return ISOLATE;
+        if (vfi >= vfiMedian && vfo < vfoMedian)
+            return SHARED;
+        if (vfi >= vfiMedian)
+            return CORE;
+        if (vfo < vfoMedian)
+            return PERIPHERAL;
+        return CONTROL;
+    }
+
+    private static double median(int[] values) {
+        int[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int len = sorted.length;
+        if (len % 2 == 1)
+            return sorted[len / 2];
+        return (sorted[len / 2 - 1] + sorted[len / 2]) / 2.0;
+    }
+
+    /**
+     * Round like Perl's sprintf: the exact binary value, ties to even.
+     */
+    static double round(double value, int decimals) {
+        return new BigDecimal(value).setScale(decimals, RoundingMode.HALF_EVEN).doubleValue();
+    }
+
+    /**
+     * Architecture metrics for one dependency graph.
+     */
+    public static class Result {
+
+        int fileCount;
+        double propagationCost;
+        String architectureType;
+        double coreSize;
+        double centralSize;
+        int[] vfi;
+        int[] vfo;
+        String[] componentM;
+        String[] componentCP;
+
+        public int getFileCount() {
+            return fileCount;
+        }
+
+        public double getPropagationCost() {
+            return propagationCost;
+        }
+
+        public String getArchitectureType() {
+            return architectureType;
+        }
+
+        public double getCoreSize() {
+            return coreSize;
+        }
+
+        public double getCentralSize() {
+            return centralSize;
+        }
+
+        /**
+         * @return the component the tree map shows for a file: core-periphery if there is a core group, median otherwise
+         */
+        public String getComponent(int file) {
+            return componentCP != null ? componentCP[file] : componentM[file];
+        }
+    }
+}
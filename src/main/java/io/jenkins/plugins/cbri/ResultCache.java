@@ -0,0 +1,191 @@
+package io.jenkins.plugins.cbri;
+
+import hudson.Util;
+import hudson.XmlFile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Analysis results stored on the controller, keyed by everything that determines them:
+ * the hash of the analyzed source tree, the language, the duplicate window, the core metrics script
+ * and the options that change how metrics are calculated.
+ * Rebuilding a revision that was already analyzed then costs a hash of the workspace instead of
+ * a full Understand run. Entries are evicted least recently used first once the cache outgrows its limit.
+ * The tree map of an entry is kept beside its action, in the same format as in build directories.
+ */
+public class ResultCache {
+
+    private static final Logger LOGGER = Logger.getLogger(ResultCache.class.getName());
+
+    protected static final String ACTION_FILE = "action.xml";
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong evictions = new AtomicLong();
+
+    private final File root;
+    private volatile long maxBytes;
+
+    public ResultCache(File root, long maxBytes) {
+        this.root = root;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Change the limit, which is enforced from the next entry stored.
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    public static long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the cache key for one analysis configuration of one source tree
+     */
+    public static String key(String treeHash, String language, int duplicateMinLines, String scriptDigest, String options) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String material = treeHash + '\n' + language + '\n' + duplicateMinLines + '\n' + scriptDigest + '\n' + options;
+            return Util.toHexString(digest.digest(material.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return a copy of the cached action, or null if there is none
+     */
+    public CbriAction get(String key) {
+        File entry = new File(root, key);
+        XmlFile file = new XmlFile(new File(entry, ACTION_FILE));
+        if (!file.exists()) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        try {
+            CbriAction action = (CbriAction) file.read();
+            action.today = new Date();
+            File treeMap = new File(entry, FileTreeMap.FILE_NAME);
+            if (treeMap.isFile()) {
+                try (InputStream in = new FileInputStream(treeMap)) {
+                    action.setTreeMap(FileTreeMap.read(in));
+                }
+            }
+            File fileMetrics = new File(entry, FileMetricsTable.FILE_NAME);
+            if (fileMetrics.isFile()) {
+                try (InputStream in = new FileInputStream(fileMetrics)) {
+                    action.setFileMetrics(FileMetricsTable.read(in));
+                }
+            }
+            entry.setLastModified(System.currentTimeMillis());
+            hits.incrementAndGet();
+            return action;
+        } catch (IOException | ClassCastException e) {
+            LOGGER.log(Level.WARNING, "Dropping unreadable CBRI cache entry " + entry, e);
+            delete(entry);
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Store the action under the key. Storing is best effort: a failure is logged rather than thrown, as the
+     * analysis itself succeeded. An entry already stored under the key, e.g. by a concurrent build of the
+     * same tree, holds the same results and is kept.
+     */
+    public void put(String key, CbriAction action) {
+        File entry = new File(root, key);
+        File staging = new File(root, key + ".tmp" + Thread.currentThread().getId());
+        try {
+            if (!staging.mkdirs() && !staging.isDirectory())
+                throw new IOException("Could not create " + staging);
+            new XmlFile(new File(staging, ACTION_FILE)).write(action);
+            FileTreeMap treeMap = action.getTreeMap();
+            if (treeMap != null)
+                CbriAction.saveTreeMap(treeMap, new File(staging, FileTreeMap.FILE_NAME));
+            FileMetricsTable fileMetrics = action.getFileMetrics();
+            if (fileMetrics != null)
+                CbriAction.saveFileMetrics(fileMetrics, new File(staging, FileMetricsTable.FILE_NAME));
+            if (!entry.isDirectory())
+                Files.move(staging.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Another build moved the same entry in first
+            if (!entry.isDirectory())
+                LOGGER.log(Level.WARNING, "Could not store CBRI cache entry " + entry, e);
+        } finally {
+            delete(staging);
+        }
+        evict();
+    }
+
+    /**
+     * Drop the least recently used entries until the cache fits in its limit again.
+     */
+    protected synchronized void evict() {
+        // Entries being written by other builds are not in the cache yet
+        File[] entries = root.listFiles(f -> f.isDirectory() && !f.getName().contains(".tmp"));
+        if (entries == null)
+            return;
+
+        List<File> ordered = new ArrayList<>(Arrays.asList(entries));
+        ordered.sort(Comparator.comparingLong(File::lastModified));
+        long total = 0;
+        long[] sizes = new long[ordered.size()];
+        for (int i = 0; i < ordered.size(); i++) {
+            sizes[i] = sizeOf(ordered.get(i));
+            total += sizes[i];
+        }
+
+        for (int i = 0; i < ordered.size() && total > maxBytes; i++) {
+            delete(ordered.get(i));
+            total -= sizes[i];
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static long sizeOf(File dir) {
+        long size = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files)
+                size += file.isDirectory() ? sizeOf(file) : file.length();
+        }
+        return size;
+    }
+
+    private static void delete(File dir) {
+        try {
+            Util.deleteRecursive(dir);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not delete " + dir, e);
+        }
+    }
+}
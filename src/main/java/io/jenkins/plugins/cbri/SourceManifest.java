@@ -0,0 +1,345 @@
+package io.jenkins.plugins.cbri;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A content hash of every source file Understand would analyze, keyed by path relative to the workspace,
+ * and the language the files were analyzed as. Comparing the manifest of the last analyzed tree with the
+ * current one tells us which files changed.
+ */
+public class SourceManifest {
+
+    protected static final String HEADER = "cbri-manifest 2";
+    protected static final String LANGUAGE = "language ";
+    protected static final String MANIFEST_FILE = "manifest.txt";
+    protected static final String PENDING_FILE = "manifest.pending";
+
+    private final String language;
+    private final SortedMap<String, String> hashes;
+
+    SourceManifest(String language, SortedMap<String, String> hashes) {
+        this.language = language;
+        this.hashes = hashes;
+    }
+
+    public int size() {
+        return hashes.size();
+    }
+
+    public String getLanguage() {
+        return language;
+    }
+
+    /**
+     * @return file extensions Understand picks up for the given language
+     */
+    protected static Set<String> extensionsFor(String language) {
+        String lang = language.trim().toUpperCase();
+        if (lang.equals("JAVA"))
+            return new HashSet<>(Arrays.asList("java"));
+        if (lang.equals("C#"))
+            return new HashSet<>(Arrays.asList("cs"));
+
+        // C and C++ are both handled by the C/C++ parser
+        return new HashSet<>(Arrays.asList("c", "h", "cc", "cpp", "cxx", "c++", "hh", "hpp", "hxx", "h++", "inl", "tcc"));
+    }
+
+    /**
+     * @return the source files of the language below the root. Hidden directories (e.g. .git) are skipped.
+     */
+    public static List<Path> listSources(File root, String language) throws IOException {
+
+        final Set<String> extensions = extensionsFor(language);
+        final Path rootPath = root.toPath();
+        final List<Path> files = new ArrayList<>();
+
+        Files.walkFileTree(rootPath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (!dir.equals(rootPath) && dir.getFileName().toString().startsWith("."))
+                    return FileVisitResult.SKIP_SUBTREE;
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                String name = file.getFileName().toString();
+                int dot = name.lastIndexOf('.');
+                if (attrs.isRegularFile() && dot > -1 && extensions.contains(name.substring(dot + 1).toLowerCase()))
+                    files.add(file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    /**
+     * Hash the source files below the root in parallel.
+     */
+    public static SourceManifest scan(File root, String language) throws IOException {
+
+        final Path rootPath = root.toPath();
+        final List<Path> files = listSources(root, language);
+        final Map<String, String> hashes = new ConcurrentHashMap<>();
+        try {
+            files.parallelStream().forEach(file -> {
+                String relative = rootPath.relativize(file).toString().replace('\\', '/');
+                hashes.put(relative, hashFile(file));
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        return new SourceManifest(language, new TreeMap<>(hashes));
+    }
+
+    private static String hashFile(Path file) {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0)
+                digest.update(buffer, 0, read);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @return a single hash over all paths and their contents
+     */
+    public String treeHash() {
+        MessageDigest digest = newDigest();
+        for (Map.Entry<String, String> entry : hashes.entrySet()) {
+            digest.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(entry.getValue().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Compare against the manifest of the previously analyzed tree. A tree analyzed as another language
+     * has no baseline, as the database holds what Understand made of it as that language.
+     */
+    public Delta diff(SourceManifest previous) {
+        Delta delta = new Delta();
+        delta.files = hashes.size();
+        delta.treeHash = treeHash();
+        if (previous == null || !previous.language.equals(language)) {
+            delta.baseline = false;
+            delta.previousLanguage = previous != null ? previous.language : null;
+            return delta;
+        }
+
+        delta.baseline = true;
+        for (Map.Entry<String, String> entry : hashes.entrySet()) {
+            String old = previous.hashes.get(entry.getKey());
+            if (old == null)
+                delta.added++;
+            else if (!old.equals(entry.getValue()))
+                delta.modified++;
+        }
+        for (String path : previous.hashes.keySet()) {
+            if (!hashes.containsKey(path))
+                delta.removed++;
+        }
+        return delta;
+    }
+
+    public void write(File file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(HEADER + " " + hashes.size());
+            writer.newLine();
+            writer.write(LANGUAGE + language);
+            writer.newLine();
+            for (Map.Entry<String, String> entry : hashes.entrySet()) {
+                writer.write(entry.getValue());
+                writer.write(' ');
+                writer.write(entry.getKey());
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * @return the stored manifest, or null if it is missing or does not parse
+     */
+    public static SourceManifest read(File file) {
+        if (!file.isFile())
+            return null;
+
+        SortedMap<String, String> hashes = new TreeMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if (header == null || !header.startsWith(HEADER + " "))
+                return null;
+            int expected = Integer.parseInt(header.substring(HEADER.length() + 1).trim());
+            String language = reader.readLine();
+            if (language == null || !language.startsWith(LANGUAGE))
+                return null;
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space != 40)
+                    return null;
+                hashes.put(line.substring(space + 1), line.substring(0, space));
+            }
+            if (hashes.size() != expected)
+                return null;
+            return new SourceManifest(language.substring(LANGUAGE.length()), hashes);
+        } catch (IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * What changed between two manifests.
+     */
+    public static class Delta implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /** false if there was no usable manifest to compare against */
+        boolean baseline;
+        /** the language of a manifest not compared against because it differs, null otherwise */
+        String previousLanguage;
+        String treeHash;
+        int files;
+        int added;
+        int removed;
+        int modified;
+
+        public boolean isUnchanged() {
+            return baseline && added == 0 && removed == 0 && modified == 0;
+        }
+
+        @Override
+        public String toString() {
+            if (!baseline && previousLanguage != null)
+                return files + " files, previously analyzed as " + previousLanguage;
+            if (!baseline)
+                return files + " files, no previous manifest";
+            return files + " files, " + added + " added, " + removed + " removed, " + modified + " modified";
+        }
+    }
+
+    /**
+     * Hash the analyzed source tree of a workspace on its node.
+     */
+    static class Hash extends MasterToSlaveFileCallable<String> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String language;
+
+        Hash(String language) {
+            this.language = language;
+        }
+
+        @Override
+        public String invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+            return scan(workspace, language).treeHash();
+        }
+    }
+
+    /**
+     * Scan a workspace on its node and compare it with the manifest kept in the state directory.
+     * The new manifest is left pending until {@link Commit} is called after a successful analysis.
+     */
+    static class Scan extends MasterToSlaveFileCallable<Delta> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String workspace;
+        private final String language;
+
+        Scan(String workspace, String language) {
+            this.workspace = workspace;
+            this.language = language;
+        }
+
+        @Override
+        public Delta invoke(File stateDir, VirtualChannel channel) throws IOException, InterruptedException {
+            SourceManifest current = scan(new File(workspace), language);
+            SourceManifest previous = read(new File(stateDir, MANIFEST_FILE));
+            current.write(new File(stateDir, PENDING_FILE));
+            return current.diff(previous);
+        }
+    }
+
+    /**
+     * Promote the pending manifest once the database reflects it, or drop the stored one
+     * so the next build starts from scratch.
+     */
+    static class Commit extends MasterToSlaveFileCallable<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final boolean success;
+
+        Commit(boolean success) {
+            this.success = success;
+        }
+
+        @Override
+        public Void invoke(File stateDir, VirtualChannel channel) throws IOException, InterruptedException {
+            Path pending = new File(stateDir, PENDING_FILE).toPath();
+            Path manifest = new File(stateDir, MANIFEST_FILE).toPath();
+            if (success) {
+                Files.move(pending, manifest, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.deleteIfExists(pending);
+                Files.deleteIfExists(manifest);
+            }
+            return null;
+        }
+    }
+}
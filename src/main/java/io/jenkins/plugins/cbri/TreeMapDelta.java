@@ -0,0 +1,189 @@
+package io.jenkins.plugins.cbri;
+
+import hudson.Util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The changes between two tree maps, sent to CBRI instead of the whole tree map when it already has the first.
+ *
+ * Rows are keyed by their full name. Both maps are sorted by key and merged, and each difference becomes
+ * one line of the delta: "+row" for an added row, "-row" for a removed one and "~row" (with the new values)
+ * for a row whose component, ULOC or violations changed. Rows use the components_str format.
+ *
+ * The base is named by {@link #digest}, taken over the canonical form of the tree map, so that the server
+ * can check it against the components it holds whatever order it stores them in.
+ */
+class TreeMapDelta {
+
+    /**
+     * Above this fraction of changed rows the full tree map is sent instead.
+     */
+    protected static final double MAX_CHANGED_FRACTION = 0.5;
+
+    final String text;
+    final int added;
+    final int removed;
+    final int changed;
+
+    private TreeMapDelta(String text, int added, int removed, int changed) {
+        this.text = text;
+        this.added = added;
+        this.removed = removed;
+        this.changed = changed;
+    }
+
+    /**
+     * @return true if the delta is small enough to be worth sending instead of the tree map
+     */
+    boolean isSmallerThan(FileTreeMap current) {
+        return added + removed + changed <= current.size() * MAX_CHANGED_FRACTION;
+    }
+
+    /**
+     * Compute the changes from base to current.
+     */
+    static TreeMapDelta diff(FileTreeMap base, FileTreeMap current) {
+        int[] left = sortedRows(base);
+        int[] right = sortedRows(current);
+        StringBuilder out = new StringBuilder();
+        int added = 0;
+        int removed = 0;
+        int changed = 0;
+
+        int i = 0;
+        int j = 0;
+        while (i < left.length || j < right.length) {
+            int order = i == left.length ? 1 : j == right.length ? -1
+                    : base.getFullName(left[i]).compareTo(current.getFullName(right[j]));
+            if (order < 0) {
+                line(out, '-', base, left[i++]);
+                removed++;
+            } else if (order > 0) {
+                line(out, '+', current, right[j++]);
+                added++;
+            } else {
+                // Rows sharing a key: the usual case is one on each side
+                int iEnd = endOfKey(base, left, i);
+                int jEnd = endOfKey(current, right, j);
+                if (iEnd - i == 1 && jEnd - j == 1) {
+                    if (compareRows(base, left[i], current, right[j]) != 0) {
+                        line(out, '~', current, right[j]);
+                        changed++;
+                    }
+                    i = iEnd;
+                    j = jEnd;
+                    continue;
+                }
+                while (i < iEnd || j < jEnd) {
+                    int c = i == iEnd ? 1 : j == jEnd ? -1 : compareRows(base, left[i], current, right[j]);
+                    if (c < 0) {
+                        line(out, '-', base, left[i++]);
+                        removed++;
+                    } else if (c > 0) {
+                        line(out, '+', current, right[j++]);
+                        added++;
+                    } else {
+                        i++;
+                        j++;
+                    }
+                }
+            }
+        }
+        return new TreeMapDelta(out.toString(), added, removed, changed);
+    }
+
+    /**
+     * The canonical form of a tree map is its components_str rows sorted by full name, then name, parent,
+     * ULOC and violations (strings compared by UTF-16 code unit, numbers as integers), each row followed
+     * by a newline. Two tree maps with the same rows have the same form, in whatever order they were written.
+     *
+     * @return the SHA-256 of the canonical form of the map, in hex
+     */
+    static String digest(FileTreeMap map) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder line = new StringBuilder(128);
+        for (int row : sortedRows(map)) {
+            line.setLength(0);
+            map.appendRow(row, line);
+            line.append('\n');
+            digest.update(line.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return Util.toHexString(digest.digest());
+    }
+
+    private static void line(StringBuilder out, char op, FileTreeMap map, int row) {
+        out.append(op);
+        map.appendRow(row, out);
+        out.append('\n');
+    }
+
+    private static int endOfKey(FileTreeMap map, int[] rows, int start) {
+        String key = map.getFullName(rows[start]);
+        int end = start + 1;
+        while (end < rows.length && map.getFullName(rows[end]).equals(key))
+            end++;
+        return end;
+    }
+
+    /**
+     * Order rows of two maps by full name, then name, parent, ULOC and violations.
+     */
+    private static int compareRows(FileTreeMap a, int ra, FileTreeMap b, int rb) {
+        int c = a.getFullName(ra).compareTo(b.getFullName(rb));
+        if (c == 0)
+            c = a.getName(ra).compareTo(b.getName(rb));
+        if (c == 0)
+            c = a.getParent(ra).compareTo(b.getParent(rb));
+        if (c == 0)
+            c = Integer.compare(a.getUloc(ra), b.getUloc(rb));
+        if (c == 0)
+            c = Integer.compare(a.getViolations(ra), b.getViolations(rb));
+        return c;
+    }
+
+    /**
+     * @return the rows of the map in the order of {@link #compareRows}
+     */
+    private static int[] sortedRows(FileTreeMap map) {
+        // Rank the distinct strings once, so sorting compares ints rather than strings
+        Integer[] byValue = new Integer[map.strings.length];
+        for (int s = 0; s < byValue.length; s++)
+            byValue[s] = s;
+        Arrays.sort(byValue, Comparator.comparing(s -> map.strings[s]));
+        int[] rank = new int[byValue.length];
+        for (int r = 0; r < byValue.length; r++) {
+            boolean same = r > 0 && map.strings[byValue[r]].equals(map.strings[byValue[r - 1]]);
+            rank[byValue[r]] = same ? rank[byValue[r - 1]] : r;
+        }
+
+        Integer[] rows = new Integer[map.size()];
+        for (int row = 0; row < rows.length; row++)
+            rows[row] = row;
+        Arrays.sort(rows, (x, y) -> {
+            int c = Integer.compare(rank[map.fullName[x]], rank[map.fullName[y]]);
+            if (c == 0)
+                c = Integer.compare(rank[map.name[x]], rank[map.name[y]]);
+            if (c == 0)
+                c = Integer.compare(rank[map.parent[x]], rank[map.parent[y]]);
+            if (c == 0)
+                c = Integer.compare(map.uloc[x], map.uloc[y]);
+            if (c == 0)
+                c = Integer.compare(map.violations[x], map.violations[y]);
+            return c;
+        });
+        int[] sorted = new int[rows.length];
+        for (int k = 0; k < rows.length; k++)
+            sorted[k] = rows[k];
+        return sorted;
+    }
+}
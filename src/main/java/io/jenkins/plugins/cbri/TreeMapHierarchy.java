@@ -0,0 +1,264 @@
+package io.jenkins.plugins.cbri;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The files of a {@link FileTreeMap} grouped by component, then by directory, with the number of files,
+ * useful lines of code and threshold violations of every group added up once. Groups and the files of each
+ * directory are ordered by ULOC, largest first, so a page of the largest is a slice.
+ *
+ * Files are kept as rows of the tree map rather than copied.
+ */
+public class TreeMapHierarchy {
+
+    public static final String SORT_ULOC = "uloc";
+    public static final String SORT_VIOLATIONS = "violations";
+
+    private static final Comparator<Group> BY_ULOC =
+            (a, b) -> a.uloc != b.uloc ? Long.compare(b.uloc, a.uloc) : a.name.compareTo(b.name);
+    private static final Comparator<Group> BY_VIOLATIONS =
+            (a, b) -> a.violations != b.violations ? Long.compare(b.violations, a.violations) : BY_ULOC.compare(a, b);
+
+    final FileTreeMap map;
+    final Group root;
+
+    private TreeMapHierarchy(FileTreeMap map, Group root) {
+        this.map = map;
+        this.root = root;
+    }
+
+    public static TreeMapHierarchy of(FileTreeMap map) {
+        Group root = new Group("Project", "");
+        Map<String, Group> components = new LinkedHashMap<>();
+        Map<Group, Map<String, Group>> directories = new LinkedHashMap<>();
+        Map<Group, IntList> rows = new LinkedHashMap<>();
+        for (int row = 0; row < map.size(); row++) {
+            if (!map.isFile(row))
+                continue;
+            Group component = components.computeIfAbsent(map.getParent(row), name -> new Group(name, name));
+            // Understand names files as the host it ran on does
+            String path = map.getFullName(row).replace('\\', '/');
+            int slash = path.lastIndexOf('/');
+            String dir = slash > 0 ? path.substring(0, slash) : "";
+            Group directory = directories.computeIfAbsent(component, c -> new LinkedHashMap<>())
+                    .computeIfAbsent(dir, d -> new Group(d.isEmpty() ? "/" : d, d));
+            rows.computeIfAbsent(directory, d -> new IntList()).add(row);
+
+            int uloc = map.getUloc(row);
+            int violations = map.getViolations(row);
+            for (Group group : new Group[]{root, component, directory}) {
+                group.files++;
+                group.uloc += uloc;
+                group.violations += violations;
+            }
+        }
+
+        root.children = sorted(components.values());
+        for (Map.Entry<Group, Map<String, Group>> entry : directories.entrySet()) {
+            entry.getKey().children = sorted(entry.getValue().values());
+            for (Group directory : entry.getKey().children) {
+                IntList files = rows.get(directory);
+                Integer[] order = new Integer[files.size];
+                for (int i = 0; i < order.length; i++)
+                    order[i] = files.values[i];
+                Arrays.sort(order, (a, b) -> map.getUloc(a) != map.getUloc(b) ? Integer.compare(map.getUloc(b), map.getUloc(a))
+                        : map.getFullName(a).compareTo(map.getFullName(b)));
+                directory.rows = new int[order.length];
+                for (int i = 0; i < order.length; i++)
+                    directory.rows[i] = order[i];
+            }
+        }
+        return new TreeMapHierarchy(map, root);
+    }
+
+    private static Group[] sorted(Iterable<Group> groups) {
+        List<Group> list = new ArrayList<>();
+        for (Group group : groups)
+            list.add(group);
+        list.sort(BY_ULOC);
+        return list.toArray(new Group[0]);
+    }
+
+    public Group getRoot() {
+        return root;
+    }
+
+    /**
+     * @return the group of the component, or of the directory within it if one is given; null if there is none
+     */
+    public Group find(String component, String directory) {
+        if (component == null)
+            return root;
+        Group group = child(root, component);
+        if (group == null || directory == null)
+            return group;
+        return child(group, directory);
+    }
+
+    private static Group child(Group parent, String path) {
+        for (Group child : parent.children) {
+            if (child.path.equals(path))
+                return child;
+        }
+        return null;
+    }
+
+    /**
+     * Write one level of the hierarchy: the group's totals and a page of its children, the components of the
+     * root, the directories of a component or the files of a directory.
+     *
+     * @param sort {@link #SORT_ULOC} or {@link #SORT_VIOLATIONS}, largest first
+     * @param top if positive, the children past this many are added up into a single "Other" entry, and paging is ignored
+     */
+    public void write(JsonGenerator json, Group group, String sort, int offset, int limit, int top) throws IOException {
+        boolean byViolations = SORT_VIOLATIONS.equals(sort);
+        boolean files = group.rows != null;
+        int count = files ? group.rows.length : group.children.length;
+        int start = top > 0 ? 0 : Math.max(0, Math.min(offset, count));
+        int end = top > 0 ? Math.min(top, count) : Math.min(count, start + Math.max(0, limit));
+
+        json.writeStartObject();
+        json.writeStringField("name", group.name);
+        json.writeStringField("path", group.path);
+        writeTotals(json, group.files, group.uloc, group.violations);
+        json.writeStringField("level", files ? "directory" : group == root ? "project" : "component");
+        json.writeStringField("sort", byViolations ? SORT_VIOLATIONS : SORT_ULOC);
+        json.writeNumberField("childCount", count);
+        json.writeNumberField("offset", start);
+        json.writeArrayFieldStart("children");
+        if (files) {
+            int[] rows = byViolations ? byViolations(group.rows) : group.rows;
+            for (int i = start; i < end; i++) {
+                int row = rows[i];
+                json.writeStartObject();
+                json.writeStringField("name", map.getName(row));
+                json.writeStringField("path", map.getFullName(row).replace('\\', '/'));
+                writeTotals(json, 1, map.getUloc(row), map.getViolations(row));
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+            if (top > 0 && end < count) {
+                long uloc = 0;
+                long violations = 0;
+                for (int i = end; i < count; i++) {
+                    uloc += map.getUloc(rows[i]);
+                    violations += map.getViolations(rows[i]);
+                }
+                writeOther(json, count - end, uloc, violations);
+            }
+        } else {
+            Group[] children = group.children;
+            if (byViolations) {
+                children = children.clone();
+                Arrays.sort(children, BY_VIOLATIONS);
+            }
+            for (int i = start; i < end; i++) {
+                json.writeStartObject();
+                json.writeStringField("name", children[i].name);
+                json.writeStringField("path", children[i].path);
+                writeTotals(json, children[i].files, children[i].uloc, children[i].violations);
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+            if (top > 0 && end < count) {
+                int others = 0;
+                long uloc = 0;
+                long violations = 0;
+                for (int i = end; i < count; i++) {
+                    others += children[i].files;
+                    uloc += children[i].uloc;
+                    violations += children[i].violations;
+                }
+                writeOther(json, others, uloc, violations);
+            }
+        }
+        json.writeEndObject();
+    }
+
+    private int[] byViolations(int[] rows) {
+        Integer[] order = new Integer[rows.length];
+        for (int i = 0; i < rows.length; i++)
+            order[i] = i;
+        // rows are already by ULOC, a stable sort keeps that order among equal violations
+        Arrays.sort(order, Comparator.comparingInt(i -> -map.getViolations(rows[i])));
+        int[] sorted = new int[rows.length];
+        for (int i = 0; i < rows.length; i++)
+            sorted[i] = rows[order[i]];
+        return sorted;
+    }
+
+    private static void writeTotals(JsonGenerator json, int files, long uloc, long violations) throws IOException {
+        json.writeNumberField("files", files);
+        json.writeNumberField("uloc", uloc);
+        json.writeNumberField("violations", violations);
+    }
+
+    private static void writeOther(JsonGenerator json, int files, long uloc, long violations) throws IOException {
+        json.writeObjectFieldStart("other");
+        writeTotals(json, files, uloc, violations);
+        json.writeEndObject();
+    }
+
+    /**
+     * A component or directory, with the totals of the files below it.
+     */
+    public static class Group {
+
+        final String name;
+        final String path;
+        int files;
+        long uloc;
+        long violations;
+        Group[] children = new Group[0];
+
+        /**
+         * The rows of the files of a directory, null for the project and components.
+         */
+        int[] rows;
+
+        Group(String name, String path) {
+            this.name = name;
+            this.path = path;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getFiles() {
+            return files;
+        }
+
+        public long getUloc() {
+            return uloc;
+        }
+
+        public long getViolations() {
+            return violations;
+        }
+
+        public List<Group> getChildren() {
+            return Collections.unmodifiableList(Arrays.asList(children));
+        }
+    }
+
+    private static class IntList {
+        int[] values = new int[8];
+        int size;
+
+        void add(int value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+    }
+}
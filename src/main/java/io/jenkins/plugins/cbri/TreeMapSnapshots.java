@@ -0,0 +1,86 @@
+package io.jenkins.plugins.cbri;
+
+import hudson.Util;
+import jenkins.model.Jenkins;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The last tree map successfully posted for each CBRI repository, so that later measurements can send
+ * a {@link TreeMapDelta} against it. Snapshots are kept in JENKINS_HOME/cbri-snapshots in the binary
+ * {@link FileTreeMap} format, one file per server and repository.
+ */
+public class TreeMapSnapshots {
+
+    private static final Logger LOGGER = Logger.getLogger(TreeMapSnapshots.class.getName());
+
+    private static TreeMapSnapshots instance;
+
+    private final File root;
+
+    public TreeMapSnapshots(File root) {
+        this.root = root;
+    }
+
+    /**
+     * @return the snapshots in JENKINS_HOME
+     */
+    public static synchronized TreeMapSnapshots get() {
+        if (instance == null)
+            instance = new TreeMapSnapshots(new File(Jenkins.get().getRootDir(), "cbri-snapshots"));
+        return instance;
+    }
+
+    /**
+     * @return the last tree map posted to the repository, or null if there is none or it cannot be read
+     */
+    public FileTreeMap load(String baseUrl, String repoId) {
+        File file = fileOf(baseUrl, repoId);
+        if (!file.isFile())
+            return null;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            return FileTreeMap.read(in);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Discarding unreadable CBRI tree map snapshot " + file, e);
+            discard(baseUrl, repoId);
+            return null;
+        }
+    }
+
+    public void save(String baseUrl, String repoId, FileTreeMap map) throws IOException {
+        if (!root.isDirectory() && !root.mkdirs())
+            throw new IOException("Could not create " + root);
+        CbriAction.saveTreeMap(map, fileOf(baseUrl, repoId));
+    }
+
+    /**
+     * Forget the snapshot, so that the next measurement sends its full tree map.
+     */
+    public void discard(String baseUrl, String repoId) {
+        try {
+            Files.deleteIfExists(fileOf(baseUrl, repoId).toPath());
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not delete CBRI tree map snapshot for " + repoId, e);
+        }
+    }
+
+    private File fileOf(String baseUrl, String repoId) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String material = baseUrl + '\n' + repoId;
+            return new File(root, Util.toHexString(digest.digest(material.getBytes(StandardCharsets.UTF_8))) + ".bin");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -2,21 +2,51 @@ package io.jenkins.plugins.cbri;
 
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Proc;
+import hudson.console.LineTransformationOutputStream;
 import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.StreamTaskListener;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * A wrapper to run the Understand application on the given files.
  */
 public class UnderstandWrapper {
 
+    /**
+     * Minimum number of lines the core metrics script counts as duplicated code.
+     */
+    protected static final int DUPLICATE_MIN_LINES = 10;
+
+    /**
+     * Environment variable set to a unique value for each process, to find it and its children.
+     */
+    protected static final String PROCESS_COOKIE = "CBRI_PROCESS_COOKIE";
+    protected static final long RSS_SAMPLE_MILLIS = 500;
+
     private String undPath;
     private String undPerl;
     private String pluginPath;
+    private boolean incremental = false;
+    private ResultCache cache;
+    private boolean externalClosure = false;
+    private boolean javaDuplicates = false;
+    private LicenseScheduler licenses;
+    private String licenseOwner;
+    private int licensePriority;
+    private AnalysisBudget budget = new AnalysisBudget();
 
     public UnderstandWrapper(String undPath, String undPerl, String pluginPath) {
 
@@ -26,76 +56,431 @@ public class UnderstandWrapper {
     }
 
     /**
+     * When set, the Understand database is kept next to the workspace between builds
+     * and only re-analyzed for the files that changed.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * When set, results are looked up by source tree hash before running any analysis,
+     * and stored there afterwards.
+     */
+    public void setCache(ResultCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * When set, the core metrics script only exports the file dependencies and the propagation cost
+     * and architecture metrics are computed by {@link PropagationCostEngine} instead.
+     */
+    public void setExternalClosure(boolean externalClosure) {
+        this.externalClosure = externalClosure;
+    }
+
+    /**
+     * When set, the core metrics script skips duplicate code detection and
+     * {@link DuplicateCodeDetector} counts duplicates in the files Understand analyzed instead.
+     */
+    public void setJavaDuplicates(boolean javaDuplicates) {
+        this.javaDuplicates = javaDuplicates;
+    }
+
+    /**
+     * When set, each analysis holds a slot of the scheduler while und and the core metrics script run.
      *
-     * @return true if this is a windows system
+     * @param owner names the analysis in the build log while it waits
+     * @param priority higher priorities get the next free license first
+     */
+    public void setLicenses(LicenseScheduler licenses, String owner, int priority) {
+        this.licenses = licenses;
+        this.licenseOwner = owner;
+        this.licensePriority = priority;
+    }
+
+    /**
+     * Stop phases that run past their budget, and run und and the core metrics script under its process limits.
      */
-    public boolean isWindows() {
+    public void setBudget(AnalysisBudget budget) {
+        this.budget = budget;
+    }
 
-        return System.getProperty("os.name").toLowerCase().startsWith("windows");
+    public AnalysisBudget getBudget() {
+        return budget;
     }
 
     /**
+     * Run und and the core metrics script on the node that owns the workspace,
+     * then parse the generated metrics there as well.
      *
      * @return Understand metrics if generated; an exception otherwise
      */
     public CbriAction runUnderstand(String language, FilePath workspace, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+        return analyze(language, workspace, workspace, workspace.sibling(workspace.getName() + "@cbri"), launcher, listener);
+    }
+
+    /**
+     * Analyze each module root of the workspace as its own Understand project, up to maxParallel at a time.
+     * Every shard has its own database and core metrics output below "cbri-shards" in the workspace,
+     * and its own incremental state below the "@cbri" directory.
+     *
+     * @return the merged action first, followed by the action of each module root in the order given
+     */
+    public List<CbriAction> runSharded(String language, FilePath workspace, List<String> moduleRoots, int maxParallel,
+                                       Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+
+        FilePath stateRoot = workspace.sibling(workspace.getName() + "@cbri");
+        FilePath shardRoot = workspace.child("cbri-shards");
+        List<FilePath> sourceDirs = new ArrayList<>();
+        for (String root : moduleRoots) {
+            FilePath sourceDir = workspace.child(root);
+            if (!sourceDir.isDirectory())
+                throw new IOException("Module root " + root + " is not a directory in the workspace");
+            sourceDirs.add(sourceDir);
+        }
+
+        int threads = Math.max(1, Math.min(maxParallel, moduleRoots.size()));
+        listener.getLogger().println("Analyzing " + moduleRoots.size() + " module roots, " + threads + " at a time");
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<CbriAction>> futures = new ArrayList<>();
+            for (int i = 0; i < moduleRoots.size(); i++) {
+                String root = moduleRoots.get(i);
+                String name = CbriAction.safeName(root);
+                FilePath sourceDir = sourceDirs.get(i);
+                TaskListener shardListener = new StreamTaskListener(
+                        new PrefixedLog(listener.getLogger(), "[" + root + "] "), StandardCharsets.UTF_8);
+                futures.add(executor.submit(() -> {
+                    FilePath outputDir = shardRoot.child(name);
+                    outputDir.mkdirs();
+                    CbriAction shard = analyze(language, sourceDir, outputDir, stateRoot.child(name), launcher, shardListener);
+                    shard.module = root;
+                    return shard;
+                }));
+            }
+
+            List<CbriAction> shards = new ArrayList<>();
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    shards.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException)
+                        throw new IOException("Analysis of module root " + moduleRoots.get(i) + " failed", cause);
+                    if (cause instanceof InterruptedException)
+                        throw (InterruptedException) cause;
+                    throw new IOException(cause);
+                }
+            }
+
+            List<CbriAction> actions = new ArrayList<>();
+            actions.add(new CbriMetrics().merge(shards));
+            actions.addAll(shards);
+            listener.getLogger().println("\tAnalyzed " + moduleRoots.size() + " module roots in " + elapsedMillis(start) + " ms");
+            return actions;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Analyze one source tree.
+     *
+     * @param outputDir holds the Understand database (unless incremental) and the core metrics output
+     * @param stateDir holds the incremental database and source manifest
+     */
+    protected CbriAction analyze(String language, FilePath sourceDir, FilePath outputDir, FilePath stateDir,
+                                 Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+
+        PhaseTimings timings = new PhaseTimings();
+        long phase = System.nanoTime();
+        SourceManifest.Delta delta = null;
+        if (incremental) {
+            stateDir.mkdirs();
+            delta = stateDir.act(new SourceManifest.Scan(sourceDir.getRemote(), language));
+            listener.getLogger().println("Source manifest: " + delta + " (" + elapsedMillis(phase) + " ms)");
+            phase = timings.end(PhaseTimings.SOURCE_MANIFEST, phase);
+        }
+
+        // Check for results of an identical source tree
+        String cacheKey = null;
+        if (cache != null) {
+            String treeHash = delta != null ? delta.treeHash : sourceDir.act(new SourceManifest.Hash(language));
+            String scriptDigest = new FilePath(launcher.getChannel(), pluginPath).digest();
+            String options = "externalClosure=" + externalClosure + ",javaDuplicates="
+                    + (javaDuplicates ? "v" + DuplicateCodeDetector.VERSION : "false");
+            cacheKey = ResultCache.key(treeHash, language, DUPLICATE_MIN_LINES, scriptDigest, options);
+            CbriAction cached = cache.get(cacheKey);
+            listener.getLogger().println("CBRI result cache " + (cached != null ? "hit" : "miss") + " for " + cacheKey
+                    + " (hits: " + ResultCache.getHits() + ", misses: " + ResultCache.getMisses() + ")");
+            phase = timings.end(PhaseTimings.CACHE_LOOKUP, phase);
+            if (cached != null) {
+                cached.timings = timings;
+                cached.language = language;
+                return cached;
+            }
+        }
+
+        // Wait for a license, held until the core metrics are written
+        LicenseScheduler.Slot slot = null;
+        if (licenses != null) {
+            slot = licenses.acquire(licenseOwner, licensePriority, listener);
+            phase = timings.end(PhaseTimings.LICENSE_WAIT, phase);
+        }
+        FilePath coreDir = outputDir.child("understand");
+        try {
+            // Perform analysis
+            FilePath undDb;
+            if (incremental) {
+                undDb = analyzeIncrementally(language, sourceDir, stateDir, delta, launcher, listener, timings);
+            } else {
+                undDb = outputDir.child("understand.udb");
+                long start = System.nanoTime();
+                ArgumentListBuilder undCommand = createCommand(language, sourceDir, undDb);
+                listener.getLogger().println(undCommand);
+                int exitCode = runCommand(undCommand, sourceDir, launcher, listener, timings, PhaseTimings.UND_ANALYZE);
+
+                if(exitCode != 0)
+                    throw new IOException("Understand analysis failed.");
+                else
+                    listener.getLogger().println("\tUnderstand analysis succeeded (full, " + elapsedMillis(start) + " ms)");
+            }
+            phase = timings.end(PhaseTimings.UND_ANALYZE, phase);
+
+            // Run core metrics
+            ArgumentListBuilder uperlCommand = createMetricsCommand(undDb, coreDir);
+            listener.getLogger().println(uperlCommand);
+            int exitCode = runCommand(uperlCommand, sourceDir, launcher, listener, timings, PhaseTimings.CORE_METRICS);
+
+            if(exitCode != 0)
+                throw new IOException("Understand core metrics failed.");
+            else
+                listener.getLogger().println("\tUnderstand core metrics succeeded");
+            phase = timings.end(PhaseTimings.CORE_METRICS, phase);
+        } finally {
+            if (slot != null)
+                slot.close();
+        }
+
+        // Read metrics in from a file and return the them
+        CbriAction action = loadMetrics(language, sourceDir, coreDir, stateDir, listener);
+        timings.end(PhaseTimings.PARSE, phase);
+        action.timings = timings;
+        action.language = language;
+        CbriStatistics.recordBytesRead(action.bytesRead);
+        CbriStatistics.recordPeakRss(timings.getPeakRssKb());
+
+        if (cache != null)
+            cache.put(cacheKey, action);
+
+        return action;
+    }
+
+    protected ArgumentListBuilder createCommand(String language, FilePath sourceDir, FilePath undDb) {
+        return new ArgumentListBuilder(undPath,
+                "-quiet", "create", "-languages", language,
+                "add", sourceDir.getRemote(),
+                "analyze", undDb.getRemote());
+    }
+
+    protected ArgumentListBuilder createMetricsCommand(FilePath undDb, FilePath coreDir) {
+        ArgumentListBuilder command = new ArgumentListBuilder(undPerl,
+                pluginPath, "-db", undDb.getRemote(),
+                "-createMetrics", "-DuplicateMinLines", String.valueOf(DUPLICATE_MIN_LINES), "-outputDir", coreDir.getRemote());
+        if (externalClosure)
+            command.add("-externalClosure");
+        if (javaDuplicates)
+            command.add("-skipDuplicates");
+        return command;
+    }
+
+    /**
+     * Parse the core metrics output on the node that holds it, then read back the tree map and
+     * file metrics it saved there.
+     */
+    protected CbriAction loadMetrics(String language, FilePath sourceDir, FilePath coreDir, FilePath stateDir,
+                                     TaskListener listener) throws IOException, InterruptedException {
+        CbriMetrics.LoadMetrics loader = new CbriMetrics.LoadMetrics(listener).withSourceRoot(sourceDir.getRemote());
+        if (javaDuplicates)
+            loader.withDuplicates(language);
+        if (incremental && externalClosure)
+            loader.withClosureSnapshot(stateDir.child(ClosureSnapshot.FILE_NAME).getRemote());
+        CbriAction action = budget.await(coreDir.actAsync(loader), PhaseTimings.PARSE, listener);
+        try (InputStream in = coreDir.child(FileTreeMap.FILE_NAME).read()) {
+            action.setTreeMap(FileTreeMap.read(in));
+        }
+        FilePath fileMetrics = coreDir.child(FileMetricsTable.FILE_NAME);
+        if (fileMetrics.exists()) {
+            try (InputStream in = fileMetrics.read()) {
+                action.setFileMetrics(FileMetricsTable.read(in));
+            }
+        }
+        return action;
+    }
 
-        // Perform analysis
-        String undDb = workspace + "/understand.udb";
-        String undCommand = undPath +
-        " -quiet create -languages " + language +
-        " add " + workspace +
-        " analyze " + undDb;
+    /**
+     * Reuse the database from the previous build, kept in the "@cbri" directory beside the workspace.
+     * Files are compared against the manifest of the last analyzed tree: modified files are re-analyzed,
+     * new files are picked up by re-adding the workspace, and anything else (no manifest, a missing
+     * database or deleted files) falls back to a full rebuild.
+     *
+     * @return the database to run the core metrics against
+     */
+    protected FilePath analyzeIncrementally(String language, FilePath workspace, FilePath stateDir, SourceManifest.Delta delta,
+                                            Launcher launcher, TaskListener listener, PhaseTimings timings) throws IOException, InterruptedException {
+
+        FilePath undDb = stateDir.child("understand.udb");
+        boolean full = !delta.baseline || delta.removed > 0 || !undDb.exists();
+        if (!full && delta.isUnchanged()) {
+            listener.getLogger().println("\tNo source changes, reusing Understand database " + undDb.getRemote());
+            stateDir.act(new SourceManifest.Commit(true));
+            return undDb;
+        }
+
+        ArgumentListBuilder undCommand;
+        if (full) {
+            undDb.deleteRecursive();
+            undCommand = createCommand(language, workspace, undDb);
+        } else {
+            undCommand = new ArgumentListBuilder(undPath, "-quiet");
+            if (delta.added > 0)
+                undCommand.add("add", workspace.getRemote());
+            undCommand.add("analyze", "-changed", undDb.getRemote());
+        }
+
+        long start = System.nanoTime();
         listener.getLogger().println(undCommand);
-        int exitCode = runCommand(undCommand, listener);
+        int exitCode = runCommand(undCommand, workspace, launcher, listener, timings, PhaseTimings.UND_ANALYZE);
+        stateDir.act(new SourceManifest.Commit(exitCode == 0));
 
         if(exitCode != 0)
             throw new IOException("Understand analysis failed.");
-        else
-            listener.getLogger().println("\tUnderstand analysis succeeded");
 
-        // Run core metrics
-        String coreDir = workspace + "/understand";
-        String uperlCommand = undPerl + " " +
-                pluginPath +  " -db " + undDb +
-                " -createMetrics -DuplicateMinLines 10 -outputDir " + coreDir;
-        listener.getLogger().println(uperlCommand);
-        exitCode = runCommand(uperlCommand, listener);
+        listener.getLogger().println("\tUnderstand analysis succeeded (" + (full ? "full" : "incremental")
+                + ", " + elapsedMillis(start) + " ms)");
+        return undDb;
+    }
 
-        if(exitCode != 0)
-            throw new IOException("Understand core metrics failed.");
-        else
-            listener.getLogger().println("\tUnderstand core metrics succeeded");
+    private static long elapsedMillis(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000000L;
+    }
 
-        // Read metrics in from a file and return the them
-        CbriMetrics metrics = new CbriMetrics();
-        return metrics.loadMetrics(coreDir, listener);
+    /**
+     * Run a command line process through the launcher and log the output from the process.
+     */
+    public int runCommand(ArgumentListBuilder command, FilePath pwd, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+        return runCommand(command, pwd, launcher, listener, null, null);
     }
 
     /**
-     * Run a command line process and log the output from the process.
+     * Run a command line process as above, sampling the memory of the process while it runs.
+     * The process is marked with a unique environment variable so that it and its children can be found,
+     * and killed with them if the build is aborted or the phase runs past its budget.
+     *
+     * @param timings if not null, receives the samples
+     * @param phase if not null, the phase whose budget and process limits apply
      */
-    public int runCommand(String command, TaskListener listener) throws IOException, InterruptedException {
+    public int runCommand(ArgumentListBuilder command, FilePath pwd, Launcher launcher, TaskListener listener,
+                          PhaseTimings timings, String phase) throws IOException, InterruptedException {
+
+        OutputMonitor out = new OutputMonitor(listener.getLogger());
+        OutputMonitor err = new OutputMonitor(listener.getLogger());
+        String cookie = UUID.randomUUID().toString();
+        long budgetMillis = phase != null ? budget.getMillis(phase) : 0;
+        long start = System.nanoTime();
+        int exitCode;
+        Proc proc = null;
+        try {
+            if (phase != null)
+                command = budget.limit(command, launcher.isUnix());
+            proc = launcher.launch().cmds(command).pwd(pwd).envs(PROCESS_COOKIE + "=" + cookie)
+                    .stdout(out).stderr(err).quiet(true).start();
+            boolean sample = timings != null && launcher.isUnix() && launcher.getChannel() != null;
+            if (sample || budgetMillis > 0) {
+                ProcessMemory memory = new ProcessMemory(PROCESS_COOKIE, cookie);
+                while (proc.isAlive()) {
+                    if (budgetMillis > 0 && elapsedMillis(start) > budgetMillis)
+                        throw budget.exceeded(phase, listener);
+                    if (sample)
+                        timings.sampleRss(launcher.getChannel().call(memory));
+                    Thread.sleep(RSS_SAMPLE_MILLIS);
+                }
+            }
+            exitCode = proc.join();
+        } finally {
+            // Aborted, out of budget or the agent channel failed: take down the whole tree, not only the process the launcher started
+            if (proc != null)
+                killIfAlive(proc, cookie, launcher, listener);
+            out.close();
+            err.close();
+        }
 
         //May say 'This license has expired.' while still returning error code 0. In this case, all is not well.
-        Process process = Runtime.getRuntime().exec(command);
-        int exitCode = process.waitFor();
+        if (out.sawLicenseMessage() || err.sawLicenseMessage())
+            exitCode = -1;
+
+        return exitCode;
+    }
 
-        String line;
-        BufferedReader error = new BufferedReader(new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8));
-        while((line = error.readLine()) != null){
-            listener.getLogger().println(line);
-            if(line.contains("license")) exitCode = -1;
+    /**
+     * Kill the process, if it is still running, and every process carrying its cookie, such as children
+     * that uperl or und left behind.
+     */
+    private static void killIfAlive(Proc proc, String cookie, Launcher launcher, TaskListener listener) {
+        try {
+            if (!proc.isAlive())
+                return;
+            proc.kill();
+            if (launcher.getChannel() != null)
+                launcher.getChannel().call(new KillProcesses(PROCESS_COOKIE, cookie));
+        } catch (IOException | InterruptedException e) {
+            listener.getLogger().println("Could not kill the processes of " + PROCESS_COOKIE + "=" + cookie + ": " + e);
         }
-        error.close();
+    }
+
+    /**
+     * Prefix each line written to the build log, so interleaved shard output stays readable.
+     */
+    static class PrefixedLog extends LineTransformationOutputStream {
+
+        private final PrintStream logger;
+        private final String prefix;
 
-        BufferedReader input = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
-        while((line=input.readLine()) != null){
-            listener.getLogger().println(line);
-            if(line.contains("license")) exitCode = -1;
+        PrefixedLog(PrintStream logger, String prefix) {
+            this.logger = logger;
+            this.prefix = prefix;
         }
-        input.close();
 
-        return exitCode;
+        @Override
+        protected void eol(byte[] b, int len) throws IOException {
+            logger.println(prefix + trimEOL(new String(b, 0, len, StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * Forward each line of process output to the build log as it arrives,
+     * remembering whether Understand complained about its license.
+     */
+    static class OutputMonitor extends LineTransformationOutputStream {
+
+        private final PrintStream logger;
+        private volatile boolean licenseMessage = false;
+
+        OutputMonitor(PrintStream logger) {
+            this.logger = logger;
+        }
+
+        @Override
+        protected void eol(byte[] b, int len) throws IOException {
+            String line = trimEOL(new String(b, 0, len, StandardCharsets.UTF_8));
+            logger.println(line);
+            if (line.contains("license")) licenseMessage = true;
+        }
+
+        boolean sawLicenseMessage() {
+            return licenseMessage;
+        }
     }
 }
@@ -0,0 +1,34 @@
+package io.jenkins.plugins.cbri;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CbriActionTest {
+
+    @Test
+    public void safeNamesOfDifferentModulesDiffer() {
+        assertEquals("core", CbriAction.safeName("core"));
+        assertEquals("web-ui_1.2", CbriAction.safeName("web-ui_1.2"));
+
+        String slash = CbriAction.safeName("a/b");
+        assertTrue(slash, slash.matches("a_b-[0-9a-f]{8}"));
+        assertEquals("a_b", CbriAction.safeName("a_b"));
+        assertNotEquals(slash, CbriAction.safeName("a\\b"));
+        // A module that looks like a changed name is changed too
+        assertNotEquals(slash, CbriAction.safeName(slash));
+    }
+
+    @Test
+    public void ifNoneMatchNamesTheTreeMapTag() {
+        String etag = "\"0123abcd\"";
+        assertTrue(CbriAction.matches(etag, etag));
+        assertTrue(CbriAction.matches("\"other\", W/" + etag, etag));
+        assertTrue(CbriAction.matches("*", etag));
+        assertFalse(CbriAction.matches("\"other\"", etag));
+        assertFalse(CbriAction.matches(null, etag));
+    }
+}
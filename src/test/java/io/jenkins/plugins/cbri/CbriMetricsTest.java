@@ -0,0 +1,155 @@
+package io.jenkins.plugins.cbri;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reading the core metrics output, and combining the actions of module roots with {@link CbriMetrics#merge}.
+ */
+public class CbriMetricsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void treeMapNamesMayHoldCommas() throws Exception {
+        File dir = folder.newFolder();
+        Files.write(new File(dir, "treemap.html").toPath(), ("<html>\n"
+                + "      google.charts.load('current', {'packages':['treemap']});\n"
+                + "          ['Node', 'Parent', 'Useful Lines', 'Threshold Violations', 'Full Name'],\n"
+                + "          ['Project',null,0,0,'Project'],\n"
+                + "          ['Core','Project',0,0,'Core'],\n"
+                + "          ['a,b.java','Core',120,3,'src/x,y/a,b.java'],\n"
+                + "          ['Plain.java','Core',45,0,'src/Plain.java'],\n"
+                + "          ['[gen] c.cs','Core',7,1,'src/[gen] c.cs'],\n"
+                + "\n").getBytes(StandardCharsets.UTF_8));
+
+        FileTreeMap treeMap = new CbriMetrics().readTreeMap(dir.getPath(), null);
+        assertEquals(5, treeMap.size());
+        assertEquals("a,b.java", treeMap.getName(2));
+        assertEquals("Core", treeMap.getParent(2));
+        assertEquals(120, treeMap.getUloc(2));
+        assertEquals(3, treeMap.getViolations(2));
+        assertEquals("src/x,y/a,b.java", treeMap.getFullName(2));
+        assertEquals("Plain.java", treeMap.getName(3));
+        assertEquals(45, treeMap.getUloc(3));
+        assertEquals("[gen]c.cs", treeMap.getName(4));
+        assertEquals("src/[gen]c.cs", treeMap.getFullName(4));
+    }
+
+    @Test
+    public void fileMetricsAreKeyedFromTheSourceRoot() throws Exception {
+        File dir = folder.newFolder();
+        File root = folder.newFolder("workspace");
+        String header = "Filename, LOC, UsefulLOC, DuplicateUsefulLOC, CommentToCodeRatio, UsefulCommentToCodeRatio, "
+                + "MaxCBO, MaxWMC, MaxWMC-McCabe, MaxRFC, Median Group, CP Group,Threshold Violations\n";
+        Files.write(new File(dir, CbriMetrics.FILE_METRICS).toPath(), (header
+                + "\"" + new File(root, "src/main/Parser.java").getPath() + "\",1530,1204,12,0.21,0.18,14,61,230,98,Core,Core,4\n"
+                + "\"src\\gen\\Lexer.java\",90,80,0,0.1,0.1,1,2,3,4,Periphery,Periphery,0\n"
+                + "\"" + new File(folder.getRoot(), "elsewhere/Util.java").getPath() + "\",10,8,0,0,0,0,0,0,0,Shared,Shared,0\n"
+                ).getBytes(StandardCharsets.UTF_8));
+
+        // The tree map lists none of these files, the keys must not depend on it
+        CbriMetrics metrics = new CbriMetrics();
+        metrics.setSourceRoot(root);
+        FileMetricsTable table = metrics.readFileMetrics(dir.getPath(), null, null, null);
+        assertEquals(3, table.size());
+        int parser = table.indexOf("src/main/Parser.java");
+        assertTrue(parser >= 0);
+        assertEquals(1204, table.getValue(parser, FileMetricsTable.ULOC));
+        assertTrue(table.indexOf("src/gen/Lexer.java") >= 0);
+        // Files outside the root keep their full name
+        assertTrue(table.indexOf(new File(folder.getRoot(), "elsewhere/Util.java").getPath().replace('\\', '/')) >= 0);
+    }
+
+    @Test
+    public void centralSizeComesFromEveryShard() {
+        CbriAction core = shard("Core-Periphery", 100, 40, 45);
+        CbriAction hierarchical = shard("Hierarchical", 1000, 10, 10);
+        CbriAction merged = new CbriMetrics().merge(Arrays.asList(core, hierarchical));
+
+        // The core of 40 files is too small against 1100 to make the whole core-periphery
+        assertEquals("Hierarchical", merged.architectureType);
+        // 45% of 100 files and 10% of 1000, not the 40% core size of the first
+        assertEquals(13.2, merged.centralSize, 0);
+        assertEquals(merged.centralSize, merged.coreSize, 0);
+        assertEquals(145, merged.numFilesInCore);
+    }
+
+    @Test
+    public void coreSizeOfACoreResultIsTheLargestCore() {
+        CbriAction core = shard("Core-Periphery", 100, 40, 45);
+        CbriAction hierarchical = shard("Hierarchical", 100, 10, 10);
+        CbriAction merged = new CbriMetrics().merge(Arrays.asList(core, hierarchical));
+
+        assertEquals("Core-Periphery", merged.architectureType);
+        assertEquals(20.0, merged.coreSize, 0);
+        assertEquals(27.5, merged.centralSize, 0);
+        assertEquals(40, merged.numFilesInCore);
+    }
+
+    @Test
+    public void peakMemoryOfShardsIsTheHighest() {
+        CbriAction first = shard("Hierarchical", 100, 10, 10);
+        first.timings = new PhaseTimings();
+        first.timings.sampleRss(300000);
+        CbriAction second = shard("Hierarchical", 100, 10, 10);
+        second.timings = new PhaseTimings();
+        second.timings.sampleRss(500000);
+        CbriAction unknown = shard("Hierarchical", 100, 10, 10);
+
+        CbriAction merged = new CbriMetrics().merge(Arrays.asList(first, second, unknown));
+        assertEquals(500000, merged.timings.getPeakRssKb());
+    }
+
+    @Test
+    public void bytesAreCountedAsTheyAreRead() throws Exception {
+        File dir = folder.newFolder();
+        byte[] treeMap = ("<html>\n"
+                + "          ['Project',null,0,0,'Project'],\n"
+                + "          ['Core','Project',0,0,'Core'],\n"
+                + "          ['Plain.java','Core',45,0,'src/Plain.java'],\n"
+                + "\n").getBytes(StandardCharsets.UTF_8);
+        Files.write(new File(dir, "treemap.html").toPath(), treeMap);
+
+        CbriMetrics metrics = new CbriMetrics();
+        metrics.readTreeMap(dir.getPath(), null);
+        assertEquals(treeMap.length, metrics.getBytesRead());
+        // Files the script did not write are not read
+        assertEquals(null, metrics.readFileMetrics(dir.getPath(), null, null, null));
+        assertEquals(treeMap.length, metrics.getBytesRead());
+    }
+
+    @Test
+    public void shardsWithoutCodeHaveNoDuplicatePercentage() {
+        CbriAction empty = shard("Hierarchical", 0, 0, 0);
+        empty.uloc = 0;
+        empty.duplicateUloc = 0;
+        CbriAction merged = new CbriMetrics().merge(Arrays.asList(empty, empty));
+
+        assertEquals(0.0, merged.percentDuplicateUloc, 0);
+        assertEquals(0.0, merged.coreSize, 0);
+    }
+
+    private static CbriAction shard(String architectureType, int numFiles, double coreSize, double centralSize) {
+        CbriAction shard = new CbriAction();
+        shard.architectureType = architectureType;
+        shard.core = architectureType.contains("Core-Periphery");
+        shard.numFiles = numFiles;
+        shard.coreSize = coreSize;
+        shard.centralSize = centralSize;
+        shard.numFilesInCore = (int) Math.round(numFiles * coreSize / 100.0);
+        shard.uloc = 1000;
+        shard.duplicateUloc = 50;
+        return shard;
+    }
+}
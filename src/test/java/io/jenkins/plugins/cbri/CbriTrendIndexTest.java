@@ -0,0 +1,69 @@
+package io.jenkins.plugins.cbri;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class CbriTrendIndexTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static CbriAction action(double propagationCost) {
+        CbriAction action = new CbriAction();
+        action.propagationCost = propagationCost;
+        action.architectureType = "Core-Periphery";
+        return action;
+    }
+
+    @Test
+    public void tornRecordIsCutOffBeforeTheNextAppend() throws IOException {
+        File file = new File(tmp.getRoot(), CbriTrendIndex.FILE_NAME);
+        CbriTrendIndex index = new CbriTrendIndex(file);
+        index.append(1, 1000, action(10));
+        index.append(2, 2000, action(20));
+        long whole = file.length();
+
+        // A crash in the middle of writing build 3
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[]{0, 0, 0, 3, 0, 0, 0});
+        }
+
+        CbriTrendIndex reloaded = new CbriTrendIndex(file);
+        assertEquals(2, reloaded.size());
+        assertEquals(whole, file.length());
+        reloaded.append(4, 4000, action(40));
+
+        List<CbriTrendIndex.Point> points = new CbriTrendIndex(file).downsample(0, Integer.MAX_VALUE, 10);
+        assertEquals(3, points.size());
+        assertEquals(4, points.get(2).getBuild());
+        assertEquals(40, points.get(2).getPropagationCost(), 0);
+        assertEquals("Core-Periphery", points.get(2).getArchitectureType());
+    }
+
+    @Test
+    public void removedBuildStaysRemoved() throws IOException {
+        File file = new File(tmp.getRoot(), CbriTrendIndex.FILE_NAME);
+        CbriTrendIndex index = new CbriTrendIndex(file);
+        for (int build = 1; build <= 5; build++)
+            index.append(build, build * 1000L, action(build));
+        index.remove(3);
+        index.remove(7);
+        assertEquals(4, index.size());
+
+        CbriTrendIndex reloaded = new CbriTrendIndex(file);
+        assertEquals(4, reloaded.size());
+        List<CbriTrendIndex.Point> points = reloaded.downsample(0, Integer.MAX_VALUE, 10);
+        assertEquals(4, points.get(2).getBuild());
+        assertEquals(4, points.get(2).getPropagationCost(), 0);
+        reloaded.append(6, 6000, action(6));
+        assertEquals(5, new CbriTrendIndex(file).size());
+    }
+}
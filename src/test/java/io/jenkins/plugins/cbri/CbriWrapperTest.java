@@ -0,0 +1,76 @@
+package io.jenkins.plugins.cbri;
+
+import hudson.model.TaskListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Posts measurements to a {@link StubCbriServer} and compares what the wrapper counts with what arrived.
+ */
+public class CbriWrapperTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StubCbriServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubCbriServer(1);
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void compressedMeasurementsAreCountedAsSent() throws Exception {
+        CbriWrapper wrapper = new CbriWrapper(server.getBaseUrl(), "user", "secret", "42", true);
+        wrapper.setCompress(true);
+        FileTreeMap treeMap = treeMap(1000, 0);
+        Map<String, String> measurement = wrapper.createMap(new CbriAction());
+        wrapper.postMeasurement(measurement, treeMap, null, TaskListener.NULL);
+
+        assertEquals(server.wireBytesReceived.get(), wrapper.bytesSent);
+        assertEquals(wrapper.measurementSize(measurement, treeMap), server.bytesReceived.get());
+        assertTrue(wrapper.bytesSent < server.bytesReceived.get() / 2);
+    }
+
+    @Test
+    public void deltasAreCountedAsSent() throws Exception {
+        CbriWrapper wrapper = new CbriWrapper(server.getBaseUrl(), "user", "secret", "42", true);
+        wrapper.setSnapshots(new TreeMapSnapshots(folder.newFolder("cbri-snapshots")));
+        Map<String, String> measurement = wrapper.createMap(new CbriAction());
+        FileTreeMap full = treeMap(1000, 0);
+        wrapper.postMeasurement(measurement, full, null, TaskListener.NULL);
+        long fullBytes = wrapper.bytesSent;
+        assertEquals(wrapper.measurementSize(measurement, full), fullBytes);
+
+        wrapper.postMeasurement(measurement, treeMap(1000, 1), null, TaskListener.NULL);
+        long deltaBytes = wrapper.bytesSent - fullBytes;
+        assertEquals(server.wireBytesReceived.get(), wrapper.bytesSent);
+        assertTrue(deltaBytes < fullBytes / 10);
+    }
+
+    /**
+     * @param changed the number of files whose size differs from the first tree map of this size
+     */
+    private static FileTreeMap treeMap(int files, int changed) {
+        FileTreeMap.Builder builder = new FileTreeMap.Builder();
+        builder.add(builder.intern("Project"), builder.intern("null"), 0, 0, builder.intern("Project"));
+        builder.add(builder.intern("Core"), builder.intern("Project"), 0, 0, builder.intern("Core"));
+        for (int i = 0; i < files; i++)
+            builder.add(builder.intern("File" + i + ".java"), builder.intern("Core"), i < changed ? i + 7 : i, i % 3,
+                    builder.intern("src/main/java/File" + i + ".java"));
+        return builder.build();
+    }
+}
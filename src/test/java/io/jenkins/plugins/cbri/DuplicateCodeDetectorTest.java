@@ -0,0 +1,212 @@
+package io.jenkins.plugins.cbri;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares {@link DuplicateCodeDetector} with the duplicate detection of the core metrics script, as run by
+ * duplicates/parity.pl with a lexer standing in for Understand's.
+ */
+public class DuplicateCodeDetectorTest {
+
+    private static final String SCRIPT = "core_metrics/CoreMetrics_v1.27.pl";
+
+    private static final String[] LINES = {
+        "int total = 0;",
+        "total += values[i];",
+        "for (int i = 0; i < values.length; i++) {",
+        "if (total > limit) {",
+        "return total;",
+        "}",
+        "{",
+        "});",
+        "",
+        "",
+        "0",
+        "// a comment on its own line",
+        "count++; // and one after code",
+        "/* a block comment */ count--;",
+        "/* a block comment",
+        "   that spans lines */ x = y;",
+        "String name = \"two  spaces, and a comma\";",
+        "String escaped = \"a \\\"quote\\\" and a \\\\\";",
+        "char c = '\\'';",
+        "String unterminated = \"runs to the end of the line;",
+        "string verbatim = @\"a \"\"verbatim\"\"",
+        "string that spans\";",
+        "import java.util.List;",
+        "#include <stdio.h>",
+        "Important = 1;",
+        "\tindented\twith\ttabs();",
+        "   trailing_spaces();   ",
+        "a=b+c;",
+        "a = b + c;",
+        "result.add(new Entry<>(key, value));",
+        "throw new IllegalStateException(\"unexpected \" + state);",
+        "$jquery.ready();",
+        "café = 1;",
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void matchesTheScriptOnTheCorpus() throws Exception {
+        File corpus = new File(getClass().getResource("duplicates/corpus").toURI());
+        List<Path> files = new ArrayList<>();
+        List<int[]> expected = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                getClass().getResourceAsStream("duplicates/expected.csv"), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#") || line.startsWith("file,"))
+                    continue;
+                String[] fields = line.split(",");
+                files.add(new File(corpus, fields[0]).toPath());
+                expected.add(new int[]{Integer.parseInt(fields[1]), Integer.parseInt(fields[2])});
+            }
+        }
+
+        int[] minLines = {10, 4};
+        for (int column = 0; column < minLines.length; column++) {
+            int[] want = new int[files.size()];
+            for (int f = 0; f < want.length; f++)
+                want[f] = expected.get(f)[column];
+            assertArrayEquals("DuplicateMinLines " + minLines[column], want,
+                    new DuplicateCodeDetector(minLines[column], CbriMetrics.DUPLICATE_MIN_CHARS).detect(files));
+        }
+    }
+
+    @Test
+    public void matchesTheScriptOnRandomSources() throws Exception {
+        File script = new File(System.getProperty("basedir", "."), SCRIPT);
+        Assume.assumeTrue("Needs perl and " + SCRIPT, script.isFile() && perlAvailable());
+
+        Random random = new Random(20240611L);
+        for (int round = 0; round < 40; round++) {
+            List<Path> files = randomSources(random, round);
+            int minLines = 2 + random.nextInt(9);
+            int minChars = 5 + random.nextInt(30);
+            assertArrayEquals("round " + round + ", " + minLines + " lines, " + minChars + " chars",
+                    runScript(script, files, minLines, minChars),
+                    new DuplicateCodeDetector(minLines, minChars).detect(files));
+        }
+    }
+
+    @Test
+    public void filesWithoutCodeHaveNoDuplicates() throws Exception {
+        File empty = folder.newFile("Empty.java");
+        File comment = folder.newFile("Comment.java");
+        Files.write(comment.toPath(), "/* only\n a comment\n */\n".getBytes(StandardCharsets.ISO_8859_1));
+        assertArrayEquals(new int[]{0, 0},
+                new DuplicateCodeDetector(2, 1).detect(Arrays.asList(empty.toPath(), comment.toPath())));
+        assertEquals(0, new DuplicateCodeDetector(10, 20).detect(new ArrayList<>()).length);
+    }
+
+    /**
+     * Files made of random lines, many of them copied in blocks from earlier files with their spacing and
+     * comments changed, so that there is plenty to match.
+     */
+    private List<Path> randomSources(Random random, int round) throws IOException {
+        File dir = folder.newFolder("round" + round);
+        List<List<String>> written = new ArrayList<>();
+        List<Path> files = new ArrayList<>();
+        int count = 2 + random.nextInt(6);
+        for (int f = 0; f < count; f++) {
+            List<String> lines = new ArrayList<>();
+            int length = random.nextInt(120);
+            while (lines.size() < length) {
+                if (!written.isEmpty() && random.nextInt(3) == 0) {
+                    List<String> source = written.get(random.nextInt(written.size()));
+                    if (source.isEmpty())
+                        continue;
+                    int from = random.nextInt(source.size());
+                    int to = Math.min(source.size(), from + 1 + random.nextInt(25));
+                    for (String line : source.subList(from, to))
+                        lines.add(mutate(line, random));
+                } else if (random.nextInt(4) == 0 && lines.size() > 0) {
+                    // Copy within the file
+                    int from = random.nextInt(lines.size());
+                    int to = Math.min(lines.size(), from + 1 + random.nextInt(15));
+                    for (String line : new ArrayList<>(lines.subList(from, to)))
+                        lines.add(mutate(line, random));
+                } else {
+                    lines.add(LINES[random.nextInt(LINES.length)]);
+                }
+            }
+            written.add(lines);
+            Path file = new File(dir, "File" + f + (random.nextBoolean() ? ".java" : ".cs")).toPath();
+            String text = String.join(random.nextInt(5) == 0 ? "\r\n" : "\n", lines);
+            if (random.nextBoolean())
+                text += "\n";
+            Files.write(file, text.getBytes(StandardCharsets.ISO_8859_1));
+            files.add(file);
+        }
+        return files;
+    }
+
+    private static String mutate(String line, Random random) {
+        switch (random.nextInt(12)) {
+            case 0:
+                return "    " + line + "  ";
+            case 1:
+                return line + " // changed";
+            case 2:
+                return line.replace(" ", "");
+            case 3:
+                return "/* inserted */ " + line;
+            default:
+                return line;
+        }
+    }
+
+    private int[] runScript(File script, List<Path> files, int minLines, int minChars) throws Exception {
+        List<String> command = new ArrayList<>(Arrays.asList("perl",
+                new File(getClass().getResource("duplicates/parity.pl").toURI()).getPath(),
+                "--lines", String.valueOf(minLines), "--chars", String.valueOf(minChars), script.getPath()));
+        for (Path file : files)
+            command.add(file.toString());
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        List<String> output = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null)
+                output.add(line);
+        }
+        assertEquals("parity.pl exit code", 0, process.waitFor());
+        assertEquals(files.size(), output.size());
+
+        int[] duplicates = new int[files.size()];
+        for (int f = 0; f < duplicates.length; f++)
+            duplicates[f] = Integer.parseInt(output.get(f).substring(output.get(f).lastIndexOf(',') + 1));
+        return duplicates;
+    }
+
+    private static boolean perlAvailable() {
+        try {
+            return new ProcessBuilder("perl", "-e", "1").start().waitFor() == 0;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package io.jenkins.plugins.cbri;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class FileMetricsDiffTest {
+
+    @Test
+    public void filesThatGotWorseAreListed() {
+        FileMetricsTable.Builder before = new FileMetricsTable.Builder();
+        file(before, "src/Kept.java", "Periphery", 1, 0);
+        file(before, "src/Parser.java", "Periphery", 3, 0);
+        file(before, "src/Lexer.java", "Periphery", 0, 0);
+        file(before, "src/Copy.java", "Shared", 0, 10);
+        file(before, "src/Gone.java", "Core", 9, 50);
+        file(before, "src/Complex.java", "Core", 5, 20);
+
+        FileMetricsTable.Builder after = new FileMetricsTable.Builder();
+        file(after, "src/Kept.java", "Periphery", 1, 0);
+        file(after, "src/Parser.java", "Periphery", 4, 0);
+        file(after, "src/Lexer.java", "Core", 0, 0);
+        file(after, "src/Copy.java", "Shared", 0, 12);
+        // Already as bad as it was, or better
+        file(after, "src/Complex.java", "Core", 4, 5);
+        file(after, "src/New.java", "Core", 7, 3);
+        file(after, "src/Clean.java", "Periphery", 0, 0);
+
+        FileMetricsDiff diff = FileMetricsDiff.compare(before.build(), after.build(), 41);
+        assertEquals(41, diff.getPreviousBuild());
+        assertEquals(2, diff.getAdded());
+        assertEquals(1, diff.getRemoved());
+
+        FileMetricsDiff.Change overlyComplex = diff.getChanges().get(0);
+        assertEquals("Became overly complex", overlyComplex.getTitle());
+        assertEquals(Arrays.asList("src/New.java", "src/Parser.java"), overlyComplex.getFiles());
+        assertEquals(2, overlyComplex.getCount());
+
+        FileMetricsDiff.Change joinedCore = diff.getChanges().get(1);
+        assertEquals("Joined the core", joinedCore.getTitle());
+        assertEquals(Arrays.asList("src/Lexer.java", "src/New.java"), joinedCore.getFiles());
+
+        FileMetricsDiff.Change gainedDuplicates = diff.getChanges().get(2);
+        assertEquals("Gained duplicate code", gainedDuplicates.getTitle());
+        assertEquals(Arrays.asList("src/Copy.java", "src/New.java"), gainedDuplicates.getFiles());
+    }
+
+    @Test
+    public void identicalTablesHaveNoChanges() {
+        FileMetricsTable.Builder table = new FileMetricsTable.Builder();
+        file(table, "src/Parser.java", "Core", 8, 30);
+        FileMetricsDiff diff = FileMetricsDiff.compare(table.build(), table.build(), 1);
+
+        assertEquals(0, diff.getAdded());
+        assertEquals(0, diff.getRemoved());
+        for (FileMetricsDiff.Change change : diff.getChanges()) {
+            assertEquals(0, change.getCount());
+            assertEquals(Collections.emptyList(), change.getFiles());
+        }
+    }
+
+    @Test
+    public void atMostMaxListedFilesAreListedButAllAreCounted() {
+        int files = FileMetricsDiff.MAX_LISTED + 25;
+        FileMetricsTable.Builder after = new FileMetricsTable.Builder();
+        for (int i = 0; i < files; i++)
+            file(after, String.format("src/File%03d.java", i), "Core", 4, 0);
+
+        FileMetricsDiff diff = FileMetricsDiff.compare(new FileMetricsTable.Builder().build(), after.build(), 1);
+        assertEquals(files, diff.getAdded());
+        for (FileMetricsDiff.Change change : diff.getChanges().subList(0, 2)) {
+            assertEquals(files, change.getCount());
+            assertEquals(FileMetricsDiff.MAX_LISTED, change.getFiles().size());
+            // In path order, the first ones
+            assertEquals("src/File000.java", change.getFiles().get(0));
+            assertEquals(String.format("src/File%03d.java", FileMetricsDiff.MAX_LISTED - 1),
+                    change.getFiles().get(FileMetricsDiff.MAX_LISTED - 1));
+        }
+        assertEquals(0, diff.getChanges().get(2).getCount());
+    }
+
+    private static void file(FileMetricsTable.Builder table, String path, String component, int violations,
+                             int duplicateUloc) {
+        int row = table.add(table.intern(path), table.intern(component), table.intern(component));
+        table.set(row, FileMetricsTable.ULOC, 100);
+        table.set(row, FileMetricsTable.VIOLATIONS, violations);
+        table.set(row, FileMetricsTable.DUPLICATE_ULOC, duplicateUloc);
+    }
+}
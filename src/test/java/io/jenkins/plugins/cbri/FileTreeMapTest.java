@@ -0,0 +1,179 @@
+package io.jenkins.plugins.cbri;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FileTreeMapTest {
+
+    private static final int HEADER = 5; // magic number and version
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readGivesBackWhatWasWritten() throws Exception {
+        FileTreeMap map = sample(500);
+        FileTreeMap copy = FileTreeMap.read(new ByteArrayInputStream(write(map)));
+
+        assertEquals(map.size(), copy.size());
+        for (int row = 0; row < map.size(); row++) {
+            assertEquals(map.getName(row), copy.getName(row));
+            assertEquals(map.getParent(row), copy.getParent(row));
+            assertEquals(map.getUloc(row), copy.getUloc(row));
+            assertEquals(map.getViolations(row), copy.getViolations(row));
+            assertEquals(map.getFullName(row), copy.getFullName(row));
+        }
+        assertEquals(map.toText(), copy.toText());
+    }
+
+    @Test
+    public void aChangedBodyFailsTheChecksum() throws Exception {
+        FileTreeMap map = sample(10);
+        byte[] bytes = write(map);
+        byte[] body = inflate(bytes);
+
+        // The last uloc, a one byte varint, ahead of the violations and full names and the checksum
+        body[body.length - 4 - 2 * map.size() - 1] ^= 0x02;
+        try {
+            FileTreeMap.read(new ByteArrayInputStream(deflate(bytes, body)));
+            fail("Read a tree map with a changed body");
+        } catch (IOException expected) {
+            assertEquals("CBRI tree map failed its checksum", expected.getMessage());
+        }
+    }
+
+    @Test
+    public void aFlippedByteNeverReadsAsOtherRows() throws Exception {
+        FileTreeMap map = sample(10);
+        byte[] bytes = write(map);
+        int read = 0;
+        for (int i = HEADER; i < bytes.length; i++) {
+            byte[] corrupt = bytes.clone();
+            corrupt[i] ^= 0x10;
+            try {
+                // Only the unused bits after the last deflate block may change
+                assertEquals(map.toText(), FileTreeMap.read(new ByteArrayInputStream(corrupt)).toText());
+                read++;
+            } catch (IOException expected) {
+                // refused
+            }
+        }
+        assertTrue(read <= 1);
+    }
+
+    @Test
+    public void aTruncatedFileIsNotRead() throws Exception {
+        byte[] bytes = write(sample(10));
+        for (int length = 0; length < bytes.length; length++)
+            assertUnreadable(Arrays.copyOf(bytes, length));
+    }
+
+    @Test
+    public void countsPastTheInputAreNotAllocated() throws Exception {
+        byte[] bytes = write(sample(1));
+        // The number of segments, then of strings, claims the most a varint holds
+        byte[] huge = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07};
+        assertUnreadable(deflate(bytes, huge));
+        byte[] hugeSegment = {1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07, 'a'};
+        assertUnreadable(deflate(bytes, hugeSegment));
+    }
+
+    @Test
+    public void textIsTheFormatOfEarlierBuilds() throws Exception {
+        File dir = folder.newFolder();
+        Files.write(new File(dir, "treemap.html").toPath(), ("<html>\n"
+                + "      google.charts.load('current', {'packages':['treemap']});\n"
+                + "          ['Node', 'Parent', 'Useful Lines', 'Threshold Violations', 'Full Name'],\n"
+                + "          ['Project',null,0,0,'Project'],\n"
+                + "          ['Core','Project',0,0,'Core'],\n"
+                + "          ['Periphery','Project',0,0,'Periphery'],\n"
+                + "          ['Parser.java','Core',1204,4,'src/main/java/Parser.java'],\n"
+                + "          ['Util.java','Periphery',45,0,'src/main/java/util/Util.java'],\n"
+                + "\n").getBytes(StandardCharsets.UTF_8));
+        // What builds recorded as text before the side file
+        String text = "Project,null,0,0,Project\n"
+                + "Core,Project,0,0,Core\n"
+                + "Periphery,Project,0,0,Periphery\n"
+                + "Parser.java,Core,1204,4,src/main/java/Parser.java\n"
+                + "Util.java,Periphery,45,0,src/main/java/util/Util.java\n";
+
+        FileTreeMap map = new CbriMetrics().readTreeMap(dir.getPath(), null);
+        assertEquals(text, map.toText());
+        assertEquals(text, FileTreeMap.read(new ByteArrayInputStream(write(map))).toText());
+
+        CbriAction action = new CbriAction();
+        action.setTreeMap(map);
+        assertEquals(text, action.getFileTreeMap());
+
+        CbriAction earlier = new CbriAction();
+        earlier.fileTreeMap = text;
+        assertEquals(text, earlier.getFileTreeMap());
+    }
+
+    private static void assertUnreadable(byte[] bytes) {
+        try {
+            FileTreeMap.read(new ByteArrayInputStream(bytes));
+            fail("Read a corrupt tree map of " + bytes.length + " bytes");
+        } catch (IOException expected) {
+            // refused
+        }
+    }
+
+    private static FileTreeMap sample(int files) {
+        FileTreeMap.Builder builder = new FileTreeMap.Builder();
+        builder.add(builder.intern("Project"), builder.intern("null"), 0, 0, builder.intern("Project"));
+        builder.add(builder.intern("Core"), builder.intern("Project"), 0, 0, builder.intern("Core"));
+        for (int i = 0; i < files; i++)
+            builder.add(builder.intern("File" + i + ".java"), builder.intern("Core"), i % 50, i % 3,
+                    builder.intern("src/main/java/pkg" + i % 7 + "/File" + i + ".java"));
+        return builder.build();
+    }
+
+    private static byte[] write(FileTreeMap map) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        map.write(bytes);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the body and checksum of a written tree map, inflated
+     */
+    private static byte[] inflate(byte[] bytes) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(bytes, HEADER, bytes.length - HEADER))) {
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                body.write(buffer, 0, n);
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * @return the header of a written tree map followed by the body, deflated
+     */
+    private static byte[] deflate(byte[] bytes, byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(bytes, 0, HEADER);
+        try (DeflaterOutputStream deflated = new DeflaterOutputStream(out)) {
+            deflated.write(body);
+        }
+        return out.toByteArray();
+    }
+}
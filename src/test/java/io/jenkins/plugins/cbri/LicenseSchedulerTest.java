@@ -0,0 +1,208 @@
+package io.jenkins.plugins.cbri;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.StreamTaskListener;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Soak and ordering tests of {@link LicenseScheduler}, with a fake und that fails as the real one does
+ * when no floating license is left.
+ */
+public class LicenseSchedulerTest {
+
+    /**
+     * A fake und with a floating license pool of its own: it takes a free one of the licenses in the
+     * directory of its first argument, holds it for as many seconds as its third argument, and otherwise
+     * complains about the license the way und does.
+     */
+    private static final String FAKE_UND = "#!/bin/sh\n"
+            + "i=0\n"
+            + "while [ $i -lt \"$2\" ]; do\n"
+            + "  if mkdir \"$1/$i\" 2>/dev/null; then\n"
+            + "    echo \"Analyzing on seat $i\"\n"
+            + "    sleep \"$3\"\n"
+            + "    rmdir \"$1/$i\"\n"
+            + "    exit 0\n"
+            + "  fi\n"
+            + "  i=$((i + 1))\n"
+            + "done\n"
+            + "echo \"Unable to check out a license\"\n"
+            + "exit 0\n";
+
+    private static final int LICENSES = 3;
+    private static final int BUILDS = 16;
+    private static final int ANALYSES_PER_BUILD = 4;
+    private static final int ABORTED_BUILDS = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Many builds share fewer licenses than they would use at once. With the scheduler in front of und none
+     * of them runs out of licenses, and builds aborted while waiting or holding a slot give it back.
+     */
+    @Test(timeout = 120000)
+    public void concurrentBuildsWaitInsteadOfFailing() throws Exception {
+        Assume.assumeTrue("Needs a POSIX shell", File.pathSeparatorChar == ':');
+        File und = folder.newFile("und");
+        Files.write(und.toPath(), FAKE_UND.getBytes(StandardCharsets.UTF_8));
+        assertTrue(und.setExecutable(true));
+        File pool = folder.newFolder("licenses");
+
+        LicenseScheduler scheduler = new LicenseScheduler();
+        scheduler.setLimit(LICENSES);
+        AtomicInteger succeeded = new AtomicInteger();
+        AtomicInteger peak = new AtomicInteger();
+        List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch start = new CountDownLatch(1);
+
+        List<Thread> builds = new ArrayList<>();
+        for (int b = 0; b < BUILDS; b++) {
+            String owner = "job" + (b % 5) + " #" + b;
+            int priority = b % 3;
+            builds.add(new Thread(() -> {
+                ByteArrayOutputStream log = new ByteArrayOutputStream();
+                TaskListener listener = new StreamTaskListener(log, StandardCharsets.UTF_8);
+                try {
+                    start.await();
+                    for (int a = 0; a < ANALYSES_PER_BUILD; a++) {
+                        try (LicenseScheduler.Slot slot = scheduler.acquire(owner, priority, listener)) {
+                            peak.accumulateAndGet(scheduler.getInUse(), Math::max);
+                            ArgumentListBuilder command = new ArgumentListBuilder(und.getPath(), pool.getPath(),
+                                    String.valueOf(LICENSES), "0.05");
+                            int exitCode = new UnderstandWrapper("und", "uperl", "").runCommand(command,
+                                    new FilePath(folder.getRoot()), new Launcher.LocalLauncher(listener), listener);
+                            if (exitCode == 0)
+                                succeeded.incrementAndGet();
+                            else
+                                failures.add(owner + ": " + new String(log.toByteArray(), StandardCharsets.UTF_8));
+                        }
+                    }
+                } catch (Exception e) {
+                    failures.add(owner + ": " + e);
+                }
+            }, owner));
+        }
+
+        // Builds aborted while they wait or while they hold a slot
+        List<Thread> aborted = new ArrayList<>();
+        AtomicInteger interrupted = new AtomicInteger();
+        for (int b = 0; b < ABORTED_BUILDS; b++) {
+            String owner = "aborted #" + b;
+            aborted.add(new Thread(() -> {
+                try {
+                    start.await();
+                    try (LicenseScheduler.Slot slot = scheduler.acquire(owner, 0, TaskListener.NULL)) {
+                        Thread.sleep(TimeUnit.MINUTES.toMillis(5));
+                    }
+                } catch (InterruptedException e) {
+                    interrupted.incrementAndGet();
+                }
+            }, owner));
+        }
+
+        for (Thread build : builds)
+            build.start();
+        for (Thread build : aborted)
+            build.start();
+        start.countDown();
+        Thread.sleep(200);
+        for (Thread build : aborted)
+            build.interrupt();
+        for (Thread build : builds)
+            build.join();
+        for (Thread build : aborted)
+            build.join();
+
+        assertEquals(failures.toString(), 0, failures.size());
+        assertEquals(BUILDS * ANALYSES_PER_BUILD, succeeded.get());
+        assertEquals(ABORTED_BUILDS, interrupted.get());
+        assertTrue("peak of " + peak.get(), peak.get() <= LICENSES);
+        assertEquals(0, scheduler.getInUse());
+        assertEquals(0, scheduler.getQueueLength());
+    }
+
+    @Test(timeout = 30000)
+    public void higherPriorityFirstThenInOrder() throws Exception {
+        LicenseScheduler scheduler = new LicenseScheduler();
+        scheduler.setLimit(1);
+        LicenseScheduler.Slot held = scheduler.acquire("holder", 0, TaskListener.NULL);
+
+        List<String> served = Collections.synchronizedList(new ArrayList<>());
+        String[] owners = {"low 1", "high 1", "low 2", "high 2", "normal"};
+        int[] priorities = {0, 5, 0, 5, 2};
+        List<Thread> waiters = new ArrayList<>();
+        for (int w = 0; w < owners.length; w++) {
+            String owner = owners[w];
+            int priority = priorities[w];
+            Thread waiter = new Thread(() -> {
+                try (LicenseScheduler.Slot slot = scheduler.acquire(owner, priority, TaskListener.NULL)) {
+                    served.add(owner);
+                } catch (InterruptedException e) {
+                    served.add(owner + " interrupted");
+                }
+            });
+            waiters.add(waiter);
+            waiter.start();
+            // Queue them one after the other
+            while (scheduler.getQueueLength() < w + 1)
+                Thread.sleep(1);
+        }
+
+        held.close();
+        for (Thread waiter : waiters)
+            waiter.join();
+        assertEquals("[high 1, high 2, normal, low 1, low 2]", served.toString());
+        held.close();
+        assertEquals(0, scheduler.getInUse());
+    }
+
+    @Test(timeout = 30000)
+    public void interruptedWaiterLeavesTheQueue() throws Exception {
+        LicenseScheduler scheduler = new LicenseScheduler();
+        scheduler.setLimit(1);
+        LicenseScheduler.Slot held = scheduler.acquire("holder", 0, TaskListener.NULL);
+
+        AtomicInteger interrupted = new AtomicInteger();
+        Thread waiter = new Thread(() -> {
+            try {
+                scheduler.acquire("waiter", 10, TaskListener.NULL).close();
+            } catch (InterruptedException e) {
+                interrupted.incrementAndGet();
+            }
+        });
+        waiter.start();
+        while (scheduler.getQueueLength() == 0)
+            Thread.sleep(1);
+        waiter.interrupt();
+        waiter.join();
+
+        assertEquals(1, interrupted.get());
+        assertEquals(0, scheduler.getQueueLength());
+        assertEquals(1, scheduler.getInUse());
+        held.close();
+        // The next caller gets the slot at once
+        scheduler.acquire("next", 0, TaskListener.NULL).close();
+        assertEquals(0, scheduler.getInUse());
+    }
+}
@@ -0,0 +1,239 @@
+package io.jenkins.plugins.cbri;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the counts of {@link LiteAnalyzer} with the useful line and useful comment counting of the core
+ * metrics script, as run by lite/parity.pl with a lexer standing in for Understand's.
+ */
+public class LiteAnalyzerTest {
+
+    private static final String SCRIPT = "core_metrics/CoreMetrics_v1.27.pl";
+
+    private static final String[] LINES = {
+        "int total = 0;",
+        "total += values[i];",
+        "for (int i = 0; i < values.length; i++) {",
+        "if (total > limit) {",
+        "return total;",
+        "}",
+        "{",
+        "});",
+        "( ) ;",
+        "",
+        "String path = \"//not a comment\";",
+        "char slash = '/';",
+        "String s = \"/* nor this */\";",
+        "// Add up the values until the limit is reached",
+        "// total += values[i];",
+        "// if (total > limit) {",
+        "// ok",
+        "//",
+        "/* Sum of the values */",
+        "/**",
+        " * Returns the total of the values, at most the limit.",
+        " * for (int i = 0; i < n; i++)",
+        " * @return the total",
+        " */",
+        "/* Copyright (c) 2024 Example Corp. */",
+        "// Licensed under the MIT License",
+        "return total; // the running total",
+        "} /* end of the loop */",
+        "/* before */ total++;",
+        "#include <stdio.h>",
+        "// #define LIMIT 10",
+        "class Sum {",
+        "public static void main(String[] args) {",
+        "\tvalues[0] =\t1;",
+    };
+
+    /**
+     * Verbatim strings, which may run over lines.
+     */
+    private static final String[] CSHARP_LINES = {
+        "string template = @\"Name = \"\"{0}\"\"",
+        "Value = {1}\";",
+        "{ @\"",
+        "\");",
+        "var path = @\"C:\\temp\\\";",
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void matchesTheScriptOnTheCorpus() throws Exception {
+        File script = new File(System.getProperty("basedir", "."), SCRIPT);
+        Assume.assumeTrue("Needs perl and " + SCRIPT, script.isFile() && perlAvailable());
+
+        File corpus = new File(getClass().getResource("duplicates/corpus").toURI());
+        File[] files = corpus.listFiles();
+        assertTrue(files != null && files.length > 0);
+        Arrays.sort(files);
+        List<Path> paths = new ArrayList<>();
+        for (File file : files)
+            paths.add(file.toPath());
+        assertCountsMatch("corpus", paths, runScript(script, paths));
+    }
+
+    @Test
+    public void matchesTheScriptOnRandomSources() throws Exception {
+        File script = new File(System.getProperty("basedir", "."), SCRIPT);
+        Assume.assumeTrue("Needs perl and " + SCRIPT, script.isFile() && perlAvailable());
+
+        Random random = new Random(20240618L);
+        for (int round = 0; round < 40; round++) {
+            List<Path> files = randomSources(random, round);
+            assertCountsMatch("round " + round, files, runScript(script, files));
+        }
+    }
+
+    @Test
+    public void countsClassDeclarations() throws Exception {
+        File dir = folder.newFolder("src");
+        write(new File(dir, "Shapes.java"), "package shapes;\n\n"
+                + "public class Shape {\n"
+                + "    interface Visitor<T> { T visit(Shape shape); }\n"
+                + "    enum Kind { ROUND, SQUARE }\n"
+                + "    Class<?> type = Shape.class;\n"
+                + "    String name = \"class Fake {\";\n"
+                + "    // class Commented {\n"
+                + "}\n");
+        write(new File(dir, "shapes.cpp"), "struct Point { int x, y; };\n"
+                + "class Circle : public Shape {\n"
+                + "};\n"
+                + "enum class Color { RED };\n"
+                + "class Forward;\n");
+
+        assertEquals(3, new LiteAnalyzer("Java").analyze(dir).getClasses());
+        // Point, Circle and the scoped enum Color
+        assertEquals(3, new LiteAnalyzer("C++").analyze(dir).getClasses());
+    }
+
+    @Test
+    public void walksSubdirectoriesAndSkipsHiddenOnes() throws Exception {
+        File dir = folder.newFolder("workspace");
+        write(new File(dir, "A.java"), "class A {\n    int a;\n}\n");
+        write(new File(dir, "deep/er/B.java"), "// The B class\nclass B {\n}\n");
+        write(new File(dir, ".git/C.java"), "class C {\n}\n");
+        write(new File(dir, "notes.txt"), "class D {\n}\n");
+
+        LiteAnalyzer.Counts counts = new LiteAnalyzer("Java").analyze(dir);
+        assertEquals(2, counts.getFiles());
+        assertEquals(5, counts.getLoc());
+        assertEquals(3, counts.getUloc());
+        assertEquals(1, counts.getUsefulComments());
+        assertEquals(2, counts.getClasses());
+
+        CbriAction action = LiteAnalyzer.toAction(counts);
+        assertTrue(action.isApproximate());
+        assertEquals(3, action.getUloc());
+        assertEquals(33.3, action.getUsefulCommentDensity(), 0);
+        assertEquals(-1, action.getPropagationCost(), 0);
+    }
+
+    private void assertCountsMatch(String message, List<Path> files, List<long[]> expected) throws IOException {
+        assertEquals(message, files.size(), expected.size());
+        for (int f = 0; f < files.size(); f++) {
+            Path file = files.get(f);
+            String name = file.getFileName().toString();
+            LiteAnalyzer analyzer = new LiteAnalyzer(name.endsWith(".java") ? "Java" : name.endsWith(".cs") ? "C#" : "C");
+            LiteAnalyzer.Counts counts = analyzer.analyzeFile(file, Files.size(file));
+            String where = message + ", " + name;
+            assertEquals(where + " LOC", expected.get(f)[0], counts.getLoc());
+            assertEquals(where + " ULOC", expected.get(f)[1], counts.getUloc());
+            assertEquals(where + " useful comments", expected.get(f)[2], counts.getUsefulComments());
+        }
+    }
+
+    /**
+     * Files made of random lines of code and comments, some of them indented or run together, so that
+     * comments are grouped in every way the script groups them.
+     */
+    private List<Path> randomSources(Random random, int round) throws IOException {
+        File dir = folder.newFolder("round" + round);
+        String[] extensions = {".java", ".cs", ".c", ".cpp"};
+        List<Path> files = new ArrayList<>();
+        int count = 2 + random.nextInt(6);
+        for (int f = 0; f < count; f++) {
+            String extension = extensions[random.nextInt(extensions.length)];
+            List<String> lines = new ArrayList<>();
+            int length = random.nextInt(120);
+            while (lines.size() < length) {
+                String line = extension.equals(".cs") && random.nextInt(8) == 0
+                        ? CSHARP_LINES[random.nextInt(CSHARP_LINES.length)] : LINES[random.nextInt(LINES.length)];
+                switch (random.nextInt(10)) {
+                    case 0:
+                        line = "    " + line + "  ";
+                        break;
+                    case 1:
+                        line = line + " " + LINES[random.nextInt(LINES.length)];
+                        break;
+                    default:
+                        break;
+                }
+                lines.add(line);
+            }
+            Path file = new File(dir, "File" + f + extension).toPath();
+            String text = String.join(random.nextInt(5) == 0 ? "\r\n" : "\n", lines);
+            if (random.nextBoolean())
+                text += "\n";
+            Files.write(file, text.getBytes(StandardCharsets.ISO_8859_1));
+            files.add(file);
+        }
+        return files;
+    }
+
+    private List<long[]> runScript(File script, List<Path> files) throws Exception {
+        List<String> command = new ArrayList<>(Arrays.asList("perl",
+                new File(getClass().getResource("lite/parity.pl").toURI()).getPath(), script.getPath()));
+        for (Path file : files)
+            command.add(file.toString());
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        List<long[]> counts = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(",");
+                int n = fields.length;
+                counts.add(new long[]{Long.parseLong(fields[n - 3]), Long.parseLong(fields[n - 2]), Long.parseLong(fields[n - 1])});
+            }
+        }
+        assertEquals("parity.pl exit code", 0, process.waitFor());
+        return counts;
+    }
+
+    private static void write(File file, String text) throws IOException {
+        assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static boolean perlAvailable() {
+        try {
+            return new ProcessBuilder("perl", "-e", "1").start().waitFor() == 0;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package io.jenkins.plugins.cbri;
+
+import hudson.model.TaskListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drains a {@link MeasurementOutbox} into a {@link StubCbriServer}.
+ */
+public class MeasurementOutboxTest {
+
+    private static final String REPO = "42";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StubCbriServer server;
+    private MeasurementOutbox outbox;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubCbriServer(2);
+        outbox = new MeasurementOutbox(folder.newFolder("cbri-outbox"));
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void buildsOfTheSameRevisionAreUploadedSeparately() throws Exception {
+        assertNotEquals(MeasurementOutbox.idempotencyKey(server.getBaseUrl(), REPO, "a/job#1", "abc"),
+                MeasurementOutbox.idempotencyKey(server.getBaseUrl(), REPO, "b/job#1", "abc"));
+        assertNotEquals(MeasurementOutbox.idempotencyKey("http://one/api", REPO, "a/job#1", "abc"),
+                MeasurementOutbox.idempotencyKey("http://two/api", REPO, "a/job#1", "abc"));
+
+        enqueue("a/job#1", "abc");
+        enqueue("b/job#1", "abc");
+        enqueue("a/job#2#core", "abc");
+        assertEquals(3, outbox.getQueueDepth());
+
+        outbox.drain(TaskListener.NULL);
+        assertEquals(0, outbox.getQueueDepth());
+        assertEquals(3, server.measurements.get());
+        assertEquals(0, server.duplicates.get());
+    }
+
+    @Test
+    public void aRepeatedUploadIsDropped() throws Exception {
+        enqueue("a/job#1", "abc");
+        outbox.drain(TaskListener.NULL);
+        enqueue("a/job#1", "abc");
+        outbox.drain(TaskListener.NULL);
+
+        assertEquals(0, outbox.getQueueDepth());
+        assertEquals(1, server.measurements.get());
+        assertEquals(1, server.duplicates.get());
+    }
+
+    @Test
+    public void queueingAgainDuringAnUploadKeepsTheNewEntry() throws Exception {
+        server.setLatency(400, 0);
+        enqueue("a/job#1", "abc");
+        Thread drain = new Thread(() -> {
+            try {
+                outbox.drain(TaskListener.NULL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        drain.start();
+        // Queued again well inside the same second as the entry being uploaded
+        Thread.sleep(200);
+        enqueue("a/job#1", "abc");
+        drain.join();
+
+        // The first upload must not delete the new entry; the drain posts it too and the server recognizes it
+        assertEquals(1, server.measurements.get());
+        assertEquals("uploads of the entry queued during the first", 1, server.duplicates.get());
+        assertEquals(0, outbox.getQueueDepth());
+    }
+
+    @Test
+    public void failedUploadsWaitForTheirBackoff() throws Exception {
+        server.setErrorRate(1);
+        enqueue("a/job#1", "abc");
+        outbox.drain(TaskListener.NULL);
+        outbox.drain(TaskListener.NULL);
+
+        assertEquals(1, server.errors.get());
+        assertEquals(1, outbox.getQueueDepth());
+        assertTrue(new File(folder.getRoot(), "cbri-outbox").isDirectory());
+    }
+
+    @Test
+    public void uploadsAreCountedAsSent() throws Exception {
+        FileTreeMap.Builder builder = new FileTreeMap.Builder();
+        builder.add(builder.intern("Project"), builder.intern("null"), 0, 0, builder.intern("Project"));
+        for (int i = 0; i < 100; i++)
+            builder.add(builder.intern("File" + i + ".java"), builder.intern("Project"), i, 0,
+                    builder.intern("src/File" + i + ".java"));
+        Map<String, String> measurement = new HashMap<>();
+        measurement.put("revision_id", "abc");
+        outbox.enqueue(server.getBaseUrl(), "user", "secret", REPO, "a/job#1", measurement, builder.build(), true,
+                false, TaskListener.NULL);
+
+        long before = new CbriStatistics().getBytesUploaded();
+        outbox.drain(TaskListener.NULL);
+        assertEquals(1, server.measurements.get());
+        assertEquals(server.wireBytesReceived.get(), new CbriStatistics().getBytesUploaded() - before);
+        assertTrue(server.wireBytesReceived.get() < server.bytesReceived.get());
+    }
+
+    private void enqueue(String origin, String revision) throws Exception {
+        Map<String, String> measurement = new HashMap<>();
+        measurement.put("revision_id", revision);
+        measurement.put("date", "2024-06-11T12:00:00Z");
+        outbox.enqueue(server.getBaseUrl(), "user", "secret", REPO, origin, measurement, null, false, false,
+                TaskListener.NULL);
+    }
+}
@@ -0,0 +1,393 @@
+package io.jenkins.plugins.cbri;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the bitset closure of {@link PropagationCostEngine#analyze} against a search from every file and
+ * against the core metrics script, as run by closure/parity.pl, and {@link PropagationCostEngine#update}
+ * against a full analysis after random edits.
+ */
+public class PropagationCostEngineTest {
+
+    private static final String SCRIPT = "core_metrics/CoreMetrics_v1.27.pl";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void closureMatchesASearchFromEveryFile() {
+        Random random = new Random(20240619L);
+        for (int round = 0; round < 200; round++) {
+            Graph graph = Graph.random(random, random.nextInt(300));
+            DependencyGraph built = graph.build();
+            PropagationCostEngine.Result result = PropagationCostEngine.analyze(built);
+
+            int n = built.size();
+            int[] vfi = new int[n];
+            int[] vfo = new int[n];
+            searchEveryFile(built, vfi, vfo);
+            assertArrayEquals("round " + round + " fan-out", vfo, result.vfo);
+            assertArrayEquals("round " + round + " fan-in", vfi, result.vfi);
+        }
+    }
+
+    @Test
+    public void resultMatchesTheScript() throws Exception {
+        File script = new File(SCRIPT);
+        Assume.assumeTrue("Needs perl and " + SCRIPT, script.isFile() && perlAvailable());
+
+        Random random = new Random(20240621L);
+        int compared = 0;
+        int rounds = 60;
+        for (int round = 0; round < rounds; round++) {
+            DependencyGraph built = Graph.random(random, 1 + random.nextInt(60)).build();
+            File dependencies = write(built);
+            // As CbriMetrics reads what the script exports
+            PropagationCostEngine.Result result = PropagationCostEngine.analyze(DependencyGraph.read(new FileInputStream(dependencies)));
+            List<String> output = runScript(script, dependencies, built.size());
+            if (output == null)
+                continue;
+            compared++;
+            String message = "round " + round;
+
+            String[] project = output.get(0).split(",", -1);
+            assertEquals(message, Double.parseDouble(project[0]), result.getPropagationCost(), 0);
+            assertEquals(message, project[1], result.getArchitectureType());
+            assertEquals(message, Double.parseDouble(project[2]), result.getCoreSize(), 0);
+            assertEquals(message, Double.parseDouble(project[3]), result.getCentralSize(), 0);
+            for (int v = 0; v < built.size(); v++) {
+                String expected = output.get(v + 1);
+                String actual = String.join(",", built.files[v], String.valueOf(result.vfi[v]),
+                        String.valueOf(result.vfo[v]), result.componentM[v],
+                        result.componentCP != null ? result.componentCP[v] : "");
+                assertEquals(message + " file " + v, expected, actual);
+            }
+        }
+        assertTrue("the script only ran on " + compared + " of " + rounds + " graphs", compared > rounds / 2);
+    }
+
+    @Test
+    public void libraryDependenciesOnlyMarkTheFirstFile() {
+        // 1 -> 2, and 2 depends on a library file: 1 and 2 see file 0 but not what it depends on, 3
+        Graph graph = new Graph();
+        for (int i = 0; i < 4; i++)
+            graph.add("src/File" + i + ".java", i);
+        graph.dependencies.get("src/File0.java").add("src/File3.java");
+        graph.dependencies.get("src/File1.java").add("src/File2.java");
+        graph.libraries.add("src/File2.java");
+        PropagationCostEngine.Result result = PropagationCostEngine.analyze(graph.build());
+
+        assertArrayEquals(new int[]{2, 3, 2, 1}, result.vfo);
+        assertArrayEquals(new int[]{3, 1, 2, 2}, result.vfi);
+    }
+
+    @Test
+    public void updateMatchesFullRecomputationAfterRandomEdits() throws IOException {
+        Random random = new Random(20240620L);
+        int updated = 0;
+        int edits = 0;
+        for (int sequence = 0; sequence < 20; sequence++) {
+            Graph graph = Graph.random(random, 50 + random.nextInt(400));
+            DependencyGraph built = graph.build();
+            ClosureSnapshot snapshot = new ClosureSnapshot(built, PropagationCostEngine.analyze(built));
+            for (int step = 0; step < 25; step++, edits++) {
+                graph.edit(random);
+                built = graph.build();
+                PropagationCostEngine.Result full = PropagationCostEngine.analyze(built);
+                PropagationCostEngine.Result incremental = PropagationCostEngine.update(roundTrip(snapshot), built);
+                if (incremental != null) {
+                    assertSameResult("sequence " + sequence + ", step " + step, full, incremental);
+                    updated++;
+                }
+                // Carry the incremental result forward, so that any error would build up
+                snapshot = new ClosureSnapshot(built, incremental != null ? incremental : full);
+            }
+        }
+        assertTrue("only " + updated + " of " + edits + " edits were updated incrementally", updated > edits / 2);
+    }
+
+    @Test
+    public void unchangedGraphKeepsItsResult() {
+        Graph graph = Graph.random(new Random(7), 500);
+        DependencyGraph built = graph.build();
+        PropagationCostEngine.Result full = PropagationCostEngine.analyze(built);
+        PropagationCostEngine.Result incremental = PropagationCostEngine.update(new ClosureSnapshot(built, full), graph.build());
+        assertNotNull(incremental);
+        assertSameResult("unchanged", full, incremental);
+    }
+
+    @Test
+    public void changesReachingEveryFileFallBackToTheFullAnalysis() {
+        // A chain in which every file depends on the last
+        Graph graph = new Graph();
+        for (int i = 0; i < 2000; i++) {
+            graph.add("src/File" + i + ".java", i);
+            if (i > 0)
+                graph.dependencies.get("src/File" + (i - 1) + ".java").add("src/File" + i + ".java");
+        }
+        DependencyGraph built = graph.build();
+        ClosureSnapshot snapshot = new ClosureSnapshot(built, PropagationCostEngine.analyze(built));
+
+        graph.dependencies.get("src/File1999.java").add("src/File0.java");
+        assertNull(PropagationCostEngine.update(snapshot, graph.build()));
+    }
+
+    private static void assertSameResult(String message, PropagationCostEngine.Result expected,
+                                         PropagationCostEngine.Result actual) {
+        assertArrayEquals(message + " fan-in", expected.vfi, actual.vfi);
+        assertArrayEquals(message + " fan-out", expected.vfo, actual.vfo);
+        assertEquals(message, expected.getFileCount(), actual.getFileCount());
+        assertEquals(message, expected.getPropagationCost(), actual.getPropagationCost(), 0);
+        assertEquals(message, expected.getArchitectureType(), actual.getArchitectureType());
+        assertEquals(message, expected.getCoreSize(), actual.getCoreSize(), 0);
+        assertEquals(message, expected.getCentralSize(), actual.getCentralSize(), 0);
+        for (int v = 0; v < expected.getFileCount(); v++)
+            assertEquals(message + " file " + v, expected.getComponent(v), actual.getComponent(v));
+    }
+
+    /**
+     * @return the graph in the format the script exports
+     */
+    private File write(DependencyGraph graph) throws IOException {
+        File dependencies = new File(folder.newFolder(), DependencyGraph.DEPENDENCIES_FILE);
+        try (PrintWriter out = new PrintWriter(dependencies, "UTF-8")) {
+            out.println("Files," + graph.size());
+            for (String file : graph.files)
+                out.println(file);
+            out.println("Dependencies," + graph.edgeCount());
+            for (int v = 0; v < graph.size(); v++) {
+                for (int e = graph.offsets[v]; e < graph.offsets[v + 1]; e++)
+                    out.println(v + "," + graph.targets[e]);
+            }
+            out.println("External," + graph.external.length);
+            for (int v : graph.external)
+                out.println(v);
+        }
+        return dependencies;
+    }
+
+    /**
+     * @return the lines parity.pl printed, or null if the script failed on this graph
+     */
+    private List<String> runScript(File script, File dependencies, int files) throws Exception {
+        Process process = new ProcessBuilder(Arrays.asList("perl",
+                new File(getClass().getResource("closure/parity.pl").toURI()).getPath(), script.getPath(),
+                dependencies.getPath())).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        List<String> output = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null)
+                output.add(line);
+        }
+        int exitCode = process.waitFor();
+        if (exitCode == 3)
+            return null;
+        assertEquals("parity.pl exit code", 0, exitCode);
+        assertEquals(files + 1, output.size());
+        return output;
+    }
+
+    private static boolean perlAvailable() {
+        try {
+            return new ProcessBuilder("perl", "-e", "1").start().waitFor() == 0;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static ClosureSnapshot roundTrip(ClosureSnapshot snapshot) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        snapshot.write(out);
+        return ClosureSnapshot.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    /**
+     * A file that sees a file with a library dependency also sees file 0, the column the script marks for it.
+     */
+    private static void searchEveryFile(DependencyGraph graph, int[] vfi, int[] vfo) {
+        int n = graph.size();
+        boolean[] library = new boolean[n];
+        for (int v : graph.external)
+            library[v] = true;
+        int[] seen = new int[n];
+        int[] stack = new int[n];
+        for (int v = 0; v < n; v++) {
+            int stamp = v + 1;
+            int sp = 0;
+            boolean seesLibrary = false;
+            stack[sp++] = v;
+            seen[v] = stamp;
+            while (sp > 0) {
+                int u = stack[--sp];
+                vfo[v]++;
+                vfi[u]++;
+                seesLibrary |= library[u];
+                for (int e = graph.offsets[u]; e < graph.offsets[u + 1]; e++) {
+                    int t = graph.targets[e];
+                    if (seen[t] != stamp) {
+                        seen[t] = stamp;
+                        stack[sp++] = t;
+                    }
+                }
+            }
+            if (seesLibrary && seen[0] != stamp) {
+                vfo[v]++;
+                vfi[0]++;
+            }
+        }
+    }
+
+    /**
+     * A dependency graph by file name, in the order of its files, and the files that depend on a library file.
+     */
+    private static class Graph {
+
+        private final List<String> files = new ArrayList<>();
+        private final Map<String, Set<String>> dependencies = new HashMap<>();
+        private final Set<String> libraries = new HashSet<>();
+        private int nextName;
+
+        /**
+         * Mostly short dependencies on nearby files, with some cycles and some files everyone uses.
+         */
+        static Graph random(Random random, int size) {
+            Graph graph = new Graph();
+            for (int i = 0; i < size; i++)
+                graph.add(graph.newName(), i);
+            for (int i = 0; i < size; i++) {
+                int degree = random.nextInt(4);
+                for (int d = 0; d < degree; d++)
+                    graph.link(random, i);
+                if (random.nextInt(8) == 0)
+                    graph.libraries.add(graph.files.get(i));
+            }
+            return graph;
+        }
+
+        String newName() {
+            return "src/module" + nextName % 7 + "/File" + nextName++ + ".java";
+        }
+
+        void add(String file, int position) {
+            files.add(position, file);
+            dependencies.put(file, new LinkedHashSet<>());
+        }
+
+        void link(Random random, int from) {
+            int n = files.size();
+            int to;
+            if (random.nextInt(10) == 0)
+                to = random.nextInt(Math.min(n, 5)); // widely used
+            else
+                to = Math.max(0, Math.min(n - 1, from + random.nextInt(21) - 10));
+            dependencies.get(files.get(from)).add(files.get(to));
+        }
+
+        /**
+         * Change a few dependencies, add, remove or rename a file, or give or take away a library dependency.
+         */
+        void edit(Random random) {
+            int n = files.size();
+            switch (random.nextInt(8)) {
+                case 0:
+                    add(newName(), random.nextInt(n + 1));
+                    link(random, files.size() - 1);
+                    break;
+                case 1:
+                    if (n > 1) {
+                        String removed = files.remove(random.nextInt(n));
+                        dependencies.remove(removed);
+                        libraries.remove(removed);
+                        for (Set<String> targets : dependencies.values())
+                            targets.remove(removed);
+                    }
+                    break;
+                case 2:
+                    if (n > 0) {
+                        // A renamed file keeps its dependencies and dependents
+                        int position = random.nextInt(n);
+                        String old = files.get(position);
+                        String renamed = newName();
+                        files.set(position, renamed);
+                        dependencies.put(renamed, dependencies.remove(old));
+                        if (libraries.remove(old))
+                            libraries.add(renamed);
+                        for (Set<String> targets : dependencies.values()) {
+                            if (targets.remove(old))
+                                targets.add(renamed);
+                        }
+                    }
+                    break;
+                case 3:
+                    if (n > 0) {
+                        String file = files.get(random.nextInt(n));
+                        if (!libraries.remove(file))
+                            libraries.add(file);
+                    }
+                    break;
+                default:
+                    for (int changes = 1 + random.nextInt(3); changes > 0 && n > 0; changes--) {
+                        Set<String> targets = dependencies.get(files.get(random.nextInt(n)));
+                        if (!targets.isEmpty() && random.nextBoolean())
+                            targets.remove(targets.iterator().next());
+                        else
+                            link(random, random.nextInt(n));
+                    }
+            }
+        }
+
+        DependencyGraph build() {
+            Map<String, Integer> index = new HashMap<>();
+            for (int i = 0; i < files.size(); i++)
+                index.put(files.get(i), i);
+            int edges = 0;
+            for (Set<String> targets : dependencies.values())
+                edges += targets.size();
+            int[] sources = new int[edges];
+            int[] destinations = new int[edges];
+            int e = 0;
+            for (int i = 0; i < files.size(); i++) {
+                for (String target : dependencies.get(files.get(i))) {
+                    sources[e] = i;
+                    destinations[e++] = index.get(target);
+                }
+            }
+            int[] external = new int[libraries.size()];
+            int l = 0;
+            for (String library : libraries)
+                external[l++] = index.get(library);
+            return DependencyGraph.fromEdges(files.toArray(new String[0]), sources, destinations, edges, external);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package io.jenkins.plugins.cbri;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class QuantileSketchTest {
+
+    private static final int N = 100000;
+    private static final double[] FRACTIONS = {0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99};
+
+    /**
+     * The bound of the class comment, 1.65% of the count at k 200 over all ranks.
+     */
+    private static final double RANK_ERROR = 0.0165;
+
+    @Test
+    public void quantilesOfAShuffledStreamAreWithinTheRankError() {
+        int[] values = shuffled(N, new Random(42));
+        QuantileSketch sketch = new QuantileSketch();
+        for (int value : values)
+            sketch.update(value);
+
+        assertEquals(N, sketch.getCount());
+        assertEquals(0, sketch.getMin());
+        assertEquals(N - 1, sketch.getMax());
+        assertWithinRankError(sketch);
+    }
+
+    @Test
+    public void mergedSketchesAreWithinTheRankErrorOfOneSketch() {
+        int[] values = shuffled(N, new Random(7));
+        QuantileSketch single = new QuantileSketch();
+        QuantileSketch[] shards = new QuantileSketch[8];
+        for (int i = 0; i < shards.length; i++)
+            shards[i] = new QuantileSketch();
+        for (int i = 0; i < values.length; i++) {
+            single.update(values[i]);
+            shards[i % shards.length].update(values[i]);
+        }
+        QuantileSketch merged = new QuantileSketch();
+        for (QuantileSketch shard : shards)
+            merged.merge(shard);
+
+        assertEquals(single.getCount(), merged.getCount());
+        assertEquals(single.getMin(), merged.getMin());
+        assertEquals(single.getMax(), merged.getMax());
+        assertWithinRankError(merged);
+        for (double fraction : FRACTIONS)
+            assertEquals(single.quantile(fraction), merged.quantile(fraction), 2 * RANK_ERROR * N);
+    }
+
+    @Test
+    public void serializationKeepsTheQuantiles() throws Exception {
+        QuantileSketch sketch = new QuantileSketch();
+        for (int value : shuffled(N, new Random(3)))
+            sketch.update(value);
+        QuantileSketch copy = (QuantileSketch) deserialize(serialize(sketch));
+
+        assertEquals(sketch.getCount(), copy.getCount());
+        assertEquals(sketch.getMin(), copy.getMin());
+        assertEquals(sketch.getMax(), copy.getMax());
+        for (double fraction : FRACTIONS)
+            assertEquals(sketch.quantile(fraction), copy.quantile(fraction));
+
+        // The copy goes on as a sketch
+        copy.update(N);
+        assertEquals(N, copy.getMax());
+        assertEquals(N + 1, copy.getCount());
+    }
+
+    @Test
+    public void anEmptySketchSurvivesSerialization() throws Exception {
+        QuantileSketch copy = (QuantileSketch) deserialize(serialize(new QuantileSketch()));
+        assertEquals(0, copy.getCount());
+        assertEquals(0, copy.quantile(0.5));
+        copy.update(5);
+        assertEquals(5, copy.quantile(0.5));
+    }
+
+    @Test
+    public void corruptLevelsAreRefused() {
+        QuantileSketch sketch = new QuantileSketch();
+        for (int value : shuffled(1000, new Random(11)))
+            sketch.update(value);
+        sketch.compact();
+        byte[] encoded = sketch.getEncoded();
+
+        // A size of a level that does not match the count
+        byte[] corrupt = encoded.clone();
+        corrupt[1] ^= 1;
+        assertRefused(sketch, corrupt);
+        // Sizes past the input, which must not be allocated
+        assertRefused(sketch, new byte[]{1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07});
+        assertRefused(sketch, new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07});
+        // Truncated anywhere
+        for (int length = 0; length < encoded.length; length++)
+            assertRefused(sketch, Arrays.copyOf(encoded, length));
+        // Trailing bytes
+        assertRefused(sketch, Arrays.copyOf(encoded, encoded.length + 1));
+    }
+
+    @Test
+    public void corruptSerializedSketchesAreInvalid() throws Exception {
+        QuantileSketch sketch = new QuantileSketch();
+        for (int value : shuffled(1000, new Random(13)))
+            sketch.update(value);
+        byte[] serialized = serialize(sketch);
+        byte[] encoded = sketch.getEncoded();
+        int at = indexOf(serialized, encoded);
+        assertTrue(at > 0);
+
+        // One level more than was written runs past the end of the levels
+        serialized[at] = (byte) (encoded[0] + 1);
+        try {
+            deserialize(serialized);
+            fail("Deserialized a corrupt sketch");
+        } catch (InvalidObjectException expected) {
+            assertEquals("Truncated CBRI quantile sketch", expected.getMessage());
+        }
+    }
+
+    private static void assertWithinRankError(QuantileSketch sketch) {
+        // The values are 0 to N - 1, so a value is its own rank
+        for (double fraction : FRACTIONS) {
+            int value = sketch.quantile(fraction);
+            double error = Math.abs(value - fraction * N) / N;
+            assertTrue("rank error " + error + " at " + fraction, error <= RANK_ERROR);
+        }
+    }
+
+    private static void assertRefused(QuantileSketch sketch, byte[] encoded) {
+        QuantileSketch copy = new QuantileSketch();
+        copy.count = sketch.getCount();
+        try {
+            copy.decode(encoded);
+            fail("Decoded corrupt levels " + Arrays.toString(encoded));
+        } catch (IOException expected) {
+            // refused
+        }
+    }
+
+    private static int[] shuffled(int n, Random random) {
+        int[] values = new int[n];
+        for (int i = 0; i < n; i++)
+            values[i] = i;
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = values[i];
+            values[i] = values[j];
+            values[j] = swap;
+        }
+        return values;
+    }
+
+    private static int indexOf(byte[] haystack, byte[] needle) {
+        for (int i = 0; i + needle.length <= haystack.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(haystack, i, i + needle.length), needle))
+                return i;
+        }
+        return -1;
+    }
+
+    private static byte[] serialize(Object o) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(o);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        }
+    }
+}
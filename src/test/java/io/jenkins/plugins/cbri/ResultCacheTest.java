@@ -0,0 +1,94 @@
+package io.jenkins.plugins.cbri;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ResultCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void aLowerLimitEvictsTheLeastRecentlyUsed() throws Exception {
+        File root = folder.newFolder("cbri-cache");
+        ResultCache cache = new ResultCache(root, 1024L * 1024L);
+        for (int i = 0; i < 3; i++) {
+            cache.put("key" + i, action(i));
+            new File(root, "key" + i).setLastModified(1000000L * (i + 1));
+        }
+        assertEquals(3, root.list().length);
+
+        // Only the newest entry fits once the limit comes down
+        long entry = new File(root, "key0/" + ResultCache.ACTION_FILE).length();
+        cache.setMaxBytes(entry + entry / 2);
+        cache.put("key3", action(3));
+
+        assertNull(cache.get("key0"));
+        assertNull(cache.get("key1"));
+        assertNull(cache.get("key2"));
+        assertEquals(103, cache.get("key3").uloc);
+    }
+
+    @Test
+    public void entriesBeingWrittenAreNotEvicted() throws Exception {
+        File root = folder.newFolder("cbri-cache");
+        File staging = new File(root, "key1.tmp42");
+        assertTrue(new File(staging, "partial").mkdirs());
+
+        ResultCache cache = new ResultCache(root, 0);
+        cache.put("key0", action(0));
+        assertTrue(staging.isDirectory());
+    }
+
+    @Test
+    public void concurrentPutsOfOneKeyKeepAnEntry() throws Exception {
+        File root = folder.newFolder("cbri-cache");
+        ResultCache cache = new ResultCache(root, 1024L * 1024L);
+        int builds = 8;
+        for (int round = 0; round < 20; round++) {
+            String key = "key" + round;
+            CyclicBarrier start = new CyclicBarrier(builds);
+            List<Future<?>> puts = new ArrayList<>();
+            ExecutorService executor = Executors.newFixedThreadPool(builds);
+            try {
+                for (int b = 0; b < builds; b++) {
+                    int build = b;
+                    puts.add(executor.submit(() -> {
+                        start.await();
+                        cache.put(key, action(build));
+                        return null;
+                    }));
+                }
+                for (Future<?> put : puts)
+                    put.get(); // a put that threw fails the test here
+            } finally {
+                executor.shutdownNow();
+            }
+            assertNotNull(cache.get(key));
+        }
+        for (String name : root.list())
+            assertFalse(name, name.contains(".tmp"));
+    }
+
+    private static CbriAction action(int i) {
+        CbriAction action = new CbriAction();
+        action.uloc = 100 + i;
+        action.numFiles = i;
+        return action;
+    }
+}
@@ -0,0 +1,47 @@
+package io.jenkins.plugins.cbri;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SourceManifestTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void languageIsKeptWithTheHashes() throws Exception {
+        File root = folder.newFolder("workspace");
+        Files.write(new File(root, "main.c").toPath(), "int main() { return 0; }\n".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(root, "util.h").toPath(), "int util();\n".getBytes(StandardCharsets.UTF_8));
+        File file = new File(folder.getRoot(), SourceManifest.MANIFEST_FILE);
+
+        SourceManifest.scan(root, "C").write(file);
+        SourceManifest stored = SourceManifest.read(file);
+        assertEquals("C", stored.getLanguage());
+        assertEquals(2, stored.size());
+        assertTrue(SourceManifest.scan(root, "C").diff(stored).isUnchanged());
+
+        // The same files analyzed as C++ need a new database
+        SourceManifest.Delta delta = SourceManifest.scan(root, "C++").diff(stored);
+        assertFalse(delta.baseline);
+        assertEquals("2 files, previously analyzed as C", delta.toString());
+    }
+
+    @Test
+    public void manifestsWithoutALanguageAreNotUsed() throws Exception {
+        File file = folder.newFile(SourceManifest.MANIFEST_FILE);
+        Files.write(file.toPath(), ("cbri-manifest 1 1\n"
+                + "da39a3ee5e6b4b0d3255bfef95601890afd80709 src/Main.java\n").getBytes(StandardCharsets.UTF_8));
+        assertNull(SourceManifest.read(file));
+    }
+}
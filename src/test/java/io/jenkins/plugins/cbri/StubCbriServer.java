@@ -0,0 +1,241 @@
+package io.jenkins.plugins.cbri;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A local stand-in for the CBRI REST API, so uploads can be measured and load tested without a server
+ * on the network. It implements the three calls the plugin makes:
+ *
+ * POST /api/login issues a token, a JWT whose "exp" claim is the configured lifetime away, or an opaque
+ * token without an expiry if the lifetime is 0; GET /api/login/{token} answers 200 while the token is
+ * valid and 404 after; POST /api/repositories/{id}/measurements/ needs a valid token (401 otherwise),
+ * answers 409 to an idempotency key it has seen and reads the whole body, gzip or not, before answering 201.
+ * Bodies are counted both as they arrive and decompressed.
+ *
+ * Every call waits the configured latency, and measurements fail with 503 at the configured rate.
+ */
+class StubCbriServer implements AutoCloseable {
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, Long> tokens = new ConcurrentHashMap<>(); // token -> expiry, 0 for none
+    private final Set<String> idempotencyKeys = ConcurrentHashMap.newKeySet();
+
+    private volatile long latencyMillis;
+    private volatile long latencyJitterMillis;
+    private volatile double errorRate;
+    private volatile long tokenLifetimeMillis = TimeUnit.HOURS.toMillis(1);
+
+    final AtomicLong logins = new AtomicLong();
+    final AtomicLong tokenChecks = new AtomicLong();
+    final AtomicLong measurements = new AtomicLong();
+    final AtomicLong unauthorized = new AtomicLong();
+    final AtomicLong duplicates = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong bytesReceived = new AtomicLong();
+    final AtomicLong wireBytesReceived = new AtomicLong(); // every measurement body with a valid token, as sent
+
+    StubCbriServer(int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/api/login", this::login);
+        server.createContext("/api/repositories/", this::measurement);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return the base URL to configure, ending in /api
+     */
+    String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/api";
+    }
+
+    /**
+     * Wait this long, plus up to the jitter, before answering each call.
+     */
+    StubCbriServer setLatency(long millis, long jitterMillis) {
+        this.latencyMillis = millis;
+        this.latencyJitterMillis = jitterMillis;
+        return this;
+    }
+
+    /**
+     * @param errorRate the fraction of measurements answered with 503, between 0 and 1
+     */
+    StubCbriServer setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    /**
+     * @param millis how long the tokens issued from now on are valid, 0 for opaque tokens without expiry
+     * that the client has to check with the server before each use
+     */
+    StubCbriServer setTokenLifetime(long millis) {
+        this.tokenLifetimeMillis = millis;
+        return this;
+    }
+
+    /**
+     * Forget every token, as a restarted server would.
+     */
+    void revokeTokens() {
+        tokens.clear();
+    }
+
+    private void login(HttpExchange exchange) throws IOException {
+        delay();
+        String path = exchange.getRequestURI().getPath();
+        if ("GET".equals(exchange.getRequestMethod()) && path.startsWith("/api/login/")) {
+            tokenChecks.incrementAndGet();
+            String token = path.substring("/api/login/".length());
+            if (isValid(token))
+                respond(exchange, 200, "{\"" + CbriWrapper.TOKEN_FIELD + "\":\"" + token + "\"}");
+            else
+                respond(exchange, 404, "{}");
+            return;
+        }
+        drain(exchange.getRequestBody());
+        logins.incrementAndGet();
+        respond(exchange, 200, "{\"" + CbriWrapper.TOKEN_FIELD + "\":\"" + issueToken() + "\"}");
+    }
+
+    private void measurement(HttpExchange exchange) throws IOException {
+        delay();
+        String authorization = exchange.getRequestHeaders().getFirst(CbriWrapper.AUTH_FIELD);
+        if (authorization == null || !authorization.startsWith("JWT ") || !isValid(authorization.substring(4))) {
+            drain(exchange.getRequestBody());
+            unauthorized.incrementAndGet();
+            respond(exchange, 401, "{}");
+            return;
+        }
+
+        CountingInputStream wire = new CountingInputStream(exchange.getRequestBody());
+        InputStream body = wire;
+        if ("gzip".equals(exchange.getRequestHeaders().getFirst(CbriWrapper.ENCODING_FIELD)))
+            body = new GZIPInputStream(body, 8192);
+        long received = drain(body);
+        wireBytesReceived.addAndGet(wire.count);
+
+        if (ThreadLocalRandom.current().nextDouble() < errorRate) {
+            errors.incrementAndGet();
+            respond(exchange, 503, "{}");
+            return;
+        }
+        String key = exchange.getRequestHeaders().getFirst(CbriWrapper.IDEMPOTENCY_FIELD);
+        if (key != null && !idempotencyKeys.add(key)) {
+            duplicates.incrementAndGet();
+            respond(exchange, 409, "{}");
+            return;
+        }
+        bytesReceived.addAndGet(received);
+        measurements.incrementAndGet();
+        respond(exchange, 201, "{}");
+    }
+
+    private String issueToken() {
+        long lifetime = tokenLifetimeMillis;
+        String token;
+        long expiresAt = 0;
+        if (lifetime > 0) {
+            expiresAt = System.currentTimeMillis() + lifetime;
+            Base64.Encoder base64 = Base64.getUrlEncoder().withoutPadding();
+            String claims = "{\"exp\":" + TimeUnit.MILLISECONDS.toSeconds(expiresAt) + ",\"jti\":\"" + UUID.randomUUID() + "\"}";
+            token = base64.encodeToString("{\"alg\":\"none\"}".getBytes(StandardCharsets.UTF_8)) + "."
+                    + base64.encodeToString(claims.getBytes(StandardCharsets.UTF_8)) + ".stub";
+        } else {
+            token = UUID.randomUUID().toString();
+        }
+        tokens.put(token, expiresAt);
+        return token;
+    }
+
+    private boolean isValid(String token) {
+        Long expiresAt = tokens.get(token);
+        return expiresAt != null && (expiresAt == 0 || System.currentTimeMillis() < expiresAt);
+    }
+
+    private void delay() throws IOException {
+        long millis = latencyMillis;
+        if (latencyJitterMillis > 0)
+            millis += ThreadLocalRandom.current().nextLong(latencyJitterMillis + 1);
+        if (millis <= 0)
+            return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    private static long drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) > 0)
+            total += n;
+        in.close();
+        return total;
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                count += n;
+            return n;
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
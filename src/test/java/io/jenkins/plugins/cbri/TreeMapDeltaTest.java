@@ -0,0 +1,95 @@
+package io.jenkins.plugins.cbri;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class TreeMapDeltaTest {
+
+    private static FileTreeMap map(List<String> rows) {
+        FileTreeMap.Builder builder = new FileTreeMap.Builder();
+        for (String row : rows) {
+            String[] f = row.split(",", 5);
+            builder.add(builder.intern(f[0]), builder.intern(f[1]), Integer.parseInt(f[2]), Integer.parseInt(f[3]),
+                    builder.intern(f[4]));
+        }
+        return builder.build();
+    }
+
+    private static List<String> rows(int files, Random random) {
+        List<String> rows = new ArrayList<>();
+        rows.add("Project,null,0,0,Project");
+        rows.add("Core,Project,0,0,Core");
+        rows.add("Periphery,Project,0,0,Periphery");
+        for (int i = 0; i < files; i++) {
+            String path = "src/pkg" + (i % 13) + "/File" + i + ".java";
+            rows.add("File" + i + ".java," + (random.nextBoolean() ? "Core" : "Periphery") + ","
+                    + random.nextInt(500) + "," + random.nextInt(3) + "," + path);
+        }
+        return rows;
+    }
+
+    /**
+     * Apply a delta the way a server keyed by full name would, keeping the rows in no particular order.
+     */
+    private static List<String> apply(List<String> base, String delta) {
+        Map<String, String> byName = new HashMap<>();
+        for (String row : base)
+            byName.put(row.split(",", 5)[4], row);
+        for (String line : delta.split("\n")) {
+            if (line.isEmpty())
+                continue;
+            String row = line.substring(1);
+            String key = row.split(",", 5)[4];
+            if (line.charAt(0) == '-')
+                byName.remove(key);
+            else
+                byName.put(key, row);
+        }
+        return new ArrayList<>(byName.values());
+    }
+
+    @Test
+    public void digestDoesNotDependOnRowOrder() {
+        List<String> rows = rows(200, new Random(1));
+        List<String> shuffled = new ArrayList<>(rows);
+        Collections.shuffle(shuffled, new Random(2));
+        assertEquals(TreeMapDelta.digest(map(rows)), TreeMapDelta.digest(map(shuffled)));
+
+        shuffled.add("Extra.java,Core,1,0,src/Extra.java");
+        assertNotEquals(TreeMapDelta.digest(map(rows)), TreeMapDelta.digest(map(shuffled)));
+    }
+
+    @Test
+    public void serverCopyMatchesAfterEachDelta() {
+        Random random = new Random(3);
+        List<String> client = rows(300, random);
+        List<String> server = new ArrayList<>(client);
+        for (int build = 0; build < 5; build++) {
+            List<String> next = new ArrayList<>(client);
+            next.remove(3 + random.nextInt(next.size() - 3));
+            next.add("New" + build + ".java,Core,10,0,src/new/New" + build + ".java");
+            int changed = 3 + random.nextInt(next.size() - 3);
+            String[] f = next.get(changed).split(",", 5);
+            next.set(changed, f[0] + "," + f[1] + "," + (Integer.parseInt(f[2]) + 1) + "," + f[3] + "," + f[4]);
+
+            // The server checks the base before applying the delta
+            assertEquals(TreeMapDelta.digest(map(client)), TreeMapDelta.digest(map(server)));
+            TreeMapDelta delta = TreeMapDelta.diff(map(client), map(next));
+            assertEquals(1, delta.added);
+            assertEquals(1, delta.removed);
+            assertEquals(1, delta.changed);
+            server = apply(server, delta.text);
+            client = next;
+        }
+        assertEquals(TreeMapDelta.digest(map(client)), TreeMapDelta.digest(map(server)));
+    }
+}
@@ -0,0 +1,83 @@
+package io.jenkins.plugins.cbri;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class TreeMapHierarchyTest {
+
+    private static FileTreeMap map(String... rows) {
+        FileTreeMap.Builder builder = new FileTreeMap.Builder();
+        for (String row : rows) {
+            String[] f = row.split(",", 5);
+            builder.add(builder.intern(f[0]), builder.intern(f[1]), Integer.parseInt(f[2]), Integer.parseInt(f[3]),
+                    builder.intern(f[4]));
+        }
+        return builder.build();
+    }
+
+    private static JsonNode write(TreeMapHierarchy groups, TreeMapHierarchy.Group group, int offset, int limit, int top)
+            throws IOException {
+        StringWriter out = new StringWriter();
+        try (JsonGenerator json = CbriClientRegistry.MAPPER.getFactory().createGenerator(out)) {
+            groups.write(json, group, TreeMapHierarchy.SORT_ULOC, offset, limit, top);
+        }
+        return CbriClientRegistry.MAPPER.readTree(out.toString());
+    }
+
+    @Test
+    public void windowsPathsShareDirectoriesWithOthers() throws IOException {
+        TreeMapHierarchy groups = TreeMapHierarchy.of(map(
+                "Project,null,0,0,Project",
+                "Core,Project,0,0,Core",
+                "A.java,Core,100,1,src\\main\\A.java",
+                "B.java,Core,50,0,src/main/B.java",
+                "C.java,Core,20,2,src\\test\\C.java"));
+
+        TreeMapHierarchy.Group main = groups.find("Core", "src/main");
+        assertNotNull(main);
+        assertEquals(2, main.files);
+        assertEquals(150, main.uloc);
+        assertEquals(1, main.violations);
+        assertNotNull(groups.find("Core", "src/test"));
+
+        JsonNode files = write(groups, main, 0, 10, 0).path("children");
+        assertEquals("src/main/A.java", files.get(0).path("path").asText());
+        assertEquals("src/main/B.java", files.get(1).path("path").asText());
+    }
+
+    @Test
+    public void pagesAndTopOfADirectory() throws IOException {
+        String[] rows = new String[12];
+        rows[0] = "Project,null,0,0,Project";
+        rows[1] = "Core,Project,0,0,Core";
+        for (int i = 0; i < 10; i++)
+            rows[i + 2] = "F" + i + ".java,Core," + (i + 1) * 10 + ",1,src/F" + i + ".java";
+        TreeMapHierarchy groups = TreeMapHierarchy.of(map(rows));
+        TreeMapHierarchy.Group src = groups.find("Core", "src");
+
+        JsonNode page = write(groups, src, 4, 3, 0);
+        assertEquals(10, page.path("childCount").asInt());
+        assertEquals(4, page.path("offset").asInt());
+        assertEquals(3, page.path("children").size());
+        // Largest first: F9 is 100 lines, so the fifth is F5
+        assertEquals("F5.java", page.path("children").get(0).path("name").asText());
+        assertFalse(page.has("other"));
+
+        JsonNode top = write(groups, src, 4, 3, 2);
+        assertEquals(2, top.path("children").size());
+        assertEquals("F9.java", top.path("children").get(0).path("name").asText());
+        assertTrue(top.has("other"));
+        assertEquals(8, top.path("other").path("files").asInt());
+        assertEquals(360, top.path("other").path("uloc").asInt());
+        assertEquals(8, top.path("other").path("violations").asInt());
+    }
+}
@@ -0,0 +1,99 @@
+package io.jenkins.plugins.cbri;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.StreamTaskListener;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs a fake und through {@link UnderstandWrapper#runCommand}.
+ */
+public class UnderstandWrapperTest {
+
+    /**
+     * Writes its first argument's number of lines to stdout and as many to stderr, alternating between them,
+     * and then its second argument, if any, to stderr.
+     */
+    static final String FAKE_UND = "#!/bin/sh\n"
+            + "awk -v n=\"$1\" 'BEGIN { pad = sprintf(\"%60s\", \"\"); gsub(/ /, \".\", pad);\n"
+            + "  for (i = 0; i < n; i++) { printf \"out %07d %s\\n\", i, pad; printf \"err %07d %s\\n\", i, pad > \"/dev/stderr\" } }'\n"
+            + "[ -n \"$2\" ] && echo \"$2\" >&2\n"
+            + "exit 0\n";
+
+    /**
+     * Enough for about 3.8 MB on each stream, well past any pipe buffer.
+     */
+    private static final int LINES = 50000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void largeOutputOnBothStreamsIsForwardedWhileTheProcessRuns() throws Exception {
+        File und = fakeUnd(folder.getRoot());
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+        int exitCode = run(und, log, String.valueOf(LINES));
+
+        assertEquals(0, exitCode);
+        String[] lines = new String(log.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        int out = 0;
+        int err = 0;
+        for (String line : lines) {
+            if (line.startsWith("out "))
+                assertEquals(line, out++, Integer.parseInt(line.substring(4, 11)));
+            else if (line.startsWith("err "))
+                assertEquals(line, err++, Integer.parseInt(line.substring(4, 11)));
+        }
+        assertEquals(LINES, out);
+        assertEquals(LINES, err);
+    }
+
+    @Test
+    public void licenseMessageFailsTheCommand() throws Exception {
+        File und = fakeUnd(folder.getRoot());
+        assertEquals(-1, run(und, new ByteArrayOutputStream(), "10", "This license has expired."));
+        assertEquals(0, run(und, new ByteArrayOutputStream(), "10"));
+    }
+
+    private static int run(File und, ByteArrayOutputStream log, String... args) throws Exception {
+        ArgumentListBuilder command = new ArgumentListBuilder(und.getPath()).add(args);
+        StreamTaskListener listener = new StreamTaskListener(log, StandardCharsets.UTF_8);
+        Launcher launcher = new Launcher.LocalLauncher(listener);
+        UnderstandWrapper wrapper = new UnderstandWrapper("und", "uperl", "");
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // A runner that stalls on a full pipe never returns
+            Future<Integer> exitCode = executor.submit(() ->
+                    wrapper.runCommand(command, new FilePath(und.getParentFile()), launcher, listener));
+            return exitCode.get(2, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    static File fakeUnd(File dir) throws IOException {
+        Assume.assumeTrue("Needs a POSIX shell", File.pathSeparatorChar == ':');
+        File und = new File(dir, "und");
+        Files.write(und.toPath(), FAKE_UND.getBytes(StandardCharsets.UTF_8));
+        assertTrue(und.setExecutable(true));
+        return und;
+    }
+}
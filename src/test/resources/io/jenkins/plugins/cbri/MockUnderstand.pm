@@ -0,0 +1,111 @@
+# Stand-ins for the parts of Understand's Perl API the core metrics script uses, for the parity scripts.
+# The lexer splits text the way the plugin's own lexers do: comments, strings, identifiers, whitespace,
+# newlines and single character operators.
+use strict;
+use warnings;
+
+package MockFile;
+
+sub new {
+  my ($class, $id, $relname, $library) = @_;
+  return bless { id => $id, relname => $relname, library => $library || 0 }, $class;
+}
+
+sub id { return $_[0]{id} }
+sub relname { return $_[0]{relname} }
+sub longname { return $_[0]{relname} }
+sub name { return $_[0]{relname} =~ m{([^/\\]*)$} ? $1 : $_[0]{relname} }
+sub library { return $_[0]{library} }
+sub kind { return MockKind->new($_[0]{relname}) }
+
+# No classes, functions or metrics: the parity scripts set what they compare themselves
+sub filerefs { return () }
+sub depends { return undef }
+sub metric { return 0 }
+
+
+package MockKind;
+
+sub new {
+  my ($class, $relname) = @_;
+  return bless { relname => $relname }, $class;
+}
+
+# Only Java sets the script's language overrides apart from the C family
+sub check {
+  my ($self, $kind) = @_;
+  return $kind eq 'java file' && $self->{relname} =~ /\.java$/i;
+}
+
+
+package MockLexeme;
+
+sub token { return $_[0]{token} }
+sub text { return $_[0]{text} }
+sub line_begin { return $_[0]{line_begin} }
+sub line_end { return $_[0]{line_end} }
+sub next { return $_[0]{next} }
+sub inactive { return 0 }
+
+
+package MockLexer;
+
+sub new {
+  my ($class, $path) = @_;
+  open(my $in, '<:raw', $path) or die "Couldn't open $path $!\n";
+  my $text = do { local $/; <$in> } // '';
+  close $in;
+
+  my @lexemes;
+  my $line = 1;
+  pos($text) = 0;
+  while (pos($text) < length $text) {
+    my $start = pos($text);
+    my $token;
+    if ($text =~ /\G\n/gc) { $token = 'Newline' }
+    elsif ($text =~ /\G[ \t\r\f\x0B]+/gc) { $token = 'Whitespace' }
+    elsif ($text =~ m{\G//[^\n]*}gc) { $token = 'Comment' }
+    elsif ($text =~ m{\G/\*.*?(?:\*/|\z)}gcs) { $token = 'Comment' }
+    elsif ($text =~ /\G\@"(?:""|[^"])*"?/gc) { $token = 'String' }
+    elsif ($text =~ /\G"(?:\\[^\n]|[^"\n])*"?/gc) { $token = 'String' }
+    elsif ($text =~ /\G'(?:\\[^\n]|[^'\n])*'?/gc) { $token = 'String' }
+    elsif ($text =~ /\G[A-Za-z0-9_\$\x80-\xFF]+/gc) { $token = 'Identifier' }
+    else { $text =~ /\G./gcs; $token = 'Operator' }
+
+    my $value = substr($text, $start, pos($text) - $start);
+    my $lexeme = bless { token => $token, text => $value, line_begin => $line }, 'MockLexeme';
+    $line += () = $value =~ /\n/g unless $token eq 'Newline';
+    $lexeme->{line_end} = $line;
+    $line++ if $token eq 'Newline';
+    $lexemes[-1]{next} = $lexeme if @lexemes;
+    push @lexemes, $lexeme;
+  }
+  return bless { lexemes => \@lexemes }, $class;
+}
+
+sub first { return $_[0]{lexemes}[0] }
+
+# The lexeme at the start of the line: the first to end on it or later
+sub lexeme {
+  my ($self, $line, $column) = @_;
+  my $lexemes = $self->{lexemes};
+  my ($low, $high) = (0, scalar @$lexemes);
+  while ($low < $high) {
+    my $middle = int(($low + $high) / 2);
+    if ($lexemes->[$middle]{line_end} < $line) { $low = $middle + 1 } else { $high = $middle }
+  }
+  return $low < @$lexemes ? $lexemes->[$low] : undef;
+}
+
+# The lexemes beginning on the lines from the first to the last
+sub lexemes {
+  my ($self, $from, $to) = @_;
+  return grep { $_->{line_begin} >= $from && $_->{line_begin} <= $to } @{$self->{lexemes}};
+}
+
+
+package Understand::Gui;
+
+sub yield { }
+
+1;
@@ -0,0 +1,113 @@
+#!/usr/bin/perl
+# Run the transitive closure and architecture classification of the core metrics script on a dependency
+# graph written as fileDependencies.csv, and print the figures PropagationCostEngine must reproduce: the
+# propagation cost, architecture type, core size and central size, then the visibility fan-in, fan-out
+# and components of each file.
+#
+# strongconnect, median and package fileObj are taken from the script itself, and so is the code of
+# generate from the design structure matrix to the core-periphery partition. Files are the MockFile
+# entities of MockUnderstand.pm. Each file of the External section also depends on a library file of its
+# own, which the script leaves out of the files but keeps among the dependencies. The script picks the
+# largest cyclic group in hash order, which Perl randomizes, so groups are taken in the order they were
+# found here.
+#
+# Usage: perl parity.pl CoreMetrics_v1.27.pl fileDependencies.csv
+use strict;
+use warnings;
+use sort 'stable';
+use List::Util qw(min max sum);
+use FindBin;
+use lib "$FindBin::Bin/..";
+use MockUnderstand;
+
+our (@visibilityMatrix, @stack, $index, $analyzedCount, %fileObjsByEntID, $fileCount, $abort_called, $funcKindString);
+
+sub printprogress { }
+sub add_progress { }
+
+my ($scriptPath, $graphPath) = @ARGV;
+die "Usage: perl parity.pl CoreMetrics.pl fileDependencies.csv\n" unless $graphPath;
+open(my $script, '<', $scriptPath) or die "Couldn't open $scriptPath $!\n";
+my $source = do { local $/; <$script> };
+close $script;
+my ($closure) = $source =~ /^(  #Populate Design Structure Matrix.*?)^  if\(\$createTestFiles\)\{\s*#Print the Transitive/ms
+    or die "No transitive closure in $scriptPath\n";
+my ($groups) = $source =~ /^(  #Identify the cyclic groups.*?)^  #Create a new DSM based off the Median View/ms
+    or die "No cyclic groups in $scriptPath\n";
+my ($corePeriphery) = $source =~ /^(    #Core-Periphery Partition.*?)^    #Create a new DSM based off the Core-Periphery View/ms
+    or die "No core-periphery partition in $scriptPath\n";
+my ($subs) = $source =~ /^(sub strongconnect\(\).*?)^#\*+ Conversion Functions/ms
+    or die "No strongconnect in $scriptPath\n";
+my ($median) = $source =~ /^(sub median\{.*?^\})/ms or die "No median in $scriptPath\n";
+my ($fileObj) = $source =~ /^(package fileObj;.*?^1;)/ms or die "No package fileObj in $scriptPath\n";
+$groups =~ s/keys %cyclicGroups/sort { \$a <=> \$b } keys %cyclicGroups/ or die "No group order in $scriptPath\n";
+
+# generate comes ahead of the subs it calls, as in the script, so their prototypes are not checked
+my $generate = 'sub generate {
+  my ($report, @fileObjList) = @_;
+  my ($externalClosure, $createTestFiles, $outputDir, $slash, $projectName, $outputFileName, @titlesList, $count);
+' . $closure . $groups . '
+  my %cpGroupSize;
+  if ($coreGroup) {
+' . $corePeriphery . '
+  }
+  my $coreSize = $coreGroup ? sprintf("%.1f", $cyclicGroups{$largestGroupID}{size} * 100 / $fileCount) : "0";
+  return (sprintf("%.3f", (sum @vfoList) * 100 / ($fileCount * $fileCount)), $projectArchitectType, $coreSize,
+      sprintf("%.1f", ($mGroupSize{Core} || 0) * 100 / $fileCount));
+}
+';
+{
+  no warnings;
+  eval "$generate\n$subs\n$median\n$fileObj\npackage main;\n1;" or die $@;
+}
+
+open(my $graph, '<', $graphPath) or die "Couldn't open $graphPath $!\n";
+chomp(my @lines = <$graph>);
+close $graph;
+my ($n) = shift(@lines) =~ /^Files,(\d+)$/ or die "No files in $graphPath\n";
+my @ents = map { MockFile->new($_ + 1, shift @lines) } 0 .. $n - 1;
+my %depends;
+my ($m) = shift(@lines) =~ /^Dependencies,(\d+)$/ or die "No dependencies in $graphPath\n";
+foreach (1 .. $m) {
+  my ($from, $to) = split /,/, shift @lines;
+  push @{$depends{$from}}, $to + 1;
+}
+my @libraries;
+if (@lines && $lines[0] =~ /^External,(\d+)$/) {
+  shift @lines;
+  foreach (1 .. $1) {
+    my $from = shift @lines;
+    my $library = MockFile->new($n + @libraries + 1, "lib/Library" . scalar(@libraries), 1);
+    push @libraries, $library;
+    push @{$depends{$from}}, $library->id;
+  }
+}
+
+# The files as the script collects them
+my @fileObjList;
+my $count = 0;
+foreach my $fileEnt (@ents, @libraries) {
+  next if $fileEnt->library();
+  my $fileObj = fileObj->new($count, $fileEnt);
+  $fileObjList[$count] = $fileObj;
+  $fileObjsByEntID{$fileObj->{entid}} = $fileObj;
+  push @{$fileObj->{depends}}, @{$depends{$count} || []};
+  $count++;
+}
+$fileCount = scalar @fileObjList;
+$index = 0;
+$analyzedCount = 0;
+$abort_called = 0;
+
+# The script fails on some graphs with library dependencies, which the caller is told apart by exit code 3
+my @project;
+{
+  no warnings;
+  @project = eval { generate(undef, @fileObjList) };
+}
+if ($@) {
+  print STDERR "The script failed: $@";
+  exit 3;
+}
+print join(",", @project), "\n";
+print join(",", $_->{relname}, $_->{vfi}, $_->{vfo}, $_->{componentM}, $_->{componentCP}), "\n" foreach @fileObjList;
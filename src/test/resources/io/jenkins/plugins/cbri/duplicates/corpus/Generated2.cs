@@ -0,0 +1,31 @@
+// <auto-generated/>
+namespace Example.Generated
+{
+    using System;
+    using System.Collections.Generic;
+
+    public partial class Settings
+    {
+        private static readonly string Template = @"
+Name = ""{0}""
+Value = {1}
+";
+
+        public string Name { get; set; }
+
+        public int Value { get; set; }
+
+        public override string ToString()
+        {
+            return string.Format(Template, Name, Value);
+        }
+
+        public static Settings Parse(IDictionary<string, string> values)
+        {
+            var settings = new Settings();
+            settings.Name = values["name"];
+            settings.Value = int.Parse(values["value"]);
+            return settings;
+        }
+    }
+}
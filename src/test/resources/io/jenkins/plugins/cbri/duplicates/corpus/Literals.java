@@ -0,0 +1,50 @@
+package org.example.parse;
+
+public class Literals {
+
+    static final String[] GREETINGS = {
+        "hello  world",
+        "a \"quoted\" word",
+        "tab\there",
+        'x' + "y",
+    };
+
+    static String first() {
+        String s = "one, two";
+        String t = "three four";
+        int n = 0;
+        for (String g : GREETINGS)
+            n += g.length();
+        if (n > 10)
+            return s + t;
+        return t + s;
+    }
+
+    static String second() {
+        String s = "one,two";
+        String t = "three four";
+        int n = 0;
+        for (String g : GREETINGS)
+            n += g.length();
+        if (n > 10)
+            return s + t;
+        return t + s;
+    }
+
+    static String third() {
+        String s = "one, two";
+        String t = "three four";
+        int n = 0;
+        for (String g : GREETINGS)
+            n += g.length();
+        if (n > 10)
+            return s + t;
+        return t + s;
+    }
+
+    static int zero() {
+        return
+            0
+            ;
+    }
+}
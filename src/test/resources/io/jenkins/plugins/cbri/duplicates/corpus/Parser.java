@@ -0,0 +1,48 @@
+package org.example.parse;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits records into fields.
+ */
+public class Parser {
+
+    private final char separator;
+
+    public Parser(char separator) {
+        this.separator = separator;
+    }
+
+    public List<String> split(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == separator && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    public List<List<String>> readAll(BufferedReader reader) throws IOException {
+        List<List<String>> records = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty())
+                continue;
+            records.add(split(line));
+        }
+        return records;
+    }
+}
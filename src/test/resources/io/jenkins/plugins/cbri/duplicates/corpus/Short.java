@@ -0,0 +1,25 @@
+package org.example.parse;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class Short {
+
+    public List<String> split(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            }
+        }
+        return fields;
+    }
+
+    public String join(List<String> fields) {
+        return String.join(",", fields);
+    }
+}
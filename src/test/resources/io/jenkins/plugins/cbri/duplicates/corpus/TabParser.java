@@ -0,0 +1,58 @@
+package org.example.parse;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Copied from Parser and reformatted, with comments in between
+public class TabParser {
+
+    private final char separator = '\t';
+
+    public List<String> split(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();   // the current field
+        boolean quoted = false;
+        for (int i = 0;
+             i < line.length(); i++) { char c = line.charAt(i);
+            if (c == '"') { // a quote toggles quoting
+                quoted = !quoted;
+            } else if (c == separator && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    public int count(String line) {
+        int count = 1;
+        for (int i = 0; i < line.length(); i++) {
+            if (line.charAt(i) == separator)
+                count++;
+        }
+        return count;
+    }
+
+    public List<String> splitTrimmed(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+
+            } else if (c == separator && !quoted) {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString().trim());
+        return fields;
+    }
+}
@@ -0,0 +1,23 @@
+#include <string.h>
+#include "util.h"
+
+size_t copy_lower(char *dst, const char *src, size_t n)
+{
+    size_t i = 0;
+    if (n == 0)
+        return 0;
+    while (i + 1 < n && src[i] != '\0') { /* copy
+                                     one byte */
+        dst[i] = src[i];
+        i++;
+    }
+    dst[i] = '\0';
+    if (i == n - 1)
+        dst[n - 1] = '\0';
+    if (i > 0 && dst[i - 1] == '\n')
+        dst[--i] = '\0';
+    for (size_t j = 0; j < i; j++)
+        if (dst[j] >= 'A' && dst[j] <= 'Z')
+            dst[j] += 32;
+    return i;
+}
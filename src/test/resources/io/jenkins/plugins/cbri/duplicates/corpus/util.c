@@ -0,0 +1,48 @@
+#include <stdio.h>
+#include <string.h>
+#include "util.h"
+
+/* Copy at most n bytes and terminate. */
+size_t copy_bounded(char *dst, const char *src, size_t n)
+{
+    size_t i = 0;
+    if (n == 0)
+        return 0;
+    while (i + 1 < n && src[i] != '\0') {
+        dst[i] = src[i];
+        i++;
+    }
+    dst[i] = '\0';
+    if (i == n - 1)
+        dst[n - 1] = '\0';
+    if (i > 0 && dst[i - 1] == '\n')
+        dst[--i] = '\0';
+    return i;
+}
+
+size_t copy_upper(char *dst, const char *src, size_t n)
+{
+    size_t i = 0;
+    if (n == 0)
+        return 0;
+    while (i + 1 < n && src[i] != '\0') {
+        dst[i] = src[i];
+        i++;
+    }
+    dst[i] = '\0';
+    if (i == n - 1)
+        dst[n - 1] = '\0';
+    if (i > 0 && dst[i - 1] == '\n')
+        dst[--i] = '\0';
+    for (size_t j = 0; j < i; j++)
+        if (dst[j] >= 'a' && dst[j] <= 'z')
+            dst[j] -= 32;
+    return i;
+}
+
+int main(void)
+{
+    char buffer[16];
+    printf("%zu\n", copy_bounded(buffer, "hello, world", sizeof buffer));
+    return 0;
+}
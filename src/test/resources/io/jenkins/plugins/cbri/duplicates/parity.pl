@@ -0,0 +1,63 @@
+#!/usr/bin/perl
+# Run the duplicate code detection of the core metrics script on a list of files and print the
+# DuplicateUsefulLOC of each, the figures DuplicateCodeDetector must reproduce.
+#
+# makeDuplicateCodeHash, removeDuplicates, fillMatchValues, lexFromLoc and package Match are taken from
+# the script itself. Understand's lexer and file entities are replaced by the mocks of MockUnderstand.pm,
+# whose lexer splits text the way DuplicateCodeDetector does. The script visits its matches in hash
+# order, which Perl randomizes, so they are visited here in the order of their first location.
+#
+# Usage: perl parity.pl [--lines 10] [--chars 20] CoreMetrics_v1.27.pl file...
+use strict;
+use warnings;
+use sort 'stable';
+use FindBin;
+use lib "$FindBin::Bin/..";
+use MockUnderstand;
+
+our (%codeHashes, @matches, %lexers, %fileObjsByEntID, $minDupLines, $minDupChars);
+$minDupLines = 10;
+$minDupChars = 20;
+while (@ARGV && $ARGV[0] =~ /^--(lines|chars)$/) {
+  my $option = shift @ARGV;
+  my $value = shift @ARGV;
+  if ($option eq '--lines') { $minDupLines = $value } else { $minDupChars = $value }
+}
+
+my $scriptPath = shift @ARGV or die "Usage: perl parity.pl [--lines N] [--chars N] CoreMetrics.pl file...\n";
+open(my $script, '<', $scriptPath) or die "Couldn't open $scriptPath $!\n";
+my $source = do { local $/; <$script> };
+close $script;
+my ($subs) = $source =~ /^(sub makeDuplicateCodeHash\(\).*?)^sub treemapHTML/ms or die "No duplicate code subs in $scriptPath\n";
+my ($match) = $source =~ /^(package Match;.*)/ms or die "No package Match in $scriptPath\n";
+{
+  no warnings;
+  eval "$subs\n$match\npackage main;\n1;" or die $@;
+}
+
+my @files;
+my $id = 0;
+foreach my $path (@ARGV) {
+  my $file = MockFile->new(++$id, $path);
+  my $lexer = MockLexer->new($path);
+  $lexers{$file->id} = $lexer;
+  $fileObjsByEntID{$file->id} = { duplicateLOC => 0 };
+  push @files, $file;
+  no warnings;
+  &main::makeDuplicateCodeHash($file, $lexer);
+}
+
+{
+  no warnings;
+  foreach (sort { $a->{_fileList}[0]->id <=> $b->{_fileList}[0]->id || $a->{_lineList}[0] <=> $b->{_lineList}[0] }
+           values %codeHashes) {
+    push @matches, $_ if $_->getLocCount > 1;
+  }
+  main::removeDuplicates();
+  main::fillMatchValues();
+  main::removeDuplicates();
+  $_->updateFileMetrics() foreach @matches;
+}
+
+print $_->relname, ",", $fileObjsByEntID{$_->id}{duplicateLOC}, "\n" foreach @files;
+
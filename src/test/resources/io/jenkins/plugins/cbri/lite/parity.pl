@@ -0,0 +1,43 @@
+#!/usr/bin/perl
+# Run the useful line and useful comment counting of the core metrics script on a list of files and
+# print the LOC, ULOC and useful comment lines of each, the figures LiteAnalyzer must reproduce.
+#
+# usefulCommentCount, uselessLineCount and nextComment are taken from the script itself, with the mocks
+# of MockUnderstand.pm standing in for Understand. LOC is Understand's CountLineCode, the lines holding
+# anything but whitespace and comments, counted here from the same lexemes.
+#
+# Usage: perl parity.pl CoreMetrics_v1.27.pl file...
+use strict;
+use warnings;
+use FindBin;
+use lib "$FindBin::Bin/..";
+use MockUnderstand;
+
+our ($currentLexeme, $commentStartLine, $abort_called);
+
+my $scriptPath = shift @ARGV or die "Usage: perl parity.pl CoreMetrics.pl file...\n";
+open(my $script, '<', $scriptPath) or die "Couldn't open $scriptPath $!\n";
+my $source = do { local $/; <$script> };
+close $script;
+my ($subs) = $source =~ /^(sub usefulCommentCount\(\).*?)^#Read through each file/ms
+    or die "No useful line subs in $scriptPath\n";
+{
+  no warnings;
+  eval "$subs\n1;" or die $@;
+}
+
+my $id = 0;
+foreach my $path (@ARGV) {
+  my $file = MockFile->new(++$id, $path);
+  my $lexer = MockLexer->new($path);
+  my %codeLines;
+  for (my $lexeme = $lexer->first; $lexeme; $lexeme = $lexeme->next) {
+    next if $lexeme->token =~ /^(Comment|Whitespace|Newline)$/;
+    $codeLines{$_} = 1 foreach $lexeme->line_begin .. $lexeme->line_end;
+  }
+  my $loc = scalar keys %codeLines;
+  no warnings;
+  my $useless = &main::uselessLineCount($file, $lexer) || 0;
+  my $useful = &main::usefulCommentCount($file, $lexer) || 0;
+  print $file->relname, ",", $loc, ",", $loc - $useless, ",", $useful, "\n";
+}